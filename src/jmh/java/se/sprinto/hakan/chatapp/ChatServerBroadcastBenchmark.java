@@ -0,0 +1,71 @@
+package se.sprinto.hakan.chatapp;
+
+import org.openjdk.jmh.annotations.*;
+import se.sprinto.hakan.chatapp.dao.MessageListDAO;
+import se.sprinto.hakan.chatapp.dao.UserListDAO;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ChatServer.broadcast fan-out to a number of connected handlers. The handlers write
+ * to a discarding stream, so the result is the cost of formatting and writing each line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatServerBroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int handlers;
+
+    private ChatServer server;
+    private ClientHandler sender;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = new ChatServer(0);
+        sender = new FakeClientHandler(server, new User(0, "sender", "pass"));
+        server.addClient(sender);
+        for (int i = 1; i <= handlers; i++) {
+            server.addClient(new FakeClientHandler(server, new User(i, "user" + i, "pass")));
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcast(new Message(0, "Hej allihopa, hur går det?", LocalDateTime.now()), sender);
+    }
+
+    /**
+     * A handler without a socket that writes everything it receives to a discarding stream.
+     */
+    private static class FakeClientHandler extends ClientHandler {
+        private final User user;
+        private final PrintWriter writer = new PrintWriter(OutputStream.nullOutputStream(), true);
+
+        FakeClientHandler(ChatServer server, User user) {
+            super(null, server, new UserListDAO(), new MessageListDAO());
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        boolean isLoggedIn() {
+            return true;
+        }
+
+        @Override
+        void sendMessage(String msg) {
+            writer.println(msg);
+        }
+    }
+}
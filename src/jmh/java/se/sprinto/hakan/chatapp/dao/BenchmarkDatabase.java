@@ -0,0 +1,85 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.mindrot.jbcrypt.BCrypt;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+/**
+ * BenchmarkDatabase creates a pooled H2 in-memory database with the schema from SchemaMigrator,
+ * so the DAO benchmarks measure the real SQL and pool code paths.
+ */
+final class BenchmarkDatabase {
+    static final String PASSWORD = "pass";
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Creates a HikariDataSource for a fresh in-memory database.
+     * @param name The database name, unique per benchmark.
+     * @return a pool with the schema already created.
+     * @throws SQLException will be thrown if the schema could not be created.
+     */
+    static HikariDataSource create(String name) throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        config.setUsername("sa");
+        config.setPassword("");
+        config.setMaximumPoolSize(4);
+        config.setPoolName("Benchmark-Pool");
+        HikariDataSource dataSource = new HikariDataSource(config);
+
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        new SchemaMigrator(dataSource).migrate();
+        return dataSource;
+    }
+
+    /**
+     * Inserts a user with a cheap BCrypt hash, so login benchmarks are not dominated by hashing.
+     * @param dataSource The database to insert into.
+     * @param userId The id of the user.
+     * @param username The username of the user.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    static void insertUser(HikariDataSource dataSource, int userId, String username) throws SQLException {
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement("INSERT INTO users (user_id, username, password) VALUES (?, ?, ?)")) {
+            ps.setInt(1, userId);
+            ps.setString(2, username);
+            ps.setString(3, BCrypt.hashpw(PASSWORD, BCrypt.gensalt(4)));
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Inserts a number of messages for a user in one batch.
+     * @param dataSource The database to insert into.
+     * @param userId The owner of the messages.
+     * @param count The number of messages to insert.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    static void insertMessages(HikariDataSource dataSource, int userId, int count) throws SQLException {
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement("INSERT INTO messages (text, timestamp, user_id) VALUES (?, ?, ?)")) {
+            Timestamp timestamp = Timestamp.valueOf(LocalDateTime.now());
+            for (int i = 0; i < count; i++) {
+                ps.setString(1, "Meddelande nummer " + i);
+                ps.setTimestamp(2, timestamp);
+                ps.setInt(3, userId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.*;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures MessageDatabaseDAO against H2: a single insert and a history read for a user
+ * with a varying number of stored messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageDatabaseDAOBenchmark {
+    private static final int WRITER_ID = 1;
+    private static final int READER_ID = 2;
+
+    @Param({"10", "1000"})
+    public int historySize;
+
+    private HikariDataSource dataSource;
+    private MessageDatabaseDAO messageDAO;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create("messageBenchmark");
+        BenchmarkDatabase.insertUser(dataSource, WRITER_ID, "writer");
+        BenchmarkDatabase.insertUser(dataSource, READER_ID, "reader");
+        BenchmarkDatabase.insertMessages(dataSource, READER_ID, historySize);
+        messageDAO = new MessageDatabaseDAO(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Benchmark
+    public void saveMessage() {
+        messageDAO.saveMessage(new Message(WRITER_ID, "Hej allihopa!", LocalDateTime.now()));
+    }
+
+    @Benchmark
+    public List<Message> getMessagesByUserId() {
+        return messageDAO.getMessagesByUserId(READER_ID);
+    }
+}
@@ -0,0 +1,37 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import org.openjdk.jmh.annotations.*;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups in the in-memory MessageListDAO with messages spread over 100 users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageListDAOBenchmark {
+    private static final int USERS = 100;
+
+    @Param({"1000", "100000"})
+    public int messageCount;
+
+    private MessageListDAO messageDAO;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        messageDAO = new MessageListDAO();
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < messageCount; i++) {
+            messageDAO.saveMessage(new Message(i % USERS, "Meddelande nummer " + i, now));
+        }
+    }
+
+    @Benchmark
+    public List<Message> getMessagesByUserId() {
+        return messageDAO.getMessagesByUserId(USERS / 2);
+    }
+}
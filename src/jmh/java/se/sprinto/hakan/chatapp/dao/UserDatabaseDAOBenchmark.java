@@ -0,0 +1,44 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.*;
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures UserDatabaseDAO.login for users with a growing message history. The stored hash uses
+ * the lowest BCrypt cost, so the numbers show the query and mapping cost rather than hashing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserDatabaseDAOBenchmark {
+    private static final int USER_ID = 1;
+    private static final String USERNAME = "Yuki";
+
+    @Param({"0", "100", "10000"})
+    public int historySize;
+
+    private HikariDataSource dataSource;
+    private UserDatabaseDAO userDAO;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        dataSource = BenchmarkDatabase.create("userBenchmark");
+        BenchmarkDatabase.insertUser(dataSource, USER_ID, USERNAME);
+        BenchmarkDatabase.insertMessages(dataSource, USER_ID, historySize);
+        userDAO = new UserDatabaseDAO(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Benchmark
+    public User login() {
+        return userDAO.login(USERNAME, BenchmarkDatabase.PASSWORD);
+    }
+}
@@ -0,0 +1,55 @@
+package se.sprinto.hakan.chatapp;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * BroadcastQueue holds the numbered broadcasts on their way to one client, in the order they were
+ * numbered. ChatServer numbers a broadcast and adds it to every recipient's queue in one step under
+ * its fan-out lock, and writes the queues after releasing it.
+ * <p>
+ * Only one thread writes a queue at a time, and the others leave their frames to it, so frames reach
+ * the socket in sequence order even when several users broadcast at once. That is what resume relies
+ * on: a client resumes after the highest number it has seen, so a lower number that arrived later
+ * would never be replayed.
+ */
+class BroadcastQueue {
+    private final BlockingQueue<String> frames;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * @param capacity The maximum number of frames waiting for a client that reads slowly.
+     */
+    BroadcastQueue(int capacity) {
+        this.frames = new LinkedBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Adds a frame without waiting.
+     * @param frame The numbered frame.
+     * @return false if the queue is full, so the client cannot keep up.
+     */
+    boolean offer(String frame) {
+        return frames.offer(frame);
+    }
+
+    /**
+     * Writes the waiting frames, unless another thread is already writing them.
+     * @param sink Writes one frame to the client.
+     */
+    void drain(Consumer<String> sink) {
+        // A frame added after the writer's last poll but before it let go is picked up by the re-check
+        while (!frames.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                String frame;
+                while ((frame = frames.poll()) != null) {
+                    sink.accept(frame);
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+}
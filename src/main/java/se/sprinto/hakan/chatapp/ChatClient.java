@@ -1,26 +1,119 @@
 package se.sprinto.hakan.chatapp;
 
+import se.sprinto.hakan.chatapp.compress.InflatingLineReader;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.tls.TlsChannel;
+
+import javax.net.ssl.SSLContext;
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatClient {
+    // The last sequence number is kept between runs, so /resume works after a restart of the client
+    private static final Path LAST_SEQ_FILE = Path.of("chat-client.seq");
+    // Downloads never replace a file, they get a free name in this directory
+    private static final Path DOWNLOAD_DIR = Path.of("downloads");
+    static final String ACCEPT = "/accept";
+    static final String DECLINE = "/decline";
+
+    private final AtomicLong lastSeq = new AtomicLong(loadLastSeq());
+    // Username and password must be sent as they are, so ids are only attached after login
+    private volatile boolean loggedIn;
+    // Files given to /send, until the server answers with an upload token
+    private final Map<Long, Path> pendingUploads = new ConcurrentHashMap<>();
+    private final AtomicLong nextTransferId = new AtomicLong();
+    // Files other users offered, by the number shown to the user, until they are accepted or declined
+    private final Map<Long, String[]> offeredFiles = new ConcurrentHashMap<>();
+    private final SSLContext tlsContext;
+    private final boolean compress;
+
+    public ChatClient() {
+        this(null, false);
+    }
+
+    /**
+     * @param tlsContext The context to connect with over TLS, or null for plain text.
+     * @param compress True to ask the server to compress what it sends.
+     */
+    public ChatClient(SSLContext tlsContext, boolean compress) {
+        this.tlsContext = tlsContext;
+        this.compress = compress;
+    }
+
     public void start() {
         String host = "localhost";
         int port = 5555;
 
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            if (tlsContext == null) {
+                chat(host, channel.socket().getInputStream(), channel.socket().getOutputStream());
+            } else {
+                // The context keeps the session, so a reconnect from the same process resumes it
+                TlsChannel tls = TlsChannel.client(channel, tlsContext, host, port, MetricsRegistry.getInstance());
+                tls.handshake();
+                chat(host, tls.getInputStream(), tls.getOutputStream());
+            }
+        } catch (IOException e) {
+            System.out.println("Kunde inte ansluta till servern: " + e.getMessage());
+        } finally {
+            saveLastSeq();
+        }
+    }
+
+    private void chat(String host, InputStream input, OutputStream output) throws IOException {
+        try (InflatingLineReader in = new InflatingLineReader(input);
+             PrintWriter out = new PrintWriter(output, true);
              BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            if (compress) {
+                out.println(ClientHandler.COMPRESS + " deflate");
+            }
 
             new Thread(() -> {
                 try {
                     String response;
                     while ((response = in.readLine()) != null) {
-                        System.out.println(response);
+                        if (response.equals(ClientHandler.PING)) {
+                            out.println(ClientHandler.PONG);
+                        } else if (response.startsWith(ClientHandler.COMPRESS + " ok")) {
+                            // Everything after this line comes in frames
+                            in.startInflating();
+                        } else if (response.startsWith(ClientHandler.COMPRESS + " ")) {
+                            continue;
+                        } else if (response.startsWith(ClientHandler.DOWNLOAD + " ")) {
+                            // The answer to this user's own /export-mine
+                            String[] parts = response.split(" ");
+                            new Thread(() -> download(host, parts)).start();
+                        } else if (response.startsWith(ClientHandler.INCOMING + " ")) {
+                            offer(response.split(" "));
+                        } else if (response.startsWith(ClientHandler.UPLOAD + " ")) {
+                            String[] parts = response.split(" ");
+                            new Thread(() -> upload(host, parts)).start();
+                        } else {
+                            if (response.startsWith("Du är inloggad som: ")) {
+                                loggedIn = true;
+                            }
+                            trackSeq(response);
+                            System.out.println(response);
+                        }
                     }
                 } catch (IOException ignored) {
                 }
@@ -28,14 +121,244 @@ public class ChatClient {
 
             String userInput;
             while ((userInput = console.readLine()) != null) {
-                out.println(userInput);
+                if (userInput.equalsIgnoreCase("/resume")) {
+                    out.println("/resume-from " + lastSeq.get());
+                    continue;
+                }
                 if (userInput.equalsIgnoreCase("/quit")) {
+                    out.println(userInput);
                     break;
                 }
+                if (userInput.startsWith(ACCEPT + " ") || userInput.startsWith(DECLINE + " ")) {
+                    answerOffer(host, userInput);
+                    continue;
+                }
+                if (loggedIn && userInput.startsWith(ClientHandler.SEND + " ")) {
+                    requestSend(out, userInput.substring(ClientHandler.SEND.length() + 1).trim());
+                    continue;
+                }
+                if (loggedIn && !userInput.startsWith("/")) {
+                    out.println(ClientHandler.MSG + " " + newMsgId() + " " + userInput);
+                } else {
+                    out.println(userInput);
+                }
             }
+        }
+    }
 
+    /**
+     * Turns "/send user file" into "/send transferId user size name" and remembers the file until the
+     * server answers with an upload token.
+     * @param out The writer of the chat connection.
+     * @param argument The receiver and the path of the file.
+     */
+    private void requestSend(PrintWriter out, String argument) {
+        int space = argument.indexOf(' ');
+        if (space < 0) {
+            System.out.println("Använd: " + ClientHandler.SEND + " <användare> <fil>");
+            return;
+        }
+        Path file = Path.of(argument.substring(space + 1).trim());
+        try {
+            long size = Files.size(file);
+            long transferId = nextTransferId.incrementAndGet();
+            pendingUploads.put(transferId, file);
+            out.println(ClientHandler.SEND + " " + transferId + " " + argument.substring(0, space) + " " + size + " "
+                    + file.getFileName());
         } catch (IOException e) {
-            System.out.println("Kunde inte ansluta till servern: " + e.getMessage());
+            System.out.println("Kan inte läsa filen " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a file to the server's data port after "/upload transferId port token". The file goes from
+     * disk to the socket with transferTo, without passing through the heap.
+     * @param host The server host.
+     * @param parts The words of "/upload transferId port token".
+     */
+    private void upload(String host, String[] parts) {
+        Path file = parts.length == 4 ? pendingUploads.remove(Long.parseLong(parts[1])) : null;
+        if (file == null) {
+            System.out.println("Ogiltigt uppladdningssvar från servern.");
+            return;
+        }
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, Integer.parseInt(parts[2])));
+             FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer request = ByteBuffer.wrap((parts[3] + "\n").getBytes(StandardCharsets.US_ASCII));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Uppladdningen misslyckades: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps a file another user sends until the user accepts or declines it. A declined file is never
+     * fetched, and the server drops the transfer when it stays idle.
+     * @param parts The words of "/incoming port token size name".
+     */
+    private void offer(String[] parts) {
+        if (parts.length != 5) {
+            System.out.println("Ogiltigt nedladdningssvar från servern.");
+            return;
+        }
+        long offerId = nextTransferId.incrementAndGet();
+        offeredFiles.put(offerId, parts);
+        System.out.println("Skriv " + ACCEPT + " " + offerId + " för att ta emot " + parts[4] + " eller "
+                + DECLINE + " " + offerId + " för att avböja.");
+    }
+
+    /**
+     * Handles "/accept id" and "/decline id" for a file offered with /incoming.
+     * @param host The server host.
+     * @param command The line the user typed.
+     */
+    private void answerOffer(String host, String command) {
+        String[] words = command.split(" ");
+        String[] parts;
+        try {
+            parts = words.length == 2 ? offeredFiles.remove(Long.parseLong(words[1])) : null;
+        } catch (NumberFormatException e) {
+            parts = null;
+        }
+        if (parts == null) {
+            System.out.println("Det finns ingen sådan fil att ta emot.");
+        } else if (words[0].equals(ACCEPT)) {
+            String[] accepted = parts;
+            new Thread(() -> download(host, accepted)).start();
+        } else {
+            System.out.println("Avböjde " + parts[4] + ".");
+        }
+    }
+
+    /**
+     * Fetches a file from the server's data port, a history from /export-mine or a file another user
+     * sends, and saves it under a new name in the downloads directory. The bytes go from the socket
+     * to the file without passing through the heap.
+     * @param host The server host.
+     * @param parts The words of "/download port token size name" or "/incoming port token size name".
+     */
+    private static void download(String host, String[] parts) {
+        if (parts.length != 5) {
+            System.out.println("Ogiltigt nedladdningssvar från servern.");
+            return;
+        }
+        Path target;
+        try {
+            target = newDownloadFile(DOWNLOAD_DIR, parts[4]);
+        } catch (IOException e) {
+            System.out.println("Nedladdningen misslyckades: " + e.getMessage());
+            return;
+        }
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, Integer.parseInt(parts[1])));
+             FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            ByteBuffer request = ByteBuffer.wrap((parts[2] + "\n").getBytes(StandardCharsets.US_ASCII));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            long size = Long.parseLong(parts[3]);
+            long position = 0;
+            while (position < size) {
+                long read = file.transferFrom(channel, position, size - position);
+                if (read <= 0) {
+                    throw new EOFException("servern stängde anslutningen efter " + position + " byte");
+                }
+                position += read;
+            }
+            System.out.println("Sparade " + target.toAbsolutePath() + " (" + size + " byte).");
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Nedladdningen misslyckades: " + e.getMessage());
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Creates an empty file for a download. The name the server sent is reduced to a plain file name,
+     * and -1, -2 and so on is added before the extension until the name is free, so a download never
+     * replaces a file.
+     * @param dir The directory to create the file in, created if missing.
+     * @param offered The name the sender chose.
+     * @return the new file.
+     * @throws IOException will be thrown if the file could not be created.
+     */
+    static Path newDownloadFile(Path dir, String offered) throws IOException {
+        Files.createDirectories(dir);
+        String name;
+        try {
+            Path fileName = Path.of(offered).getFileName();
+            name = fileName == null ? "" : fileName.toString();
+        } catch (InvalidPathException e) {
+            name = "";
+        }
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            name = "fil";
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 0; ; i++) {
+            try {
+                return Files.createFile(dir.resolve(i == 0 ? name : base + "-" + i + extension));
+            } catch (FileAlreadyExistsException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Picks the id of a chat message. The database keeps (user_id, client_msg_id) unique for good, and
+     * the same user may have several sessions, so ids are random 64-bit numbers instead of a counter
+     * that two sessions could both be at.
+     * @return a new id, never 0.
+     */
+    static long newMsgId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Remembers the highest sequence number seen in frames of the form "[#seq] user: text".
+     * @param line A line from the server.
+     */
+    private void trackSeq(String line) {
+        if (!line.startsWith("[#")) {
+            return;
+        }
+        int end = line.indexOf(']');
+        if (end < 0) {
+            return;
+        }
+        try {
+            long seq = Long.parseLong(line.substring(2, end));
+            lastSeq.accumulateAndGet(seq, Math::max);
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    private static long loadLastSeq() {
+        try {
+            return Files.exists(LAST_SEQ_FILE) ? Long.parseLong(Files.readString(LAST_SEQ_FILE).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void saveLastSeq() {
+        try {
+            Files.writeString(LAST_SEQ_FILE, Long.toString(lastSeq.get()));
+        } catch (IOException e) {
+            System.out.println("Kunde inte spara senaste sekvensnummer: " + e.getMessage());
         }
     }
 
@@ -1,9 +1,14 @@
 package se.sprinto.hakan.chatapp;
 
+import javax.net.ssl.SSLContext;
+import java.security.NoSuchAlgorithmException;
+
 public class ChatClientMain {
 
-    public static void main(String[] args) {
-        new ChatClient().start();
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        // -Dchat.tls=true connects over TLS, trusting the certificates of the JVM's default truststore
+        SSLContext tlsContext = Boolean.getBoolean("chat.tls") ? SSLContext.getDefault() : null;
+        // -Dchat.compress=true asks the server to compress history and broadcasts
+        new ChatClient(tlsContext, Boolean.getBoolean("chat.compress")).start();
     }
 }
-
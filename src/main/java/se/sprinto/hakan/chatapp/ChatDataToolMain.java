@@ -0,0 +1,84 @@
+package se.sprinto.hakan.chatapp;
+
+import se.sprinto.hakan.chatapp.archive.ArchiveStore;
+import se.sprinto.hakan.chatapp.backup.ChatDataExporter;
+import se.sprinto.hakan.chatapp.backup.ChatDataImporter;
+import se.sprinto.hakan.chatapp.backup.TransferProgress;
+import se.sprinto.hakan.chatapp.shard.ConsistentHashRing;
+import se.sprinto.hakan.chatapp.shard.Shard;
+import se.sprinto.hakan.chatapp.shard.ShardDataSources;
+import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exports or imports the chat history from the command line:
+ * <pre>
+ * export &lt;file&gt; [--user &lt;id&gt;]
+ * import &lt;file&gt;
+ * </pre>
+ * With db.shards set, messages are read from and written to the shards the server uses. With
+ * archive.enabled set, an export also holds the archived messages, and an import puts them back in
+ * the messages table for the archive job to move again.
+ */
+public class ChatDataToolMain {
+    private static final String USAGE = "Användning: export <fil> [--user <id>] | import <fil>";
+
+    public static void main(String[] args) {
+        if (args.length != 2 && !(args.length == 4 && args[0].equals("export") && args[2].equals("--user"))) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        ServerConfig config = ServerConfig.getInstance();
+        DataSource dataSource = DatabaseUtil.getInstance().getDataSource();
+        long progressEvery = config.getLong("backup.progress-every", 10_000);
+        Path file = Path.of(args[1]);
+        Set<String> shardNames = config.getSet("db.shards");
+        try {
+            List<Shard> shards = shardNames.isEmpty() ? List.of() : ShardDataSources.open(config, shardNames);
+            ConsistentHashRing ring = shardNames.isEmpty() ? null : ShardDataSources.ring(config, shardNames);
+            List<DataSource> messageDataSources = shards.isEmpty() ? List.of(dataSource)
+                    : shards.stream().map(Shard::dataSource).toList();
+            TransferProgress progress;
+            if (args[0].equals("export")) {
+                progress = new TransferProgress("Export", progressEvery);
+                ArchiveStore archive = config.getBoolean("archive.enabled", false)
+                        ? new ArchiveStore(Path.of(config.getString("archive.directory", "archive"))) : null;
+                ChatDataExporter exporter = new ChatDataExporter(dataSource, messageDataSources, archive,
+                        config.getInt("backup.fetch-size", 1000));
+                try (OutputStream output = Files.newOutputStream(file)) {
+                    if (args.length == 4) {
+                        exporter.exportUser(output, Integer.parseInt(args[3]), progress);
+                    } else {
+                        exporter.exportAll(output, progress);
+                    }
+                }
+            } else if (args[0].equals("import")) {
+                progress = new TransferProgress("Import", progressEvery);
+                ChatDataImporter importer = new ChatDataImporter(dataSource, shards, ring,
+                        config.getInt("backup.batch-size", 1000));
+                try (InputStream input = Files.newInputStream(file)) {
+                    importer.importAll(input, progress);
+                }
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+                return;
+            }
+            System.out.println("Klart: " + progress.getUsers() + " användare och " + progress.getMessages()
+                    + " meddelanden på " + progress.getElapsedMillis() + " ms.");
+        } catch (IOException | SQLException | IllegalArgumentException e) {
+            System.err.println("Misslyckades: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
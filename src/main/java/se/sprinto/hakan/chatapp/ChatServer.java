@@ -1,48 +1,613 @@
 package se.sprinto.hakan.chatapp;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.archive.ArchiveJob;
+import se.sprinto.hakan.chatapp.archive.ArchiveStore;
+import se.sprinto.hakan.chatapp.archive.TieredMessageDAO;
+import se.sprinto.hakan.chatapp.buffer.BufferPool;
+import se.sprinto.hakan.chatapp.capture.TrafficRecorder;
+import se.sprinto.hakan.chatapp.compress.CompressionSettings;
+import se.sprinto.hakan.chatapp.dao.JdbcExecutor;
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.dao.MessageDatabaseDAO;
+import se.sprinto.hakan.chatapp.dao.MessageMaintenanceDAO;
+import se.sprinto.hakan.chatapp.dao.UserDAO;
+import se.sprinto.hakan.chatapp.dao.UserDatabaseDAO;
+import se.sprinto.hakan.chatapp.download.DownloadServer;
+import se.sprinto.hakan.chatapp.limit.RateLimiter;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.model.User;
+import se.sprinto.hakan.chatapp.presence.PresenceService;
+import se.sprinto.hakan.chatapp.resilience.CircuitBreaker;
+import se.sprinto.hakan.chatapp.resilience.GuardedMessageDAO;
+import se.sprinto.hakan.chatapp.resilience.GuardedUserDAO;
+import se.sprinto.hakan.chatapp.resilience.MessageSpill;
+import se.sprinto.hakan.chatapp.retention.RetentionJob;
+import se.sprinto.hakan.chatapp.retention.RetentionPolicy;
+import se.sprinto.hakan.chatapp.shard.Shard;
+import se.sprinto.hakan.chatapp.shard.ShardDataSources;
+import se.sprinto.hakan.chatapp.shard.ShardedMessageDAO;
+import se.sprinto.hakan.chatapp.stats.ChatStatistics;
+import se.sprinto.hakan.chatapp.stats.StatisticsMessageDAO;
+import se.sprinto.hakan.chatapp.stats.StatisticsStore;
+import se.sprinto.hakan.chatapp.tls.TlsChannel;
+import se.sprinto.hakan.chatapp.tls.TlsSupport;
+import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+import se.sprinto.hakan.chatapp.util.LogSampler;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+import se.sprinto.hakan.chatapp.util.SnowflakeIdGenerator;
+
+import javax.net.ssl.SSLContext;
+import javax.sql.DataSource;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
+    private static final Logger logger = LoggerFactory.getLogger(ChatServer.class);
 
     private final int port;
+    private final ServerConfig config;
     private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private final Set<String> adminUsernames;
+    private final LogSampler broadcastLog;
+    private final RateLimiter rateLimiter;
+    private final HashedWheelTimer timer;
+    private final Heartbeat heartbeat;
+    private final ReplayWindow replayWindow;
+    private final Object fanOutLock = new Object();
+    private final int broadcastQueueSize;
+    private final SnowflakeIdGenerator idGenerator;
+    private final Map<Integer, DedupeWindow> dedupeWindows = new ConcurrentHashMap<>();
+    private final int dedupeCapacity;
+    private final long dedupeWindowNanos;
+    private final long rateLimitSweepSeconds;
+    private final ArchiveStore archiveStore;
+    private final DownloadServer downloads;
+    private final PresenceService presence;
+    private final CircuitBreaker breaker;
+    private final MessageSpill spill;
+    private final SSLContext tlsContext;
+    private final ShardedMessageDAO shardedMessages;
+    private final BufferPool lineBuffers;
+    private final int maxLineBytes;
+    private final ChatStatistics statistics;
+    private final CompressionSettings compression;
+    private final ExecutorService jdbcExecutor;
+    private final ExecutorService historyWriter;
+    private volatile TrafficRecorder recorder;
+    private UserDAO userDAO;
+    private MessageDAO messageDAO;
+
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final Counter acceptedConnections = metrics.counter("connections.accepted");
+    private final Counter broadcastMessages = metrics.counter("broadcast.messages");
+    private final Counter broadcastRecipients = metrics.counter("broadcast.recipients");
+    private final LatencyHistogram broadcastLatency = metrics.histogram("broadcast.fan-out");
 
     public ChatServer(int port) {
+        this(port, ServerConfig.getInstance());
+    }
+
+    /**
+     * Constructor for testing.
+     * @param port The port to listen on
+     * @param config The settings of the server
+     */
+    ChatServer(int port, ServerConfig config) {
         this.port = port;
+        this.config = config;
+        this.adminUsernames = config.getSet("server.admin-usernames");
+        this.broadcastLog = new LogSampler(config.getInt("logging.messages-per-second", 10),
+                config.getInt("logging.sample-rate", 1000));
+        this.rateLimiter = new RateLimiter(config);
+        this.timer = new HashedWheelTimer(config.getLong("heartbeat.tick-ms", 500), TimeUnit.MILLISECONDS,
+                512, "connection-timer");
+        this.heartbeat = new Heartbeat(config);
+        this.replayWindow = new ReplayWindow(config.getInt("replay.window-size", 10_000));
+        this.broadcastQueueSize = config.getInt("broadcast.queue-size", 1000);
+        this.idGenerator = new SnowflakeIdGenerator(config.getInt("server.node-id", 0));
+        this.dedupeCapacity = config.getInt("dedupe.max-ids-per-user", 1024);
+        this.dedupeWindowNanos = TimeUnit.SECONDS.toNanos(config.getLong("dedupe.window-seconds", 300));
+        this.rateLimitSweepSeconds = config.getLong("ratelimit.sweep-seconds", 60);
+        this.archiveStore = openArchive(config);
+        this.downloads = config.getBoolean("download.enabled", true) ? new DownloadServer(config, timer, metrics) : null;
+        this.presence = new PresenceService(timer, config.getLong("presence.flush-ms", 250),
+                config.getInt("presence.max-names", 20), this::broadcastNotice, metrics);
+        this.breaker = config.getBoolean("db.breaker.enabled", true) ? new CircuitBreaker(config, metrics) : null;
+        this.spill = breaker != null ? new MessageSpill(config.getInt("db.spill.max-messages", 10_000), metrics) : null;
+        this.tlsContext = openTls(config);
+        this.shardedMessages = openShards(config, metrics);
+        // Chat lines are short, so most connections only ever borrow from the smallest class
+        this.lineBuffers = new BufferPool("lines", new int[]{256, 1024, 4096, 16384},
+                config.getInt("buffers.max-pooled-per-class", 1024), false,
+                config.getBoolean("buffers.leak-detection", false), metrics);
+        this.maxLineBytes = config.getInt("buffers.max-line-bytes", 65536);
+        this.statistics = config.getBoolean("stats.enabled", true) ? new ChatStatistics(metrics,
+                Duration.ofSeconds(config.getLong("stats.settle-seconds", 60))) : null;
+        this.compression = CompressionSettings.fromConfig(config);
+        // One thread per pooled connection, more would only wait for a connection
+        this.jdbcExecutor = JdbcExecutor.create(config.getInt("hikaricp.max-pool-size", 10),
+                config.getInt("db.executor.queue-size", 1000), metrics);
+        // A connection writes one history at a time, so this has at most one thread per connection
+        this.historyWriter = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "history-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("connections.active", clients::size);
+        metrics.gauge("dedupe.windows", dedupeWindows::size);
+        metrics.gauge("tls.resumption-percent", () -> {
+            long handshakes = metrics.counter("tls.handshakes").get();
+            return handshakes == 0 ? 0 : metrics.counter("tls.handshakes.resumed").get() * 100 / handshakes;
+        });
+        metrics.gauge("compress.ratio-percent", () -> {
+            long raw = metrics.counter("compress.raw-bytes").get();
+            return raw == 0 ? 100 : metrics.counter("compress.wire-bytes").get() * 100 / raw;
+        });
     }
 
+    /**
+     * Starts the background services and then accepts clients. ServerBootstrap does the same with a
+     * warm-up in between.
+     */
     public void start() {
-        System.out.println("Server startar på port " + port + "...");
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        startServices();
+        listen();
+    }
+
+    /**
+     * Creates the DAOs that every connection shares. They hold no state of their own, so one
+     * instance of each decorator chain serves all handlers.
+     */
+    void createDAOs() {
+        userDAO = newUserDAO();
+        messageDAO = newMessageDAO();
+    }
+
+    /**
+     * Starts metrics, the maintenance jobs, the statistics, the spill and the download port.
+     */
+    void startServices() {
+        logger.info("Server startar på port {}...", port);
+        if (userDAO == null) {
+            createDAOs();
+        }
+        if (config.getBoolean("metrics.jmx-enabled", true)) {
+            metrics.registerMBean();
+        }
+        metrics.startReporter(config.getLong("metrics.log-interval-seconds", 60));
+        timer.newTimeout(this::sweepDedupeWindows, dedupeWindowNanos, TimeUnit.NANOSECONDS);
+        timer.newTimeout(this::sweepRateLimits, rateLimitSweepSeconds, TimeUnit.SECONDS);
+        RetentionPolicy retention = RetentionPolicy.fromConfig(config);
+        if (retention.isEnabled()) {
+            new RetentionJob(maintenanceDAO(), retention).start(config.getLong("retention.interval-minutes", 60));
+        }
+        if (archiveStore != null) {
+            new ArchiveJob(maintenanceDAO(), archiveStore,
+                    Duration.ofDays(config.getLong("archive.after-days", 90)),
+                    config.getInt("archive.chunk-size", 1000),
+                    config.getLong("archive.pause-ms", 50))
+                    .start(config.getLong("archive.interval-minutes", 60));
+        }
+        if (statistics != null) {
+            startStatistics();
+        }
+        if (spill != null) {
+            spill.start(databaseMessageDAO(), breaker, config.getInt("db.spill.batch-size", 200),
+                    config.getLong("db.spill.drain-interval-ms", 1000));
+        }
+        if (downloads != null) {
+            try {
+                downloads.start();
+            } catch (IOException e) {
+                logger.error("Failed to open the download port, /export-mine and /send are off", e);
+            }
+        }
+        if (tlsContext != null) {
+            logger.info("TLS is on for the chat port");
+        }
+        if (config.getBoolean("capture.enabled", false)) {
+            startCapture(Path.of(config.getString("capture.file", "traffic.cap")));
+        }
+    }
+
+    /**
+     * Opens the chat port and accepts clients until the server socket fails.
+     */
+    void listen() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                clients.add(handler);
+                SocketChannel clientChannel = serverChannel.accept();
+                acceptedConnections.increment();
+                // The handshake runs on the connection's own thread, so a slow client never holds up accept
+                TlsChannel tls = tlsContext == null ? null : TlsChannel.server(clientChannel, tlsContext, metrics);
+                ClientHandler handler = new ClientHandler(clientChannel.socket(), tls, this);
+                addClient(handler);
                 new Thread(handler).start();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Server socket failed on port {}", port, e);
+        }
+    }
+
+    /**
+     * Loads the TLS keystore when tls.enabled is set. A server that is told to use TLS never falls
+     * back to plain text, so a broken keystore stops the start.
+     * @param config The server settings.
+     * @return the context, or null if TLS is off.
+     */
+    private static SSLContext openTls(ServerConfig config) {
+        try {
+            return TlsSupport.serverContext(config);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to load the TLS keystore", e);
+        }
+    }
+
+    /**
+     * Opens the message shards when db.shards names any. Users stay in the main database.
+     * @param config The server settings.
+     * @param metrics The registry of the shard metrics.
+     * @return the sharded DAO, or null if messages live in the main database.
+     */
+    private static ShardedMessageDAO openShards(ServerConfig config, MetricsRegistry metrics) {
+        Set<String> names = config.getSet("db.shards");
+        if (names.isEmpty()) {
+            return null;
+        }
+        try {
+            logger.info("Messages are sharded over {}", names);
+            return new ShardedMessageDAO(ShardDataSources.open(config, names), ShardDataSources.ring(config, names),
+                    DatabaseUtil.getInstance().getDataSource(), metrics);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open the message shards", e);
+        }
+    }
+
+    /**
+     * Rebuilds the chat statistics from their checkpoint and the messages after it, before any client
+     * connects, and writes a last checkpoint when the JVM shuts down.
+     */
+    private void startStatistics() {
+        statistics.start(new StatisticsStore(DatabaseUtil.getInstance().getDataSource(), messageDataSources()),
+                config.getInt("stats.rebuild-chunk-size", 10_000),
+                config.getLong("stats.checkpoint-seconds", 60));
+        Runtime.getRuntime().addShutdownHook(new Thread(statistics::stop, "stats-checkpoint-final"));
+    }
+
+    /**
+     * @return the databases with a messages table: the main database, or every shard.
+     */
+    List<DataSource> messageDataSources() {
+        return shardedMessages == null ? List.of(DatabaseUtil.getInstance().getDataSource())
+                : shardedMessages.getShards().stream().map(Shard::dataSource).toList();
+    }
+
+    /**
+     * Starts writing the lines of all clients to a capture file, see TrafficRecorder. The file is
+     * finished when the JVM shuts down.
+     * @param file The capture file, replaced if it exists.
+     */
+    void startCapture(Path file) {
+        try {
+            TrafficRecorder started = new TrafficRecorder(Files.newOutputStream(file),
+                    config.getLong("capture.flush-ms", 1000), metrics);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    started.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to finish the traffic capture {}", file, e);
+                }
+            }, "capture-close"));
+            recorder = started;
+            logger.info("Capturing client traffic to {}", file);
+        } catch (IOException e) {
+            logger.error("Failed to open the traffic capture {}, capturing is off", file, e);
         }
     }
 
-    void broadcast(String message, ClientHandler sender) {
-        System.out.println("Meddelande från " + sender.getUser().getUsername() + ": " + message);
+    /**
+     * Opens the message archive when archive.enabled is set.
+     * @param config The server settings.
+     * @return the archive, or null if archiving is off or the directory could not be opened.
+     */
+    private static ArchiveStore openArchive(ServerConfig config) {
+        if (!config.getBoolean("archive.enabled", false)) {
+            return null;
+        }
+        try {
+            return new ArchiveStore(Path.of(config.getString("archive.directory", "archive")));
+        } catch (IOException e) {
+            logger.error("Failed to open the message archive, archiving is off", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the MessageDAO the connections share. With an archive, reads cover both the messages table
+     * and the archive. With the circuit breaker, saves go to the spill buffer while the database is down.
+     * @return the DAO.
+     */
+    private MessageDAO newMessageDAO() {
+        MessageDAO messages = databaseMessageDAO();
+        if (archiveStore != null) {
+            messages = new TieredMessageDAO(messages, archiveStore);
+        }
+        return breaker == null ? messages : new GuardedMessageDAO(messages, breaker, spill);
+    }
+
+    /**
+     * @return the DAO of the message tables, sharded when db.shards is set. Saves through it are
+     * counted in the chat statistics.
+     */
+    private MessageDAO databaseMessageDAO() {
+        MessageDAO messages = shardedMessages != null ? shardedMessages : new MessageDatabaseDAO();
+        return statistics == null ? messages : new StatisticsMessageDAO(messages, statistics);
+    }
+
+    private MessageMaintenanceDAO maintenanceDAO() {
+        return shardedMessages != null ? shardedMessages : new MessageDatabaseDAO();
+    }
+
+    /**
+     * Creates the UserDAO the connections share, behind the circuit breaker when it is enabled.
+     * @return the DAO.
+     */
+    private UserDAO newUserDAO() {
+        UserDAO users = new UserDatabaseDAO();
+        return breaker == null ? users : new GuardedUserDAO(users, breaker);
+    }
+
+    UserDAO getUserDAO() {
+        return userDAO;
+    }
+
+    MessageDAO getMessageDAO() {
+        return messageDAO;
+    }
+
+    void addClient(ClientHandler client) {
+        clients.add(client);
+    }
+
+    /**
+     * Sends a message to every other logged in client. The message gets the next sequence number,
+     * which is part of the frame, and is kept in the replay window for clients that resume later.
+     * @param message The message to send
+     * @param sender The handler of the client that wrote the message
+     */
+    void broadcast(Message message, ClientHandler sender) {
+        long start = System.nanoTime();
+        String username = sender.getUser().getUsername();
+        if (logger.isDebugEnabled() && broadcastLog.shouldLog()) {
+            logger.debug("Meddelande från {}: {}", username, message.getText());
+        }
+        long timeMillis = message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        int recipients = 0;
+        List<ClientHandler> tooSlow = null;
+        // Numbering and queueing is one step, so every client's queue is in sequence order
+        synchronized (fanOutLock) {
+            String line = replayWindow.append(timeMillis, username + ": " + message.getText());
+            for (ClientHandler client : clients) {
+                if (client != sender && client.isLoggedIn()) {
+                    if (client.queueBroadcast(line)) {
+                        recipients++;
+                    } else {
+                        if (tooSlow == null) {
+                            tooSlow = new ArrayList<>();
+                        }
+                        tooSlow.add(client);
+                    }
+                }
+            }
+        }
         for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(sender.getUser().getUsername() + ": " + message);
+            client.flushBroadcasts();
+        }
+        if (tooSlow != null) {
+            tooSlow.forEach(client -> client.evict("läser för långsamt"));
+        }
+        broadcastMessages.increment();
+        broadcastRecipients.add(recipients);
+        broadcastLatency.recordSince(start);
+    }
+
+    /**
+     * Finds the connection of a logged in user.
+     * @param username The username to look for.
+     * @return the handler, or null if the user is not logged in.
+     */
+    ClientHandler findClient(String username) {
+        for (ClientHandler client : clients) {
+            if (client.isLoggedIn() && client.getUser().getUsername().equals(username)) {
+                return client;
             }
         }
+        return null;
+    }
+
+    /**
+     * Sends a server notice, which has no sequence number and is not replayed, to every logged in client.
+     * PresenceService calls this on the timer thread, so the writes go to the heartbeat sender pool,
+     * one per client, and a client with a full send buffer cannot stop the timer or the other clients.
+     * @param notice The line to send.
+     */
+    void broadcastNotice(String notice) {
+        for (ClientHandler client : clients) {
+            if (client.isLoggedIn()) {
+                heartbeat.send(() -> client.sendMessage(notice));
+            }
+        }
+    }
+
+    /**
+     * Marks a logged in connection as online. A connection that was already removed stays offline.
+     * @param client The handler that finished logging in.
+     */
+    void userJoined(ClientHandler client) {
+        if (client.markOnline()) {
+            presence.join(client.getUser().getUsername());
+        }
     }
 
     void removeClient(ClientHandler client) {
-        clients.remove(client);
-        System.out.println(client.getUser().getUsername() + " kopplade från.");
+        if (clients.remove(client) && client.getUser() != null) {
+            if (client.markOffline()) {
+                presence.leave(client.getUser().getUsername());
+            }
+            logger.info("{} kopplade från.", client.getUser().getUsername());
+        }
     }
 
+    /**
+     * Checks whether a user may use the admin commands.
+     * @param user The logged in user, may be null
+     * @return true if the username is listed in server.admin-usernames
+     */
+    boolean isAdmin(User user) {
+        return user != null && adminUsernames.contains(user.getUsername());
+    }
 
-}
+    /**
+     * @return the chat statistics, or null if stats.enabled is off.
+     */
+    ChatStatistics getStatistics() {
+        return statistics;
+    }
+
+    CompressionSettings getCompression() {
+        return compression;
+    }
+
+    ExecutorService getJdbcExecutor() {
+        return jdbcExecutor;
+    }
 
+    /**
+     * @return the executor that writes the results of database calls to a client, the /mymsgs history
+     * and failed saves, so slow clients never hold a JDBC thread.
+     */
+    ExecutorService getHistoryWriter() {
+        return historyWriter;
+    }
+
+    MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    ReplayWindow getReplayWindow() {
+        return replayWindow;
+    }
+
+    SnowflakeIdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Checks a client message id against the recent ids of the user, on any of the user's connections.
+     * @param userId The sender.
+     * @param clientMsgId The id the client attached to the message.
+     * @return true if the message is new, false if it is a retry of a message already sent.
+     */
+    boolean firstSubmission(int userId, long clientMsgId) {
+        boolean[] first = new boolean[1];
+        // Inside compute, so the sweep cannot drop the window between the lookup and the check
+        dedupeWindows.compute(userId, (id, window) -> {
+            DedupeWindow current = window != null ? window : new DedupeWindow(dedupeCapacity, dedupeWindowNanos);
+            first[0] = current.firstSeen(clientMsgId, System.nanoTime());
+            return current;
+        });
+        return first[0];
+    }
+
+    /**
+     * Runs on the timer thread once per dedupe window. Drops the windows whose ids have all expired,
+     * so the windows held are those of users who sent a message recently, not of every user since start.
+     */
+    private void sweepDedupeWindows() {
+        long now = System.nanoTime();
+        for (Integer userId : dedupeWindows.keySet()) {
+            dedupeWindows.computeIfPresent(userId, (id, window) -> window.expire(now) ? null : window);
+        }
+        timer.newTimeout(this::sweepDedupeWindows, dedupeWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void sweepRateLimits() {
+        rateLimiter.sweep();
+        timer.newTimeout(this::sweepRateLimits, rateLimitSweepSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the recorder of client traffic, or null when capture.enabled is off.
+     */
+    TrafficRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return the pool the connections borrow their line buffers from.
+     */
+    BufferPool getLineBuffers() {
+        return lineBuffers;
+    }
+
+    int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    PresenceService getPresence() {
+        return presence;
+    }
+
+    /**
+     * @return the download server, or null when download.enabled is off.
+     */
+    DownloadServer getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * @return the number of broadcasts that may wait for one client before it is disconnected.
+     */
+    int getBroadcastQueueSize() {
+        return broadcastQueueSize;
+    }
+
+    int getReplayDatabaseLimit() {
+        return config.getInt("replay.max-database-messages", 1000);
+    }
+}
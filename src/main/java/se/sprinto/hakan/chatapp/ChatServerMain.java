@@ -2,6 +2,6 @@ package se.sprinto.hakan.chatapp;
 
 public class ChatServerMain {
     public static void main(String[] args) {
-        new ChatServer(5555).start();
+        new ServerBootstrap(5555).start();
     }
 }
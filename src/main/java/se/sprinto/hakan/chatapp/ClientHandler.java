@@ -1,66 +1,195 @@
 package se.sprinto.hakan.chatapp;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.buffer.LineReader;
+import se.sprinto.hakan.chatapp.buffer.PooledLineWriter;
+import se.sprinto.hakan.chatapp.capture.TrafficRecorder;
+import se.sprinto.hakan.chatapp.compress.CompressionSettings;
+import se.sprinto.hakan.chatapp.compress.DeflateOutputStream;
 import se.sprinto.hakan.chatapp.dao.*;
+import se.sprinto.hakan.chatapp.download.DownloadServer;
+import se.sprinto.hakan.chatapp.download.RelayTransfer;
+import se.sprinto.hakan.chatapp.limit.RateLimiter;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
 import se.sprinto.hakan.chatapp.model.Message;
 import se.sprinto.hakan.chatapp.model.User;
+import se.sprinto.hakan.chatapp.presence.PresenceService;
+import se.sprinto.hakan.chatapp.stats.ChatStatistics;
+import se.sprinto.hakan.chatapp.stats.UserStats;
+import se.sprinto.hakan.chatapp.tls.TlsChannel;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientHandler implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
+    private static final LatencyHistogram LOGIN_LATENCY = MetricsRegistry.getInstance().histogram("login.latency");
+    private static final Counter LOGIN_SUCCESS = MetricsRegistry.getInstance().counter("login.success");
+    private static final Counter LOGIN_FAILURE = MetricsRegistry.getInstance().counter("login.failure");
+    private static final Counter REGISTRATIONS = MetricsRegistry.getInstance().counter("login.registered");
+    private static final Counter RATE_LIMIT_DELAYED = MetricsRegistry.getInstance().counter("ratelimit.delayed");
+    private static final Counter RATE_LIMIT_DISCONNECTED = MetricsRegistry.getInstance().counter("ratelimit.disconnected");
+    private static final Counter EVICTED_IDLE = MetricsRegistry.getInstance().counter("connections.evicted.idle");
+    private static final Counter DUPLICATES = MetricsRegistry.getInstance().counter("messages.duplicates");
+    private static final Counter EVICTED_WRITE_ERROR = MetricsRegistry.getInstance().counter("connections.evicted.write-error");
+    private static final Counter EVICTED_SLOW = MetricsRegistry.getInstance().counter("connections.evicted.slow");
+    // Longer lines are written in several parts
+    private static final int WRITE_BUFFER_BYTES = 1024;
+    private static final int TOP_POSTERS = 10;
+    private static final int HISTORY_PAGE_SIZE = 500;
+    private static final long PENDING_TIMEOUT_SECONDS = 10;
+    static final String PING = "/ping";
+    static final String PONG = "/pong";
+    static final String MSG = "/msg";
+    static final String EXPORT_MINE = "/export-mine";
+    static final String DOWNLOAD = "/download";
+    static final String SEND = "/send";
+    static final String UPLOAD = "/upload";
+    static final String INCOMING = "/incoming";
+    static final String COMPRESS = "/compress";
+    static final String TRY_LATER = "Databasen är inte tillgänglig just nu, försök igen senare.";
 
     private final Socket socket;
+    private final TlsChannel tls;
     private final ChatServer server;
     private PrintWriter out;
     private User user;
+    private final RateLimiter.Limit rateLimit;
+    private final BroadcastQueue broadcasts;
+    private boolean disconnectRequested;
+    private volatile boolean loggedIn;
+    private volatile boolean closed;
+    private volatile long lastActivityNanos = System.nanoTime();
+    // 0 before login, 1 while counted as online, 2 after the connection was removed
+    private final AtomicInteger presenceState = new AtomicInteger();
+    private TrafficRecorder recorder;
+    private int captureId;
+    private DeflateOutputStream wire;
 
-    private final UserDAO userDAO = new UserDatabaseDAO();
-    private final MessageDAO messageDAO = new MessageDatabaseDAO();
+    private final UserDAO userDAO;
+    private final MessageDAO messageDAO;
+    private final AsyncMessageDAO asyncMessages;
+    // The saves and history reads of this connection, chained so they run in the order they were asked for
+    private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
 
-    ClientHandler(Socket socket, ChatServer server) {
+    /**
+     * @param socket The client socket
+     * @param tls The TLS session over the socket's channel, or null for plain text
+     * @param server The server that owns this handler
+     */
+    ClientHandler(Socket socket, TlsChannel tls, ChatServer server) {
+        this(socket, tls, server, server.getUserDAO(), server.getMessageDAO());
+    }
+
+    /**
+     * Constructor for testing and benchmarks.
+     * @param socket The client socket, may be null when the handler is never run
+     * @param server The server that owns this handler
+     * @param userDAO The DAO used for login and registration
+     * @param messageDAO The DAO used to store and read messages
+     */
+    ClientHandler(Socket socket, ChatServer server, UserDAO userDAO, MessageDAO messageDAO) {
+        this(socket, null, server, userDAO, messageDAO);
+    }
+
+    private ClientHandler(Socket socket, TlsChannel tls, ChatServer server, UserDAO userDAO, MessageDAO messageDAO) {
         this.socket = socket;
+        this.tls = tls;
         this.server = server;
+        this.userDAO = userDAO;
+        this.messageDAO = messageDAO;
+        this.asyncMessages = new ExecutorMessageDAO(messageDAO, server.getJdbcExecutor());
+        this.rateLimit = server.getRateLimiter().newConnectionLimit();
+        this.broadcasts = new BroadcastQueue(server.getBroadcastQueueSize());
     }
 
     public User getUser() {
         return user;
     }
 
+    boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    /**
+     * @return true if the connection became online now, false if it was removed already.
+     */
+    boolean markOnline() {
+        return presenceState.compareAndSet(0, 1);
+    }
+
+    /**
+     * @return true if the connection was online and the user's presence must be updated.
+     */
+    boolean markOffline() {
+        return presenceState.getAndSet(2) == 1;
+    }
+
     @Override
     public void run() {
+        recorder = server.getRecorder();
+        if (recorder != null) {
+            captureId = recorder.open();
+        }
+        // The login timeout also covers a client that never finishes the TLS handshake
+        scheduleIdleCheck(server.getHeartbeat().loginTimeoutNanos());
+        // Idle connections hold no buffers, lines borrow them from the server's pool while in flight
         try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)
+                LineReader in = new LineReader(openInput(), server.getLineBuffers(), server.getMaxLineBytes());
+                PrintWriter writer = new PrintWriter(new PooledLineWriter(openOutput(), server.getLineBuffers(),
+                        WRITE_BUFFER_BYTES), true)
 
         ) {
             this.out = writer;
 
             writer.println("Välkommen! Har du redan ett konto? (ja/nej)");
-            String answer = in.readLine();
+            String answer = readLine(in);
+            // A client that wants compression asks before it answers
+            if (answer != null && answer.startsWith(COMPRESS + " ")) {
+                negotiateCompression(answer.substring(COMPRESS.length() + 1).trim());
+                answer = readLine(in);
+            }
 
             if ("ja".equalsIgnoreCase(answer)) {
                 writer.println("Ange användarnamn:");
-                String username = in.readLine();
+                String username = readLine(in);
                 writer.println("Ange lösenord:");
-                String password = in.readLine();
+                String password = readLine(in);
 
+                long loginStart = System.nanoTime();
                 user = userDAO.login(username, password);
+                LOGIN_LATENCY.recordSince(loginStart);
+                (user == null ? LOGIN_FAILURE : LOGIN_SUCCESS).increment();
                 if (user == null) {
                     writer.println("Fel användarnamn eller lösenord.");
                     writer.println("Du måste skriva /quit nu för att avsluta denna klient");
                     writer.println("Pröva att återansluta med en ny klient");
-                    
+                    return;
                 }
             } else {
                 writer.println("Skapa nytt konto. Ange användarnamn:");
-                String username = in.readLine();
+                String username = readLine(in);
                 writer.println("Ange lösenord:");
-                String password = in.readLine();
+                String password = readLine(in);
                 user = userDAO.register(new User(username, password));
+                REGISTRATIONS.increment();
                 writer.println("Konto skapat. Välkommen, " + user.getUsername() + "!");
             }
 
@@ -68,34 +197,71 @@ public class ClientHandler implements Runnable {
             writer.println("Nu kan du börja skriva meddelanden");
             writer.println("Skriv /quit för att avsluta");
             writer.println("Skriv /mymsgs för att lista alla dina meddelanden");
+            writer.println("Skriv " + EXPORT_MINE + " för att ladda ner alla dina meddelanden som en fil");
+            writer.println("Skriv " + SEND + " <användare> <fil> för att skicka en fil");
+            writer.println("Skriv /who för att se vilka som är inloggade");
+            writer.println("Skriv /resume för att få meddelanden du missat sedan förra anslutningen");
+            writer.println("Skriv /stats me för att se din statistik");
 
-            System.out.println(user.getUsername() + " anslöt.");
+            logger.info("{} anslöt.", user.getUsername());
+            loggedIn = true;
+            server.userJoined(this);
 
             String message;
-            while ((message = in.readLine()) != null) {
+            while ((message = readLine(in)) != null) {
                 if (message.equalsIgnoreCase("/quit")) {
                     break;
+                } else if (message.equals(PONG)) {
+                    // The read itself counted as activity
+                    continue;
                 } else if (message.equalsIgnoreCase("/mymsgs")) {
-                    // Hämta meddelanden för denna användare
-                    List<Message> messages = messageDAO.getMessagesByUserId(user.getId());
-                    if (messages.isEmpty()) {
-                        out.println("Inga sparade meddelanden.");
-                    } else {
-                        out.println("Dina meddelanden:");
-                        for (Message m : messages) {
-                            out.println("[" + m.getTimestamp() + "] " + m.getText());
-                        }
+                    sendMyMessages();
+                } else if (message.equalsIgnoreCase("/who")) {
+                    PresenceService.Snapshot online = server.getPresence().snapshot();
+                    out.println("Inloggade (" + online.size() + "): " + String.join(", ", online.usernames()));
+                } else if (message.equalsIgnoreCase(EXPORT_MINE)) {
+                    exportMine();
+                } else if (message.startsWith(SEND + " ")) {
+                    sendFile(message.substring(SEND.length() + 1));
+                } else if (message.equalsIgnoreCase("/stats")) {
+                    sendStats();
+                } else if (message.equalsIgnoreCase("/stats me")) {
+                    sendMyStats();
+                } else if (message.equalsIgnoreCase("/stats top")) {
+                    sendTopStats();
+                } else if (message.startsWith("/resume-from")) {
+                    resume(message.substring("/resume-from".length()).trim());
+                } else if (message.startsWith(MSG + " ")) {
+                    submit(message.substring(MSG.length() + 1));
+                    if (disconnectRequested) {
+                        break;
                     }
-                } else {
-                    server.broadcast(message, this);
-                    messageDAO.saveMessage(new Message(user.getId(), message, java.time.LocalDateTime.now()));
+                } else if (admit(message)) {
+                    send(message, 0);
+                } else if (disconnectRequested) {
+                    break;
                 }
             }
+            // Lets the last saves finish and the last history reach the client before the writer closes
+            awaitPending();
 
+        } catch (DatabaseUnavailableException e) {
+            // Logins and registrations fail fast while the circuit breaker is open
+            out.println(TRY_LATER);
         } catch (IOException e) {
-            System.out.println("Problem med klient: " + e.getMessage());
+            logger.warn("Problem med klient: {}", e.getMessage());
         } finally {
+            closed = true;
             server.removeClient(this);
+            if (wire != null && wire.isCompressing()) {
+                DeflateOutputStream.Report report = wire.report();
+                logger.info("Compression for {}: {} bytes sent as {} ({} %), {} ms in deflate",
+                        user == null ? socket.getRemoteSocketAddress() : user.getUsername(), report.rawBytes(),
+                        report.wireBytes(), report.ratioPercent(), TimeUnit.NANOSECONDS.toMillis(report.deflateNanos()));
+            }
+            if (recorder != null) {
+                recorder.close(captureId);
+            }
             try {
                 socket.close();
             } catch (IOException ignored) {
@@ -103,8 +269,473 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Returns the stream the client's lines are read from, running the TLS handshake first when the
+     * connection uses TLS.
+     * @return the plain text input of the connection.
+     * @throws IOException will be thrown if the handshake or the socket failed.
+     */
+    private InputStream openInput() throws IOException {
+        if (tls == null) {
+            return socket.getInputStream();
+        }
+        tls.handshake();
+        return tls.getInputStream();
+    }
+
+    /**
+     * Returns the stream the client's lines are written to. It sends plain text until the client
+     * negotiates compression.
+     * @return the output of the connection.
+     * @throws IOException will be thrown if the socket failed.
+     */
+    private OutputStream openOutput() throws IOException {
+        wire = new DeflateOutputStream(tls == null ? socket.getOutputStream() : tls.getOutputStream(), server.getMetrics());
+        return wire;
+    }
+
+    /**
+     * Answers "/compress deflate" and compresses everything after the answer, see DeflateFraming.
+     * The answer itself is plain text, so the client knows where the frames start.
+     * @param offer The algorithm the client asked for.
+     */
+    private void negotiateCompression(String offer) {
+        CompressionSettings settings = server.getCompression();
+        if (!settings.enabled() || !offer.equalsIgnoreCase("deflate")) {
+            out.println(COMPRESS + " off");
+            return;
+        }
+        out.println(COMPRESS + " ok deflate");
+        wire.start(settings.level(), settings.minBytes());
+    }
+
+    /**
+     * Reads a line from the client and records the time, which the idle check uses to find dead peers.
+     * @param in The reader of the socket.
+     * @return the line, or null at the end of the stream.
+     * @throws IOException will be thrown if the read fails.
+     */
+    private String readLine(LineReader in) throws IOException {
+        String line = in.readLine();
+        lastActivityNanos = System.nanoTime();
+        if (recorder != null && line != null) {
+            recorder.line(captureId, line);
+        }
+        return line;
+    }
+
+    private void scheduleIdleCheck(long delayNanos) {
+        if (!closed) {
+            server.getTimer().newTimeout(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Runs on the server's timer thread. Evicts the connection if the client has been silent for too
+     * long, pings it when it has been silent for a while, and otherwise reschedules itself for the
+     * moment the client would next count as idle. The ping is written by another thread, so a full
+     * socket never blocks the timer.
+     */
+    private void checkIdle() {
+        if (closed) {
+            return;
+        }
+        Heartbeat heartbeat = server.getHeartbeat();
+        long idle = System.nanoTime() - lastActivityNanos;
+        if (!loggedIn) {
+            if (idle >= heartbeat.loginTimeoutNanos()) {
+                evict("ingen inloggning");
+            } else {
+                scheduleIdleCheck(heartbeat.loginTimeoutNanos() - idle);
+            }
+            return;
+        }
+        if (idle >= heartbeat.idleTimeoutNanos()) {
+            EVICTED_IDLE.increment();
+            evict("inget svar på ping");
+            return;
+        }
+        if (idle >= heartbeat.pingIntervalNanos()) {
+            heartbeat.send(() -> sendMessage(PING));
+            scheduleIdleCheck(Math.min(heartbeat.pingIntervalNanos(), heartbeat.idleTimeoutNanos() - idle));
+        } else {
+            scheduleIdleCheck(heartbeat.pingIntervalNanos() - idle);
+        }
+    }
+
+    /**
+     * Removes the connection from the broadcast set at once and closes the socket, which also ends
+     * the blocked read in run().
+     * @param reason Why the connection is closed, for the log.
+     */
+    void evict(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        logger.info("Kopplar från {}: {}", user == null ? socket.getRemoteSocketAddress() : user.getUsername(), reason);
+        server.removeClient(this);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Sends the user's saved messages, after the saves already asked for, so the connection can go on
+     * reading while the history is fetched. The history is read a page at a time on a JDBC thread and
+     * each page is written on a history writer thread before the next is read, so a client that reads
+     * slowly never holds a JDBC thread and at most one page is in memory.
+     */
+    private void sendMyMessages() {
+        int userId = user.getId();
+        pending = pending.thenCompose(ignored -> sendMyMessagesAfter(userId, null));
+    }
+
+    private CompletableFuture<Void> sendMyMessagesAfter(int userId, Message after) {
+        return asyncMessages.getMessagesByUserIdAfter(userId, after, HISTORY_PAGE_SIZE)
+                .handleAsync((page, error) -> {
+                    if (error == null) {
+                        return writeMyMessages(page, after == null);
+                    }
+                    if (unwrap(error) instanceof DatabaseUnavailableException) {
+                        sendMessage(TRY_LATER);
+                    } else {
+                        logger.error("Failed to read the messages of {}", user.getUsername(), unwrap(error));
+                    }
+                    return null;
+                }, server.getHistoryWriter())
+                .thenCompose(last -> last == null ? CompletableFuture.completedFuture(null)
+                        : sendMyMessagesAfter(userId, last));
+    }
+
+    /**
+     * Writes one page of the history.
+     * @return the last message of a full page, where the next page starts, or null when done.
+     */
+    private Message writeMyMessages(List<Message> page, boolean first) {
+        if (first) {
+            sendMessage(page.isEmpty() ? "Inga sparade meddelanden." : "Dina meddelanden:");
+        }
+        for (Message m : page) {
+            sendMessage("[" + m.getTimestamp() + "] " + m.getText());
+        }
+        return page.size() < HISTORY_PAGE_SIZE || closed ? null : page.get(page.size() - 1);
+    }
+
+    /**
+     * Sends the broadcasts the client missed after a sequence number. Frames still in the replay
+     * window are sent as they were; anything older is read from the database, only the newest
+     * replay.max-database-messages of it when there is more. The database only stores time, so
+     * the first second of a database replay may repeat a message the client has.
+     * @param argument The last sequence number the client received.
+     */
+    private void resume(String argument) {
+        long afterSeq;
+        try {
+            afterSeq = Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            out.println("Använd: /resume-from <sekvensnummer>");
+            return;
+        }
+        ReplayWindow.Replay replay = server.getReplayWindow().since(afterSeq);
+        int replayed = 0;
+        if (!replay.complete()) {
+            int limit = server.getReplayDatabaseLimit();
+            try {
+                List<Message> missed = messageDAO.getMessagesBetween(replay.databaseFrom(), replay.databaseUntil(), limit);
+                Map<Integer, String> usernames = new HashMap<>();
+                for (Message m : missed) {
+                    // A deleted or unknown user is shown by id, like in /stats top, and looked up only once
+                    String username = usernames.computeIfAbsent(m.getUserId(),
+                            userId -> Objects.requireNonNullElse(userDAO.findUsername(userId), "#" + userId));
+                    out.println("[" + m.getTimestamp() + "] " + username + ": " + m.getText());
+                }
+                replayed += missed.size();
+                if (missed.size() == limit) {
+                    out.println("Fler äldre meddelanden finns, visar de senaste " + limit + ".");
+                }
+            } catch (DatabaseUnavailableException e) {
+                out.println("Äldre missade meddelanden kan inte hämtas just nu.");
+            }
+        }
+        for (String frame : replay.frames()) {
+            out.println(frame);
+        }
+        replayed += replay.frames().size();
+        out.println("Återupptaget: " + replayed + " missade meddelanden.");
+    }
+
+    /**
+     * Renders the user's history to a file on a download worker and tells the client where to fetch
+     * it with "/download port token size name". The file is sent on the data port, so the chat
+     * connection stays free while it is rendered and sent.
+     */
+    private void exportMine() {
+        DownloadServer downloads = server.getDownloads();
+        if (downloads == null || !downloads.isRunning()) {
+            out.println("Export är inte tillgängligt just nu.");
+            return;
+        }
+        int userId = user.getId();
+        out.println("Förbereder din export...");
+        downloads.prepare(writer -> {
+            PrintWriter lines = new PrintWriter(writer);
+            messageDAO.forEachMessageByUserId(userId, m -> lines.println("[" + m.getTimestamp() + "] " + m.getText()));
+            lines.flush();
+            if (lines.checkError()) {
+                throw new IOException("Failed to write the export of user " + userId);
+            }
+        }).whenComplete((ticket, error) -> {
+            if (error != null) {
+                logger.warn("Export för {} misslyckades", user.getUsername(), error);
+                sendMessage("Exporten misslyckades, försök igen senare.");
+            } else {
+                sendMessage(DOWNLOAD + " " + downloads.getPort() + " " + ticket.token() + " " + ticket.size()
+                        + " meddelanden-" + userId + ".txt");
+            }
+        });
+    }
+
+    /**
+     * Handles "/send transferId username size name", which the client sends for "/send username file".
+     * The sender gets "/upload transferId port token" and the receiver "/incoming port token size name".
+     * Both connect to the data port and the server relays the bytes, so the chat connections stay free.
+     * @param argument The transfer id, the receiver, the size and the file name.
+     */
+    private void sendFile(String argument) {
+        String[] parts = argument.split(" ", 4);
+        long size;
+        try {
+            size = parts.length == 4 ? Long.parseLong(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            out.println("Använd: " + SEND + " <användare> <fil>");
+            return;
+        }
+        ClientHandler recipient = server.findClient(parts[1]);
+        if (recipient == null || recipient == this) {
+            out.println("Användaren " + parts[1] + " är inte inloggad.");
+            return;
+        }
+        DownloadServer downloads = server.getDownloads();
+        if (downloads == null || !downloads.isRunning()) {
+            out.println("Filöverföring är inte tillgänglig just nu.");
+            return;
+        }
+        RelayTransfer transfer = downloads.relay(size);
+        if (transfer == null) {
+            out.println("Servern har för många filöverföringar just nu, försök igen senare.");
+            return;
+        }
+        // The name is the last word of the /incoming line
+        String name = parts[3].replace(' ', '_');
+        String recipientName = recipient.getUser().getUsername();
+        out.println(UPLOAD + " " + parts[0] + " " + downloads.getPort() + " " + transfer.getUploadToken());
+        recipient.sendMessage(user.getUsername() + " skickar filen " + name + " (" + size + " byte) till dig.");
+        recipient.sendMessage(INCOMING + " " + downloads.getPort() + " " + transfer.getDownloadToken() + " " + size + " " + name);
+        transfer.done().whenComplete((bytes, error) -> sendMessage(error == null
+                ? "Filen " + name + " skickades till " + recipientName + "."
+                : "Filen " + name + " kunde inte skickas till " + recipientName + "."));
+    }
+
+    /**
+     * Handles "/msg clientId text", a chat message the client may send again if it gets no answer.
+     * A retry still counts against the rate limits, but it is only broadcast and saved once.
+     * @param argument The client message id and the text.
+     */
+    private void submit(String argument) {
+        int space = argument.indexOf(' ');
+        long clientMsgId;
+        try {
+            clientMsgId = Long.parseLong(space < 0 ? argument : argument.substring(0, space));
+        } catch (NumberFormatException e) {
+            clientMsgId = 0;
+        }
+        if (space < 0 || clientMsgId == 0) {
+            out.println("Använd: /msg <meddelande-id> <text>");
+            return;
+        }
+        String text = argument.substring(space + 1);
+        if (!admit(text)) {
+            return;
+        }
+        if (!server.firstSubmission(user.getId(), clientMsgId)) {
+            DUPLICATES.increment();
+            logger.debug("Dropped duplicate message {} from {}", clientMsgId, user.getUsername());
+            return;
+        }
+        send(text, clientMsgId);
+    }
+
+    /**
+     * Gives a chat message its id, broadcasts it and saves it.
+     * @param text The text of the message.
+     * @param clientMsgId The id the client attached, 0 if none.
+     */
+    private void send(String text, long clientMsgId) {
+        Message chatMessage = new Message(server.getIdGenerator().nextId(), user.getId(), text, LocalDateTime.now());
+        chatMessage.setClientMsgId(clientMsgId);
+        server.broadcast(chatMessage, this);
+        pending = pending
+                .thenCompose(ignored -> asyncMessages.saveMessage(chatMessage))
+                .exceptionallyAsync(error -> {
+                    // The others have the message already, only the sender can be told it was not kept
+                    logger.warn("Failed to save message {} from {}: {}", chatMessage.getId(), user.getUsername(),
+                            unwrap(error).getMessage());
+                    sendMessage(TRY_LATER);
+                    return null;
+                }, server.getHistoryWriter());
+    }
+
+    /**
+     * Waits a while for the saves and history reads of this connection.
+     */
+    private void awaitPending() {
+        try {
+            pending.get(PENDING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Database work of {} did not finish before the connection closed", user.getUsername());
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Applies the connection, user and global rate limits to a chat message before it is broadcast
+     * and saved. What happens to a message over the limit depends on ratelimit.action.
+     * @param message The message the client sent.
+     * @return true if the message may be sent, false if it was dropped.
+     */
+    private boolean admit(String message) {
+        RateLimiter limiter = server.getRateLimiter();
+        int bytes = RateLimiter.utf8Length(message);
+        long wait = limiter.tryAcquire(rateLimit, user.getId(), bytes);
+        if (wait == 0) {
+            return true;
+        }
+        switch (limiter.getAction()) {
+            case DELAY -> {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limiter.getMaxDelayMillis());
+                RATE_LIMIT_DELAYED.increment();
+                try {
+                    while (wait > 0 && System.nanoTime() + wait <= deadline) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        wait = limiter.tryAcquire(rateLimit, user.getId(), bytes);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (wait == 0) {
+                    return true;
+                }
+                out.println("Du skickar för snabbt. Meddelandet skickades inte.");
+            }
+            case DISCONNECT -> {
+                RATE_LIMIT_DISCONNECTED.increment();
+                out.println("Du skickade för många meddelanden och har kopplats från.");
+                disconnectRequested = true;
+            }
+            default -> out.println("Du skickar för snabbt. Meddelandet skickades inte.");
+        }
+        return false;
+    }
+
+    /**
+     * Sends a snapshot of the server metrics to an admin, one metric per line.
+     */
+    private void sendStats() {
+        if (!server.isAdmin(user)) {
+            out.println("Endast administratörer kan använda /stats.");
+            return;
+        }
+        out.println("Serverstatistik:");
+        for (Map.Entry<String, Long> entry : server.getMetrics().snapshot().entrySet()) {
+            out.println(entry.getKey() + " = " + entry.getValue());
+        }
+    }
+
+    /**
+     * Sends the user's message count and first and latest activity, from the chat statistics, and
+     * what compression saves on this connection when it is on.
+     */
+    private void sendMyStats() {
+        ChatStatistics statistics = server.getStatistics();
+        UserStats mine = statistics == null ? null : statistics.userStats(user.getId());
+        if (statistics == null) {
+            out.println("Statistiken är avstängd.");
+        } else if (mine == null) {
+            out.println("Du har inte skickat några meddelanden ännu.");
+        } else {
+            out.println("Dina meddelanden: " + mine.messageCount());
+            out.println("Första meddelandet: " + mine.firstAt());
+            out.println("Senaste meddelandet: " + mine.lastAt());
+        }
+        if (wire != null && wire.isCompressing()) {
+            DeflateOutputStream.Report report = wire.report();
+            out.println("Komprimering: " + report.rawBytes() + " byte skickades som " + report.wireBytes() + " byte ("
+                    + report.ratioPercent() + " %), " + TimeUnit.NANOSECONDS.toMicros(report.deflateNanos()) + " µs CPU");
+        }
+    }
+
+    /**
+     * Sends the totals and the users with the most messages. Only for admins.
+     */
+    private void sendTopStats() {
+        if (!server.isAdmin(user)) {
+            out.println("Endast administratörer kan använda /stats top.");
+            return;
+        }
+        ChatStatistics statistics = server.getStatistics();
+        if (statistics == null) {
+            out.println("Statistiken är avstängd.");
+            return;
+        }
+        List<UserStats> top = statistics.top(TOP_POSTERS);
+        Map<Integer, String> names = statistics.usernames(top.stream().map(UserStats::userId).toList());
+        out.println("Totalt " + statistics.messageCount() + " meddelanden från " + statistics.userCount() + " användare");
+        for (int i = 0; i < top.size(); i++) {
+            UserStats stats = top.get(i);
+            out.println((i + 1) + ". " + names.getOrDefault(stats.userId(), "#" + stats.userId()) + ": "
+                    + stats.messageCount() + " meddelanden, senast " + stats.lastAt());
+        }
+    }
+
+    /**
+     * Queues a numbered broadcast. ChatServer calls this under its fan-out lock and
+     * flushBroadcasts after it, so the frames go out in sequence order.
+     * @return false if too many broadcasts are already waiting for this client.
+     */
+    boolean queueBroadcast(String frame) {
+        if (broadcasts.offer(frame)) {
+            return true;
+        }
+        EVICTED_SLOW.increment();
+        return false;
+    }
+
+    /**
+     * Writes the queued broadcasts, unless another thread is already writing them.
+     */
+    void flushBroadcasts() {
+        broadcasts.drain(this::sendMessage);
+    }
+
     void sendMessage(String msg) {
-        if (out != null) out.println(msg);
+        PrintWriter writer = out;
+        if (writer != null && !closed) {
+            writer.println(msg);
+            if (writer.checkError()) {
+                EVICTED_WRITE_ERROR.increment();
+                evict("skrivfel");
+            }
+        }
     }
 }
 
@@ -0,0 +1,130 @@
+package se.sprinto.hakan.chatapp;
+
+import java.util.Arrays;
+
+/**
+ * DedupeWindow remembers the client message ids one user sent recently, so a message that is
+ * retried after a timeout is only broadcast and saved once.
+ * <p>
+ * Ids live in a ring in arrival order, which is also expiry order, and an open-addressing table of
+ * ring indexes finds them without boxing. Expired ids are dropped from the tail of the ring on every
+ * call, and when the ring is full the oldest id is dropped early, so memory per user is fixed.
+ * A window that expire() has emptied is thrown away by ChatServer, so only users who sent a message
+ * within the window hold one.
+ */
+class DedupeWindow {
+    private static final int EMPTY = -1;
+
+    private final long windowNanos;
+    private final long[] ids;
+    private final long[] seenAt;
+    private final int[] table;
+    private final int mask;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity The maximum number of ids kept, the oldest is dropped when it is reached.
+     * @param windowNanos How long an id is remembered.
+     */
+    DedupeWindow(int capacity, long windowNanos) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.windowNanos = windowNanos;
+        this.ids = new long[capacity];
+        this.seenAt = new long[capacity];
+        // At most half full, so probe sequences stay short
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Records a client message id unless it was seen within the window.
+     * @param clientId The id the client attached to the message.
+     * @param nowNanos The current System.nanoTime().
+     * @return true the first time an id is seen, false for a duplicate.
+     */
+    synchronized boolean firstSeen(long clientId, long nowNanos) {
+        expire(nowNanos);
+        if (find(clientId) != EMPTY) {
+            return false;
+        }
+        if (size == ids.length) {
+            dropOldest();
+        }
+        ids[head] = clientId;
+        seenAt[head] = nowNanos;
+        int slot = home(clientId);
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = head;
+        head = (head + 1) % ids.length;
+        size++;
+        return true;
+    }
+
+    /**
+     * Drops the ids that have expired.
+     * @param nowNanos The current System.nanoTime().
+     * @return true if no id is left.
+     */
+    synchronized boolean expire(long nowNanos) {
+        while (size > 0 && nowNanos - seenAt[tail()] >= windowNanos) {
+            dropOldest();
+        }
+        return size == 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private int tail() {
+        return (head - size + ids.length) % ids.length;
+    }
+
+    private int home(long clientId) {
+        long h = clientId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @return the table slot holding the id, or EMPTY.
+     */
+    private int find(long clientId) {
+        int slot = home(clientId);
+        while (table[slot] != EMPTY) {
+            if (ids[table[slot]] == clientId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Removes the oldest id, closing the gap in its probe sequence by shifting later entries back.
+     */
+    private void dropOldest() {
+        int slot = find(ids[tail()]);
+        size--;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == EMPTY) {
+                break;
+            }
+            int home = home(ids[table[next]]);
+            boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!stays) {
+                table[slot] = table[next];
+                slot = next;
+            }
+        }
+        table[slot] = EMPTY;
+    }
+}
@@ -0,0 +1,49 @@
+package se.sprinto.hakan.chatapp;
+
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The heartbeat settings of the server, and the small thread pool that writes pings and presence
+ * notices so the timer thread never blocks on a socket. If the pool is backed up, they are dropped;
+ * a connection that misses its pings is evicted by the idle timeout anyway, and /who still answers.
+ */
+class Heartbeat {
+    private final long pingIntervalNanos;
+    private final long idleTimeoutNanos;
+    private final long loginTimeoutNanos;
+    private final ThreadPoolExecutor sender;
+
+    Heartbeat(ServerConfig config) {
+        this.pingIntervalNanos = TimeUnit.SECONDS.toNanos(config.getLong("heartbeat.ping-interval-seconds", 30));
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getLong("heartbeat.idle-timeout-seconds", 90));
+        this.loginTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getLong("heartbeat.login-timeout-seconds", 120));
+        this.sender = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getInt("heartbeat.send-queue-size", 10_000)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "heartbeat-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    long pingIntervalNanos() {
+        return pingIntervalNanos;
+    }
+
+    long idleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    long loginTimeoutNanos() {
+        return loginTimeoutNanos;
+    }
+
+    void send(Runnable write) {
+        sender.execute(write);
+    }
+}
@@ -0,0 +1,103 @@
+package se.sprinto.hakan.chatapp;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReplayWindow numbers every broadcast and keeps the latest frames in a bounded ring, so a client
+ * that reconnects can ask for exactly what it missed.
+ * <p>
+ * Sequence numbers are the milliseconds since {@link #EPOCH} shifted left by ten bits, bumped by one
+ * when several broadcasts share a millisecond. They keep growing across server restarts, and the
+ * time of any sequence number can be read back from it, which is what the database fallback uses
+ * when a gap is older than the ring.
+ */
+class ReplayWindow {
+    static final long EPOCH = 1735689600000L; // 2025-01-01T00:00:00Z
+    private static final int TIME_SHIFT = 10;
+
+    private final long[] seqs;
+    private final String[] frames;
+    private int head;
+    private int size;
+    private long lastSeq;
+    // Every sequence number up to this one is no longer in the ring
+    private long lowWatermark;
+
+    ReplayWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.seqs = new long[capacity];
+        this.frames = new String[capacity];
+        this.lastSeq = seqFor(System.currentTimeMillis());
+        this.lowWatermark = lastSeq;
+    }
+
+    /**
+     * Gives a broadcast the next sequence number and stores its frame.
+     * @param timeMillis The time of the message in epoch milliseconds.
+     * @param body The text after the sequence number, usually "username: text".
+     * @return the frame to send, "[#seq] body".
+     */
+    synchronized String append(long timeMillis, String body) {
+        long seq = Math.max(lastSeq + 1, seqFor(timeMillis));
+        lastSeq = seq;
+        String frame = "[#" + seq + "] " + body;
+        if (size == seqs.length) {
+            lowWatermark = seqs[head];
+        } else {
+            size++;
+        }
+        seqs[head] = seq;
+        frames[head] = frame;
+        head = (head + 1) % seqs.length;
+        return frame;
+    }
+
+    /**
+     * Collects what a client missed after a sequence number.
+     * @param afterSeq The last sequence number the client received, 0 or less if it has none.
+     * @return the frames in the ring after afterSeq, and whether older messages must be read from the database.
+     */
+    synchronized Replay since(long afterSeq) {
+        // A client without a sequence number has never been connected, so it has missed nothing
+        if (afterSeq <= 0 || afterSeq >= lastSeq) {
+            return new Replay(List.of(), true, null, null);
+        }
+        List<String> missed = new ArrayList<>();
+        long oldestSeq = lastSeq + 1;
+        for (int i = 0; i < size; i++) {
+            int index = (head - size + i + seqs.length) % seqs.length;
+            if (i == 0) {
+                oldestSeq = seqs[index];
+            }
+            if (seqs[index] > afterSeq) {
+                missed.add(frames[index]);
+            }
+        }
+        boolean complete = afterSeq >= lowWatermark;
+        return new Replay(missed, complete, timeOf(afterSeq), timeOf(oldestSeq));
+    }
+
+    /**
+     * The result of a resume request.
+     * @param frames The frames still in the ring, oldest first.
+     * @param complete false if messages between databaseFrom and databaseUntil must be read from the database.
+     * @param databaseFrom The time of the client's last sequence number, null if nothing was missed.
+     * @param databaseUntil The time of the oldest frame in the ring, null if nothing was missed.
+     */
+    record Replay(List<String> frames, boolean complete, LocalDateTime databaseFrom, LocalDateTime databaseUntil) {
+    }
+
+    static long seqFor(long timeMillis) {
+        return Math.max(0, timeMillis - EPOCH) << TIME_SHIFT;
+    }
+
+    static LocalDateTime timeOf(long seq) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli((seq >>> TIME_SHIFT) + EPOCH), ZoneId.systemDefault());
+    }
+}
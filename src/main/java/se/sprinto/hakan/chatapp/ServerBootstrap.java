@@ -0,0 +1,142 @@
+package se.sprinto.hakan.chatapp;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.dao.HotStatements;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * ServerBootstrap starts a ChatServer so the first clients after a deploy are served as fast as
+ * later ones. Before the chat port opens it creates the pool and the shared DAOs, opens every
+ * pool's min-idle connections with the hot statements prepared on each, and runs BCrypt a few times
+ * so its classes are loaded and its loop compiled. Each phase is timed, logged and kept as a
+ * startup.{phase}-ms gauge.
+ * <p>
+ * A warm-up that fails, for example because the database is down, is logged and the server starts
+ * anyway; the circuit breaker handles the database from there.
+ */
+public class ServerBootstrap {
+    private static final Logger logger = LoggerFactory.getLogger(ServerBootstrap.class);
+    private static final String WARMUP_PASSWORD = "warmup";
+
+    private final int port;
+    private final ServerConfig config;
+    private final MetricsRegistry metrics;
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+
+    public ServerBootstrap(int port) {
+        this(port, ServerConfig.getInstance(), MetricsRegistry.getInstance());
+    }
+
+    /**
+     * Constructor for testing.
+     * @param port The port to listen on
+     * @param config The settings of the server
+     * @param metrics The registry of the startup.* gauges
+     */
+    ServerBootstrap(int port, ServerConfig config, MetricsRegistry metrics) {
+        this.port = port;
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the phases and then accepts clients until the server socket fails.
+     */
+    public void start() {
+        long start = System.nanoTime();
+        DataSource dataSource = phase("database", () -> DatabaseUtil.getInstance().getDataSource());
+        ChatServer server = phase("server", () -> new ChatServer(port, config));
+        phase("daos", server::createDAOs);
+        // Without a DataSource DatabaseUtil has logged why, and there is nothing to warm
+        if (config.getBoolean("warmup.enabled", true) && dataSource != null) {
+            Set<DataSource> dataSources = new LinkedHashSet<>(List.of(dataSource));
+            dataSources.addAll(server.messageDataSources());
+            phase("pool", () -> dataSources.forEach(ServerBootstrap::warmPool));
+            phase("bcrypt", () -> warmBcrypt(config.getInt("warmup.bcrypt-rounds", 2)));
+        }
+        phase("services", server::startServices);
+        logger.info("Server is warm after {} ms {}, opening port {}",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), phaseMillis, port);
+        server.listen();
+    }
+
+    /**
+     * Opens a pool's min-idle connections at once, so Hikari does not add them one at a time in the
+     * background, and prepares the hot statements on each.
+     * @param dataSource The pool.
+     * @return the number of connections warmed, 0 if the database could not be reached.
+     */
+    static int warmPool(DataSource dataSource) {
+        int count = dataSource instanceof HikariDataSource hikari ? Math.max(1, hikari.getMinimumIdle()) : 1;
+        List<Connection> held = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Connection con = dataSource.getConnection();
+                held.add(con);
+                HotStatements.prepare(con);
+            }
+            return held.size();
+        } catch (SQLException e) {
+            logger.warn("Failed to warm the connection pool, the first clients may be slow", e);
+            return 0;
+        } finally {
+            for (Connection con : held) {
+                try {
+                    con.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes and checks a password as register and login do, with the same cost.
+     * @param rounds The number of hashes.
+     */
+    static void warmBcrypt(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            if (!BCrypt.checkpw(WARMUP_PASSWORD, BCrypt.hashpw(WARMUP_PASSWORD, BCrypt.gensalt()))) {
+                throw new IllegalStateException("BCrypt failed to check its own hash");
+            }
+        }
+    }
+
+    private void phase(String name, Runnable action) {
+        phase(name, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs one phase and records how long it took.
+     */
+    private <T> T phase(String name, Supplier<T> action) {
+        long start = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            phaseMillis.put(name, millis);
+            metrics.gauge("startup." + name + "-ms", () -> millis);
+            logger.debug("Startup phase {} took {} ms", name, millis);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package se.sprinto.hakan.chatapp;
+
+import se.sprinto.hakan.chatapp.shard.Shard;
+import se.sprinto.hakan.chatapp.shard.ShardDataSources;
+import se.sprinto.hakan.chatapp.shard.ShardRebalancer;
+import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Moves messages between shards from the command line after db.shards was changed:
+ * <pre>
+ * rebalance
+ * </pre>
+ * The shards in db.shards.previous are read as well, so a removed shard is emptied onto the others.
+ */
+public class ShardToolMain {
+    private static final String USAGE = "Användning: rebalance";
+
+    public static void main(String[] args) {
+        if (args.length != 1 || !args[0].equals("rebalance")) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        ServerConfig config = ServerConfig.getInstance();
+        Set<String> target = config.getSet("db.shards");
+        if (target.isEmpty()) {
+            System.err.println("db.shards är inte satt.");
+            System.exit(2);
+        }
+        Set<String> all = new TreeSet<>(target);
+        all.addAll(config.getSet("db.shards.previous"));
+        try {
+            long start = System.nanoTime();
+            List<Shard> shards = ShardDataSources.open(config, all);
+            ShardRebalancer rebalancer = new ShardRebalancer(shards, ShardDataSources.ring(config, target),
+                    DatabaseUtil.getInstance().getDataSource(), config.getInt("db.shard.rebalance-chunk-size", 1000));
+            long moved = rebalancer.rebalance();
+            System.out.println("Klart: " + moved + " meddelanden flyttade på " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("Misslyckades: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
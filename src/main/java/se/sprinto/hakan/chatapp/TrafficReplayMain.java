@@ -0,0 +1,56 @@
+package se.sprinto.hakan.chatapp;
+
+import se.sprinto.hakan.chatapp.capture.TrafficReplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Replays a traffic capture against a running server from the command line:
+ * <pre>
+ * &lt;file&gt; [--host &lt;host&gt;] [--port &lt;port&gt;] [--speed &lt;1|N|max&gt;]
+ * </pre>
+ * The server should be a fresh one with the same users as the captured one, for example loaded with
+ * ChatDataToolMain, so the captured logins succeed.
+ */
+public class TrafficReplayMain {
+    private static final String USAGE = "Användning: <fil> [--host <värd>] [--port <port>] [--speed <1|N|max>]";
+
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length % 2 == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String host = "localhost";
+        int port = 5555;
+        double speed = 1;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--host" -> host = args[i + 1];
+                    case "--port" -> port = Integer.parseInt(args[i + 1]);
+                    case "--speed" -> speed = args[i + 1].equals("max") ? 0 : Double.parseDouble(args[i + 1]);
+                    default -> {
+                        System.err.println(USAGE);
+                        System.exit(2);
+                    }
+                }
+            }
+            TrafficReplayer replayer = new TrafficReplayer(new InetSocketAddress(host, port), speed);
+            TrafficReplayer.ReplayResult result;
+            try (InputStream input = Files.newInputStream(Path.of(args[0]))) {
+                result = replayer.replay(input);
+            }
+            System.out.println("Klart: " + result.connections() + " anslutningar, " + result.linesSent()
+                    + " rader skickade och " + result.linesReceived() + " mottagna på " + result.elapsedMillis()
+                    + " ms (" + result.linesPerSecond() + " rader/s, största eftersläpning " + result.maxLagMillis()
+                    + " ms).");
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Misslyckades: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package se.sprinto.hakan.chatapp.archive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.dao.MessageMaintenanceDAO;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ArchiveJob moves messages older than a threshold from the messages table to an ArchiveStore, one
+ * chunk at a time in (timestamp, message_id) order. A chunk is written to the archive and forced to
+ * disk before it is deleted from the table, so a message is never only in memory.
+ */
+public class ArchiveJob implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveJob.class);
+
+    private final MessageMaintenanceDAO source;
+    private final ArchiveStore archive;
+    private final Duration archiveAfter;
+    private final int chunkSize;
+    private final long pauseMillis;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
+
+    private final Counter runs;
+    private final Counter archived;
+    private final LatencyHistogram chunkLatency;
+
+    public ArchiveJob(MessageMaintenanceDAO source, ArchiveStore archive, Duration archiveAfter, int chunkSize, long pauseMillis) {
+        this(source, archive, archiveAfter, chunkSize, pauseMillis, MetricsRegistry.getInstance());
+    }
+
+    /**
+     * Constructor for testing.
+     * @param source The DAO of the messages table.
+     * @param archive The archive to move messages to.
+     * @param archiveAfter Messages older than this are archived.
+     * @param chunkSize The maximum number of messages moved at a time.
+     * @param pauseMillis The pause between two chunks.
+     * @param metrics The registry for the progress metrics.
+     */
+    public ArchiveJob(MessageMaintenanceDAO source, ArchiveStore archive, Duration archiveAfter, int chunkSize,
+                      long pauseMillis, MetricsRegistry metrics) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.source = source;
+        this.archive = archive;
+        this.archiveAfter = archiveAfter;
+        this.chunkSize = chunkSize;
+        this.pauseMillis = pauseMillis;
+        this.runs = metrics.counter("archive.runs");
+        this.archived = metrics.counter("archive.messages");
+        this.chunkLatency = metrics.histogram("archive.chunk");
+        metrics.gauge("archive.blocks", archive::blockCount);
+    }
+
+    /**
+     * Runs the job at a fixed interval on a daemon thread. The first run starts after one interval.
+     * @param intervalMinutes The time between the end of a run and the start of the next.
+     */
+    public synchronized void start(long intervalMinutes) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "archive-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        logger.info("Archive job started: messages older than {} are archived every {} minutes", archiveAfter, intervalMinutes);
+    }
+
+    /**
+     * Stops the job. A run in progress stops after its current chunk.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            runOnce();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Archive run failed, the remaining messages stay in the messages table", e);
+        }
+    }
+
+    /**
+     * Moves every message older than the threshold, chunk by chunk.
+     * @return the number of messages moved.
+     * @throws IOException will be thrown if the archive could not be written. The chunk stays in the table.
+     */
+    public int runOnce() throws IOException {
+        runs.increment();
+        LocalDateTime cutoff = LocalDateTime.now().minus(archiveAfter);
+        int moved = 0;
+        while (!stopped) {
+            long start = System.nanoTime();
+            List<Message> chunk = source.findOlderThan(cutoff, chunkSize);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            archive.append(chunk);
+            int deleted = source.deleteMessages(chunk);
+            chunkLatency.recordSince(start);
+            archived.add(deleted);
+            moved += deleted;
+            // A failed delete would return the same chunk again, the next run tries once more
+            if (chunk.size() < chunkSize || deleted == 0 || !pause()) {
+                break;
+            }
+        }
+        if (moved > 0) {
+            logger.info("Archived {} messages older than {}", moved, cutoff);
+        }
+        return moved;
+    }
+
+    private boolean pause() {
+        if (pauseMillis <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(pauseMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package se.sprinto.hakan.chatapp.archive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ArchiveStore keeps archived messages in compressed files on local disk, one partition per month.
+ * <p>
+ * A partition is two files. messages-YYYY-MM.data holds deflate-compressed blocks, each with the
+ * messages of one user in (timestamp, message_id) order. messages-YYYY-MM.index holds one fixed-size
+ * entry per block: user id, offset, length, count and time range. The indexes are small and kept in
+ * memory, so reading a user's history only decompresses that user's blocks, one block at a time.
+ * <p>
+ * Blocks are written and forced to disk before their index entry, and a torn index entry at the end
+ * of a file is ignored, so a crash never leaves an index entry pointing at missing data.
+ */
+public class ArchiveStore {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveStore.class);
+    private static final String PREFIX = "messages-";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String INDEX_SUFFIX = ".index";
+    // userId, offset, length, count, minSecond, maxSecond
+    private static final int INDEX_ENTRY_BYTES = 4 + 8 + 4 + 4 + 8 + 8;
+    /** The order of messages in a block and in every result. */
+    public static final Comparator<Message> ORDER = Comparator.comparing(Message::getTimestamp).thenComparingLong(Message::getId);
+
+    private final Path directory;
+    private final NavigableMap<YearMonth, Partition> partitions = new TreeMap<>();
+
+    /**
+     * Opens the archive in a directory, creating the directory if needed, and loads its indexes.
+     * @param directory The directory of the partition files.
+     * @throws IOException will be thrown if the directory or an index could not be read.
+     */
+    public ArchiveStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path index : files) {
+                String name = index.getFileName().toString();
+                YearMonth month = YearMonth.parse(name.substring(PREFIX.length(), name.length() - INDEX_SUFFIX.length()));
+                partitions.put(month, Partition.load(directory, month));
+            }
+        }
+        logger.info("Opened message archive {} with {} partitions", directory, partitions.size());
+    }
+
+    /**
+     * Appends messages to the archive. They are grouped into one block per month and user.
+     * @param messages The messages to archive, in any order.
+     * @throws IOException will be thrown if a partition could not be written.
+     */
+    public synchronized void append(List<Message> messages) throws IOException {
+        Map<YearMonth, Map<Integer, List<Message>>> grouped = new TreeMap<>();
+        for (Message message : messages) {
+            grouped.computeIfAbsent(YearMonth.from(message.getTimestamp()), month -> new TreeMap<>())
+                    .computeIfAbsent(message.getUserId(), userId -> new ArrayList<>())
+                    .add(message);
+        }
+        for (Map.Entry<YearMonth, Map<Integer, List<Message>>> month : grouped.entrySet()) {
+            Partition partition = partitions.get(month.getKey());
+            if (partition == null) {
+                partition = Partition.load(directory, month.getKey());
+                partitions.put(month.getKey(), partition);
+            }
+            List<BlockRef> written = new ArrayList<>();
+            try (FileChannel data = FileChannel.open(partition.data, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = data.size();
+                for (Map.Entry<Integer, List<Message>> user : month.getValue().entrySet()) {
+                    List<Message> block = user.getValue();
+                    block.sort(ORDER);
+                    byte[] bytes = encode(block);
+                    writeFully(data, ByteBuffer.wrap(bytes), offset);
+                    written.add(new BlockRef(user.getKey(), offset, bytes.length, block.size(),
+                            epochSecond(block.get(0).getTimestamp()), epochSecond(block.get(block.size() - 1).getTimestamp())));
+                    offset += bytes.length;
+                }
+                data.force(false);
+            }
+            partition.appendIndex(written);
+        }
+    }
+
+    /**
+     * Streams the archived messages of a user, oldest first. Only one block is held in memory at a time.
+     * @param userId The owner of the messages.
+     * @param action Called for every message.
+     * @throws UncheckedIOException will be thrown if a block could not be read.
+     */
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        for (Partition partition : snapshotPartitions()) {
+            for (BlockRef block : partition.blocksOf(userId)) {
+                readBlock(partition, block, action);
+            }
+        }
+    }
+
+    /**
+     * Finds one page of a user's archived messages after a given one, oldest first. Blocks that end
+     * before it are skipped by their index entry, and a message that was archived twice is returned once.
+     * @param userId The owner of the messages.
+     * @param after The last message of the previous page, or null for the first page.
+     * @param limit The maximum number of messages to return.
+     * @return the page.
+     */
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        long afterSecond = after == null ? Long.MIN_VALUE : epochSecond(after.getTimestamp());
+        TreeSet<Message> page = new TreeSet<>(ORDER);
+        for (Partition partition : snapshotPartitions()) {
+            // Partitions are in month order, so a full page cannot gain from a later month
+            if (page.size() == limit && partition.month.atDay(1).atStartOfDay().isAfter(page.last().getTimestamp())) {
+                break;
+            }
+            for (BlockRef block : partition.blocksOf(userId)) {
+                if (block.maxSecond() < afterSecond) {
+                    continue;
+                }
+                readBlock(partition, block, message -> {
+                    if (after == null || ORDER.compare(message, after) > 0) {
+                        page.add(message);
+                        if (page.size() > limit) {
+                            page.pollLast();
+                        }
+                    }
+                });
+            }
+        }
+        return new ArrayList<>(page);
+    }
+
+    /**
+     * @return the users with archived messages, in id order.
+     */
+    public SortedSet<Integer> userIds() {
+        SortedSet<Integer> userIds = new TreeSet<>();
+        for (Partition partition : snapshotPartitions()) {
+            userIds.addAll(partition.userIds());
+        }
+        return userIds;
+    }
+
+    /**
+     * Finds the newest archived messages of all users in a time range, oldest first. Blocks outside the
+     * range are skipped by their index entry, and at most limit messages are kept while the rest are read.
+     * @param from The start of the range, inclusive.
+     * @param until The end of the range, exclusive.
+     * @param limit The maximum number of messages to return.
+     * @return the messages in the range.
+     */
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        long fromSecond = epochSecond(from);
+        long untilSecond = epochSecond(until);
+        // The oldest kept message is on top, so it is the one to drop when a newer one turns up
+        PriorityQueue<Message> newest = new PriorityQueue<>(ORDER);
+        for (Partition partition : snapshotPartitions()) {
+            LocalDateTime monthStart = partition.month.atDay(1).atStartOfDay();
+            if (!monthStart.isBefore(until) || !monthStart.plusMonths(1).isAfter(from)) {
+                continue;
+            }
+            for (BlockRef block : partition.allBlocks()) {
+                if (block.maxSecond() < fromSecond || block.minSecond() > untilSecond) {
+                    continue;
+                }
+                readBlock(partition, block, message -> {
+                    if (!message.getTimestamp().isBefore(from) && message.getTimestamp().isBefore(until)) {
+                        newest.add(message);
+                        if (newest.size() > limit) {
+                            newest.poll();
+                        }
+                    }
+                });
+            }
+        }
+        List<Message> messages = new ArrayList<>(newest);
+        messages.sort(ORDER);
+        return messages;
+    }
+
+    /**
+     * @return the number of blocks in all partitions.
+     */
+    public synchronized long blockCount() {
+        long blocks = 0;
+        for (Partition partition : partitions.values()) {
+            blocks += partition.allBlocks().size();
+        }
+        return blocks;
+    }
+
+    private synchronized List<Partition> snapshotPartitions() {
+        return new ArrayList<>(partitions.values());
+    }
+
+    private static void readBlock(Partition partition, BlockRef block, Consumer<Message> action) {
+        ByteBuffer compressed = ByteBuffer.allocate(block.length());
+        try (FileChannel data = FileChannel.open(partition.data, StandardOpenOption.READ)) {
+            while (compressed.hasRemaining()) {
+                if (data.read(compressed, block.offset() + compressed.position()) < 0) {
+                    throw new EOFException("Archive block ends early in " + partition.data);
+                }
+            }
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(compressed.array())))) {
+                for (int i = 0; i < block.count(); i++) {
+                    long id = in.readLong();
+                    long second = in.readLong();
+                    int nano = in.readInt();
+                    String text = in.readUTF();
+                    action.accept(new Message(id, block.userId(), text, LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archive block in " + partition.data, e);
+        }
+    }
+
+    private static byte[] encode(List<Message> block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            for (Message message : block) {
+                out.writeLong(message.getId());
+                out.writeLong(epochSecond(message.getTimestamp()));
+                out.writeInt(message.getTimestamp().getNano());
+                out.writeUTF(message.getText());
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static long epochSecond(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * One month of the archive with its index in memory.
+     */
+    private static final class Partition {
+        private final YearMonth month;
+        private final Path data;
+        private final Path index;
+        private final Map<Integer, List<BlockRef>> blocksByUser = new HashMap<>();
+        private final List<BlockRef> blocks = new ArrayList<>();
+
+        private Partition(YearMonth month, Path data, Path index) {
+            this.month = month;
+            this.data = data;
+            this.index = index;
+        }
+
+        static Partition load(Path directory, YearMonth month) throws IOException {
+            String name = PREFIX + month;
+            Partition partition = new Partition(month, directory.resolve(name + DATA_SUFFIX), directory.resolve(name + INDEX_SUFFIX));
+            if (Files.exists(partition.index)) {
+                byte[] bytes = Files.readAllBytes(partition.index);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                // A torn entry at the end is left out, its block is never read
+                while (buffer.remaining() >= INDEX_ENTRY_BYTES) {
+                    partition.add(new BlockRef(buffer.getInt(), buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                            buffer.getLong(), buffer.getLong()));
+                }
+            }
+            return partition;
+        }
+
+        void appendIndex(List<BlockRef> written) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(written.size() * INDEX_ENTRY_BYTES);
+            for (BlockRef block : written) {
+                buffer.putInt(block.userId()).putLong(block.offset()).putInt(block.length()).putInt(block.count())
+                        .putLong(block.minSecond()).putLong(block.maxSecond());
+            }
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Entries always start at a multiple of the entry size, so a torn entry is overwritten
+                long end = channel.size() - channel.size() % INDEX_ENTRY_BYTES;
+                writeFully(channel, buffer, end);
+                channel.force(false);
+            }
+            synchronized (this) {
+                written.forEach(this::add);
+            }
+        }
+
+        private void add(BlockRef block) {
+            blocks.add(block);
+            blocksByUser.computeIfAbsent(block.userId(), userId -> new ArrayList<>()).add(block);
+        }
+
+        synchronized List<BlockRef> blocksOf(int userId) {
+            return new ArrayList<>(blocksByUser.getOrDefault(userId, List.of()));
+        }
+
+        synchronized Set<Integer> userIds() {
+            return new HashSet<>(blocksByUser.keySet());
+        }
+
+        synchronized List<BlockRef> allBlocks() {
+            return new ArrayList<>(blocks);
+        }
+    }
+
+    /**
+     * The index entry of one block.
+     * @param userId The owner of the messages in the block.
+     * @param offset The position of the block in the data file.
+     * @param length The compressed size of the block.
+     * @param count The number of messages in the block.
+     * @param minSecond The time of the oldest message, in UTC epoch seconds of the local time.
+     * @param maxSecond The time of the newest message.
+     */
+    record BlockRef(int userId, long offset, int length, int count, long minSecond, long maxSecond) {
+    }
+}
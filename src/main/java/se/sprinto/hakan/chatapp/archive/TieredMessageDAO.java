@@ -0,0 +1,122 @@
+package se.sprinto.hakan.chatapp.archive;
+
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * TieredMessageDAO reads from the archive and the hot messages table as if they were one table.
+ * New messages always go to the hot table. The archive holds the oldest messages, so a user's
+ * history is the archive followed by the hot table. A message that is in both, because a crash hit
+ * between archiving and deleting it, is only returned once.
+ */
+public class TieredMessageDAO implements MessageDAO {
+    private final MessageDAO hot;
+    private final ArchiveStore archive;
+
+    /**
+     * @param hot The DAO of the messages table.
+     * @param archive The archive of older messages.
+     */
+    public TieredMessageDAO(MessageDAO hot, ArchiveStore archive) {
+        this.hot = hot;
+        this.archive = archive;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        hot.saveMessage(message);
+    }
+
+    @Override
+    public void saveMessages(List<Message> messages) {
+        hot.saveMessages(messages);
+    }
+
+    @Override
+    public List<Message> getMessagesByUserId(int userId) {
+        List<Message> messages = new ArrayList<>();
+        forEachMessageByUserId(userId, messages::add);
+        return messages;
+    }
+
+    /**
+     * Streams a user's archived messages and then the hot ones, oldest first.
+     * @param userId The owner of the messages.
+     * @param action Called for every message.
+     */
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        InOrder archived = new InOrder(action);
+        archive.forEachMessageByUserId(userId, archived);
+        hot.forEachMessageByUserId(userId, message -> {
+            if (archived.isAfterLast(message)) {
+                action.accept(message);
+            }
+        });
+    }
+
+    /**
+     * Finds one page of a user's history, from the archive until it has nothing more and then from
+     * the hot table.
+     * @param userId The owner of the messages.
+     * @param after The last message of the previous page, or null for the first page.
+     * @param limit The maximum number of messages to return.
+     * @return the page, oldest first.
+     */
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        List<Message> page = new ArrayList<>(archive.getMessagesByUserIdAfter(userId, after, limit));
+        if (page.size() < limit) {
+            // The archive ends within this page, so hot copies of archived messages are not after its last one
+            Message from = page.isEmpty() ? after : page.get(page.size() - 1);
+            page.addAll(hot.getMessagesByUserIdAfter(userId, from, limit - page.size()));
+        }
+        return page;
+    }
+
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        List<Message> messages = new ArrayList<>(archive.getMessagesBetween(from, until, limit));
+        Message lastArchived = messages.isEmpty() ? null : messages.get(messages.size() - 1);
+        for (Message message : hot.getMessagesBetween(from, until, limit)) {
+            if (lastArchived == null || ArchiveStore.ORDER.compare(message, lastArchived) > 0) {
+                messages.add(message);
+            }
+        }
+        // The newest are the hot ones, so the archive only fills what the hot table did not
+        return new ArrayList<>(messages.subList(Math.max(0, messages.size() - limit), messages.size()));
+    }
+
+    /**
+     * Passes on archived messages that come after the last one passed on. A chunk that was archived
+     * twice, because its delete failed, is read as a second copy and dropped here.
+     */
+    private static final class InOrder implements Consumer<Message> {
+        private final Consumer<Message> action;
+        private Message last;
+
+        InOrder(Consumer<Message> action) {
+            this.action = action;
+        }
+
+        @Override
+        public void accept(Message message) {
+            if (last == null || ArchiveStore.ORDER.compare(message, last) > 0) {
+                last = message;
+                action.accept(message);
+            }
+        }
+
+        /**
+         * @return true if the message comes after every archived message, false for a copy of one.
+         */
+        boolean isAfterLast(Message message) {
+            return last == null || ArchiveStore.ORDER.compare(message, last) > 0;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package se.sprinto.hakan.chatapp.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.archive.ArchiveStore;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ChatDataExporter writes the users and messages tables, or one user's rows, to a ChatDataFormat
+ * stream. Rows are streamed from the ResultSet straight to the file, so memory use does not grow
+ * with the size of the tables.
+ * <p>
+ * Both tables are read in one REPEATABLE READ transaction. On InnoDB that is a consistent snapshot
+ * without locks, so the chat keeps writing while an export runs. When the messages are sharded, the
+ * users come from the main database and the messages from every shard, each shard in a snapshot of
+ * its own.
+ * <p>
+ * With an archive, each user's archived messages are written before the ones in the messages table,
+ * so a backup also holds the history the archive job moved out of the table. The archive does not
+ * keep client message ids, so those rows are exported without one. A message that is in both the
+ * archive and the table, because a crash hit between archiving and deleting it, is written once.
+ */
+public class ChatDataExporter {
+    private static final Logger logger = LoggerFactory.getLogger(ChatDataExporter.class);
+    static final String USERS_SQL = "SELECT user_id, username, password FROM users ORDER BY user_id";
+    static final String USER_SQL = "SELECT user_id, username, password FROM users WHERE user_id = ?";
+    static final String MESSAGES_SQL = """
+            SELECT message_id, user_id, timestamp, text, client_msg_id
+            FROM messages
+            ORDER BY message_id
+            """;
+    static final String MESSAGES_OF_USER_SQL = """
+            SELECT message_id, user_id, timestamp, text, client_msg_id
+            FROM messages
+            WHERE user_id = ?
+            ORDER BY timestamp, message_id
+            """;
+
+    private final DataSource dataSource;
+    private final List<DataSource> messageDataSources;
+    private final ArchiveStore archive;
+    private final int fetchSize;
+
+    /**
+     * @param dataSource The database to export.
+     * @param fetchSize The number of rows the driver fetches per round-trip.
+     */
+    public ChatDataExporter(DataSource dataSource, int fetchSize) {
+        this(dataSource, List.of(dataSource), null, fetchSize);
+    }
+
+    /**
+     * @param dataSource The database with the users table.
+     * @param messageDataSources The databases with the messages, the shards when db.shards is set.
+     * @param archive The archive of older messages, or null if archiving is off.
+     * @param fetchSize The number of rows the driver fetches per round-trip.
+     */
+    public ChatDataExporter(DataSource dataSource, List<DataSource> messageDataSources, ArchiveStore archive,
+                            int fetchSize) {
+        this.dataSource = dataSource;
+        this.messageDataSources = messageDataSources;
+        this.archive = archive;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Exports every user and message.
+     * @param output The stream to write to, it is closed when the export is done.
+     * @param progress Counts the exported rows.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     * @throws IOException will be thrown if the stream could not be written.
+     */
+    public void exportAll(OutputStream output, TransferProgress progress) throws SQLException, IOException {
+        export(output, null, progress);
+    }
+
+    /**
+     * Exports one user and the user's messages.
+     * @param output The stream to write to, it is closed when the export is done.
+     * @param userId The user to export.
+     * @param progress Counts the exported rows.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     * @throws IOException will be thrown if the stream could not be written.
+     */
+    public void exportUser(OutputStream output, int userId, TransferProgress progress) throws SQLException, IOException {
+        export(output, userId, progress);
+    }
+
+    private void export(OutputStream output, Integer userId, TransferProgress progress) throws SQLException, IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output), 64 * 1024));
+             Connection con = dataSource.getConnection()) {
+            beginSnapshot(con);
+            out.writeInt(ChatDataFormat.MAGIC);
+            out.writeInt(ChatDataFormat.VERSION);
+            try {
+                try (PreparedStatement ps = prepare(con, userId == null ? USERS_SQL : USER_SQL, userId);
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.writeByte(ChatDataFormat.USER);
+                        out.writeInt(rs.getInt("user_id"));
+                        out.writeUTF(rs.getString("username"));
+                        out.writeUTF(rs.getString("password"));
+                        progress.userDone();
+                    }
+                }
+                Map<Integer, Message> lastArchived = writeArchived(out, userId, progress);
+                for (DataSource messages : messageDataSources) {
+                    if (messages == dataSource) {
+                        writeMessages(con, out, userId, lastArchived, progress);
+                        continue;
+                    }
+                    try (Connection shard = messages.getConnection()) {
+                        beginSnapshot(shard);
+                        try {
+                            writeMessages(shard, out, userId, lastArchived, progress);
+                        } finally {
+                            shard.commit();
+                        }
+                    }
+                }
+            } finally {
+                // Only reads were made, the commit just ends the snapshot
+                con.commit();
+            }
+            out.writeByte(ChatDataFormat.END);
+            out.writeLong(progress.getUsers());
+            out.writeLong(progress.getMessages());
+        }
+        logger.info("{}", progress);
+    }
+
+    private static void beginSnapshot(Connection con) throws SQLException {
+        con.setAutoCommit(false);
+        con.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+    }
+
+    /**
+     * Writes the archived messages of the exported users.
+     * @return the last archived message of each user, the table rows up to it are copies.
+     */
+    private Map<Integer, Message> writeArchived(DataOutputStream out, Integer userId, TransferProgress progress)
+            throws IOException {
+        Map<Integer, Message> lastArchived = new HashMap<>();
+        if (archive == null) {
+            return lastArchived;
+        }
+        try {
+            for (int owner : userId == null ? archive.userIds() : Set.of(userId)) {
+                archive.forEachMessageByUserId(owner, message -> {
+                    Message last = lastArchived.get(owner);
+                    // A chunk that was archived twice, because its delete failed, is read twice
+                    if (last == null || ArchiveStore.ORDER.compare(message, last) > 0) {
+                        lastArchived.put(owner, message);
+                        try {
+                            writeMessage(out, message, 0);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        progress.messageDone();
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return lastArchived;
+    }
+
+    private void writeMessages(Connection con, DataOutputStream out, Integer userId, Map<Integer, Message> lastArchived,
+                               TransferProgress progress) throws SQLException, IOException {
+        try (PreparedStatement ps = prepare(con, userId == null ? MESSAGES_SQL : MESSAGES_OF_USER_SQL, userId);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                Message message = new Message(rs.getLong("message_id"), rs.getInt("user_id"), rs.getString("text"),
+                        rs.getTimestamp("timestamp").toLocalDateTime());
+                Message last = lastArchived.get(message.getUserId());
+                if (last != null && ArchiveStore.ORDER.compare(message, last) <= 0) {
+                    continue;
+                }
+                writeMessage(out, message, rs.getLong("client_msg_id"));
+                progress.messageDone();
+            }
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message, long clientMsgId) throws IOException {
+        LocalDateTime timestamp = message.getTimestamp();
+        out.writeByte(ChatDataFormat.MESSAGE);
+        out.writeLong(message.getId());
+        out.writeInt(message.getUserId());
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+        out.writeUTF(message.getText());
+        out.writeLong(clientMsgId);
+    }
+
+    /**
+     * Prepares a forward-only statement that streams its rows. MySQL Connector/J only streams with
+     * a fetch size of Integer.MIN_VALUE, other drivers use the configured fetch size.
+     */
+    private PreparedStatement prepare(Connection con, String sql, Integer userId) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        boolean mysql = con.getMetaData().getDatabaseProductName().equalsIgnoreCase("MySQL");
+        ps.setFetchSize(mysql ? Integer.MIN_VALUE : fetchSize);
+        if (userId != null) {
+            ps.setInt(1, userId);
+        }
+        return ps;
+    }
+}
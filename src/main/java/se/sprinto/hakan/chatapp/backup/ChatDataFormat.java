@@ -0,0 +1,22 @@
+package se.sprinto.hakan.chatapp.backup;
+
+/**
+ * The layout of an export file. The file is gzip-compressed and holds, after the header, one record
+ * per row, all users before all messages, and an end record with the row counts:
+ * <pre>
+ * header:  int MAGIC, int VERSION
+ * user:    byte USER, int user_id, UTF username, UTF password
+ * message: byte MESSAGE, long message_id, int user_id, long epoch second, int nano, UTF text, long client_msg_id (0 for none)
+ * end:     byte END, long users, long messages
+ * </pre>
+ */
+final class ChatDataFormat {
+    static final int MAGIC = 0x43484154; // "CHAT"
+    static final int VERSION = 1;
+    static final byte USER = 'U';
+    static final byte MESSAGE = 'M';
+    static final byte END = 'E';
+
+    private ChatDataFormat() {
+    }
+}
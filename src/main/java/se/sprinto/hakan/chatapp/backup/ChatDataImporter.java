@@ -0,0 +1,212 @@
+package se.sprinto.hakan.chatapp.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.shard.ConsistentHashRing;
+import se.sprinto.hakan.chatapp.shard.Shard;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * ChatDataImporter reads a ChatDataFormat stream back into the users and messages tables. Rows keep
+ * their ids and are inserted in JDBC batches with a commit after every batch, so memory use and
+ * transaction size stay constant. The tables should not already contain the same ids.
+ * <p>
+ * When the messages are sharded, users go to the main database and each message to the shard the
+ * ring assigns its user. The owning shard also gets the user's id and username, like ShardUsers
+ * copies them, because its messages table has a foreign key to users.
+ */
+public class ChatDataImporter {
+    private static final Logger logger = LoggerFactory.getLogger(ChatDataImporter.class);
+    static final String INSERT_USER_SQL = "INSERT INTO users (user_id, username, password) VALUES (?, ?, ?)";
+    static final String INSERT_SHARD_USER_SQL = "INSERT INTO users (user_id, username, password) VALUES (?, ?, '')";
+    static final String INSERT_MESSAGE_SQL = """
+            INSERT INTO messages (message_id, user_id, timestamp, text, client_msg_id) VALUES (?, ?, ?, ?, ?)
+            """;
+
+    private final DataSource dataSource;
+    private final List<Shard> shards;
+    private final ConsistentHashRing ring;
+    private final int batchSize;
+
+    /**
+     * @param dataSource The database to import into.
+     * @param batchSize The number of rows per batch and commit.
+     */
+    public ChatDataImporter(DataSource dataSource, int batchSize) {
+        this(dataSource, List.of(), null, batchSize);
+    }
+
+    /**
+     * @param dataSource The database with the users table.
+     * @param shards The message shards, empty if the messages live in the main database.
+     * @param ring The ring that assigns users to the shards, null without shards.
+     * @param batchSize The number of rows per batch and commit.
+     */
+    public ChatDataImporter(DataSource dataSource, List<Shard> shards, ConsistentHashRing ring, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (!shards.isEmpty() && ring == null) {
+            throw new IllegalArgumentException("Shards need a ring.");
+        }
+        this.dataSource = dataSource;
+        this.shards = shards;
+        this.ring = ring;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports an export file. Batches that were committed before an error stay imported.
+     * @param input The stream to read, it is closed when the import is done.
+     * @param progress Counts the imported rows.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     * @throws IOException will be thrown if the stream could not be read or is not an export file.
+     */
+    public void importAll(InputStream input, TransferProgress progress) throws SQLException, IOException {
+        List<Target> targets = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input), 64 * 1024))) {
+            if (in.readInt() != ChatDataFormat.MAGIC || in.readInt() != ChatDataFormat.VERSION) {
+                throw new IOException("Not a chat export file, or an unsupported version.");
+            }
+            Target main = Target.open(dataSource, INSERT_USER_SQL, targets);
+            Map<String, Target> shardTargets = new LinkedHashMap<>();
+            for (Shard shard : shards) {
+                shardTargets.put(shard.name(), Target.open(shard.dataSource(), INSERT_SHARD_USER_SQL, targets));
+            }
+            try {
+                int pending = 0;
+                byte tag;
+                while ((tag = in.readByte()) != ChatDataFormat.END) {
+                    if (tag == ChatDataFormat.USER) {
+                        int userId = in.readInt();
+                        String username = in.readUTF();
+                        main.users.setInt(1, userId);
+                        main.users.setString(2, username);
+                        main.users.setString(3, in.readUTF());
+                        main.users.addBatch();
+                        if (ring != null) {
+                            PreparedStatement copy = shardTargets.get(ring.shardFor(userId)).users;
+                            copy.setInt(1, userId);
+                            copy.setString(2, username);
+                            copy.addBatch();
+                        }
+                        progress.userDone();
+                    } else if (tag == ChatDataFormat.MESSAGE) {
+                        if (progress.getMessages() == 0) {
+                            // Messages reference users, so the users go in first
+                            flush(targets);
+                            pending = 0;
+                        }
+                        long messageId = in.readLong();
+                        int userId = in.readInt();
+                        PreparedStatement messages = (ring == null ? main : shardTargets.get(ring.shardFor(userId))).messages;
+                        messages.setLong(1, messageId);
+                        messages.setInt(2, userId);
+                        long second = in.readLong();
+                        int nano = in.readInt();
+                        messages.setTimestamp(3, Timestamp.valueOf(LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC)));
+                        messages.setString(4, in.readUTF());
+                        long clientMsgId = in.readLong();
+                        if (clientMsgId != 0) {
+                            messages.setLong(5, clientMsgId);
+                        } else {
+                            messages.setNull(5, Types.BIGINT);
+                        }
+                        messages.addBatch();
+                        progress.messageDone();
+                    } else {
+                        throw new IOException("Unknown record type " + tag + " after " + progress.getRows() + " rows.");
+                    }
+                    if (++pending == batchSize) {
+                        flush(targets);
+                        pending = 0;
+                    }
+                }
+                flush(targets);
+                long expectedUsers = in.readLong();
+                long expectedMessages = in.readLong();
+                if (expectedUsers != progress.getUsers() || expectedMessages != progress.getMessages()) {
+                    throw new IOException("The export file is incomplete.");
+                }
+            } catch (SQLException | IOException e) {
+                for (Target target : targets) {
+                    target.con.rollback();
+                }
+                throw e;
+            }
+        } finally {
+            for (Target target : targets) {
+                target.close();
+            }
+        }
+        logger.info("{}", progress);
+    }
+
+    private static void flush(List<Target> targets) throws SQLException {
+        // The main database comes first, so the users are committed before any message refers to them
+        for (Target target : targets) {
+            target.users.executeBatch();
+            target.messages.executeBatch();
+            target.con.commit();
+        }
+    }
+
+    /**
+     * The connection and batches of one database.
+     */
+    private static final class Target {
+        private final Connection con;
+        private final boolean autoCommit;
+        private PreparedStatement users;
+        private PreparedStatement messages;
+
+        private Target(Connection con) throws SQLException {
+            this.con = con;
+            this.autoCommit = con.getAutoCommit();
+        }
+
+        /**
+         * Opens a target and adds it to the list first, so it is closed even if preparing fails.
+         */
+        static Target open(DataSource dataSource, String insertUserSql, List<Target> targets) throws SQLException {
+            Connection con = dataSource.getConnection();
+            Target target;
+            try {
+                target = new Target(con);
+            } catch (SQLException e) {
+                con.close();
+                throw e;
+            }
+            targets.add(target);
+            con.setAutoCommit(false);
+            target.users = con.prepareStatement(insertUserSql);
+            target.messages = con.prepareStatement(INSERT_MESSAGE_SQL);
+            return target;
+        }
+
+        void close() throws SQLException {
+            try (con) {
+                if (users != null) {
+                    users.close();
+                }
+                if (messages != null) {
+                    messages.close();
+                }
+                con.setAutoCommit(autoCommit);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package se.sprinto.hakan.chatapp.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the rows of an export or import and logs progress and throughput every N rows.
+ */
+public class TransferProgress {
+    private static final Logger logger = LoggerFactory.getLogger(TransferProgress.class);
+
+    private final String operation;
+    private final long logEvery;
+    private final long startNanos = System.nanoTime();
+    private long users;
+    private long messages;
+
+    /**
+     * @param operation The name in the log lines, for example "Export".
+     * @param logEvery The number of rows between two progress lines, 0 or less for none.
+     */
+    public TransferProgress(String operation, long logEvery) {
+        this.operation = operation;
+        this.logEvery = logEvery;
+    }
+
+    void userDone() {
+        users++;
+        rowDone();
+    }
+
+    void messageDone() {
+        messages++;
+        rowDone();
+    }
+
+    private void rowDone() {
+        if (logEvery > 0 && getRows() % logEvery == 0) {
+            logger.info("{}: {} users and {} messages, {} rows/s", operation, users, messages, getRowsPerSecond());
+        }
+    }
+
+    public long getUsers() {
+        return users;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getRows() {
+        return users + messages;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public long getRowsPerSecond() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        return getRows() * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + ": " + users + " users and " + messages + " messages in " + getElapsedMillis()
+                + " ms, " + getRowsPerSecond() + " rows/s";
+    }
+}
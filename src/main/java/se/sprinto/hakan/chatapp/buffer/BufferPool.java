@@ -0,0 +1,182 @@
+package se.sprinto.hakan.chatapp.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool lends out byte buffers in a few size classes, so a connection only holds a buffer while
+ * it has data in flight instead of keeping its own buffers for its whole life.
+ * <p>
+ * A request gets a buffer of the smallest class that fits, taken from that class's free list or
+ * newly allocated when the list is empty. Returned buffers are kept up to maxPooledPerClass per
+ * class and dropped after that, so a burst does not pin memory forever. Requests larger than the
+ * largest class get a buffer of their own that is never pooled.
+ * <p>
+ * With leak detection on, every lent buffer records where it was taken, and a PooledBuffer that is
+ * garbage collected without being released is logged with that stack trace and counted. It costs a
+ * stack trace per acquire, so it is meant for tests and debugging.
+ */
+public class BufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final String name;
+    private final int[] sizeClasses;
+    private final List<Queue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCounts;
+    private final int maxPooledPerClass;
+    private final boolean direct;
+    private final boolean leakDetection;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final Counter acquired;
+    private final Counter allocated;
+    private final Counter leaked;
+
+    /**
+     * @param name The name in the buffers.{name}.* metrics.
+     * @param sizeClasses The buffer sizes, in increasing order.
+     * @param maxPooledPerClass The most free buffers kept per size class.
+     * @param direct True for direct buffers, for channel I/O; false for heap buffers with an array.
+     * @param leakDetection True to report buffers that are never released.
+     * @param metrics The registry of the pool's metrics.
+     */
+    public BufferPool(String name, int[] sizeClasses, int maxPooledPerClass, boolean direct, boolean leakDetection,
+                      MetricsRegistry metrics) {
+        if (sizeClasses.length == 0) {
+            throw new IllegalArgumentException("At least one size class is needed.");
+        }
+        for (int i = 1; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] <= sizeClasses[i - 1]) {
+                throw new IllegalArgumentException("Size classes must increase: " + Arrays.toString(sizeClasses));
+            }
+        }
+        this.name = name;
+        this.sizeClasses = sizeClasses.clone();
+        List<Queue<ByteBuffer>> queues = new ArrayList<>(sizeClasses.length);
+        this.freeCounts = new AtomicInteger[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+        this.free = List.copyOf(queues);
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.direct = direct;
+        this.leakDetection = leakDetection;
+        String prefix = "buffers." + name + ".";
+        this.acquired = metrics.counter(prefix + "acquired");
+        this.allocated = metrics.counter(prefix + "allocated");
+        this.leaked = metrics.counter(prefix + "leaked");
+        metrics.gauge(prefix + "in-use", inUse::get);
+        metrics.gauge(prefix + "in-use-bytes", inUseBytes::get);
+        metrics.gauge(prefix + "pooled-bytes", pooledBytes::get);
+        metrics.gauge(prefix + "utilization-percent", this::utilizationPercent);
+    }
+
+    /**
+     * Lends a buffer with at least a capacity. The buffer is cleared, and its capacity may be larger.
+     * @param minCapacity The number of bytes the caller needs.
+     * @return the buffer, which must be released exactly once.
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        int sizeClass = classOf(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = free.get(sizeClass).poll();
+            if (buffer != null) {
+                freeCounts[sizeClass].decrementAndGet();
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer == null) {
+            buffer = allocate(sizeClass >= 0 ? sizeClasses[sizeClass] : minCapacity);
+            allocated.increment();
+        }
+        acquired.increment();
+        inUse.incrementAndGet();
+        inUseBytes.addAndGet(buffer.capacity());
+        PooledBuffer.Lease lease = new PooledBuffer.Lease(this, buffer.capacity(),
+                leakDetection ? new Throwable("Buffer acquired here") : null);
+        PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass, lease);
+        if (leakDetection) {
+            lease.cleanable = CLEANER.register(pooled, lease);
+        }
+        return pooled;
+    }
+
+    /**
+     * @return the largest size class; larger requests are not pooled.
+     */
+    public int largestClass() {
+        return sizeClasses[sizeClasses.length - 1];
+    }
+
+    /**
+     * @return the number of buffers lent out and not yet released.
+     */
+    public int inUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return the number of buffers that were garbage collected without being released.
+     */
+    public long leakCount() {
+        return leaked.get();
+    }
+
+    void release(ByteBuffer buffer, int sizeClass) {
+        inUse.decrementAndGet();
+        inUseBytes.addAndGet(-buffer.capacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        // The count is reserved first, so the free list never grows past its bound under contention
+        if (freeCounts[sizeClass].incrementAndGet() > maxPooledPerClass) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pooledBytes.addAndGet(buffer.capacity());
+        free.get(sizeClass).offer(buffer);
+    }
+
+    void reportLeak(int capacity, Throwable acquiredAt) {
+        leaked.increment();
+        inUse.decrementAndGet();
+        inUseBytes.addAndGet(-capacity);
+        logger.error("A buffer from pool {} was never released", name, acquiredAt);
+    }
+
+    private int classOf(int capacity) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] >= capacity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private long utilizationPercent() {
+        long used = inUseBytes.get();
+        long total = used + pooledBytes.get();
+        return total == 0 ? 0 : used * 100 / total;
+    }
+}
@@ -0,0 +1,132 @@
+package se.sprinto.hakan.chatapp.buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LineReader reads UTF-8 lines from a stream with a buffer borrowed from a heap BufferPool, in place
+ * of a BufferedReader over an InputStreamReader and their 24 KB of buffers per connection.
+ * <p>
+ * While the peer is silent the reader blocks on a single-byte read and holds no buffer. When a line
+ * starts, a small buffer is borrowed and grown through the size classes as needed. It is returned as
+ * soon as a line is complete and nothing after it has arrived yet; bytes of a following line keep
+ * it borrowed until that line is read too.
+ */
+public class LineReader implements Closeable {
+    private final InputStream in;
+    private final BufferPool pool;
+    private final int maxLineBytes;
+    // Holds the bytes read but not yet returned, from 0 to position
+    private PooledBuffer pending;
+    private boolean eof;
+
+    /**
+     * @param in The stream to read from, closed together with the reader.
+     * @param pool A pool of heap buffers.
+     * @param maxLineBytes The longest line accepted, in bytes.
+     */
+    public LineReader(InputStream in, BufferPool pool, int maxLineBytes) {
+        this.in = in;
+        this.pool = pool;
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    /**
+     * Reads a line, without its "\n" or "\r\n".
+     * @return the line, or null at the end of the stream.
+     * @throws IOException will be thrown if the read failed or the line is longer than maxLineBytes.
+     */
+    public String readLine() throws IOException {
+        try {
+            if (pending == null) {
+                if (eof) {
+                    return null;
+                }
+                int first = in.read();
+                if (first < 0) {
+                    eof = true;
+                    return null;
+                }
+                pending = pool.acquire(1);
+                pending.buffer().put((byte) first);
+            }
+            int scanned = 0;
+            while (true) {
+                ByteBuffer buffer = pending.buffer();
+                byte[] bytes = buffer.array();
+                int base = buffer.arrayOffset();
+                for (int i = scanned; i < buffer.position(); i++) {
+                    if (bytes[base + i] == '\n') {
+                        return takeLine(i);
+                    }
+                }
+                scanned = buffer.position();
+                if (eof) {
+                    return takeLine(buffer.position());
+                }
+                if (!buffer.hasRemaining()) {
+                    grow();
+                    continue;
+                }
+                int read = in.read(bytes, base + buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    // The last line has no line break
+                    eof = true;
+                } else {
+                    buffer.position(buffer.position() + read);
+                }
+            }
+        } catch (IOException e) {
+            releasePending();
+            throw e;
+        }
+    }
+
+    /**
+     * Cuts the line ending at end out of the pending bytes and releases the buffer when no bytes are left.
+     */
+    private String takeLine(int end) {
+        ByteBuffer buffer = pending.buffer();
+        int length = end > 0 && buffer.get(end - 1) == '\r' ? end - 1 : end;
+        String line = new String(buffer.array(), buffer.arrayOffset(), length, StandardCharsets.UTF_8);
+        int next = Math.min(end + 1, buffer.position());
+        if (next == buffer.position()) {
+            releasePending();
+        } else {
+            buffer.flip().position(next);
+            buffer.compact();
+        }
+        return line;
+    }
+
+    private void grow() throws IOException {
+        ByteBuffer buffer = pending.buffer();
+        if (buffer.capacity() >= maxLineBytes) {
+            throw new IOException("Line longer than " + maxLineBytes + " bytes");
+        }
+        PooledBuffer larger = pool.acquire(Math.min(buffer.capacity() * 2, maxLineBytes));
+        larger.buffer().put(buffer.flip());
+        pending.release();
+        pending = larger;
+    }
+
+    private void releasePending() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+    }
+
+    /**
+     * Returns the buffer, if one is borrowed, and closes the stream.
+     * @throws IOException will be thrown if the stream could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        releasePending();
+        in.close();
+    }
+}
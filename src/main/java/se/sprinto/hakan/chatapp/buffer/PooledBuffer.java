@@ -0,0 +1,71 @@
+package se.sprinto.hakan.chatapp.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A buffer lent out by a BufferPool. The ByteBuffer must not be used after release().
+ */
+public final class PooledBuffer implements AutoCloseable {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final int sizeClass;
+    private final Lease lease;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass, Lease lease) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.lease = lease;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to its pool.
+     * @throws IllegalStateException will be thrown if the buffer was released already.
+     */
+    public void release() {
+        if (!lease.released.compareAndSet(false, true)) {
+            throw new IllegalStateException("The buffer was released twice.");
+        }
+        if (lease.cleanable != null) {
+            lease.cleanable.clean();
+        }
+        pool.release(buffer, sizeClass);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * The state the leak detector keeps. It must not refer to the PooledBuffer, or the buffer would
+     * never become unreachable.
+     */
+    static final class Lease implements Runnable {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final BufferPool pool;
+        private final int capacity;
+        private final Throwable acquiredAt;
+        volatile Cleaner.Cleanable cleanable;
+
+        Lease(BufferPool pool, int capacity, Throwable acquiredAt) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.acquiredAt = acquiredAt;
+        }
+
+        @Override
+        public void run() {
+            // Runs on release through clean(), or on the cleaner thread when the buffer was dropped
+            if (!released.get()) {
+                pool.reportLeak(capacity, acquiredAt);
+            }
+        }
+    }
+}
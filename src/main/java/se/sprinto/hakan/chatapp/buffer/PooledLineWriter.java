@@ -0,0 +1,106 @@
+package se.sprinto.hakan.chatapp.buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PooledLineWriter encodes text as UTF-8 into a buffer borrowed from a heap BufferPool and writes it
+ * to the stream on flush, in place of the OutputStreamWriter and BufferedWriter that a PrintWriter
+ * over a stream keeps per connection. Wrapped in an auto-flushing PrintWriter, every println borrows
+ * a buffer, writes the line with one call and gives the buffer back.
+ */
+public class PooledLineWriter extends Writer {
+    private final OutputStream out;
+    private final BufferPool pool;
+    private final int bufferBytes;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private PooledBuffer pending;
+    // The high surrogate at the end of a write, encoded together with the next char
+    private char highSurrogate;
+
+    /**
+     * @param out The stream to write to, closed together with the writer.
+     * @param pool A pool of heap buffers.
+     * @param bufferBytes The size of buffer to borrow; longer text is written in several parts.
+     */
+    public PooledLineWriter(OutputStream out, BufferPool pool, int bufferBytes) {
+        this.out = out;
+        this.pool = pool;
+        this.bufferBytes = bufferBytes;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        synchronized (lock) {
+            CharBuffer input;
+            if (highSurrogate != 0) {
+                char[] joined = new char[length + 1];
+                joined[0] = highSurrogate;
+                System.arraycopy(chars, offset, joined, 1, length);
+                input = CharBuffer.wrap(joined);
+                highSurrogate = 0;
+            } else {
+                input = CharBuffer.wrap(chars, offset, length);
+            }
+            if (pending == null) {
+                pending = pool.acquire(bufferBytes);
+            }
+            while (true) {
+                CoderResult result = encoder.encode(input, pending.buffer(), false);
+                if (result.isOverflow()) {
+                    drain();
+                } else {
+                    break;
+                }
+            }
+            if (input.hasRemaining()) {
+                highSurrogate = input.get();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the stream, flushes it and returns the buffer to the pool.
+     * @throws IOException will be thrown if the stream failed. The buffer is returned anyway.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (pending != null) {
+                try {
+                    drain();
+                } finally {
+                    pending.release();
+                    pending = null;
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private void drain() throws IOException {
+        ByteBuffer buffer = pending.buffer();
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package se.sprinto.hakan.chatapp.capture;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The layout of a capture file. After the header there is one record per event, in the order the
+ * server saw them:
+ * <pre>
+ * header: int MAGIC, int VERSION, long epoch millis of the start
+ * open:   byte OPEN, varint connection id, varint micros since the previous record
+ * line:   byte LINE, varint connection id, varint micros since the previous record, varint length, UTF-8 bytes
+ * close:  byte CLOSE, varint connection id, varint micros since the previous record
+ * </pre>
+ * Varints are 7 bits per byte, lowest group first, so the ids and time gaps of a busy server mostly
+ * take one or two bytes each.
+ */
+final class CaptureFormat {
+    static final int MAGIC = 0x43434150; // "CCAP"
+    static final int VERSION = 1;
+    static final byte OPEN = 'O';
+    static final byte LINE = 'L';
+    static final byte CLOSE = 'C';
+
+    private CaptureFormat() {
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+}
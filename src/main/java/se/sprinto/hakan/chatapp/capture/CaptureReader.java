@@ -0,0 +1,80 @@
+package se.sprinto.hakan.chatapp.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the records of a capture file one at a time. A record cut off at the end, which is what a
+ * server that was killed while capturing leaves behind, ends the capture like a clean end does.
+ */
+public class CaptureReader {
+    private final DataInputStream in;
+    private final long startEpochMillis;
+    private long micros;
+
+    /**
+     * @param input The capture file, read from the start.
+     * @throws IOException will be thrown if the header is missing or of another version.
+     */
+    public CaptureReader(InputStream input) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        if (in.readInt() != CaptureFormat.MAGIC) {
+            throw new IOException("Not a traffic capture");
+        }
+        int version = in.readInt();
+        if (version != CaptureFormat.VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+        this.startEpochMillis = in.readLong();
+    }
+
+    /**
+     * @return when the capture was started, in epoch milliseconds.
+     */
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    /**
+     * Reads the next record.
+     * @return the record, or null at the end of the capture.
+     * @throws IOException will be thrown if the file could not be read or holds an unknown record.
+     */
+    public Frame next() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        try {
+            int connectionId = (int) CaptureFormat.readVarLong(in);
+            micros += CaptureFormat.readVarLong(in);
+            return switch ((byte) type) {
+                case CaptureFormat.OPEN -> new Frame(Frame.Type.OPEN, connectionId, micros, null);
+                case CaptureFormat.CLOSE -> new Frame(Frame.Type.CLOSE, connectionId, micros, null);
+                case CaptureFormat.LINE -> {
+                    byte[] bytes = new byte[(int) CaptureFormat.readVarLong(in)];
+                    in.readFully(bytes);
+                    yield new Frame(Frame.Type.LINE, connectionId, micros, new String(bytes, StandardCharsets.UTF_8));
+                }
+                default -> throw new IOException("Unknown capture record " + type);
+            };
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * One event of a capture.
+     * @param type What happened.
+     * @param connectionId The connection it happened on.
+     * @param offsetMicros The time since the start of the capture.
+     * @param line The line the client sent, only for LINE.
+     */
+    public record Frame(Type type, int connectionId, long offsetMicros, String line) {
+        public enum Type { OPEN, LINE, CLOSE }
+    }
+}
@@ -0,0 +1,137 @@
+package se.sprinto.hakan.chatapp.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * TrafficRecorder writes every line the clients send to a capture file, with the connection it came
+ * on and its time relative to the start, so TrafficReplayer can play the same load against another
+ * build. See CaptureFormat for the layout.
+ * <p>
+ * Records go through a buffer under one lock, which costs a handler thread a memory copy per line.
+ * The buffer is flushed by the first record after flushMillis have passed, and when the recorder is
+ * closed. If the file cannot be written the recorder turns itself off, so capturing never breaks the
+ * chat.
+ * <p>
+ * The lines are recorded as they are, including the passwords of logins, so a capture file must be
+ * handled like a credential.
+ */
+public class TrafficRecorder implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    private final DataOutputStream out;
+    private final LongSupplier nanoClock;
+    private final long startNanos;
+    private final long flushNanos;
+    private final AtomicInteger nextConnectionId = new AtomicInteger();
+    private final Counter frames;
+    private long lastMicros;
+    private long lastFlushNanos;
+    private boolean closed;
+
+    /**
+     * @param output The capture file, closed together with the recorder.
+     * @param flushMillis The time between two flushes of the buffer.
+     * @param metrics The registry of the capture.frames counter.
+     * @throws IOException will be thrown if the header could not be written.
+     */
+    public TrafficRecorder(OutputStream output, long flushMillis, MetricsRegistry metrics) throws IOException {
+        this(output, flushMillis, System::nanoTime, metrics);
+    }
+
+    /**
+     * Constructor for testing.
+     * @param output The capture file, closed together with the recorder.
+     * @param flushMillis The time between two flushes of the buffer.
+     * @param nanoClock The source of System.nanoTime() values.
+     * @param metrics The registry of the capture.frames counter.
+     * @throws IOException will be thrown if the header could not be written.
+     */
+    public TrafficRecorder(OutputStream output, long flushMillis, LongSupplier nanoClock, MetricsRegistry metrics)
+            throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        this.nanoClock = nanoClock;
+        this.startNanos = nanoClock.getAsLong();
+        this.lastFlushNanos = startNanos;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.frames = metrics.counter("capture.frames");
+        out.writeInt(CaptureFormat.MAGIC);
+        out.writeInt(CaptureFormat.VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a new connection.
+     * @return the id of the connection in the capture.
+     */
+    public int open() {
+        int connectionId = nextConnectionId.incrementAndGet();
+        write(CaptureFormat.OPEN, connectionId, null);
+        return connectionId;
+    }
+
+    /**
+     * Records a line a client sent.
+     * @param connectionId The id from open().
+     * @param line The line without its line break.
+     */
+    public void line(int connectionId, String line) {
+        write(CaptureFormat.LINE, connectionId, line.getBytes(StandardCharsets.UTF_8));
+        frames.increment();
+    }
+
+    /**
+     * Records the end of a connection.
+     * @param connectionId The id from open().
+     */
+    public void close(int connectionId) {
+        write(CaptureFormat.CLOSE, connectionId, null);
+    }
+
+    private synchronized void write(byte type, int connectionId, byte[] line) {
+        if (closed) {
+            return;
+        }
+        long now = nanoClock.getAsLong();
+        long micros = Math.max(lastMicros, (now - startNanos) / 1000);
+        try {
+            out.writeByte(type);
+            CaptureFormat.writeVarLong(out, connectionId);
+            CaptureFormat.writeVarLong(out, micros - lastMicros);
+            if (line != null) {
+                CaptureFormat.writeVarLong(out, line.length);
+                out.write(line);
+            }
+            lastMicros = micros;
+            if (now - lastFlushNanos >= flushNanos) {
+                out.flush();
+                lastFlushNanos = now;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write the traffic capture, capturing is off", e);
+            closed = true;
+        }
+    }
+
+    /**
+     * Flushes and closes the capture file. Later records are dropped.
+     * @throws IOException will be thrown if the file could not be flushed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        out.close();
+    }
+}
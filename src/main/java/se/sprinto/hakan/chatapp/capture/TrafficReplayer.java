@@ -0,0 +1,193 @@
+package se.sprinto.hakan.chatapp.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TrafficReplayer plays a capture against a running server. Every captured connection gets its own
+ * socket, and every line is sent at its captured time divided by the speed, so 1 replays the load as
+ * it was, 10 ten times faster and 0 as fast as the server accepts it.
+ * <p>
+ * Records are sent in capture order from one thread, so the lines of a connection and the order
+ * between connections are the same on every run. What the server answers is read and counted on a
+ * virtual thread per connection, so a full socket never stalls the replay. When the server falls
+ * behind, sends block and the lag, how late a line was sent compared to its schedule, grows.
+ */
+public class TrafficReplayer {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficReplayer.class);
+    private static final long DRAIN_TIMEOUT_MILLIS = 5_000;
+
+    private final InetSocketAddress server;
+    private final double speed;
+
+    /**
+     * @param server The address of the server to replay against.
+     * @param speed How many times faster than captured to replay, 0 or less for as fast as possible.
+     */
+    public TrafficReplayer(InetSocketAddress server, double speed) {
+        this.server = server;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays a capture and waits until the server has answered every connection or closed it.
+     * @param input The capture file.
+     * @return what was sent and received, and how long it took.
+     * @throws IOException will be thrown if the capture could not be read or a connection failed.
+     */
+    public ReplayResult replay(InputStream input) throws IOException {
+        CaptureReader reader = new CaptureReader(input);
+        Map<Integer, Connection> open = new HashMap<>();
+        List<Connection> all = new ArrayList<>();
+        AtomicLong linesReceived = new AtomicLong();
+        long linesSent = 0;
+        long maxLagNanos = 0;
+        long startNanos = System.nanoTime();
+        try {
+            CaptureReader.Frame frame;
+            while ((frame = reader.next()) != null) {
+                maxLagNanos = Math.max(maxLagNanos, waitFor(frame.offsetMicros(), startNanos));
+                switch (frame.type()) {
+                    case OPEN -> {
+                        Connection connection = new Connection(new Socket(server.getAddress(), server.getPort()));
+                        connection.drainTo(linesReceived);
+                        open.put(frame.connectionId(), connection);
+                        all.add(connection);
+                    }
+                    case LINE -> {
+                        Connection connection = open.get(frame.connectionId());
+                        if (connection != null) {
+                            connection.send(frame.line());
+                            linesSent++;
+                        }
+                    }
+                    case CLOSE -> {
+                        Connection connection = open.remove(frame.connectionId());
+                        if (connection != null) {
+                            connection.finish();
+                        }
+                    }
+                }
+            }
+            // A capture cut off by a killed server has connections without a close record
+            for (Connection connection : open.values()) {
+                connection.finish();
+            }
+            for (Connection connection : all) {
+                connection.awaitDrained();
+            }
+        } finally {
+            for (Connection connection : all) {
+                connection.close();
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        ReplayResult result = new ReplayResult(all.size(), linesSent, linesReceived.get(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+        logger.info("Replayed {} connections and {} lines in {} ms, {} lines/s, max lag {} ms", result.connections(),
+                result.linesSent(), result.elapsedMillis(), result.linesPerSecond(), result.maxLagMillis());
+        return result;
+    }
+
+    /**
+     * Sleeps until a record is due.
+     * @return how late the record is, 0 if it was on time.
+     */
+    private long waitFor(long offsetMicros, long startNanos) {
+        if (speed <= 0) {
+            return 0;
+        }
+        long due = startNanos + (long) (TimeUnit.MICROSECONDS.toNanos(offsetMicros) / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return -wait;
+    }
+
+    /**
+     * One replayed client connection.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private Thread drainer;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        void drainTo(AtomicLong linesReceived) {
+            drainer = Thread.ofVirtual().start(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8))) {
+                    while (in.readLine() != null) {
+                        linesReceived.incrementAndGet();
+                    }
+                } catch (IOException ignored) {
+                    // The socket was closed after the drain timeout
+                }
+            });
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Ends the sending side like a client that hung up. The server's answers are still read.
+         */
+        void finish() throws IOException {
+            if (!socket.isOutputShutdown()) {
+                socket.shutdownOutput();
+            }
+        }
+
+        void awaitDrained() {
+            try {
+                drainer.join(DRAIN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The outcome of a replay.
+     * @param connections The number of connections opened.
+     * @param linesSent The number of lines sent to the server.
+     * @param linesReceived The number of lines the server answered with.
+     * @param elapsedMillis The time from the first record until every connection was done.
+     * @param maxLagMillis How late the latest line was sent, always 0 at full speed.
+     */
+    public record ReplayResult(int connections, long linesSent, long linesReceived, long elapsedMillis,
+                               long maxLagMillis) {
+        public long linesPerSecond() {
+            return elapsedMillis == 0 ? linesSent : linesSent * 1000 / elapsedMillis;
+        }
+    }
+}
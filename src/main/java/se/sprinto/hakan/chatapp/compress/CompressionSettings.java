@@ -0,0 +1,32 @@
+package se.sprinto.hakan.chatapp.compress;
+
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.util.zip.Deflater;
+
+/**
+ * Whether clients may turn on compression of what the server sends them, and how it compresses.
+ * @param enabled True if the server accepts "/compress deflate".
+ * @param level The deflate level, 1 for the fastest to 9 for the smallest.
+ * @param minBytes Writes shorter than this are sent raw.
+ */
+public record CompressionSettings(boolean enabled, int level, int minBytes) {
+
+    public CompressionSettings {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be 1 to 9: " + level);
+        }
+    }
+
+    /**
+     * Reads the settings from the compress.* settings.
+     * @param config The settings to read.
+     * @return the settings.
+     */
+    public static CompressionSettings fromConfig(ServerConfig config) {
+        return new CompressionSettings(
+                config.getBoolean("compress.enabled", true),
+                config.getInt("compress.level", 6),
+                config.getInt("compress.min-bytes", 64));
+    }
+}
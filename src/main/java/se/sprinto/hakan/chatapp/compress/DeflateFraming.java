@@ -0,0 +1,49 @@
+package se.sprinto.hakan.chatapp.compress;
+
+/**
+ * The layout of a compressed connection, from the server to the client. Once compression is on,
+ * every write of the server is one frame:
+ * <pre>
+ * frame: byte RAW or DEFLATE, varint length, payload
+ * </pre>
+ * A RAW payload is the bytes as written. A DEFLATE payload is the next part of one raw deflate
+ * stream that lasts as long as the connection, ended with a sync flush and without the flush's
+ * 00 00 FF FF trailer, as in the permessage-deflate extension of WebSocket. Since the stream is
+ * never reset, each frame can refer back to the text of the frames before it, which is what makes
+ * short chat lines compress. RAW frames are not part of the stream.
+ */
+final class DeflateFraming {
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    static final byte[] SYNC_TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    // A type byte and a varint of up to five bytes
+    static final int MAX_HEADER = 6;
+
+    private DeflateFraming() {
+    }
+
+    /**
+     * Writes the header of a frame right in front of its payload.
+     * @param frame The buffer with the payload at payloadStart.
+     * @param payloadStart Where the payload starts, at least MAX_HEADER.
+     * @param type RAW or DEFLATE.
+     * @param length The length of the payload.
+     * @return where the frame starts.
+     */
+    static int putHeader(byte[] frame, int payloadStart, byte type, int length) {
+        int size = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            size++;
+        }
+        int start = payloadStart - 1 - size;
+        frame[start] = type;
+        int index = start + 1;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            frame[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[index] = (byte) value;
+        return start;
+    }
+}
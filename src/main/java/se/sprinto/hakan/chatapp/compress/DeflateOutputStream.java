@@ -0,0 +1,183 @@
+package se.sprinto.hakan.chatapp.compress;
+
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static se.sprinto.hakan.chatapp.compress.DeflateFraming.*;
+
+/**
+ * DeflateOutputStream is the server end of a compressed connection, see DeflateFraming. It passes
+ * bytes through unchanged until start() is called, so the negotiation itself is plain text, and
+ * from then on sends every write as one frame.
+ * <p>
+ * The Deflater and the frame buffer are created once per connection and reused for every frame.
+ * The time spent in deflate is kept per connection and in the compress.* metrics, next to the bytes
+ * before and after, so the CPU a connection costs can be weighed against the bytes it saves.
+ */
+public class DeflateOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Counter rawCounter;
+    private final Counter wireCounter;
+    private final Counter deflateNanosCounter;
+    private final Counter connections;
+    private Deflater deflater;
+    private int minBytes;
+    private byte[] frame = new byte[1024];
+    private long rawBytes;
+    private long wireBytes;
+    private long deflateNanos;
+    private boolean closed;
+
+    /**
+     * @param out The stream of the connection, closed together with this one.
+     * @param metrics The registry of the compress.* metrics.
+     */
+    public DeflateOutputStream(OutputStream out, MetricsRegistry metrics) {
+        this.out = out;
+        this.rawCounter = metrics.counter("compress.raw-bytes");
+        this.wireCounter = metrics.counter("compress.wire-bytes");
+        this.deflateNanosCounter = metrics.counter("compress.deflate-nanos");
+        this.connections = metrics.counter("compress.connections");
+    }
+
+    /**
+     * Turns compression on for everything written after this call.
+     * @param level The deflate level.
+     * @param minBytes Writes shorter than this are sent as RAW frames.
+     */
+    public synchronized void start(int level, int minBytes) {
+        if (deflater != null) {
+            return;
+        }
+        this.deflater = new Deflater(level, true);
+        this.minBytes = minBytes;
+        connections.increment();
+    }
+
+    /**
+     * @return true once start() has been called.
+     */
+    public synchronized boolean isCompressing() {
+        return deflater != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            // Broadcasts from other threads may still arrive after the connection closed
+            throw new IOException("Stream closed");
+        }
+        if (deflater == null) {
+            out.write(bytes, offset, length);
+            return;
+        }
+        if (length == 0) {
+            return;
+        }
+        int size;
+        byte type;
+        if (length < minBytes) {
+            ensureCapacity(MAX_HEADER + length);
+            System.arraycopy(bytes, offset, frame, MAX_HEADER, length);
+            size = length;
+            type = RAW;
+        } else {
+            size = deflate(bytes, offset, length);
+            type = DEFLATE;
+        }
+        int start = putHeader(frame, MAX_HEADER, type, size);
+        int frameLength = MAX_HEADER + size - start;
+        out.write(frame, start, frameLength);
+        rawBytes += length;
+        wireBytes += frameLength;
+        rawCounter.add(length);
+        wireCounter.add(frameLength);
+    }
+
+    /**
+     * Deflates the bytes into the frame buffer after the room for the header, growing it as needed.
+     * A frame that came out larger than its input is still sent deflated, since it is part of the stream.
+     * @return the length of the payload, without the sync flush trailer.
+     */
+    private int deflate(byte[] bytes, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        deflater.setInput(bytes, offset, length);
+        int end = MAX_HEADER;
+        while (true) {
+            int space = frame.length - end;
+            int written = deflater.deflate(frame, end, space, Deflater.SYNC_FLUSH);
+            end += written;
+            if (written < space) {
+                break;
+            }
+            frame = Arrays.copyOf(frame, frame.length * 2);
+        }
+        long elapsed = System.nanoTime() - start;
+        deflateNanos += elapsed;
+        deflateNanosCounter.add(elapsed);
+        int size = end - MAX_HEADER - SYNC_TRAILER.length;
+        if (size < 0 || !Arrays.equals(frame, end - SYNC_TRAILER.length, end, SYNC_TRAILER, 0, SYNC_TRAILER.length)) {
+            throw new IOException("Deflate output did not end with a sync flush");
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (frame.length < capacity) {
+            frame = Arrays.copyOf(frame, Math.max(capacity, frame.length * 2));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * @return what compression has done on this connection so far.
+     */
+    public synchronized Report report() {
+        return new Report(rawBytes, wireBytes, deflateNanos);
+    }
+
+    /**
+     * Frees the Deflater and closes the connection's stream.
+     * @throws IOException will be thrown if the stream could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        out.close();
+    }
+
+    /**
+     * The figures of one compressed connection.
+     * @param rawBytes The bytes written since compression started.
+     * @param wireBytes The bytes sent for them, frame headers included.
+     * @param deflateNanos The time spent in deflate.
+     */
+    public record Report(long rawBytes, long wireBytes, long deflateNanos) {
+        /**
+         * @return the bytes sent as a percentage of the bytes written, 100 before anything is written.
+         */
+        public long ratioPercent() {
+            return rawBytes == 0 ? 100 : wireBytes * 100 / rawBytes;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package se.sprinto.hakan.chatapp.compress;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static se.sprinto.hakan.chatapp.compress.DeflateFraming.*;
+
+/**
+ * InflatingLineReader is the client end of a compressed connection, see DeflateFraming. It reads
+ * plain UTF-8 lines until startInflating() is called and frames after that.
+ * <p>
+ * In plain mode it never reads past the end of a line, unlike a BufferedReader, so the first frame
+ * after the server's "/compress ok" is still in the stream when the mode changes. The Inflater and
+ * the buffers live as long as the connection.
+ */
+public class InflatingLineReader implements Closeable {
+    private final InputStream in;
+    private Inflater inflater;
+    private byte[] frame = new byte[1024];
+    // The bytes read but not yet returned, from start to end
+    private byte[] pending = new byte[4096];
+    private int start;
+    private int end;
+    private boolean closed;
+
+    /**
+     * @param in The stream of the connection, closed together with the reader.
+     */
+    public InflatingLineReader(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    /**
+     * Reads frames instead of plain lines from now on.
+     */
+    public synchronized void startInflating() {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+    }
+
+    /**
+     * Reads a line, without its "\n" or "\r\n".
+     * @return the line, or null at the end of the stream.
+     * @throws IOException will be thrown if the read failed or a frame could not be inflated.
+     */
+    public String readLine() throws IOException {
+        // Relative to start, since making room may move the pending bytes
+        int scanned = 0;
+        while (true) {
+            for (int i = start + scanned; i < end; i++) {
+                if (pending[i] == '\n') {
+                    return takeLine(i, i + 1);
+                }
+            }
+            scanned = end - start;
+            boolean more = inflater == null ? readPlainByte() : readFrame();
+            if (!more) {
+                return start == end ? null : takeLine(end, end);
+            }
+        }
+    }
+
+    private String takeLine(int lineEnd, int next) {
+        int length = lineEnd > start && pending[lineEnd - 1] == '\r' ? lineEnd - 1 - start : lineEnd - start;
+        String line = new String(pending, start, length, StandardCharsets.UTF_8);
+        start = next;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return line;
+    }
+
+    private boolean readPlainByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return false;
+        }
+        ensureSpace(1);
+        pending[end++] = (byte) b;
+        return true;
+    }
+
+    private boolean readFrame() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        int length = readVarInt();
+        if (frame.length < length + SYNC_TRAILER.length) {
+            frame = new byte[Math.max(length + SYNC_TRAILER.length, frame.length * 2)];
+        }
+        if (in.readNBytes(frame, 0, length) < length) {
+            throw new EOFException("The connection ended inside a frame");
+        }
+        if (type == RAW) {
+            ensureSpace(length);
+            System.arraycopy(frame, 0, pending, end, length);
+            end += length;
+        } else if (type == DEFLATE) {
+            System.arraycopy(SYNC_TRAILER, 0, frame, length, SYNC_TRAILER.length);
+            inflate(length + SYNC_TRAILER.length);
+        } else {
+            throw new IOException("Unknown frame type " + type);
+        }
+        return true;
+    }
+
+    private synchronized void inflate(int length) throws IOException {
+        if (closed) {
+            throw new IOException("Reader closed");
+        }
+        inflater.setInput(frame, 0, length);
+        try {
+            while (true) {
+                ensureSpace(length * 2);
+                int space = pending.length - end;
+                int inflated = inflater.inflate(pending, end, space);
+                end += inflated;
+                if (inflater.needsInput() && inflated < space) {
+                    return;
+                }
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new IOException("The deflate stream ended early");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("A frame could not be inflated", e);
+        }
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("The connection ended inside a frame header");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Frame length is too long");
+    }
+
+    /**
+     * Makes room for more bytes after end, moving the pending bytes to the front or growing the buffer.
+     */
+    private void ensureSpace(int bytes) {
+        if (pending.length - end >= bytes) {
+            return;
+        }
+        int length = end - start;
+        if (start > 0 && pending.length - length >= bytes) {
+            System.arraycopy(pending, start, pending, 0, length);
+        } else {
+            pending = Arrays.copyOfRange(pending, start, start + Math.max(pending.length * 2, length + bytes));
+        }
+        start = 0;
+        end = length;
+    }
+
+    /**
+     * Frees the Inflater and closes the stream. The reading thread may still be blocked in readLine,
+     * so the Inflater is only freed while no frame is being inflated.
+     * @throws IOException will be thrown if the stream could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        in.close();
+    }
+}
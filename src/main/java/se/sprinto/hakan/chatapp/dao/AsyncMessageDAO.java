@@ -0,0 +1,42 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The MessageDAO calls as futures, so a caller can go on while the database works. A failure,
+ * such as DatabaseUnavailableException, completes the future exceptionally instead of being thrown.
+ * ExecutorMessageDAO runs a MessageDAO on the JDBC executor, and BlockingMessageDAO turns this back
+ * into a MessageDAO.
+ */
+public interface AsyncMessageDAO {
+    CompletableFuture<Void> saveMessage(Message message);
+
+    CompletableFuture<Void> saveMessages(List<Message> messages);
+
+    CompletableFuture<List<Message>> getMessagesByUserId(int userId);
+
+    /**
+     * Passes the messages of a user to an action, oldest first. The action runs on the thread that
+     * reads the messages.
+     * @param userId The owner of the messages.
+     * @param action Called for every message.
+     * @return a future that completes after the last message.
+     */
+    CompletableFuture<Void> forEachMessageByUserId(int userId, Consumer<Message> action);
+
+    /**
+     * Finds one page of a user's history, see MessageDAO.getMessagesByUserIdAfter.
+     * @param userId The owner of the messages.
+     * @param after The last message of the previous page, or null for the first page.
+     * @param limit The maximum number of messages to return.
+     * @return a future of the page.
+     */
+    CompletableFuture<List<Message>> getMessagesByUserIdAfter(int userId, Message after, int limit);
+
+    CompletableFuture<List<Message>> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit);
+}
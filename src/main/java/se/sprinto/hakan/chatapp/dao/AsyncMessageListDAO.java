@@ -0,0 +1,78 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The in-memory AsyncMessageDAO. A list needs no I/O, so every call runs on the calling thread
+ * and returns a future that is already complete.
+ */
+public class AsyncMessageListDAO implements AsyncMessageDAO {
+    private final MessageListDAO messages;
+
+    public AsyncMessageListDAO() {
+        this(new MessageListDAO());
+    }
+
+    /**
+     * @param messages The list to keep the messages in.
+     */
+    public AsyncMessageListDAO(MessageListDAO messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveMessage(Message message) {
+        return now(() -> {
+            messages.saveMessage(message);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveMessages(List<Message> toSave) {
+        return now(() -> {
+            messages.saveMessages(toSave);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesByUserId(int userId) {
+        return now(() -> messages.getMessagesByUserId(userId));
+    }
+
+    @Override
+    public CompletableFuture<Void> forEachMessageByUserId(int userId, Consumer<Message> action) {
+        return now(() -> {
+            messages.forEachMessageByUserId(userId, action);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return now(() -> messages.getMessagesByUserIdAfter(userId, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        return now(() -> messages.getMessagesBetween(from, until, limit));
+    }
+
+    /**
+     * Runs a call and returns its result, or its exception, as a completed future.
+     */
+    static <T> CompletableFuture<T> now(Supplier<T> call) {
+        try {
+            return CompletableFuture.completedFuture(call.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
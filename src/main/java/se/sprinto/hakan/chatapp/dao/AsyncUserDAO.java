@@ -0,0 +1,17 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The UserDAO calls as futures. A failure completes the future exceptionally instead of being thrown.
+ * ExecutorUserDAO runs a UserDAO on the JDBC executor, and BlockingUserDAO turns this back into a UserDAO.
+ */
+public interface AsyncUserDAO {
+    CompletableFuture<User> login(String username, String password);
+
+    CompletableFuture<User> register(User user);
+
+    CompletableFuture<String> findUsername(int userId);
+}
@@ -0,0 +1,41 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.util.concurrent.CompletableFuture;
+
+import static se.sprinto.hakan.chatapp.dao.AsyncMessageListDAO.now;
+
+/**
+ * The in-memory AsyncUserDAO. Every call runs on the calling thread and returns a future that is
+ * already complete.
+ */
+public class AsyncUserListDAO implements AsyncUserDAO {
+    private final UserListDAO users;
+
+    public AsyncUserListDAO() {
+        this(new UserListDAO());
+    }
+
+    /**
+     * @param users The list to keep the users in.
+     */
+    public AsyncUserListDAO(UserListDAO users) {
+        this.users = users;
+    }
+
+    @Override
+    public CompletableFuture<User> login(String username, String password) {
+        return now(() -> users.login(username, password));
+    }
+
+    @Override
+    public CompletableFuture<User> register(User user) {
+        return now(() -> users.register(user));
+    }
+
+    @Override
+    public CompletableFuture<String> findUsername(int userId) {
+        return now(() -> users.findUsername(userId));
+    }
+}
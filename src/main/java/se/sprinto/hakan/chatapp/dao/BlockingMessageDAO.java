@@ -0,0 +1,70 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * BlockingMessageDAO waits for an AsyncMessageDAO, for code that needs a MessageDAO. A failed call
+ * throws the exception the future failed with, so callers can still catch DatabaseUnavailableException.
+ */
+public class BlockingMessageDAO implements MessageDAO {
+    private final AsyncMessageDAO delegate;
+
+    /**
+     * @param delegate The async DAO to wait for.
+     */
+    public BlockingMessageDAO(AsyncMessageDAO delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        join(delegate.saveMessage(message));
+    }
+
+    @Override
+    public void saveMessages(List<Message> messages) {
+        join(delegate.saveMessages(messages));
+    }
+
+    @Override
+    public List<Message> getMessagesByUserId(int userId) {
+        return join(delegate.getMessagesByUserId(userId));
+    }
+
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        join(delegate.forEachMessageByUserId(userId, action));
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return join(delegate.getMessagesByUserIdAfter(userId, after, limit));
+    }
+
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        return join(delegate.getMessagesBetween(from, until, limit));
+    }
+
+    /**
+     * Waits for a future and throws the RuntimeException it failed with, without the CompletionException around it.
+     * @param future The future to wait for.
+     * @return the result of the future.
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
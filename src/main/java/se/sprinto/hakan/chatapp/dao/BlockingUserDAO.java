@@ -0,0 +1,35 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.User;
+
+import static se.sprinto.hakan.chatapp.dao.BlockingMessageDAO.join;
+
+/**
+ * BlockingUserDAO waits for an AsyncUserDAO, for code that needs a UserDAO. A failed call throws
+ * the exception the future failed with.
+ */
+public class BlockingUserDAO implements UserDAO {
+    private final AsyncUserDAO delegate;
+
+    /**
+     * @param delegate The async DAO to wait for.
+     */
+    public BlockingUserDAO(AsyncUserDAO delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public User login(String username, String password) {
+        return join(delegate.login(username, password));
+    }
+
+    @Override
+    public User register(User user) {
+        return join(delegate.register(user));
+    }
+
+    @Override
+    public String findUsername(int userId) {
+        return join(delegate.findUsername(userId));
+    }
+}
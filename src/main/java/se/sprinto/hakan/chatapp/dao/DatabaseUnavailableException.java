@@ -0,0 +1,18 @@
+package se.sprinto.hakan.chatapp.dao;
+
+/**
+ * Thrown by the DAOs when the database could not be reached or did not answer in time, as opposed to
+ * a query that failed on its data. Callers can answer with "try again later" instead of an error, and
+ * the circuit breaker counts it as a failed call.
+ */
+public class DatabaseUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseUnavailableException(String message) {
+        super(message);
+    }
+
+    public DatabaseUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
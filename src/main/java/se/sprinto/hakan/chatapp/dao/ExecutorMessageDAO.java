@@ -0,0 +1,57 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * ExecutorMessageDAO runs the calls of a blocking MessageDAO on an executor, usually the one from
+ * JdbcExecutor.
+ */
+public class ExecutorMessageDAO implements AsyncMessageDAO {
+    private final MessageDAO delegate;
+    private final Executor executor;
+
+    /**
+     * @param delegate The blocking DAO.
+     * @param executor Runs the calls.
+     */
+    public ExecutorMessageDAO(MessageDAO delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveMessage(Message message) {
+        return CompletableFuture.runAsync(() -> delegate.saveMessage(message), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveMessages(List<Message> messages) {
+        return CompletableFuture.runAsync(() -> delegate.saveMessages(messages), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesByUserId(int userId) {
+        return CompletableFuture.supplyAsync(() -> delegate.getMessagesByUserId(userId), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> forEachMessageByUserId(int userId, Consumer<Message> action) {
+        return CompletableFuture.runAsync(() -> delegate.forEachMessageByUserId(userId, action), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return CompletableFuture.supplyAsync(() -> delegate.getMessagesByUserIdAfter(userId, after, limit), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        return CompletableFuture.supplyAsync(() -> delegate.getMessagesBetween(from, until, limit), executor);
+    }
+}
@@ -0,0 +1,39 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * ExecutorUserDAO runs the calls of a blocking UserDAO on an executor, usually the one from
+ * JdbcExecutor.
+ */
+public class ExecutorUserDAO implements AsyncUserDAO {
+    private final UserDAO delegate;
+    private final Executor executor;
+
+    /**
+     * @param delegate The blocking DAO.
+     * @param executor Runs the calls.
+     */
+    public ExecutorUserDAO(UserDAO delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<User> login(String username, String password) {
+        return CompletableFuture.supplyAsync(() -> delegate.login(username, password), executor);
+    }
+
+    @Override
+    public CompletableFuture<User> register(User user) {
+        return CompletableFuture.supplyAsync(() -> delegate.register(user), executor);
+    }
+
+    @Override
+    public CompletableFuture<String> findUsername(int userId) {
+        return CompletableFuture.supplyAsync(() -> delegate.findUsername(userId), executor);
+    }
+}
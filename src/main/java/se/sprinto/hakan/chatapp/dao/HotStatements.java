@@ -0,0 +1,45 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The statements of the login and chat paths. Preparing them on every pooled connection before the
+ * server listens fills the driver's per-connection statement cache, so the first clients after a
+ * deploy do not pay for parsing them.
+ */
+public final class HotStatements {
+    static final List<String> SQL = List.of(
+            UserDatabaseDAO.LOGIN_SQL,
+            UserDatabaseDAO.FIND_USERNAME_SQL,
+            MessageDatabaseDAO.INSERT_WITH_ID_SQL,
+            MessageDatabaseDAO.FIND_BY_USER_SQL);
+
+    private HotStatements() {
+    }
+
+    /**
+     * Prepares the hot statements on a connection and runs the login query once for an empty
+     * username, which also loads the driver's query and result set code.
+     * @param con A pooled connection.
+     * @return the number of statements prepared.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    public static int prepare(Connection con) throws SQLException {
+        for (String sql : SQL) {
+            con.prepareStatement(sql).close();
+        }
+        try (PreparedStatement ps = con.prepareStatement(UserDatabaseDAO.LOGIN_SQL)) {
+            ps.setString(1, "");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    // Only the round-trip matters
+                }
+            }
+        }
+        return SQL.size();
+    }
+}
@@ -0,0 +1,54 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor the async DAOs run their JDBC calls on. It has as many threads as the
+ * connection pool has connections, since more threads would only wait for a connection, and a
+ * bounded queue. When the queue is full the submitting thread runs the call itself, so a backlog
+ * cannot grow without bound or lose messages. That is not always the connection that caused the
+ * backlog: a call chained after another one is submitted by the thread that finished the first,
+ * often a JDBC thread. After shutdown every call is rejected with a RejectedExecutionException.
+ */
+public final class JdbcExecutor {
+
+    private JdbcExecutor() {
+    }
+
+    /**
+     * @param threads The number of threads, the size of the connection pool.
+     * @param queueCapacity The number of calls that may wait for a thread.
+     * @param metrics The registry of the jdbc.executor.* metrics.
+     * @return the executor, with daemon threads.
+     */
+    public static ExecutorService create(int threads, int queueCapacity, MetricsRegistry metrics) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        Counter callerRuns = metrics.counter("jdbc.executor.caller-runs");
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "jdbc-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, pool) -> {
+                    // Throwing fails the future of an async DAO call, a dropped task would leave it waiting forever
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("The JDBC executor is shut down");
+                    }
+                    callerRuns.increment();
+                    task.run();
+                });
+        // Idle threads end, so a server that never uses the executor holds no threads
+        executor.allowCoreThreadTimeOut(true);
+        metrics.gauge("jdbc.executor.active", executor::getActiveCount);
+        metrics.gauge("jdbc.executor.queued", () -> executor.getQueue().size());
+        return executor;
+    }
+}
@@ -2,10 +2,84 @@ package se.sprinto.hakan.chatapp.dao;
 
 import se.sprinto.hakan.chatapp.model.Message;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface MessageDAO {
+    /** The order of a user's history, oldest first. */
+    Comparator<Message> HISTORY_ORDER = Comparator.comparing(Message::getTimestamp).thenComparingLong(Message::getId);
+
     void saveMessage(Message message);
 
+    /**
+     * Saves several messages. Implementations that can write them in one round-trip override this.
+     * @param messages The messages to save, in order.
+     */
+    default void saveMessages(List<Message> messages) {
+        messages.forEach(this::saveMessage);
+    }
+
+    /**
+     * Saves a message and tells whether it was stored now. DAOs that can skip a message, such as a
+     * duplicate, override this; the default saves and reports true.
+     * @param message The message to save.
+     * @return true if the message was stored by this call.
+     */
+    default boolean insertMessage(Message message) {
+        saveMessage(message);
+        return true;
+    }
+
+    /**
+     * Saves several messages and tells which were stored now, see insertMessage.
+     * @param messages The messages to save, in order.
+     * @return the messages stored by this call.
+     */
+    default List<Message> insertMessages(List<Message> messages) {
+        saveMessages(messages);
+        return messages;
+    }
+
     List<Message> getMessagesByUserId(int userId);
+
+    /**
+     * Passes the messages of a user to an action, oldest first. Implementations that can stream
+     * override this, so a long history does not have to fit in one list.
+     * @param userId The owner of the messages.
+     * @param action Called for every message.
+     */
+    default void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        getMessagesByUserId(userId).forEach(action);
+    }
+
+    /**
+     * Finds one page of a user's history, oldest first, so a long history can be sent a page at a
+     * time. Implementations that can seek to the page override this; the default reads the history
+     * up to the page.
+     * @param userId The owner of the messages.
+     * @param after The last message of the previous page, or null for the first page.
+     * @param limit The maximum number of messages to return.
+     * @return the messages after the given one in HISTORY_ORDER.
+     */
+    default List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        List<Message> page = new ArrayList<>();
+        forEachMessageByUserId(userId, message -> {
+            if (page.size() < limit && (after == null || HISTORY_ORDER.compare(message, after) > 0)) {
+                page.add(message);
+            }
+        });
+        return page;
+    }
+
+    /**
+     * Finds the newest messages of all users in a time range, oldest first.
+     * @param from The start of the range, inclusive.
+     * @param until The end of the range, exclusive.
+     * @param limit The maximum number of messages to return, counted back from until.
+     * @return the last limit messages in the range.
+     */
+    List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit);
 }
@@ -2,14 +2,21 @@ package se.sprinto.hakan.chatapp.dao;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
 import se.sprinto.hakan.chatapp.model.Message;
 import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+import se.sprinto.hakan.chatapp.util.LogSampler;
 
 import javax.sql.DataSource;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
 
 /**
  * The MessageDatabaseDAO class is an implementation of the MessageDAO interface. It interacts with
@@ -17,8 +24,82 @@ import java.util.List;
  * finding messages by user id. It has a Data source to access the database. It has two constructors
  * for the product and testing version.
  */
-public class MessageDatabaseDAO implements MessageDAO {
+public class MessageDatabaseDAO implements MessageDAO, MessageMaintenanceDAO {
     private static final Logger logger = LoggerFactory.getLogger(MessageDatabaseDAO.class);
+    private static final LatencyHistogram SAVE_LATENCY = MetricsRegistry.getInstance().histogram("dao.message.save");
+    private static final LogSampler SAVE_LOG = new LogSampler(10, 1000);
+    private static final LogSampler ERROR_LOG = new LogSampler(5, 0);
+    private static final LatencyHistogram FIND_LATENCY = MetricsRegistry.getInstance().histogram("dao.message.find-by-user");
+    private static final Counter DUPLICATES = MetricsRegistry.getInstance().counter("dao.message.duplicates");
+    private static final Counter ID_COLLISIONS = MetricsRegistry.getInstance().counter("dao.message.id-collisions");
+    // The name of the UNIQUE (user_id, client_msg_id) constraint, which H2 and MySQL both put in the message
+    private static final String CLIENT_MSG_ID_CONSTRAINT = "uq_messages_client_msg_id";
+    private static final LatencyHistogram BETWEEN_LATENCY = MetricsRegistry.getInstance().histogram("dao.message.find-between");
+    static final String INSERT_SQL = """
+            INSERT INTO messages (text, user_id, timestamp, client_msg_id) VALUES (?, ?, ?, ?)
+            """;
+    static final String INSERT_WITH_ID_SQL = """
+            INSERT INTO messages (message_id, text, user_id, timestamp, client_msg_id) VALUES (?, ?, ?, ?, ?)
+            """;
+    static final String FIND_BY_USER_SQL = """
+            SELECT m.message_id, m.text, m.timestamp, m.user_id
+            FROM messages m JOIN users u ON m.user_id = u.user_id
+            WHERE m.user_id = ?
+            ORDER BY m.timestamp, m.message_id
+            """;
+    static final String FIND_BY_USER_AFTER_SQL = """
+            SELECT m.message_id, m.text, m.timestamp, m.user_id
+            FROM messages m
+            WHERE m.user_id = ? AND (m.timestamp > ? OR (m.timestamp = ? AND m.message_id > ?))
+            ORDER BY m.timestamp, m.message_id
+            LIMIT ?
+            """;
+    // Before every message, the keyset of a first page
+    private static final Message BEFORE_FIRST = new Message(Long.MIN_VALUE, 0, "", LocalDateTime.of(1970, 1, 1, 0, 0));
+    static final String FIND_BETWEEN_SQL = """
+            SELECT m.message_id, m.text, m.timestamp, m.user_id
+            FROM messages m
+            WHERE m.timestamp >= ? AND m.timestamp < ?
+            ORDER BY m.timestamp DESC, m.message_id DESC
+            LIMIT ?
+            """;
+    static final String FIND_EXPIRED_IDS_SQL = """
+            SELECT m.message_id
+            FROM messages m
+            WHERE m.timestamp < ?
+            ORDER BY m.timestamp, m.message_id
+            LIMIT ?
+            """;
+    static final String FIND_OLDER_SQL = """
+            SELECT m.message_id, m.text, m.timestamp, m.user_id
+            FROM messages m
+            WHERE m.timestamp < ?
+            ORDER BY m.timestamp, m.message_id
+            LIMIT ?
+            """;
+    static final String FIND_USERS_SINCE_SQL = """
+            SELECT DISTINCT m.user_id
+            FROM messages m
+            WHERE m.timestamp >= ?
+            """;
+    static final String FIND_OLDEST_KEPT_SQL = """
+            SELECT m.message_id, m.text, m.timestamp, m.user_id
+            FROM messages m
+            WHERE m.user_id = ?
+            ORDER BY m.timestamp DESC, m.message_id DESC
+            LIMIT 2 OFFSET ?
+            """;
+    static final String FIND_IDS_OF_USER_BEFORE_SQL = """
+            SELECT m.message_id
+            FROM messages m
+            WHERE m.user_id = ? AND (m.timestamp < ? OR (m.timestamp = ? AND m.message_id < ?))
+            ORDER BY m.timestamp, m.message_id
+            LIMIT ?
+            """;
+    // Rows fetched per round-trip when a user's history is streamed
+    static final int STREAM_FETCH_SIZE = 500;
+    static final String DELETE_BY_ID_SQL = "DELETE FROM messages WHERE message_id = ?";
+    static final String FIND_BY_ID_SQL = "SELECT m.user_id, m.text FROM messages m WHERE m.message_id = ?";
     private final DataSource dataSource;
 
 
@@ -35,50 +116,236 @@ public class MessageDatabaseDAO implements MessageDAO {
     }
 
     /**
-     * Inserts a message to the database.
+     * Inserts a message to the database. A message that already has an id, usually one from
+     * SnowflakeIdGenerator, is stored under that id; otherwise the database generates one.
      * @param message The message to insert to the database.
      * @throws IllegalArgumentException will be thrown if Message is null.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
      */
     @Override
     public void saveMessage(Message message) {
+        insertMessage(message);
+    }
+
+    /**
+     * Inserts a message as saveMessage does.
+     * @param message The message to insert to the database.
+     * @return true if a row was inserted, false if the message was a duplicate or the insert failed.
+     * @throws IllegalArgumentException will be thrown if Message is null.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public boolean insertMessage(Message message) {
         if (message == null || message.getText() == null || message.getTimestamp() == null) {
             throw new IllegalArgumentException("Message cannot be null.");
         }
-        String sql = """
-                INSERT INTO messages (text, user_id, timestamp) VALUES (?, ?, ?)
-                """;
-        try (Connection con = dataSource.getConnection();
+        String sql = message.getId() != 0 ? INSERT_WITH_ID_SQL : INSERT_SQL;
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
         PreparedStatement ps = con.prepareStatement(sql)) {
-            ps.setString(1, message.getText());
-            ps.setInt(2, message.getUserId());
-            ps.setTimestamp(3, Timestamp.valueOf(message.getTimestamp()));
-            logger.info("Saving message with text= {}, user_id= {}, timestamp= {}", message.getText(), message.getUserId(), message.getTimestamp());
-            int insertedRows = ps.executeUpdate();
-            if (insertedRows == 0) {
-                logger.warn("No messages inserted.");
-            } else {
-                logger.info("Successfully inserted message");
+            bindMessage(ps, message);
+            try {
+                int insertedRows = ps.executeUpdate();
+                if (insertedRows == 0) {
+                    logger.warn("No messages inserted.");
+                } else if (logger.isDebugEnabled() && SAVE_LOG.shouldLog()) {
+                    logger.debug("Inserted message id= {}, user_id= {}, timestamp= {}, text= {}",
+                            message.getId(), message.getUserId(), message.getTimestamp(), message.getText());
+                }
+                return insertedRows > 0;
+            } catch (SQLException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                skipDuplicate(con, message, e);
+                return false;
             }
         } catch (SQLException e) {
-            logger.error("Failed to insert new message. message text= {}", message.getText());
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to insert a message", e);
+            } else if (ERROR_LOG.shouldLog()) {
+                logger.error("Failed to insert new message. user_id= {}, suppressed errors= {}",
+                        message.getUserId(), ERROR_LOG.drainSuppressed(), e);
+            }
+            return false;
+        } finally {
+            SAVE_LATENCY.recordSince(start);
         }
     }
 
+    /**
+     * Inserts messages that already have ids as one JDBC batch on one connection. Messages
+     * without an id are inserted one by one with saveMessage.
+     * @param messages The messages to insert to the database.
+     * @throws IllegalArgumentException will be thrown if a Message is null.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public void saveMessages(List<Message> messages) {
+        insertMessages(messages);
+    }
+
+    /**
+     * Inserts messages as saveMessages does.
+     * @param messages The messages to insert to the database.
+     * @return the messages a row was inserted for, in order.
+     * @throws IllegalArgumentException will be thrown if a Message is null.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        List<Message> withId = new ArrayList<>(messages.size());
+        List<Message> inserted = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (message == null || message.getText() == null || message.getTimestamp() == null) {
+                throw new IllegalArgumentException("Message cannot be null.");
+            }
+            if (message.getId() != 0) {
+                withId.add(message);
+            } else if (insertMessage(message)) {
+                inserted.add(message);
+            }
+        }
+        if (withId.isEmpty()) {
+            return inserted;
+        }
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(INSERT_WITH_ID_SQL)) {
+            for (Message message : withId) {
+                bindMessage(ps, message);
+                ps.addBatch();
+            }
+            addInserted(withId, ps.executeBatch(), inserted);
+        } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to insert a batch of messages", e);
+            } else if (isDuplicateKey(e)) {
+                // Drivers may stop at the duplicate, so the rows not reported as inserted are saved
+                // again one by one, where duplicates are skipped
+                int[] counts = e instanceof BatchUpdateException batch ? batch.getUpdateCounts() : new int[0];
+                for (int i = 0; i < withId.size(); i++) {
+                    Message message = withId.get(i);
+                    if ((i < counts.length && isInserted(counts[i])) || insertMessage(message)) {
+                        inserted.add(message);
+                    }
+                }
+            } else if (ERROR_LOG.shouldLog()) {
+                logger.error("Failed to insert a batch of {} messages. suppressed errors= {}",
+                        withId.size(), ERROR_LOG.drainSuppressed(), e);
+            }
+        } finally {
+            SAVE_LATENCY.recordSince(start);
+        }
+        return inserted;
+    }
+
+    private static void addInserted(List<Message> batch, int[] counts, List<Message> inserted) {
+        for (int i = 0; i < batch.size() && i < counts.length; i++) {
+            if (isInserted(counts[i])) {
+                inserted.add(batch.get(i));
+            }
+        }
+    }
+
+    /**
+     * @param count One entry of executeBatch's update counts.
+     * @return true if the statement inserted its row, SUCCESS_NO_INFO counts as inserted.
+     */
+    private static boolean isInserted(int count) {
+        return count > 0 || count == Statement.SUCCESS_NO_INFO;
+    }
+
+    /**
+     * Binds a message to one of the insert statements.
+     * @param ps A statement prepared from INSERT_SQL or INSERT_WITH_ID_SQL.
+     * @param message The message to bind.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    private void bindMessage(PreparedStatement ps, Message message) throws SQLException {
+        int index = 1;
+        if (message.getId() != 0) {
+            ps.setLong(index++, message.getId());
+        }
+        ps.setString(index++, message.getText());
+        ps.setInt(index++, message.getUserId());
+        ps.setTimestamp(index++, Timestamp.valueOf(message.getTimestamp()));
+        if (message.getClientMsgId() != 0) {
+            ps.setLong(index, message.getClientMsgId());
+        } else {
+            ps.setNull(index, Types.BIGINT);
+        }
+    }
+
+    /**
+     * Handles an insert that failed on a unique key. A message whose client_msg_id the user already
+     * used, or whose message_id is already stored for the same user and text, was saved before and is
+     * skipped. Any other message_id that is taken is a different message under a reused id, for
+     * example after the clock went back across a restart, and is logged as an error.
+     * @param con The connection the insert ran on.
+     * @param message The message that was not inserted.
+     * @param e The exception from the insert.
+     * @throws SQLException will be thrown if the stored message could not be read.
+     */
+    private static void skipDuplicate(Connection con, Message message, SQLException e) throws SQLException {
+        if (isDuplicateClientMsgId(e)) {
+            DUPLICATES.increment();
+            logger.debug("Ignored duplicate client_msg_id= {} from user_id= {}", message.getClientMsgId(), message.getUserId());
+        } else if (message.getId() != 0 && isSaved(con, message)) {
+            DUPLICATES.increment();
+            logger.debug("Ignored message id= {} from user_id= {}, it was saved before", message.getId(), message.getUserId());
+        } else {
+            ID_COLLISIONS.increment();
+            logger.error("Message id= {} from user_id= {} was not saved, the id belongs to another message",
+                    message.getId(), message.getUserId(), e);
+        }
+    }
+
+    /**
+     * @return true if the message's id is stored with the same user and text.
+     */
+    private static boolean isSaved(Connection con, Message message) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(FIND_BY_ID_SQL)) {
+            ps.setLong(1, message.getId());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getInt("user_id") == message.getUserId()
+                        && message.getText().equals(rs.getString("text"));
+            }
+        }
+    }
+
+    /**
+     * @param e The exception from an insert.
+     * @return true for a duplicate key on H2 (SQLState 23505) or MySQL (error 1062).
+     */
+    private static boolean isDuplicateKey(SQLException e) {
+        return "23505".equals(e.getSQLState()) || e.getErrorCode() == 1062;
+    }
+
+    /**
+     * Checks if an insert failed on UNIQUE (user_id, client_msg_id), which means a retried message
+     * was already saved.
+     * @param e The exception from the insert.
+     * @return true if the duplicate key is the client_msg_id constraint.
+     */
+    private static boolean isDuplicateClientMsgId(SQLException e) {
+        String message = e.getMessage();
+        return isDuplicateKey(e) && message != null
+                && message.toLowerCase(Locale.ROOT).contains(CLIENT_MSG_ID_CONSTRAINT);
+    }
+
     /**
      * Finds messages from the database by user id.
      * @param userId The user id that messages have.
      * @return a list of messages that matched with the ID.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
      */
     @Override
     public List<Message> getMessagesByUserId(int userId) {
         List<Message> messages = new ArrayList<>();
-        String sql = """
-                SELECT m.message_id, m.text, m.timestamp, m.user_id
-                FROM messages m JOIN users u ON m.user_id = u.user_id
-                WHERE m.user_id = ?
-                """;
-        try (Connection con = dataSource.getConnection();
-        PreparedStatement ps = con.prepareStatement(sql)) {
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(FIND_BY_USER_SQL)) {
             ps.setInt(1, userId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -87,11 +354,308 @@ public class MessageDatabaseDAO implements MessageDAO {
             }
 
         } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to find messages by user_id= " + userId, e);
+            }
             logger.error("Failed to find messages by user_id= {}", userId);
+        } finally {
+            FIND_LATENCY.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Streams the messages of a user from the database, oldest first, through a forward-only
+     * ResultSet with a bounded fetch size, so a long history never has to fit in one list.
+     * The connection is held until the last message has been passed to the action.
+     * @param userId The user id that messages have.
+     * @param action Called for every message.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(FIND_BY_USER_SQL, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            // MySQL Connector/J only streams with a fetch size of Integer.MIN_VALUE
+            boolean mysql = con.getMetaData().getDatabaseProductName().equalsIgnoreCase("MySQL");
+            ps.setFetchSize(mysql ? Integer.MIN_VALUE : STREAM_FETCH_SIZE);
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    action.accept(mapMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to stream messages by user_id= " + userId, e);
+            }
+            logger.error("Failed to stream messages by user_id= {}", userId, e);
+        } finally {
+            FIND_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Finds one page of a user's history with a keyset read of the user's index, so every page reads
+     * only its own rows.
+     * @param userId The user id that messages have.
+     * @param after The last message of the previous page, or null for the first page.
+     * @param limit The maximum number of messages to return.
+     * @return the page, oldest first.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        List<Message> messages = new ArrayList<>();
+        Message from = after == null ? BEFORE_FIRST : after;
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(FIND_BY_USER_AFTER_SQL)) {
+            Timestamp timestamp = Timestamp.valueOf(from.getTimestamp());
+            ps.setInt(1, userId);
+            ps.setTimestamp(2, timestamp);
+            ps.setTimestamp(3, timestamp);
+            ps.setLong(4, from.getId());
+            ps.setInt(5, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to find a page of messages by user_id= " + userId, e);
+            }
+            logger.error("Failed to find a page of messages by user_id= {}", userId, e);
+        } finally {
+            FIND_LATENCY.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Finds the messages of all users in a time range from the database, oldest first.
+     * @param from The start of the range, inclusive.
+     * @param until The end of the range, exclusive.
+     * @param limit The maximum number of messages to return.
+     * @return a list of messages in the range.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        List<Message> messages = new ArrayList<>();
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(FIND_BETWEEN_SQL)) {
+            ps.setTimestamp(1, Timestamp.valueOf(from));
+            ps.setTimestamp(2, Timestamp.valueOf(until));
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapMessage(rs));
+                }
+            }
+            // Read newest first so the limit keeps the latest ones, then put them back in order
+            Collections.reverse(messages);
+        } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to find messages between " + from + " and " + until, e);
+            }
+            logger.error("Failed to find messages between {} and {}", from, until);
+        } finally {
+            BETWEEN_LATENCY.recordSince(start);
         }
         return messages;
     }
 
+    /**
+     * Deletes a chunk of the oldest messages before a cutoff. The ids are read in index order first
+     * and deleted by primary key in one short transaction.
+     * @param cutoff Messages with a timestamp before this are deleted.
+     * @param limit The maximum number of messages to delete.
+     * @return the number of messages deleted, 0 if the query failed.
+     */
+    @Override
+    public int deleteOlderThan(LocalDateTime cutoff, int limit) {
+        try (Connection con = PooledConnections.acquire(dataSource)) {
+            List<Long> ids;
+            try (PreparedStatement ps = con.prepareStatement(FIND_EXPIRED_IDS_SQL)) {
+                ps.setTimestamp(1, Timestamp.valueOf(cutoff));
+                ps.setInt(2, limit);
+                ids = readIds(ps);
+            }
+            return deleteIds(con, ids);
+        } catch (SQLException e) {
+            logger.error("Failed to delete messages older than {}", cutoff, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Finds the users that saved a message at or after a time, with a range read of the timestamp index.
+     * @param since The earliest timestamp to look at.
+     * @return the ids of the users, empty if the query failed.
+     */
+    @Override
+    public List<Integer> findUsersWithMessagesSince(LocalDateTime since) {
+        List<Integer> userIds = new ArrayList<>();
+        try (Connection con = PooledConnections.acquire(dataSource);
+             PreparedStatement ps = con.prepareStatement(FIND_USERS_SINCE_SQL)) {
+            ps.setTimestamp(1, Timestamp.valueOf(since));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    userIds.add(rs.getInt("user_id"));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to find users with messages since {}", since, e);
+        }
+        return userIds;
+    }
+
+    /**
+     * Finds the oldest of a user's newest messages that are kept. This reads keep entries of the
+     * user's index once per run; the chunks that follow start from the message it returns.
+     * @param userId The owner of the messages.
+     * @param keep The number of newest messages to keep, at least 1.
+     * @return the oldest message kept, null if the user has no more than keep messages or the query failed.
+     */
+    @Override
+    public Message findOldestKept(int userId, int keep) {
+        try (Connection con = PooledConnections.acquire(dataSource);
+             PreparedStatement ps = con.prepareStatement(FIND_OLDEST_KEPT_SQL)) {
+            ps.setInt(1, userId);
+            ps.setInt(2, keep - 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Message oldestKept = mapMessage(rs);
+                // Only a second row means there is something older to delete
+                return rs.next() ? oldestKept : null;
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to find the oldest kept message of user_id= {}", userId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes a chunk of a user's oldest messages before a kept message, found by a keyset read of
+     * the user's index so each chunk reads only the rows it deletes.
+     * @param userId The owner of the messages.
+     * @param oldestKept The message from findOldestKept.
+     * @param limit The maximum number of messages to delete.
+     * @return the number of messages deleted, 0 if the query failed.
+     */
+    @Override
+    public int deleteOfUserBefore(int userId, Message oldestKept, int limit) {
+        try (Connection con = PooledConnections.acquire(dataSource)) {
+            List<Long> ids;
+            try (PreparedStatement ps = con.prepareStatement(FIND_IDS_OF_USER_BEFORE_SQL)) {
+                Timestamp kept = Timestamp.valueOf(oldestKept.getTimestamp());
+                ps.setInt(1, userId);
+                ps.setTimestamp(2, kept);
+                ps.setTimestamp(3, kept);
+                ps.setLong(4, oldestKept.getId());
+                ps.setInt(5, limit);
+                ids = readIds(ps);
+            }
+            return deleteIds(con, ids);
+        } catch (SQLException e) {
+            logger.error("Failed to delete old messages of user_id= {}", userId, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Finds the oldest messages before a cutoff, for example to archive them.
+     * @param cutoff Messages with a timestamp before this are returned.
+     * @param limit The maximum number of messages to return.
+     * @return the messages in (timestamp, message_id) order, empty if the query failed.
+     */
+    @Override
+    public List<Message> findOlderThan(LocalDateTime cutoff, int limit) {
+        List<Message> messages = new ArrayList<>();
+        try (Connection con = PooledConnections.acquire(dataSource);
+             PreparedStatement ps = con.prepareStatement(FIND_OLDER_SQL)) {
+            ps.setTimestamp(1, Timestamp.valueOf(cutoff));
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to find messages older than {}", cutoff, e);
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes messages by their ids in one transaction.
+     * @param messages The messages to delete.
+     * @return the number of messages deleted, 0 if the delete failed.
+     */
+    @Override
+    public int deleteMessages(List<Message> messages) {
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        try (Connection con = PooledConnections.acquire(dataSource)) {
+            return deleteIds(con, ids);
+        } catch (SQLException e) {
+            logger.error("Failed to delete {} messages", ids.size(), e);
+            return 0;
+        }
+    }
+
+    private static List<Long> readIds(PreparedStatement ps) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                ids.add(rs.getLong("message_id"));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes messages by primary key as one batch in one transaction.
+     * @param con The connection to use, its auto-commit mode is restored afterwards.
+     * @param ids The ids of the messages to delete.
+     * @return the number of rows the database reports as deleted.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    private static int deleteIds(Connection con, List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (PreparedStatement ps = con.prepareStatement(DELETE_BY_ID_SQL)) {
+            for (long id : ids) {
+                ps.setLong(1, id);
+                ps.addBatch();
+            }
+            int deleted = 0;
+            for (int count : ps.executeBatch()) {
+                // A driver that does not report counts only says the delete ran
+                deleted += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+            }
+            con.commit();
+            return deleted;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
     /**
      * Maps a Message object from ResultSet.
      * @param rs The ResultSet of a SQL command
@@ -99,11 +663,11 @@ public class MessageDatabaseDAO implements MessageDAO {
      * @throws SQLException will be thrown if something went wrong with JDBC functions.
      */
     private Message mapMessage(ResultSet rs) throws SQLException {
-        //int messageId = rs.getInt("message_id"); There is no interface for messageId in Message class
+        long messageId = rs.getLong("message_id");
         String text = rs.getString("text");
         LocalDateTime timestamp = rs.getTimestamp("timestamp").toLocalDateTime();
         int userId = rs.getInt("user_id");
 
-        return new Message(userId, text, timestamp);
+        return new Message(messageId, userId, text, timestamp);
     }
 }
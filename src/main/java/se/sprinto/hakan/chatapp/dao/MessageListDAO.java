@@ -5,27 +5,99 @@ import se.sprinto.hakan.chatapp.model.Message;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
-public class MessageListDAO implements MessageDAO {
+public class MessageListDAO implements MessageDAO, MessageMaintenanceDAO {
+
+    private static final Comparator<Message> NEWEST_FIRST = Comparator.comparing(Message::getTimestamp)
+            .thenComparingLong(Message::getId).reversed();
 
     private final List<Message> messages = new ArrayList<>();
 
     @Override
-    public void saveMessage(Message message) {
+    public synchronized void saveMessage(Message message) {
         messages.add(message);
     }
 
     @Override
-    public List<Message> getMessagesByUserId(int userId) {
+    public synchronized List<Message> getMessagesByUserId(int userId) {
         return messages.stream()
                 .filter(m -> m.getUserId() == userId)
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public synchronized List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        List<Message> between = messages.stream()
+                .filter(m -> !m.getTimestamp().isBefore(from) && m.getTimestamp().isBefore(until))
+                .sorted(Comparator.comparing(Message::getTimestamp))
+                .collect(Collectors.toList());
+        return new ArrayList<>(between.subList(Math.max(0, between.size() - limit), between.size()));
+    }
+
+    @Override
+    public synchronized int deleteOlderThan(LocalDateTime cutoff, int limit) {
+        List<Message> expired = messages.stream()
+                .filter(m -> m.getTimestamp().isBefore(cutoff))
+                .sorted(Comparator.comparing(Message::getTimestamp))
+                .limit(limit)
+                .collect(Collectors.toList());
+        messages.removeAll(new HashSet<>(expired));
+        return expired.size();
+    }
+
+    @Override
+    public synchronized List<Integer> findUsersWithMessagesSince(LocalDateTime since) {
+        return messages.stream()
+                .filter(m -> !m.getTimestamp().isBefore(since))
+                .map(Message::getUserId)
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized Message findOldestKept(int userId, int keep) {
+        List<Message> newest = messages.stream()
+                .filter(m -> m.getUserId() == userId)
+                .sorted(NEWEST_FIRST)
+                .skip(keep - 1)
+                .limit(2)
+                .collect(Collectors.toList());
+        return newest.size() == 2 ? newest.get(0) : null;
+    }
+
+    @Override
+    public synchronized int deleteOfUserBefore(int userId, Message oldestKept, int limit) {
+        List<Message> oldest = messages.stream()
+                .filter(m -> m.getUserId() == userId && NEWEST_FIRST.compare(m, oldestKept) > 0)
+                .sorted(NEWEST_FIRST.reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+        messages.removeAll(new HashSet<>(oldest));
+        return oldest.size();
+    }
+
+    @Override
+    public synchronized List<Message> findOlderThan(LocalDateTime cutoff, int limit) {
+        return messages.stream()
+                .filter(m -> m.getTimestamp().isBefore(cutoff))
+                .sorted(Comparator.comparing(Message::getTimestamp).thenComparingLong(Message::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized int deleteMessages(List<Message> toDelete) {
+        int before = messages.size();
+        messages.removeAll(new HashSet<>(toDelete));
+        return before - messages.size();
+    }
+
     // valfritt: för att testa lättare
-    public void seedTestData() {
+    public synchronized void seedTestData() {
         messages.add(new Message(1, "Hej!", LocalDateTime.now()));
         messages.add(new Message(2, "Hallå där!", LocalDateTime.now()));
     }
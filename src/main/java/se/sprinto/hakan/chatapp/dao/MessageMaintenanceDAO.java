@@ -0,0 +1,61 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Bulk deletes for background maintenance such as retention. Every method deletes at most a small
+ * chunk, so callers can throttle between chunks and no statement holds locks for long.
+ */
+public interface MessageMaintenanceDAO {
+
+    /**
+     * Deletes the oldest messages that are older than a cutoff.
+     * @param cutoff Messages with a timestamp before this are deleted.
+     * @param limit The maximum number of messages to delete.
+     * @return the number of messages deleted, less than limit when nothing older is left.
+     */
+    int deleteOlderThan(LocalDateTime cutoff, int limit);
+
+    /**
+     * Finds the users that saved a message at or after a time. Only they can have gone over a
+     * per-user limit since then, so the retention job does not have to count every user's messages.
+     * @param since The earliest timestamp to look at.
+     * @return the ids of the users, each once.
+     */
+    List<Integer> findUsersWithMessagesSince(LocalDateTime since);
+
+    /**
+     * Finds the oldest of a user's newest messages that are kept.
+     * @param userId The owner of the messages.
+     * @param keep The number of newest messages to keep, at least 1.
+     * @return the oldest message kept, or null if the user has no more than keep messages.
+     */
+    Message findOldestKept(int userId, int keep);
+
+    /**
+     * Deletes the oldest messages of a user that come before a message in (timestamp, message_id) order.
+     * @param userId The owner of the messages.
+     * @param oldestKept The message from findOldestKept, it and everything newer stays.
+     * @param limit The maximum number of messages to delete.
+     * @return the number of messages deleted, less than limit when nothing older is left.
+     */
+    int deleteOfUserBefore(int userId, Message oldestKept, int limit);
+
+    /**
+     * Finds the oldest messages that are older than a cutoff, without deleting them.
+     * @param cutoff Messages with a timestamp before this are returned.
+     * @param limit The maximum number of messages to return.
+     * @return the messages in (timestamp, message_id) order.
+     */
+    List<Message> findOlderThan(LocalDateTime cutoff, int limit);
+
+    /**
+     * Deletes messages that were read with findOlderThan.
+     * @param messages The messages to delete.
+     * @return the number of messages deleted.
+     */
+    int deleteMessages(List<Message> messages);
+}
@@ -0,0 +1,49 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Helper for the database DAOs that borrows a connection from the pool and records how long the
+ * borrow took, which is where a starved pool shows up first.
+ */
+public final class PooledConnections {
+    private static final LatencyHistogram ACQUIRE_LATENCY = MetricsRegistry.getInstance().histogram("db.pool.acquire");
+
+    private PooledConnections() {
+    }
+
+    /**
+     * Borrows a connection from the DataSource.
+     * @param dataSource The DataSource to borrow from.
+     * @return a live Connection.
+     * @throws SQLException will be thrown if no connection could be borrowed.
+     */
+    public static Connection acquire(DataSource dataSource) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } finally {
+            ACQUIRE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Checks whether a failure means the database is unreachable or too slow, rather than a problem
+     * with the query. Hikari reports a borrow timeout as SQLTransientConnectionException, and drivers
+     * use SQLState class 08 for broken connections.
+     * @param e The exception from a DAO call.
+     * @return true if the call should be retried later instead of reported as an error.
+     */
+    public static boolean isUnavailable(SQLException e) {
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTimeoutException || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+}
@@ -6,4 +6,11 @@ public interface UserDAO {
     User login(String username, String password);
 
     User register(User user);
+
+    /**
+     * Finds the username of a user.
+     * @param userId The id of the user.
+     * @return the username, or null if there is no such user.
+     */
+    String findUsername(int userId);
 }
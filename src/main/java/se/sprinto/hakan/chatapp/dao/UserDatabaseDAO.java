@@ -2,6 +2,8 @@ package se.sprinto.hakan.chatapp.dao;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
 import se.sprinto.hakan.chatapp.model.Message;
 import se.sprinto.hakan.chatapp.model.User;
 import se.sprinto.hakan.chatapp.util.DatabaseUtil;
@@ -23,6 +25,16 @@ import org.mindrot.jbcrypt.BCrypt;
 public class UserDatabaseDAO implements UserDAO {
     private static final Logger logger = LoggerFactory.getLogger(UserDatabaseDAO.class);
     private static final int DUPLICATE_ENTRY = 1062;
+    private static final LatencyHistogram LOGIN_LATENCY = MetricsRegistry.getInstance().histogram("dao.user.login");
+    private static final LatencyHistogram REGISTER_LATENCY = MetricsRegistry.getInstance().histogram("dao.user.register");
+    static final String LOGIN_SQL = """
+            SELECT u.user_id, u.username, u.password, m.message_id, m.text, m.timestamp
+            FROM users u
+            LEFT JOIN messages m ON u.user_id = m.user_id
+            WHERE u.username = ?
+            """;
+    static final String REGISTER_SQL = "INSERT INTO users (username, password) VALUES(?, ?)";
+    static final String FIND_USERNAME_SQL = "SELECT username FROM users WHERE user_id = ?";
     private final DataSource dataSource;
 
     public UserDatabaseDAO() {
@@ -42,18 +54,14 @@ public class UserDatabaseDAO implements UserDAO {
      * @param username The username of the user
      * @param password The password of the user
      * @return a User object if it found the user from the database, otherwise returns null.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
      */
     @Override
     public User login(String username, String password) {
         User authorizedUser = null;
-        String sql = """
-                SELECT u.user_id, u.username, u.password, m.message_id, m.text, m.timestamp
-                FROM users u
-                LEFT JOIN messages m ON u.user_id = m.user_id
-                WHERE u.username = ?
-                """;
-        try (Connection con = dataSource.getConnection();
-        PreparedStatement ps = con.prepareStatement(sql)) {
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+        PreparedStatement ps = con.prepareStatement(LOGIN_SQL)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -64,11 +72,11 @@ public class UserDatabaseDAO implements UserDAO {
                             break;
                         }
                     }
-                    int message_id = rs.getInt("message_id");
+                    long message_id = rs.getLong("message_id");
                     if (!rs.wasNull()) {
                         String text = rs.getString("text");
                         LocalDateTime timestamp = rs.getTimestamp("timestamp").toLocalDateTime();
-                        authorizedUser.addMessage(new Message(authorizedUser.getId(), text, timestamp));
+                        authorizedUser.addMessage(new Message(message_id, authorizedUser.getId(), text, timestamp));
                     }
                 }
                 if (authorizedUser == null) {
@@ -76,7 +84,12 @@ public class UserDatabaseDAO implements UserDAO {
                 }
             }
         } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to login", e);
+            }
             logger.error("Failed to login.", e);
+        } finally {
+            LOGIN_LATENCY.recordSince(start);
         }
         return authorizedUser;
     }
@@ -87,15 +100,16 @@ public class UserDatabaseDAO implements UserDAO {
      * @return User object with a generated ID if it's successfully inserted, otherwise it
      * returns null.
      * @throws IllegalArgumentException will be thrown if The user object is invalid
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
      */
     @Override
     public User register(User user) {
         if (user == null || user.getUsername() == null || user.getPassword() == null) {
             throw new IllegalArgumentException("Username and password must exist");
         }
-        String insertSql = "INSERT INTO users (username, password) VALUES(?, ?)";
-        try (Connection con = dataSource.getConnection();
-             PreparedStatement preparedStmtForInsert = con.prepareStatement(insertSql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+        long start = System.nanoTime();
+        try (Connection con = PooledConnections.acquire(dataSource);
+             PreparedStatement preparedStmtForInsert = con.prepareStatement(REGISTER_SQL, PreparedStatement.RETURN_GENERATED_KEYS)) {
             preparedStmtForInsert.setString(1, user.getUsername());
             String hashedPassword = BCrypt.hashpw(user.getPassword(), BCrypt.gensalt());
             preparedStmtForInsert.setString(2, hashedPassword);
@@ -113,14 +127,42 @@ public class UserDatabaseDAO implements UserDAO {
                 }
             }
         } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to register a user", e);
+            }
             if (e.getErrorCode() == DUPLICATE_ENTRY) {
                 logger.error("The username already exists.", e);
             }
             logger.error("Failed to insert user to database.", e);
+        } finally {
+            REGISTER_LATENCY.recordSince(start);
         }
         return user;
     }
 
+    /**
+     * Finds the username of a user by user id.
+     * @param userId The id of the user.
+     * @return the username, or null if the user does not exist or the query failed.
+     * @throws DatabaseUnavailableException will be thrown if the database could not be reached.
+     */
+    @Override
+    public String findUsername(int userId) {
+        try (Connection con = PooledConnections.acquire(dataSource);
+             PreparedStatement ps = con.prepareStatement(FIND_USERNAME_SQL)) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString("username") : null;
+            }
+        } catch (SQLException e) {
+            if (PooledConnections.isUnavailable(e)) {
+                throw new DatabaseUnavailableException("Failed to find username by user_id= " + userId, e);
+            }
+            logger.error("Failed to find username by user_id= {}", userId, e);
+        }
+        return null;
+    }
+
     /**
      * Validates password and Maps the ResultSet object to a User object.
      * @param rs ResultSet of SQL command.
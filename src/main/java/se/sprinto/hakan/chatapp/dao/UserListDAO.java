@@ -27,6 +27,15 @@ public class UserListDAO implements UserDAO {
         return found.orElse(null);
     }
 
+    @Override
+    public String findUsername(int userId) {
+        return users.stream()
+                .filter(u -> u.getId() == userId)
+                .map(User::getUsername)
+                .findFirst()
+                .orElse(null);
+    }
+
     // valfritt: för testsyfte
     public void seedUsers() {
         register(new User("test", "123"));
@@ -0,0 +1,398 @@
+package se.sprinto.hakan.chatapp.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.buffer.BufferPool;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * DownloadServer moves large payloads on a separate data port, so a transfer never holds up the chat
+ * connection it was asked for on. Every data connection starts with a one-time token and a newline,
+ * and the token decides what happens next.
+ * <p>
+ * A prepared file is rendered to a temporary file on a worker thread and sent with
+ * FileChannel.transferTo, which the JDK maps to sendfile on Linux, so the bytes never pass through
+ * the heap. Files are rendered on their own threads, so clients that fetch slowly never hold up the
+ * rendering of the next file. A fetch that makes no progress for the idle timeout is closed, so a
+ * client that stops reading cannot hold a worker. A relay connects an upload from one client to a
+ * download by another, see RelayTransfer. Tokens that are not used within the token lifetime expire
+ * and their files are deleted.
+ */
+public class DownloadServer {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadServer.class);
+    private static final int TOKEN_BYTES = 16;
+    private static final int MAX_REQUEST_BYTES = TOKEN_BYTES * 2 + 2;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    // Bytes per transferTo call, so the idle check sees progress while a large file is sent
+    private static final long TRANSFER_CHUNK_BYTES = 1024 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int port;
+    private final long tokenTtlSeconds;
+    private final HashedWheelTimer timer;
+    private final ExecutorService workers;
+    private final ExecutorService renderers;
+    private final long idleTimeoutNanos;
+    private final Map<String, Endpoint> pending = new ConcurrentHashMap<>();
+    private final Semaphore relayBudget;
+    private final long relayBytesPerSecond;
+    private final int relayChunkBytes;
+    private final BufferPool relayBuffers;
+    private final long relayIdleTimeoutNanos;
+    private volatile ServerSocketChannel serverChannel;
+
+    private final MetricsRegistry metrics;
+    private final Counter prepared;
+    private final Counter completed;
+    private final Counter expired;
+    private final Counter bytesSent;
+    private final Counter stalled;
+    private final Counter relaysRejected;
+
+    /**
+     * @param config The settings under download.* and relay.*.
+     * @param timer The timer that expires unused tokens and stalled relays.
+     * @param metrics The registry for the download and relay metrics.
+     */
+    public DownloadServer(ServerConfig config, HashedWheelTimer timer, MetricsRegistry metrics) {
+        int maxTransfers = config.getInt("relay.max-transfers", 4);
+        this.port = config.getInt("download.port", 5556);
+        this.tokenTtlSeconds = config.getLong("download.token-ttl-seconds", 300);
+        this.timer = timer;
+        this.relayBudget = new Semaphore(maxTransfers);
+        this.relayBytesPerSecond = config.getLong("relay.bytes-per-second", 0);
+        this.relayChunkBytes = config.getInt("relay.chunk-bytes", 64 * 1024);
+        // One chunk buffer per running relay, kept between relays instead of allocated for each
+        this.relayBuffers = new BufferPool("relay", new int[]{relayChunkBytes}, maxTransfers, true,
+                config.getBoolean("buffers.leak-detection", false), metrics);
+        this.relayIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getLong("relay.idle-timeout-seconds", 30));
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getLong("download.idle-timeout-seconds", 30));
+        int maxDownloads = config.getInt("download.max-concurrent", 4);
+        // A relay holds a worker while it copies, so downloads get their own share of the pool
+        this.workers = Executors.newFixedThreadPool(maxDownloads + maxTransfers, runnable -> {
+            Thread thread = new Thread(runnable, "download-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.renderers = Executors.newFixedThreadPool(maxDownloads, runnable -> {
+            Thread thread = new Thread(runnable, "download-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metrics = metrics;
+        this.prepared = metrics.counter("downloads.prepared");
+        this.completed = metrics.counter("downloads.completed");
+        this.expired = metrics.counter("downloads.expired");
+        this.bytesSent = metrics.counter("downloads.bytes");
+        this.stalled = metrics.counter("downloads.stalled");
+        this.relaysRejected = metrics.counter("relay.rejected");
+        metrics.gauge("downloads.pending", pending::size);
+        metrics.gauge("relay.active", () -> maxTransfers - relayBudget.availablePermits());
+    }
+
+    /**
+     * Binds the data port and accepts connections on a daemon thread.
+     * @throws IOException will be thrown if the port could not be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::acceptLoop, "download-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Nedladdningar på port {}", getPort());
+    }
+
+    /**
+     * Closes the data port, deletes the files that were never fetched and ends waiting relays.
+     */
+    public synchronized void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        workers.shutdownNow();
+        renderers.shutdownNow();
+        pending.keySet().forEach(this::expire);
+    }
+
+    /**
+     * @return true between start() and stop().
+     */
+    public boolean isRunning() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null && channel.isOpen();
+    }
+
+    /**
+     * @return the bound data port, or the configured port before start().
+     */
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel == null ? port : channel.socket().getLocalPort();
+    }
+
+    /**
+     * Renders a file on a render thread and registers it for download.
+     * @param renderer Writes the content of the file as UTF-8 text.
+     * @return the ticket to hand to the client, completed when the file is ready.
+     */
+    public CompletableFuture<Ticket> prepare(Renderer renderer) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path file = null;
+            try {
+                file = Files.createTempFile("chat-download-", ".txt");
+                try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                    renderer.render(writer);
+                }
+                String token = register(new FileEndpoint(file));
+                prepared.increment();
+                return new Ticket(token, Files.size(file));
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(file);
+                throw new CompletionException(e);
+            }
+        }, renderers);
+    }
+
+    /**
+     * Reserves a relay from one client to another within the relay.max-transfers budget.
+     * @param size The number of bytes the sender will upload.
+     * @return the relay with its two tokens, or null if the budget is used up.
+     */
+    public RelayTransfer relay(long size) {
+        if (!relayBudget.tryAcquire()) {
+            relaysRejected.increment();
+            return null;
+        }
+        RelayTransfer transfer = new RelayTransfer(size, relayBuffers, relayChunkBytes, relayBytesPerSecond,
+                relayIdleTimeoutNanos, timer, metrics, relayBudget::release);
+        transfer.setTokens(register(transfer.uploadEndpoint()), register(transfer.downloadEndpoint()));
+        return transfer;
+    }
+
+    /**
+     * Registers an endpoint under a new token that expires after download.token-ttl-seconds.
+     * @return the token.
+     */
+    private String register(Endpoint endpoint) {
+        String token = HexFormat.of().formatHex(randomBytes());
+        pending.put(token, endpoint);
+        timer.newTimeout(() -> {
+            if (expire(token)) {
+                expired.increment();
+            }
+        }, tokenTtlSeconds, TimeUnit.SECONDS);
+        return token;
+    }
+
+    private void acceptLoop() {
+        ServerSocketChannel channel = serverChannel;
+        while (channel.isOpen()) {
+            try {
+                SocketChannel client = channel.accept();
+                try {
+                    workers.execute(() -> serve(client));
+                } catch (RejectedExecutionException e) {
+                    client.close();
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    logger.warn("Failed to accept a download connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the token line and hands the connection to its endpoint, which then owns it. An unknown
+     * or used token just closes the connection.
+     * @param client The data connection.
+     */
+    private void serve(SocketChannel client) {
+        try {
+            client.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+            String token = readToken(client);
+            Endpoint endpoint = token == null ? null : pending.remove(token);
+            if (endpoint == null) {
+                client.close();
+                return;
+            }
+            endpoint.serve(client);
+        } catch (IOException e) {
+            logger.warn("Data connection failed: {}", e.getMessage());
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads the token line through the socket's stream, which honours SO_TIMEOUT unlike a blocking
+     * channel read, so a silent client cannot hold a worker. The stream reads one byte at a time, so
+     * nothing after the newline is consumed.
+     */
+    private static String readToken(SocketChannel channel) throws IOException {
+        InputStream in = channel.socket().getInputStream();
+        byte[] line = new byte[MAX_REQUEST_BYTES];
+        for (int length = 0; length < line.length; length++) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            if (b == '\n') {
+                return new String(line, 0, length, StandardCharsets.US_ASCII).strip();
+            }
+            line[length] = (byte) b;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the token was still waiting for its client.
+     */
+    private boolean expire(String token) {
+        Endpoint endpoint = pending.remove(token);
+        if (endpoint == null) {
+            return false;
+        }
+        endpoint.expire();
+        return true;
+    }
+
+    private static byte[] randomBytes() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete {}", file, e);
+        }
+    }
+
+    /**
+     * What a token leads to on the data port.
+     */
+    interface Endpoint {
+        /**
+         * Handles a data connection after its token line. The endpoint owns the channel and closes it.
+         * @param channel The data connection.
+         * @throws IOException will be thrown if the transfer failed.
+         */
+        void serve(SocketChannel channel) throws IOException;
+
+        /**
+         * Called when the token expires unused.
+         */
+        void expire();
+    }
+
+    /**
+     * A rendered file, deleted when it has been sent or its token expired.
+     */
+    private final class FileEndpoint implements Endpoint {
+        private final Path file;
+        private volatile long lastProgressNanos;
+        private volatile boolean finished;
+
+        FileEndpoint(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void serve(SocketChannel channel) throws IOException {
+            lastProgressNanos = System.nanoTime();
+            scheduleIdleCheck(channel, idleTimeoutNanos);
+            try (channel; FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, Math.min(TRANSFER_CHUNK_BYTES, size - position), channel);
+                    lastProgressNanos = System.nanoTime();
+                }
+                bytesSent.add(size);
+                completed.increment();
+            } finally {
+                finished = true;
+                deleteQuietly(file);
+            }
+        }
+
+        /**
+         * Closes the connection when the client has taken nothing for the idle timeout, which wakes the
+         * worker blocked in transferTo, the same check RelayTransfer runs.
+         */
+        private void scheduleIdleCheck(SocketChannel channel, long delayNanos) {
+            timer.newTimeout(() -> {
+                if (finished) {
+                    return;
+                }
+                long idle = System.nanoTime() - lastProgressNanos;
+                if (idle < idleTimeoutNanos) {
+                    scheduleIdleCheck(channel, idleTimeoutNanos - idle);
+                    return;
+                }
+                stalled.increment();
+                logger.info("Closing a download that made no progress for {} s", TimeUnit.NANOSECONDS.toSeconds(idle));
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void expire() {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Writes the content of a download.
+     */
+    @FunctionalInterface
+    public interface Renderer {
+        void render(Writer out) throws IOException;
+    }
+
+    /**
+     * A prepared download.
+     * @param token The one-time token the client sends on the data port.
+     * @param size The size of the file in bytes.
+     */
+    public record Ticket(String token, long size) {
+    }
+}
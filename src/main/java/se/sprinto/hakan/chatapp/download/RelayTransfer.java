@@ -0,0 +1,249 @@
+package se.sprinto.hakan.chatapp.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.buffer.BufferPool;
+import se.sprinto.hakan.chatapp.buffer.PooledBuffer;
+import se.sprinto.hakan.chatapp.limit.TokenBucket;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RelayTransfer streams one file from a sending client to a receiving client through the data port of
+ * a DownloadServer. Both clients connect with their own token, the first one waits without a thread,
+ * and the second one runs the copy.
+ * <p>
+ * The copy moves one chunk at a time through a direct buffer, so the bytes stay off the heap, and it
+ * only reads the next chunk when the receiver has taken the previous one. A slow receiver therefore
+ * slows the sender down instead of filling server memory. An optional token bucket caps the rate of
+ * each transfer, and a transfer that makes no progress for the idle timeout is closed.
+ */
+public class RelayTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(RelayTransfer.class);
+
+    private final long size;
+    private final int chunkBytes;
+    private final TokenBucket bandwidth;
+    private final long idleTimeoutNanos;
+    private final HashedWheelTimer timer;
+    private final Runnable onEnd;
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private String uploadToken;
+    private String downloadToken;
+    private SocketChannel upload;
+    private SocketChannel download;
+    private volatile long lastProgressNanos;
+
+    private final BufferPool buffers;
+    private final Counter started;
+    private final Counter completed;
+    private final Counter failed;
+    private final Counter bytesRelayed;
+
+    /**
+     * @param size The number of bytes the sender uploads.
+     * @param buffers The pool of direct buffers the copy borrows its chunk buffer from.
+     * @param chunkBytes The size of the direct buffer, the most that is in flight at a time.
+     * @param bytesPerSecond The rate cap of the transfer, 0 for none.
+     * @param idleTimeoutNanos How long the copy may wait for either client.
+     * @param timer The timer of the idle check.
+     * @param metrics The registry for the relay metrics.
+     * @param onEnd Called once when the transfer ends, before done() completes.
+     */
+    RelayTransfer(long size, BufferPool buffers, int chunkBytes, long bytesPerSecond, long idleTimeoutNanos,
+                  HashedWheelTimer timer, MetricsRegistry metrics, Runnable onEnd) {
+        this.size = size;
+        this.buffers = buffers;
+        this.chunkBytes = chunkBytes;
+        this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, chunkBytes)) : null;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.timer = timer;
+        this.onEnd = onEnd;
+        this.started = metrics.counter("relay.started");
+        this.completed = metrics.counter("relay.completed");
+        this.failed = metrics.counter("relay.failed");
+        this.bytesRelayed = metrics.counter("relay.bytes");
+    }
+
+    void setTokens(String uploadToken, String downloadToken) {
+        this.uploadToken = uploadToken;
+        this.downloadToken = downloadToken;
+    }
+
+    /**
+     * @return the token the sender uses on the data port.
+     */
+    public String getUploadToken() {
+        return uploadToken;
+    }
+
+    /**
+     * @return the token the receiver uses on the data port.
+     */
+    public String getDownloadToken() {
+        return downloadToken;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return completed with the number of bytes relayed, or exceptionally if the transfer failed.
+     */
+    public CompletableFuture<Long> done() {
+        return done;
+    }
+
+    DownloadServer.Endpoint uploadEndpoint() {
+        return new Side(true);
+    }
+
+    DownloadServer.Endpoint downloadEndpoint() {
+        return new Side(false);
+    }
+
+    /**
+     * Records a connected side. Returns true when both sides are connected and the caller should copy.
+     */
+    private synchronized boolean connect(SocketChannel channel, boolean isUpload) throws IOException {
+        if (ended.get()) {
+            channel.close();
+            return false;
+        }
+        if (isUpload) {
+            upload = channel;
+        } else {
+            download = channel;
+        }
+        return upload != null && download != null;
+    }
+
+    private void copy() {
+        started.increment();
+        lastProgressNanos = System.nanoTime();
+        scheduleIdleCheck(idleTimeoutNanos);
+        PooledBuffer chunk = buffers.acquire(chunkBytes);
+        ByteBuffer buffer = chunk.buffer();
+        long moved = 0;
+        try {
+            while (moved < size) {
+                buffer.clear().limit((int) Math.min(chunkBytes, size - moved));
+                int read = upload.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("The sender closed after " + moved + " of " + size + " bytes");
+                }
+                throttle(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    download.write(buffer);
+                }
+                moved += read;
+                lastProgressNanos = System.nanoTime();
+            }
+            if (end()) {
+                bytesRelayed.add(moved);
+                completed.increment();
+                done.complete(moved);
+            }
+        } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            fail(e);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        if (bandwidth == null) {
+            return;
+        }
+        long wait;
+        while ((wait = bandwidth.tryAcquire(bytes)) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private void scheduleIdleCheck(long delayNanos) {
+        timer.newTimeout(() -> {
+            if (ended.get()) {
+                return;
+            }
+            long idle = System.nanoTime() - lastProgressNanos;
+            if (idle >= idleTimeoutNanos) {
+                fail(new IOException("The relay made no progress for " + TimeUnit.NANOSECONDS.toSeconds(idle) + " s"));
+            } else {
+                scheduleIdleCheck(idleTimeoutNanos - idle);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Ends the transfer. Closing the channels also wakes a copy blocked in read or write.
+     */
+    private void fail(Exception cause) {
+        if (end()) {
+            failed.increment();
+            logger.info("File relay of {} bytes failed: {}", size, cause.getMessage());
+            done.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return true for the first caller, which then completes done().
+     */
+    private boolean end() {
+        if (!ended.compareAndSet(false, true)) {
+            return false;
+        }
+        close();
+        onEnd.run();
+        return true;
+    }
+
+    private synchronized void close() {
+        for (SocketChannel channel : new SocketChannel[]{upload, download}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * One of the two tokens of the transfer.
+     */
+    private final class Side implements DownloadServer.Endpoint {
+        private final boolean isUpload;
+
+        Side(boolean isUpload) {
+            this.isUpload = isUpload;
+        }
+
+        @Override
+        public void serve(SocketChannel channel) throws IOException {
+            if (connect(channel, isUpload)) {
+                copy();
+            }
+        }
+
+        @Override
+        public void expire() {
+            fail(new IOException("The " + (isUpload ? "sender" : "receiver") + " never connected"));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package se.sprinto.hakan.chatapp.limit;
+
+/**
+ * What the server does with a message that is over a rate limit.
+ */
+public enum OverLimitAction {
+    /** Drop the message and tell the sender. */
+    REJECT,
+    /** Hold the sender's connection until the tokens are available, up to a maximum delay. */
+    DELAY,
+    /** Drop the message and close the sender's connection. */
+    DISCONNECT
+}
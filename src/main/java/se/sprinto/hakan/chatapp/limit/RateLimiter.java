@@ -0,0 +1,214 @@
+package se.sprinto.hakan.chatapp.limit;
+
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * RateLimiter enforces message and byte limits on incoming chat messages at three levels: per
+ * connection, per user (shared by all of a user's connections) and globally as a safety valve.
+ * A message must fit in all three; tokens taken from an earlier level are given back when a
+ * later level rejects it. Every level is configured in application.properties under
+ * {@code ratelimit.<level>.*}, and a rate of 0 turns that limit off.
+ * <p>
+ * A user's limit is created on the first message and dropped by {@link #sweep()} once both of its
+ * buckets are full again, because a full bucket is the same as a new one.
+ */
+public class RateLimiter {
+    private final ServerConfig config;
+    private final boolean enabled;
+    private final OverLimitAction action;
+    private final long maxDelayMillis;
+    private final LongSupplier clock;
+    private final Limit global;
+    private final Map<Integer, Limit> users = new ConcurrentHashMap<>();
+
+    private final Counter rejectedByConnection;
+    private final Counter rejectedByUser;
+    private final Counter rejectedByGlobal;
+
+    public RateLimiter(ServerConfig config) {
+        this(config, MetricsRegistry.getInstance());
+    }
+
+    /**
+     * Constructor for testing.
+     * @param config The settings to read the limits from.
+     * @param metrics The registry for the rejection counters.
+     */
+    public RateLimiter(ServerConfig config, MetricsRegistry metrics) {
+        this(config, metrics, System::nanoTime);
+    }
+
+    /**
+     * Constructor for testing.
+     * @param config The settings to read the limits from.
+     * @param metrics The registry for the rejection counters.
+     * @param clock The source of time in nanoseconds for the token buckets.
+     */
+    public RateLimiter(ServerConfig config, MetricsRegistry metrics, LongSupplier clock) {
+        this.config = config;
+        this.clock = clock;
+        this.enabled = config.getBoolean("ratelimit.enabled", true);
+        this.action = OverLimitAction.valueOf(config.getString("ratelimit.action", "REJECT").toUpperCase());
+        this.maxDelayMillis = config.getLong("ratelimit.max-delay-ms", 2000);
+        this.global = createLimit("global");
+        this.rejectedByConnection = metrics.counter("ratelimit.rejected.connection");
+        this.rejectedByUser = metrics.counter("ratelimit.rejected.user");
+        this.rejectedByGlobal = metrics.counter("ratelimit.rejected.global");
+        metrics.gauge("ratelimit.users", users::size);
+    }
+
+    /**
+     * Creates the limit for a new connection.
+     * @return a limit that only the connection's own thread uses.
+     */
+    public Limit newConnectionLimit() {
+        return createLimit("connection");
+    }
+
+    /**
+     * Tries to take tokens for one message from the connection, the user and the global limit.
+     * @param connection The limit of the sending connection.
+     * @param userId The id of the sending user.
+     * @param bytes The size of the message in bytes.
+     * @return 0 if the message may be sent, otherwise the number of nanoseconds until it could be.
+     */
+    public long tryAcquire(Limit connection, int userId, int bytes) {
+        if (!enabled) {
+            return 0;
+        }
+        long wait = connection.tryAcquire(bytes);
+        if (wait > 0) {
+            rejectedByConnection.increment();
+            return wait;
+        }
+        // Taking the tokens inside compute keeps sweep from dropping the limit in between
+        long[] userWait = new long[1];
+        Limit user = users.compute(userId, (id, limit) -> {
+            Limit taken = limit != null ? limit : createLimit("user");
+            userWait[0] = taken.tryAcquire(bytes);
+            return taken;
+        });
+        wait = userWait[0];
+        if (wait > 0) {
+            connection.refund(bytes);
+            rejectedByUser.increment();
+            return wait;
+        }
+        wait = global.tryAcquire(bytes);
+        if (wait > 0) {
+            user.refund(bytes);
+            connection.refund(bytes);
+            rejectedByGlobal.increment();
+            return wait;
+        }
+        return 0;
+    }
+
+    /**
+     * Drops the limits of users whose buckets have refilled. computeIfPresent makes the check and the
+     * removal one step against {@link #tryAcquire}, so no tokens are taken from a dropped limit.
+     * @return the number of limits dropped.
+     */
+    public int sweep() {
+        int dropped = 0;
+        for (Integer userId : users.keySet()) {
+            if (users.computeIfPresent(userId, (id, limit) -> limit.isFull() ? null : limit) == null) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of users that currently have a limit.
+     */
+    public int userCount() {
+        return users.size();
+    }
+
+    public OverLimitAction getAction() {
+        return action;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Counts the UTF-8 encoded size of a string without encoding it.
+     * @param text The text to measure.
+     * @return the size in bytes.
+     */
+    public static int utf8Length(String text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private Limit createLimit(String level) {
+        String prefix = "ratelimit." + level + ".";
+        long messagesPerSecond = config.getLong(prefix + "messages-per-second", 0);
+        long bytesPerSecond = config.getLong(prefix + "bytes-per-second", 0);
+        TokenBucket messages = messagesPerSecond <= 0 ? null
+                : new TokenBucket(messagesPerSecond, config.getLong(prefix + "messages-burst", messagesPerSecond), clock);
+        TokenBucket bytes = bytesPerSecond <= 0 ? null
+                : new TokenBucket(bytesPerSecond, config.getLong(prefix + "bytes-burst", bytesPerSecond), clock);
+        return new Limit(messages, bytes);
+    }
+
+    /**
+     * A pair of token buckets, one counting messages and one counting bytes. A missing bucket means no limit.
+     */
+    public static final class Limit {
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+
+        Limit(TokenBucket messages, TokenBucket bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        long tryAcquire(int size) {
+            long wait = messages == null ? 0 : messages.tryAcquire(1);
+            if (wait > 0) {
+                return wait;
+            }
+            wait = bytes == null ? 0 : bytes.tryAcquire(size);
+            if (wait > 0 && messages != null) {
+                messages.refund(1);
+            }
+            return wait;
+        }
+
+        boolean isFull() {
+            return (messages == null || messages.isFull()) && (bytes == null || bytes.isFull());
+        }
+
+        void refund(int size) {
+            if (messages != null) {
+                messages.refund(1);
+            }
+            if (bytes != null) {
+                bytes.refund(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package se.sprinto.hakan.chatapp.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket that holds at most {@code capacity} tokens and refills at a fixed rate per second.
+ * The capacity is the burst allowance. Tokens are tracked in nano-tokens, so slow rates refill
+ * smoothly instead of in whole steps.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long capacity;
+    private final long ratePerSecond;
+    private final LongSupplier clock;
+    private long nanoTokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond The number of tokens added per second.
+     * @param capacity The maximum number of tokens, which is the allowed burst.
+     */
+    public TokenBucket(long ratePerSecond, long capacity) {
+        this(ratePerSecond, capacity, System::nanoTime);
+    }
+
+    /**
+     * Constructor for testing.
+     * @param ratePerSecond The number of tokens added per second.
+     * @param capacity The maximum number of tokens, which is the allowed burst.
+     * @param clock The source of time in nanoseconds.
+     */
+    public TokenBucket(long ratePerSecond, long capacity, LongSupplier clock) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive.");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.clock = clock;
+        this.nanoTokens = capacity * NANOS_PER_SECOND;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Takes tokens from the bucket if there are enough of them.
+     * @param permits The number of tokens to take. A request larger than the capacity is capped to the capacity.
+     * @return 0 if the tokens were taken, otherwise the number of nanoseconds until they would be available.
+     */
+    public synchronized long tryAcquire(long permits) {
+        refill();
+        long needed = Math.min(permits, capacity) * NANOS_PER_SECOND;
+        if (nanoTokens >= needed) {
+            nanoTokens -= needed;
+            return 0;
+        }
+        return Math.max(1, (needed - nanoTokens) / ratePerSecond);
+    }
+
+    /**
+     * Gives back tokens that were taken but not used.
+     * @param permits The number of tokens to give back.
+     */
+    public synchronized void refund(long permits) {
+        nanoTokens = Math.min(capacity * NANOS_PER_SECOND, nanoTokens + Math.min(permits, capacity) * NANOS_PER_SECOND);
+    }
+
+    /**
+     * @return true if the bucket has refilled to its capacity, so dropping it loses nothing.
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return nanoTokens == capacity * NANOS_PER_SECOND;
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            lastRefill = now;
+            long maxTokens = capacity * NANOS_PER_SECOND;
+            // elapsed * rate can overflow after a long idle period, and the bucket is full by then anyway
+            nanoTokens = elapsed >= maxTokens / ratePerSecond ? maxTokens : Math.min(maxTokens, nanoTokens + elapsed * ratePerSecond);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package se.sprinto.hakan.chatapp.metrics;
+
+import javax.management.*;
+import java.util.Map;
+
+/**
+ * Exposes every metric of a MetricsRegistry as a read-only long attribute over JMX.
+ * The attribute list follows the registry, so metrics created after registration show up as well.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = registry.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> snapshot = registry.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = registry.snapshot().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(MetricsMBean.class.getName(), "Chat server metrics",
+                attributes, null, null, null);
+    }
+}
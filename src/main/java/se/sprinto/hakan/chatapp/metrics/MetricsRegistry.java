@@ -0,0 +1,145 @@
+package se.sprinto.hakan.chatapp.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * MetricsRegistry is a singleton that holds the named counters, gauges and latency histograms of
+ * the application. Callers look a metric up once, keep it in a field and record on it directly,
+ * so the hot path never touches the registry's map.
+ */
+public class MetricsRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final String OBJECT_NAME = "se.sprinto.hakan.chatapp:type=Metrics";
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Constructor for testing.
+     */
+    public MetricsRegistry() {
+    }
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the counter with the given name, and creates it the first time.
+     * @param name The name of the counter.
+     * @return the counter.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * Registers a gauge that is read every time a snapshot is taken. A gauge with the same name is replaced.
+     * @param name The name of the gauge.
+     * @param supplier Supplies the current value.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Reads one gauge without taking a full snapshot.
+     * @param name The name of the gauge.
+     * @return the current value, or 0 if no gauge has that name.
+     */
+    public long readGauge(String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    /**
+     * Returns the latency histogram with the given name, and creates it the first time.
+     * @param name The name of the histogram.
+     * @return the histogram.
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Reads every metric. Histograms are reported as count, mean, p50, p99 and max in microseconds.
+     * @return the values sorted by name.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean-us", TimeUnit.NANOSECONDS.toMicros(histogram.getMean()));
+            values.put(name + ".p50-us", TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50)));
+            values.put(name + ".p99-us", TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)));
+            values.put(name + ".max-us", TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+        });
+        return values;
+    }
+
+    /**
+     * Formats a snapshot as one line of name=value pairs.
+     * @return the formatted snapshot.
+     */
+    public String formatSnapshot() {
+        StringBuilder line = new StringBuilder();
+        snapshot().forEach((name, value) -> {
+            if (!line.isEmpty()) {
+                line.append(' ');
+            }
+            line.append(name).append('=').append(value);
+        });
+        return line.toString();
+    }
+
+    /**
+     * Registers the metrics as attributes of an MBean in the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(name)) {
+                mBeanServer.registerMBean(new MetricsMBean(this), name);
+                logger.info("Registered metrics MBean {}", OBJECT_NAME);
+            }
+        } catch (JMException e) {
+            logger.error("Failed to register metrics MBean.", e);
+        }
+    }
+
+    /**
+     * Starts logging a snapshot line at a fixed interval on a daemon thread.
+     * @param intervalSeconds The interval between two log lines. Zero or less disables the log line.
+     */
+    public synchronized void startReporter(long intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> logger.info("metrics {}", formatSnapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
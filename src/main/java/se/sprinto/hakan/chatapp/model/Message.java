@@ -3,7 +3,10 @@ package se.sprinto.hakan.chatapp.model;
 import java.time.LocalDateTime;
 
 public class Message {
-    private int id;
+    // 0 betyder att meddelandet inte har fått något id än
+    private long id;
+    // Id som klienten satte för att kunna skicka om meddelandet, 0 om inget id skickades
+    private long clientMsgId;
     //använder endast userId här, eftersom hela Usern inte behövs
     private int userId;
     private String text;
@@ -15,6 +18,27 @@ public class Message {
         this.timestamp = timestamp;
     }
 
+    public Message(long id, int userId, String text, LocalDateTime timestamp) {
+        this(userId, text, timestamp);
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getClientMsgId() {
+        return clientMsgId;
+    }
+
+    public void setClientMsgId(long clientMsgId) {
+        this.clientMsgId = clientMsgId;
+    }
+
     public int getUserId() {
         return userId;
     }
@@ -27,4 +51,3 @@ public class Message {
         return timestamp;
     }
 }
-
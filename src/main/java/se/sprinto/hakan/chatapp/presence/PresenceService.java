@@ -0,0 +1,187 @@
+package se.sprinto.hakan.chatapp.presence;
+
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * PresenceService tracks which users are online and tells everyone about joins and leaves.
+ * <p>
+ * The online users live in an immutable snapshot that is replaced with compare-and-set on every
+ * change, so /who reads it without a lock. Joins and leaves are not sent one by one. The first change
+ * in a quiet period schedules a flush, and the flush compares the users that changed with the current
+ * snapshot and sends one notice for all of them. A reconnect storm of n users therefore costs each
+ * connection one notice per flush instead of n, and a user who leaves and comes back within one
+ * flush is not mentioned at all.
+ */
+public class PresenceService {
+    private final HashedWheelTimer timer;
+    private final long flushMillis;
+    private final int maxNames;
+    private final Consumer<String> notices;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(Collections.emptySortedMap()));
+    // Whether each user that changed since the last flush was online before the first change
+    private final Map<String, Boolean> changed = new HashMap<>();
+    private boolean flushScheduled;
+
+    private final Counter noticesSent;
+
+    /**
+     * @param timer The timer that runs the flushes.
+     * @param flushMillis The time changes are collected before a notice is sent.
+     * @param maxNames The most names listed per direction in one notice, the rest are counted.
+     * @param notices Sends a notice line to every logged in client.
+     * @param metrics The registry for the presence metrics.
+     */
+    public PresenceService(HashedWheelTimer timer, long flushMillis, int maxNames, Consumer<String> notices,
+                           MetricsRegistry metrics) {
+        this.timer = timer;
+        this.flushMillis = flushMillis;
+        this.maxNames = maxNames;
+        this.notices = notices;
+        this.noticesSent = metrics.counter("presence.notices");
+        metrics.gauge("presence.online", () -> snapshot.get().size());
+    }
+
+    /**
+     * Records a new connection of a user. Only the first connection makes the user online.
+     * @param username The user that logged in.
+     */
+    public void join(String username) {
+        Snapshot before = snapshot.getAndUpdate(current -> current.with(username, 1));
+        if (!before.isOnline(username)) {
+            changed(username, false);
+        }
+    }
+
+    /**
+     * Records a closed connection of a user. The user is offline when the last connection closes.
+     * @param username The user that disconnected.
+     */
+    public void leave(String username) {
+        Snapshot before = snapshot.getAndUpdate(current -> current.with(username, -1));
+        if (before.connectionsOf(username) == 1) {
+            changed(username, true);
+        }
+    }
+
+    /**
+     * @return the online users, an immutable snapshot.
+     */
+    public Snapshot snapshot() {
+        return snapshot.get();
+    }
+
+    private synchronized void changed(String username, boolean wasOnline) {
+        changed.putIfAbsent(username, wasOnline);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            timer.newTimeout(this::flush, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends one notice for the net changes since the last flush.
+     */
+    void flush() {
+        Map<String, Boolean> batch;
+        synchronized (this) {
+            batch = new TreeMap<>(changed);
+            changed.clear();
+            flushScheduled = false;
+        }
+        Snapshot current = snapshot.get();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : batch.entrySet()) {
+            boolean online = current.isOnline(entry.getKey());
+            if (online && !entry.getValue()) {
+                joined.add(entry.getKey());
+            } else if (!online && entry.getValue()) {
+                left.add(entry.getKey());
+            }
+        }
+        String notice = format(joined, left, maxNames);
+        if (notice != null) {
+            noticesSent.increment();
+            notices.accept(notice);
+        }
+    }
+
+    /**
+     * Formats a notice such as "Anslöt: anna, bertil. Lämnade: cecilia och 2 till."
+     * @return the notice, or null when nothing changed.
+     */
+    static String format(List<String> joined, List<String> left, int maxNames) {
+        if (joined.isEmpty() && left.isEmpty()) {
+            return null;
+        }
+        StringBuilder notice = new StringBuilder();
+        appendNames(notice, "Anslöt: ", joined, maxNames);
+        appendNames(notice, "Lämnade: ", left, maxNames);
+        return notice.toString();
+    }
+
+    private static void appendNames(StringBuilder notice, String label, List<String> names, int maxNames) {
+        if (names.isEmpty()) {
+            return;
+        }
+        if (!notice.isEmpty()) {
+            notice.append(' ');
+        }
+        notice.append(label).append(String.join(", ", names.subList(0, Math.min(maxNames, names.size()))));
+        if (names.size() > maxNames) {
+            notice.append(" och ").append(names.size() - maxNames).append(" till");
+        }
+        notice.append('.');
+    }
+
+    /**
+     * The online users and their number of connections. Never modified after it is created.
+     */
+    public static final class Snapshot {
+        private final SortedMap<String, Integer> connections;
+
+        private Snapshot(SortedMap<String, Integer> connections) {
+            this.connections = connections;
+        }
+
+        private Snapshot with(String username, int delta) {
+            int count = connections.getOrDefault(username, 0) + delta;
+            if (count < 0) {
+                return this;
+            }
+            TreeMap<String, Integer> next = new TreeMap<>(connections);
+            if (count == 0) {
+                next.remove(username);
+            } else {
+                next.put(username, count);
+            }
+            return new Snapshot(Collections.unmodifiableSortedMap(next));
+        }
+
+        int connectionsOf(String username) {
+            return connections.getOrDefault(username, 0);
+        }
+
+        public boolean isOnline(String username) {
+            return connections.containsKey(username);
+        }
+
+        /**
+         * @return the usernames in alphabetical order.
+         */
+        public Set<String> usernames() {
+            return connections.keySet();
+        }
+
+        public int size() {
+            return connections.size();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * CircuitBreaker stops calls to the database while it is failing or slow, so callers get an answer at
+ * once instead of waiting for the pool's connection timeout.
+ * <p>
+ * While CLOSED, the outcome of the last windowSize calls is kept in a ring. A call is failed when it
+ * throws DatabaseUnavailableException and slow when it takes longer than the slow-call threshold.
+ * When at least minimumCalls are recorded and the failed or the slow share reaches its threshold, the
+ * breaker opens. While OPEN, every call is rejected. After the open time, the breaker is HALF_OPEN and
+ * lets a few probe calls through: if they all succeed quickly it closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int minimumCalls;
+    private final int failureRatePercent;
+    private final int slowRatePercent;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final LongSupplier clock;
+
+    private final boolean[] failedRing;
+    private final boolean[] slowRing;
+    private int ringPosition;
+    private int ringCount;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    private final Counter opened;
+    private final Counter rejected;
+
+    /**
+     * Creates a breaker from the db.breaker.* settings.
+     * @param config The server settings.
+     * @param metrics The registry for the breaker metrics.
+     */
+    public CircuitBreaker(ServerConfig config, MetricsRegistry metrics) {
+        this(config.getInt("db.breaker.window-size", 20),
+                config.getInt("db.breaker.minimum-calls", 10),
+                config.getInt("db.breaker.failure-rate-percent", 50),
+                config.getInt("db.breaker.slow-rate-percent", 80),
+                TimeUnit.MILLISECONDS.toNanos(config.getLong("db.breaker.slow-call-ms", 2000)),
+                TimeUnit.MILLISECONDS.toNanos(config.getLong("db.breaker.open-ms", 10_000)),
+                config.getInt("db.breaker.half-open-probes", 3),
+                System::nanoTime, metrics);
+    }
+
+    /**
+     * Constructor for testing.
+     * @param windowSize The number of recent calls the rates are computed over.
+     * @param minimumCalls The number of calls needed before the breaker may open.
+     * @param failureRatePercent The share of failed calls that opens the breaker.
+     * @param slowRatePercent The share of slow calls that opens the breaker.
+     * @param slowCallNanos Calls at least this long count as slow.
+     * @param openNanos How long the breaker stays open before probing.
+     * @param halfOpenProbes The number of probe calls that must succeed to close.
+     * @param clock The source of time in nanoseconds.
+     * @param metrics The registry for the breaker metrics.
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, int failureRatePercent, int slowRatePercent,
+                          long slowCallNanos, long openNanos, int halfOpenProbes, LongSupplier clock,
+                          MetricsRegistry metrics) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize || halfOpenProbes <= 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings.");
+        }
+        this.minimumCalls = minimumCalls;
+        this.failureRatePercent = failureRatePercent;
+        this.slowRatePercent = slowRatePercent;
+        this.slowCallNanos = slowCallNanos;
+        this.openNanos = openNanos;
+        this.halfOpenProbes = halfOpenProbes;
+        this.clock = clock;
+        this.failedRing = new boolean[windowSize];
+        this.slowRing = new boolean[windowSize];
+        this.opened = metrics.counter("db.breaker.opened");
+        this.rejected = metrics.counter("db.breaker.rejected");
+        metrics.gauge("db.breaker.state", () -> getState().ordinal());
+        metrics.gauge("db.degraded", () -> getState() == State.CLOSED ? 0 : 1);
+    }
+
+    /**
+     * Runs a database call through the breaker.
+     * @param call The call.
+     * @return the result of the call.
+     * @throws DatabaseUnavailableException will be thrown if the breaker is open or the call failed on the database.
+     */
+    public <T> T execute(Supplier<T> call) {
+        if (!tryAcquire()) {
+            throw new DatabaseUnavailableException("The database is unavailable, the circuit breaker is open");
+        }
+        long start = clock.getAsLong();
+        boolean failed = false;
+        try {
+            return call.get();
+        } catch (DatabaseUnavailableException e) {
+            failed = true;
+            throw e;
+        } finally {
+            onComplete(clock.getAsLong() - start, failed);
+        }
+    }
+
+    /**
+     * Runs a database call without a result through the breaker.
+     * @param call The call.
+     * @throws DatabaseUnavailableException will be thrown if the breaker is open or the call failed on the database.
+     */
+    public void execute(Runnable call) {
+        execute(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Asks for permission to make a call. Every permitted call must be followed by onComplete.
+     * @return true if the call may go to the database.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (clock.getAsLong() - openedAt < openNanos) {
+                rejected.increment();
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            logger.info("Database circuit breaker is half-open, probing");
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= halfOpenProbes) {
+                rejected.increment();
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     * @param elapsedNanos How long the call took.
+     * @param failed true if the database was unavailable.
+     */
+    public synchronized void onComplete(long elapsedNanos, boolean failed) {
+        boolean slow = elapsedNanos >= slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open();
+            } else if (++probesSucceeded >= halfOpenProbes) {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            record(failed, slow);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failed, boolean slow) {
+        if (ringCount == failedRing.length) {
+            failures -= failedRing[ringPosition] ? 1 : 0;
+            slowCalls -= slowRing[ringPosition] ? 1 : 0;
+        } else {
+            ringCount++;
+        }
+        failedRing[ringPosition] = failed;
+        slowRing[ringPosition] = slow;
+        failures += failed ? 1 : 0;
+        slowCalls += slow ? 1 : 0;
+        ringPosition = (ringPosition + 1) % failedRing.length;
+        if (ringCount >= minimumCalls
+                && (failures * 100 >= failureRatePercent * ringCount || slowCalls * 100 >= slowRatePercent * ringCount)) {
+            logger.warn("Database circuit breaker opened: {} failed and {} slow of the last {} calls",
+                    failures, slowCalls, ringCount);
+            open();
+        }
+    }
+
+    private void open() {
+        if (state == State.HALF_OPEN) {
+            logger.warn("Database circuit breaker probe failed, open again");
+        }
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        opened.increment();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        ringPosition = 0;
+        ringCount = 0;
+        failures = 0;
+        slowCalls = 0;
+        logger.info("Database circuit breaker closed");
+    }
+}
@@ -0,0 +1,81 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * GuardedMessageDAO runs a MessageDAO through a CircuitBreaker. Saves never fail for the caller:
+ * when the database is unavailable, or the breaker is open, the message goes to the spill buffer and
+ * is saved later, so chat keeps flowing. Reads throw DatabaseUnavailableException at once instead.
+ */
+public class GuardedMessageDAO implements MessageDAO {
+    private final MessageDAO delegate;
+    private final CircuitBreaker breaker;
+    private final MessageSpill spill;
+
+    /**
+     * @param delegate The DAO to guard.
+     * @param breaker The breaker of the database, shared by every guarded DAO.
+     * @param spill The buffer for messages that could not be saved.
+     */
+    public GuardedMessageDAO(MessageDAO delegate, CircuitBreaker breaker, MessageSpill spill) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.spill = spill;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        try {
+            breaker.execute(() -> delegate.saveMessage(message));
+        } catch (DatabaseUnavailableException e) {
+            spill.offer(message);
+        }
+    }
+
+    @Override
+    public void saveMessages(List<Message> messages) {
+        try {
+            breaker.execute(() -> delegate.saveMessages(messages));
+        } catch (DatabaseUnavailableException e) {
+            messages.forEach(spill::offer);
+        }
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public List<Message> getMessagesByUserId(int userId) {
+        return breaker.execute(() -> delegate.getMessagesByUserId(userId));
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        breaker.execute(() -> delegate.forEachMessageByUserId(userId, action));
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return breaker.execute(() -> delegate.getMessagesByUserIdAfter(userId, after, limit));
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        return breaker.execute(() -> delegate.getMessagesBetween(from, until, limit));
+    }
+}
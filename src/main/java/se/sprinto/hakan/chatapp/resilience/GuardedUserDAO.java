@@ -0,0 +1,47 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.dao.UserDAO;
+import se.sprinto.hakan.chatapp.model.User;
+
+/**
+ * GuardedUserDAO runs a UserDAO through a CircuitBreaker, so logins fail fast with
+ * DatabaseUnavailableException while the database is down instead of waiting for the pool.
+ */
+public class GuardedUserDAO implements UserDAO {
+    private final UserDAO delegate;
+    private final CircuitBreaker breaker;
+
+    /**
+     * @param delegate The DAO to guard.
+     * @param breaker The breaker of the database, shared by every guarded DAO.
+     */
+    public GuardedUserDAO(UserDAO delegate, CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public User login(String username, String password) {
+        return breaker.execute(() -> delegate.login(username, password));
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public User register(User user) {
+        return breaker.execute(() -> delegate.register(user));
+    }
+
+    /**
+     * @throws DatabaseUnavailableException will be thrown if the database is unavailable.
+     */
+    @Override
+    public String findUsername(int userId) {
+        return breaker.execute(() -> delegate.findUsername(userId));
+    }
+}
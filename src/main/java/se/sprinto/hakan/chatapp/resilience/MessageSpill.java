@@ -0,0 +1,160 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.util.LogSampler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageSpill holds the chat messages that could not be saved while the database was unavailable,
+ * and saves them in batches when it is back. The buffer is bounded, when it is full new messages are
+ * dropped and counted, so an outage can never run the server out of memory. Messages keep their
+ * Snowflake ids, so a batch that is saved twice after a timeout is skipped on its message_id.
+ */
+public class MessageSpill implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageSpill.class);
+    private static final LogSampler DROP_LOG = new LogSampler(1, 0);
+
+    private final int capacity;
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private MessageDAO target;
+    private CircuitBreaker breaker;
+    private int batchSize;
+    private ScheduledExecutorService scheduler;
+
+    private final Counter spilled;
+    private final Counter dropped;
+    private final Counter drained;
+
+    /**
+     * @param capacity The most messages held at a time.
+     * @param metrics The registry for the spill metrics.
+     */
+    public MessageSpill(int capacity, MetricsRegistry metrics) {
+        this.capacity = capacity;
+        this.spilled = metrics.counter("db.spill.spilled");
+        this.dropped = metrics.counter("db.spill.dropped");
+        this.drained = metrics.counter("db.spill.drained");
+        metrics.gauge("db.spill.depth", this::size);
+    }
+
+    /**
+     * Keeps a message until the database is back.
+     * @param message The message that could not be saved.
+     * @return false if the buffer was full and the message was dropped.
+     */
+    public boolean offer(Message message) {
+        synchronized (this) {
+            if (messages.size() < capacity) {
+                messages.addLast(message);
+                spilled.increment();
+                return true;
+            }
+        }
+        dropped.increment();
+        if (DROP_LOG.shouldLog()) {
+            logger.warn("Spill buffer full at {} messages, dropped messages= {}", capacity, DROP_LOG.drainSuppressed() + 1);
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Saves the held messages in batches through the breaker, oldest first, until the buffer is empty
+     * or the database fails again. Only one thread should drain.
+     * @param target The DAO to save to.
+     * @param breaker The breaker of the database.
+     * @param batchSize The most messages per batch.
+     * @return the number of messages saved.
+     */
+    public int drain(MessageDAO target, CircuitBreaker breaker, int batchSize) {
+        int saved = 0;
+        while (true) {
+            List<Message> batch = new ArrayList<>(batchSize);
+            synchronized (this) {
+                for (Message message : messages) {
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    batch.add(message);
+                }
+            }
+            if (batch.isEmpty()) {
+                return saved;
+            }
+            try {
+                breaker.execute(() -> target.saveMessages(batch));
+            } catch (DatabaseUnavailableException e) {
+                return saved;
+            }
+            // New messages are only added at the tail, so the batch is still at the head
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    messages.pollFirst();
+                }
+            }
+            saved += batch.size();
+            drained.add(batch.size());
+        }
+    }
+
+    /**
+     * Drains the buffer at a fixed interval on a daemon thread.
+     * @param target The DAO to save to.
+     * @param breaker The breaker of the database.
+     * @param batchSize The most messages per batch.
+     * @param intervalMillis The time between two drains.
+     */
+    public synchronized void start(MessageDAO target, CircuitBreaker breaker, int batchSize, long intervalMillis) {
+        if (scheduler != null) {
+            return;
+        }
+        this.target = target;
+        this.breaker = breaker;
+        this.batchSize = batchSize;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spill-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops draining. Messages still held are lost, which is logged.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (!messages.isEmpty()) {
+            logger.warn("Stopped with {} unsaved messages in the spill buffer", messages.size());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            int saved = drain(target, breaker, batchSize);
+            if (saved > 0) {
+                logger.info("Saved {} spilled messages, {} left", saved, size());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Draining the spill buffer failed", e);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package se.sprinto.hakan.chatapp.retention;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.dao.MessageMaintenanceDAO;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * RetentionJob deletes messages that a RetentionPolicy no longer keeps. It deletes in small chunks
+ * in index order and pauses between chunks. Each chunk is a short transaction, so saveMessage never
+ * waits long behind it. While other threads are waiting for a pooled connection the job backs off
+ * and lets them go first.
+ * <p>
+ * The per-user limit is only checked for users who saved a message since the previous run, found
+ * with a range read of the timestamp index, so a run never counts the messages of every user. The
+ * first run after a start checks every user once. Each user over the limit is trimmed from the
+ * oldest message kept backwards with keyset chunks.
+ */
+public class RetentionJob implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(RetentionJob.class);
+    private static final LocalDateTime EVERY_USER = LocalDateTime.of(1970, 1, 1, 0, 0);
+    // Messages are stamped before they are saved, so a run also looks a while before the previous one
+    private static final Duration SINCE_OVERLAP = Duration.ofMinutes(5);
+
+    private final MessageMaintenanceDAO dao;
+    private final RetentionPolicy policy;
+    private final LongSupplier poolWaiting;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
+    // When the last complete per-user check started, null before the first
+    private LocalDateTime usersCheckedAt;
+
+    private final Counter runs;
+    private final Counter deletedByAge;
+    private final Counter deletedByUserLimit;
+    private final Counter pauses;
+    private final LatencyHistogram chunkLatency;
+    private final AtomicLong lastRunDeleted = new AtomicLong();
+
+    public RetentionJob(MessageMaintenanceDAO dao, RetentionPolicy policy) {
+        this(dao, policy, MetricsRegistry.getInstance(), () -> MetricsRegistry.getInstance().readGauge("db.pool.waiting"));
+    }
+
+    /**
+     * Constructor for testing.
+     * @param dao The DAO to delete messages with.
+     * @param policy What to delete and how fast.
+     * @param metrics The registry for the progress metrics.
+     * @param poolWaiting Supplies the number of threads waiting for a pooled connection.
+     */
+    public RetentionJob(MessageMaintenanceDAO dao, RetentionPolicy policy, MetricsRegistry metrics, LongSupplier poolWaiting) {
+        this.dao = dao;
+        this.policy = policy;
+        this.poolWaiting = poolWaiting;
+        this.runs = metrics.counter("retention.runs");
+        this.deletedByAge = metrics.counter("retention.deleted.age");
+        this.deletedByUserLimit = metrics.counter("retention.deleted.user-limit");
+        this.pauses = metrics.counter("retention.pressure-pauses");
+        this.chunkLatency = metrics.histogram("retention.chunk");
+        metrics.gauge("retention.last-run-deleted", lastRunDeleted::get);
+    }
+
+    /**
+     * Runs the job at a fixed interval on a daemon thread. The first run starts after one interval.
+     * @param intervalMinutes The time between the start of two runs.
+     */
+    public synchronized void start(long intervalMinutes) {
+        if (scheduler != null || !policy.isEnabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "retention-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        logger.info("Retention job started: max age {}, max {} messages per user, every {} minutes",
+                policy.maxAge(), policy.maxMessagesPerUser(), intervalMinutes);
+    }
+
+    /**
+     * Stops the job. A run in progress stops after its current chunk.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            runOnce();
+        } catch (RuntimeException e) {
+            logger.error("Retention run failed", e);
+        }
+    }
+
+    /**
+     * Applies the policy once, chunk by chunk.
+     * @return the number of messages deleted.
+     */
+    public int runOnce() {
+        runs.increment();
+        long start = System.nanoTime();
+        int deleted = 0;
+        if (policy.maxAge() != null) {
+            LocalDateTime cutoff = LocalDateTime.now().minus(policy.maxAge());
+            deleted += deleteInChunks(() -> dao.deleteOlderThan(cutoff, policy.chunkSize()), deletedByAge);
+        }
+        if (policy.maxMessagesPerUser() > 0) {
+            deleted += applyUserLimit();
+        }
+        lastRunDeleted.set(deleted);
+        if (deleted > 0) {
+            logger.info("Retention deleted {} messages in {} ms", deleted, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return deleted;
+    }
+
+    /**
+     * Trims the users who saved a message since the previous check to their newest messages.
+     * @return the number of messages deleted.
+     */
+    private int applyUserLimit() {
+        LocalDateTime checkStart = LocalDateTime.now();
+        LocalDateTime since = usersCheckedAt == null ? EVERY_USER : usersCheckedAt.minus(SINCE_OVERLAP);
+        int deleted = 0;
+        for (int userId : dao.findUsersWithMessagesSince(since)) {
+            if (stopped) {
+                return deleted;
+            }
+            Message oldestKept = dao.findOldestKept(userId, policy.maxMessagesPerUser());
+            if (oldestKept != null) {
+                deleted += deleteInChunks(() -> dao.deleteOfUserBefore(userId, oldestKept, policy.chunkSize()),
+                        deletedByUserLimit);
+            }
+        }
+        usersCheckedAt = checkStart;
+        return deleted;
+    }
+
+    /**
+     * Deletes chunks until a chunk comes back smaller than the chunk size.
+     * @param chunk Deletes one chunk and returns its size.
+     * @param counter The counter for the deleted messages.
+     * @return the number of messages deleted.
+     */
+    private int deleteInChunks(IntSupplier chunk, Counter counter) {
+        int deleted = 0;
+        while (!stopped && awaitPool()) {
+            long start = System.nanoTime();
+            int count = chunk.getAsInt();
+            chunkLatency.recordSince(start);
+            counter.add(count);
+            deleted += count;
+            if (count < policy.chunkSize() || !sleep(policy.pauseMillis())) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Waits while threads are queueing for a pooled connection.
+     * @return false if the job was stopped or interrupted while waiting.
+     */
+    private boolean awaitPool() {
+        while (poolWaiting.getAsLong() > policy.maxPoolWaiting()) {
+            pauses.increment();
+            if (stopped || !sleep(policy.backoffMillis())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sleep(long millis) {
+        if (millis <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package se.sprinto.hakan.chatapp.retention;
+
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.time.Duration;
+
+/**
+ * How long messages are kept and how fast the retention job may delete them.
+ * @param maxAge Messages older than this are deleted, null keeps messages forever.
+ * @param maxMessagesPerUser The number of newest messages each user keeps, 0 for no limit.
+ * @param chunkSize The maximum number of messages deleted in one transaction.
+ * @param pauseMillis The pause between two chunks.
+ * @param maxPoolWaiting The number of threads waiting for a pooled connection at which the job pauses.
+ * @param backoffMillis The pause while the pool is under pressure.
+ */
+public record RetentionPolicy(Duration maxAge, int maxMessagesPerUser, int chunkSize, long pauseMillis,
+                              int maxPoolWaiting, long backoffMillis) {
+
+    public RetentionPolicy {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+    }
+
+    /**
+     * Reads the policy from the retention.* settings. A max age or message limit of 0 turns that rule off.
+     * @param config The settings to read.
+     * @return the policy.
+     */
+    public static RetentionPolicy fromConfig(ServerConfig config) {
+        long maxAgeDays = config.getLong("retention.max-age-days", 0);
+        return new RetentionPolicy(
+                maxAgeDays > 0 ? Duration.ofDays(maxAgeDays) : null,
+                config.getInt("retention.max-messages-per-user", 0),
+                config.getInt("retention.chunk-size", 500),
+                config.getLong("retention.pause-ms", 50),
+                config.getInt("retention.max-pool-waiting", 0),
+                config.getLong("retention.backoff-ms", 1000));
+    }
+
+    /**
+     * @return true if any rule deletes messages.
+     */
+    public boolean isEnabled() {
+        return maxAge != null || maxMessagesPerUser > 0;
+    }
+}
@@ -0,0 +1,62 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * ConsistentHashRing maps user ids to shard names. Every shard is placed on a 64-bit ring at a number
+ * of virtual points, and a user belongs to the first point at or after the hash of its id. Adding
+ * or removing one of N shards moves about 1/N of the users, and the virtual points keep the shards
+ * within a few percent of an even share.
+ * <p>
+ * The points only depend on the shard names, so every server and the rebalance tool agree on the
+ * owner of a user as long as they are configured with the same names.
+ */
+public class ConsistentHashRing {
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    /**
+     * @param shards The names of the shards, at least one.
+     * @param virtualNodes The number of points per shard on the ring.
+     */
+    public ConsistentHashRing(Collection<String> shards, int virtualNodes) {
+        if (shards.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("A ring needs at least one shard and one point per shard.");
+        }
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // Two shards could in theory hash to the same point, the smaller name keeps it on every node
+                points.merge(hash(shard + "#" + i), shard, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * @param userId The id of a user.
+     * @return the name of the shard that owns the user's messages.
+     */
+    public String shardFor(int userId) {
+        Map.Entry<Long, String> point = points.ceilingEntry(mix(userId));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    private static long hash(String key) {
+        // FNV-1a, then mixed so nearby names spread over the whole ring
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        // The SplitMix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
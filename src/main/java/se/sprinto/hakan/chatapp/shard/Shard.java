@@ -0,0 +1,11 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import javax.sql.DataSource;
+
+/**
+ * One database that holds a part of the messages.
+ * @param name The name of the shard, which decides its place on the ring.
+ * @param dataSource The pool of the shard's database.
+ */
+public record Shard(String name, DataSource dataSource) {
+}
@@ -0,0 +1,58 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Opens the pools of the shards named in the settings. Shard "a" is configured with
+ * db.shard.a.url, db.shard.a.username and db.shard.a.password, and all shards share
+ * db.shard.pool-size. Every shard is migrated to the current schema when it is opened.
+ */
+public final class ShardDataSources {
+
+    private ShardDataSources() {
+    }
+
+    /**
+     * @param config The settings.
+     * @param names The names of the shards to open.
+     * @return the shards, sorted by name.
+     * @throws SQLException will be thrown if a shard could not be migrated.
+     */
+    public static List<Shard> open(ServerConfig config, Collection<String> names) throws SQLException {
+        List<Shard> shards = new ArrayList<>();
+        for (String name : names.stream().sorted().toList()) {
+            String prefix = "db.shard." + name + ".";
+            String url = config.getString(prefix + "url", "");
+            if (url.isEmpty()) {
+                throw new IllegalArgumentException("Missing " + prefix + "url");
+            }
+            HikariConfig hikari = new HikariConfig();
+            hikari.setJdbcUrl(url);
+            hikari.setUsername(config.getString(prefix + "username", ""));
+            hikari.setPassword(config.getString(prefix + "password", ""));
+            hikari.setMaximumPoolSize(config.getInt("db.shard.pool-size", 10));
+            hikari.setPoolName("Shard-" + name);
+            HikariDataSource dataSource = new HikariDataSource(hikari);
+            new SchemaMigrator(dataSource).migrate();
+            shards.add(new Shard(name, dataSource));
+        }
+        return shards;
+    }
+
+    /**
+     * @param config The settings.
+     * @param names The names of the shards on the ring.
+     * @return the ring with db.shard.virtual-nodes points per shard.
+     */
+    public static ConsistentHashRing ring(ServerConfig config, Collection<String> names) {
+        return new ConsistentHashRing(names, config.getInt("db.shard.virtual-nodes", 128));
+    }
+}
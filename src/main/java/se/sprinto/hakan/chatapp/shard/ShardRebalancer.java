@@ -0,0 +1,164 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * ShardRebalancer moves messages to the shard a new ring assigns them, after shards were added or
+ * removed. Every shard is read in message_id order in chunks, without a long transaction, and the
+ * rows whose owner changed are copied to their new shard and then deleted from the old one.
+ * <p>
+ * A chunk is written to its target in one transaction that first deletes the same ids, so a run
+ * that was stopped between the copy and the delete can simply be started again. Servers should
+ * already route with the new ring while this runs; until it is done, the history of a moved user
+ * misses the rows that have not been moved yet.
+ */
+public class ShardRebalancer {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRebalancer.class);
+    private static final String SCAN_SQL = """
+            SELECT message_id, text, timestamp, user_id, client_msg_id
+            FROM messages
+            WHERE message_id > ?
+            ORDER BY message_id
+            LIMIT ?
+            """;
+    private static final String INSERT_SQL = """
+            INSERT INTO messages (message_id, text, timestamp, user_id, client_msg_id) VALUES (?, ?, ?, ?, ?)
+            """;
+    private static final String DELETE_SQL = "DELETE FROM messages WHERE message_id = ?";
+
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private final ConsistentHashRing target;
+    private final ShardUsers users;
+    private final int chunkSize;
+
+    /**
+     * @param shards Every shard that may hold messages, the old ones and the new ones.
+     * @param target The ring the messages are moved to. All its shards must be in shards.
+     * @param users The main database, where users are copied from.
+     * @param chunkSize The number of rows read and moved at a time.
+     */
+    public ShardRebalancer(List<Shard> shards, ConsistentHashRing target, DataSource users, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        shards.forEach(shard -> this.shards.put(shard.name(), shard));
+        this.target = target;
+        this.users = new ShardUsers(users);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Moves every message that is not on the shard the target ring assigns it.
+     * @return the number of messages moved.
+     * @throws SQLException will be thrown if a shard could not be read or written. Chunks before it stay moved.
+     */
+    public long rebalance() throws SQLException {
+        long moved = 0;
+        for (Shard source : shards.values()) {
+            long movedFromSource = 0;
+            long scanned = 0;
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                List<Row> chunk = scan(source, lastId);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                scanned += chunk.size();
+                lastId = chunk.get(chunk.size() - 1).id();
+                Map<String, List<Row>> byTarget = new LinkedHashMap<>();
+                for (Row row : chunk) {
+                    String owner = target.shardFor(row.userId());
+                    if (!owner.equals(source.name())) {
+                        byTarget.computeIfAbsent(owner, name -> new ArrayList<>()).add(row);
+                    }
+                }
+                for (Map.Entry<String, List<Row>> rows : byTarget.entrySet()) {
+                    Shard destination = shards.get(rows.getKey());
+                    if (destination == null) {
+                        throw new IllegalStateException("The target ring names a shard that is not configured: " + rows.getKey());
+                    }
+                    move(source, destination, rows.getValue());
+                    movedFromSource += rows.getValue().size();
+                }
+            }
+            logger.info("Rebalanced shard {}: scanned {} messages, moved {}", source.name(), scanned, movedFromSource);
+            moved += movedFromSource;
+        }
+        return moved;
+    }
+
+    private List<Row> scan(Shard shard, long afterId) throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        try (Connection con = shard.dataSource().getConnection();
+             PreparedStatement ps = con.prepareStatement(SCAN_SQL)) {
+            ps.setLong(1, afterId);
+            ps.setInt(2, chunkSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long clientMsgId = rs.getLong(5);
+                    Long nullableClientMsgId = rs.wasNull() ? null : clientMsgId;
+                    rows.add(new Row(rs.getLong(1), rs.getString(2), rs.getTimestamp(3), rs.getInt(4), nullableClientMsgId));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private void move(Shard source, Shard destination, List<Row> rows) throws SQLException {
+        Set<Integer> userIds = new HashSet<>();
+        rows.forEach(row -> userIds.add(row.userId()));
+        users.ensure(destination, userIds);
+        try (Connection con = destination.dataSource().getConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement(DELETE_SQL);
+                 PreparedStatement insert = con.prepareStatement(INSERT_SQL)) {
+                for (Row row : rows) {
+                    delete.setLong(1, row.id());
+                    delete.addBatch();
+                    insert.setLong(1, row.id());
+                    insert.setString(2, row.text());
+                    insert.setTimestamp(3, row.timestamp());
+                    insert.setInt(4, row.userId());
+                    if (row.clientMsgId() != null) {
+                        insert.setLong(5, row.clientMsgId());
+                    } else {
+                        insert.setNull(5, Types.BIGINT);
+                    }
+                    insert.addBatch();
+                }
+                delete.executeBatch();
+                insert.executeBatch();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+        try (Connection con = source.dataSource().getConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement(DELETE_SQL)) {
+                for (Row row : rows) {
+                    delete.setLong(1, row.id());
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+    }
+
+    private record Row(long id, String text, Timestamp timestamp, int userId, Long clientMsgId) {
+    }
+}
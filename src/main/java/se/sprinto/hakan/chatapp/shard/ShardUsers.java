@@ -0,0 +1,100 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.dao.PooledConnections;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The messages table has a foreign key to users, and users live in the main database. ShardUsers
+ * copies the id and username of a user to a shard before the user's first message is written there.
+ * The password is left empty, logins only ever read the main database.
+ * <p>
+ * Users known to be present are cached per shard, so the check costs one query per user and shard
+ * for the lifetime of the server.
+ */
+class ShardUsers {
+    private static final String EXISTS_SQL = "SELECT 1 FROM users WHERE user_id = ?";
+    private static final String FIND_SQL = "SELECT username FROM users WHERE user_id = ?";
+    private static final String INSERT_SQL = "INSERT INTO users (user_id, username, password) VALUES (?, ?, '')";
+
+    private final DataSource users;
+    private final Map<String, Set<Integer>> present = new ConcurrentHashMap<>();
+
+    /**
+     * @param users The main database with the users table.
+     */
+    ShardUsers(DataSource users) {
+        this.users = users;
+    }
+
+    /**
+     * Makes sure that a shard has a row for each of a set of users.
+     * @param shard The shard that is about to get messages.
+     * @param userIds The owners of the messages.
+     * @throws DatabaseUnavailableException will be thrown if the shard or the main database could not be reached.
+     * @throws IllegalStateException will be thrown if a user does not exist in the main database.
+     */
+    void ensure(Shard shard, Collection<Integer> userIds) {
+        Set<Integer> known = present.computeIfAbsent(shard.name(), name -> ConcurrentHashMap.newKeySet());
+        for (int userId : userIds) {
+            if (known.contains(userId)) {
+                continue;
+            }
+            try {
+                if (!exists(shard.dataSource(), userId)) {
+                    copy(shard.dataSource(), userId);
+                }
+                known.add(userId);
+            } catch (SQLException e) {
+                if (PooledConnections.isUnavailable(e)) {
+                    throw new DatabaseUnavailableException("Failed to copy user_id= " + userId + " to shard " + shard.name(), e);
+                }
+                throw new IllegalStateException("Failed to copy user_id= " + userId + " to shard " + shard.name(), e);
+            }
+        }
+    }
+
+    private static boolean exists(DataSource shard, int userId) throws SQLException {
+        try (Connection con = PooledConnections.acquire(shard);
+             PreparedStatement ps = con.prepareStatement(EXISTS_SQL)) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private void copy(DataSource shard, int userId) throws SQLException {
+        String username;
+        try (Connection con = PooledConnections.acquire(users);
+             PreparedStatement ps = con.prepareStatement(FIND_SQL)) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("No user with user_id= " + userId);
+                }
+                username = rs.getString(1);
+            }
+        }
+        try (Connection con = PooledConnections.acquire(shard);
+             PreparedStatement ps = con.prepareStatement(INSERT_SQL)) {
+            ps.setInt(1, userId);
+            ps.setString(2, username);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            // Another server copied the user at the same time
+            if (!exists(shard, userId)) {
+                throw e;
+            }
+        }
+    }
+}
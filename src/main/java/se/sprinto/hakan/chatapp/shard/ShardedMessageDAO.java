@@ -0,0 +1,286 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.dao.MessageDatabaseDAO;
+import se.sprinto.hakan.chatapp.dao.MessageMaintenanceDAO;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import javax.sql.DataSource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ShardedMessageDAO spreads the messages over several databases by user id, see ConsistentHashRing.
+ * All messages of a user live on one shard, so writes and the history of a user touch one database.
+ * <p>
+ * Queries over all users, such as a time range, are sent to every shard at once on a small pool and
+ * the sorted results are merged by (timestamp, message_id), keeping at most limit messages. Each
+ * shard is asked for limit rows, which is the most one shard can contribute.
+ * <p>
+ * Message ids must be unique across shards, which the ids from SnowflakeIdGenerator are. Messages
+ * saved without an id get one from the shard's own sequence, which is only unique on that shard.
+ */
+public class ShardedMessageDAO implements MessageDAO, MessageMaintenanceDAO, AutoCloseable {
+    private static final Comparator<Message> ORDER = Comparator.comparing(Message::getTimestamp)
+            .thenComparingLong(Message::getId);
+
+    private final ConsistentHashRing ring;
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private final Map<String, MessageDatabaseDAO> daos = new HashMap<>();
+    private final Map<String, Counter> saved = new HashMap<>();
+    private final ShardUsers users;
+    private final ExecutorService scatter;
+    private final LatencyHistogram scatterLatency;
+
+    /**
+     * @param shards The shards, each with a schema migrated by SchemaMigrator.
+     * @param ring The ring over the names of the shards.
+     * @param users The main database, where users are copied from.
+     * @param metrics The registry of the shard.* metrics.
+     */
+    public ShardedMessageDAO(List<Shard> shards, ConsistentHashRing ring, DataSource users, MetricsRegistry metrics) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed.");
+        }
+        this.ring = ring;
+        for (Shard shard : shards) {
+            this.shards.put(shard.name(), shard);
+            this.daos.put(shard.name(), new MessageDatabaseDAO(shard.dataSource()));
+            this.saved.put(shard.name(), metrics.counter("shard." + shard.name() + ".saved"));
+        }
+        this.users = new ShardUsers(users);
+        this.scatter = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scatterLatency = metrics.histogram("shard.scatter-gather");
+    }
+
+    /**
+     * @param userId The id of a user.
+     * @return the shard that holds the user's messages.
+     */
+    public Shard shardOf(int userId) {
+        Shard shard = shards.get(ring.shardFor(userId));
+        if (shard == null) {
+            throw new IllegalStateException("The ring names a shard that is not configured: " + ring.shardFor(userId));
+        }
+        return shard;
+    }
+
+    /**
+     * @return the shards, in the order they were configured.
+     */
+    public List<Shard> getShards() {
+        return List.copyOf(shards.values());
+    }
+
+    private MessageDatabaseDAO daoOf(int userId) {
+        return daos.get(shardOf(userId).name());
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        insertMessage(message);
+    }
+
+    @Override
+    public boolean insertMessage(Message message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null.");
+        }
+        Shard shard = shardOf(message.getUserId());
+        users.ensure(shard, List.of(message.getUserId()));
+        boolean inserted = daos.get(shard.name()).insertMessage(message);
+        if (inserted) {
+            saved.get(shard.name()).increment();
+        }
+        return inserted;
+    }
+
+    /**
+     * Saves messages with one batch per shard. Messages keep their order within a shard.
+     * @param messages The messages to save.
+     */
+    @Override
+    public void saveMessages(List<Message> messages) {
+        insertMessages(messages);
+    }
+
+    /**
+     * Inserts messages as saveMessages does.
+     * @param messages The messages to save.
+     * @return the messages stored by this call, grouped by shard.
+     */
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        List<Message> inserted = new ArrayList<>(messages.size());
+        Map<String, List<Message>> byShard = new LinkedHashMap<>();
+        for (Message message : messages) {
+            if (message == null) {
+                throw new IllegalArgumentException("Message cannot be null.");
+            }
+            byShard.computeIfAbsent(shardOf(message.getUserId()).name(), name -> new ArrayList<>()).add(message);
+        }
+        for (Map.Entry<String, List<Message>> batch : byShard.entrySet()) {
+            Set<Integer> userIds = new HashSet<>();
+            batch.getValue().forEach(message -> userIds.add(message.getUserId()));
+            users.ensure(shards.get(batch.getKey()), userIds);
+            List<Message> shardInserted = daos.get(batch.getKey()).insertMessages(batch.getValue());
+            saved.get(batch.getKey()).add(shardInserted.size());
+            inserted.addAll(shardInserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public List<Message> getMessagesByUserId(int userId) {
+        return daoOf(userId).getMessagesByUserId(userId);
+    }
+
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        daoOf(userId).forEachMessageByUserId(userId, action);
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return daoOf(userId).getMessagesByUserIdAfter(userId, after, limit);
+    }
+
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        // Every shard returns at most limit, so merging all of them and keeping the tail gives the newest
+        List<Message> merged = scatterGather(dao -> dao.getMessagesBetween(from, until, limit), Integer.MAX_VALUE);
+        return new ArrayList<>(merged.subList(Math.max(0, merged.size() - limit), merged.size()));
+    }
+
+    /**
+     * Deletes from one shard after the other until limit messages are deleted, so fewer than limit
+     * means that no shard has older messages left.
+     */
+    @Override
+    public int deleteOlderThan(LocalDateTime cutoff, int limit) {
+        int deleted = 0;
+        for (MessageDatabaseDAO dao : daos.values()) {
+            if (deleted >= limit) {
+                break;
+            }
+            deleted += dao.deleteOlderThan(cutoff, limit - deleted);
+        }
+        return deleted;
+    }
+
+    @Override
+    public List<Integer> findUsersWithMessagesSince(LocalDateTime since) {
+        List<Integer> userIds = new ArrayList<>();
+        for (MessageDatabaseDAO dao : daos.values()) {
+            userIds.addAll(dao.findUsersWithMessagesSince(since));
+        }
+        return userIds;
+    }
+
+    @Override
+    public Message findOldestKept(int userId, int keep) {
+        return daoOf(userId).findOldestKept(userId, keep);
+    }
+
+    @Override
+    public int deleteOfUserBefore(int userId, Message oldestKept, int limit) {
+        return daoOf(userId).deleteOfUserBefore(userId, oldestKept, limit);
+    }
+
+    @Override
+    public List<Message> findOlderThan(LocalDateTime cutoff, int limit) {
+        return scatterGather(dao -> dao.findOlderThan(cutoff, limit), limit);
+    }
+
+    @Override
+    public int deleteMessages(List<Message> messages) {
+        Map<String, List<Message>> byShard = new HashMap<>();
+        for (Message message : messages) {
+            byShard.computeIfAbsent(shardOf(message.getUserId()).name(), name -> new ArrayList<>()).add(message);
+        }
+        int deleted = 0;
+        for (Map.Entry<String, List<Message>> batch : byShard.entrySet()) {
+            deleted += daos.get(batch.getKey()).deleteMessages(batch.getValue());
+        }
+        return deleted;
+    }
+
+    /**
+     * Runs a query on every shard at once and merges the sorted results.
+     * @param query The query, returning messages in (timestamp, message_id) order.
+     * @param limit The maximum number of messages to return.
+     * @return the first limit messages of all shards, in order.
+     */
+    private List<Message> scatterGather(Function<MessageDatabaseDAO, List<Message>> query, int limit) {
+        long start = System.nanoTime();
+        try {
+            List<CompletableFuture<List<Message>>> parts = new ArrayList<>();
+            for (MessageDatabaseDAO dao : daos.values()) {
+                parts.add(CompletableFuture.supplyAsync(() -> query.apply(dao), scatter));
+            }
+            List<List<Message>> results = new ArrayList<>();
+            try {
+                for (CompletableFuture<List<Message>> part : parts) {
+                    results.add(part.join());
+                }
+            } catch (CompletionException e) {
+                // A shard that is down fails the whole query the same way one database would
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+            return merge(results, limit);
+        } finally {
+            scatterLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Merges sorted lists by (timestamp, message_id).
+     * @param sorted The lists, each in order.
+     * @param limit The maximum number of messages to return.
+     * @return the first limit messages of all lists, in order.
+     */
+    static List<Message> merge(List<List<Message>> sorted, int limit) {
+        // Heads of the lists, as {list index, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(
+                (a, b) -> ORDER.compare(sorted.get(a[0]).get(a[1]), sorted.get(b[0]).get(b[1])));
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<Message> merged = new ArrayList<>();
+        while (merged.size() < limit && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<Message> list = sorted.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Stops the pool of the cross-shard queries. The shards' DataSources are left open.
+     */
+    @Override
+    public void close() {
+        scatter.shutdown();
+    }
+}
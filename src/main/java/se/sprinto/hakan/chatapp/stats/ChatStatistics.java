@@ -0,0 +1,358 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ChatStatistics keeps the message count and the first and latest activity of every user in memory,
+ * updated as each message is saved, so /stats me and /stats top never count over the messages table.
+ * <p>
+ * The users that changed are written to user_stats at a fixed interval, together with the last
+ * message the rows cover. On start the aggregates are read back from that checkpoint and the
+ * messages saved after it are added, so a restart reads one row per user plus the tail instead of
+ * every message. Counts are of messages sent: retention and archiving do not lower them.
+ * <p>
+ * Saves run concurrently, so messages are not recorded in timestamp order. The rows only cover
+ * messages older than the settle time, and the position written with them is now minus the settle
+ * time; newer messages wait in memory and are read again from the tail by a rebuild. Each save takes
+ * a shared lock and the checkpoint takes it exclusively while it moves the settled messages into the
+ * rows, so the rows and the position describe the same set of messages. A message recorded later
+ * than the settle time after its timestamp, which happens when the spill drains after an outage, is
+ * added to the next checkpoint but missed by a rebuild if the server stops before it.
+ * Only one server may checkpoint to a database.
+ */
+public class ChatStatistics implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ChatStatistics.class);
+
+    private final Map<Integer, Aggregate> users = new ConcurrentHashMap<>();
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    // Messages newer than the checkpoint position, counted for /stats but not yet in the rows
+    private final ConcurrentNavigableMap<Pending, Integer> unsettled = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock cut = new ReentrantReadWriteLock();
+    private final Duration settleTime;
+    private volatile Position position = Position.START;
+    private final LongAdder messages = new LongAdder();
+    private volatile StatisticsStore store;
+    private ScheduledExecutorService scheduler;
+
+    private final Counter checkpoints;
+    private final Counter checkpointFailures;
+    private final Counter rebuildTail;
+    private final LatencyHistogram checkpointLatency;
+
+    /**
+     * @param metrics The registry of the stats.* metrics.
+     */
+    public ChatStatistics(MetricsRegistry metrics) {
+        this(metrics, Duration.ofMinutes(1));
+    }
+
+    /**
+     * @param metrics The registry of the stats.* metrics.
+     * @param settleTime How long a save may take after its timestamp and still be covered by a rebuild.
+     */
+    public ChatStatistics(MetricsRegistry metrics, Duration settleTime) {
+        this.settleTime = settleTime;
+        this.checkpoints = metrics.counter("stats.checkpoints");
+        this.checkpointFailures = metrics.counter("stats.checkpoints.failed");
+        this.rebuildTail = metrics.counter("stats.rebuild.tail-messages");
+        this.checkpointLatency = metrics.histogram("stats.checkpoint");
+        metrics.gauge("stats.users", users::size);
+        metrics.gauge("stats.messages", messages::sum);
+        metrics.gauge("stats.dirty-users", dirty::size);
+        metrics.gauge("stats.unsettled", unsettled::size);
+    }
+
+    /**
+     * Rebuilds the aggregates from the store and then checkpoints at a fixed interval on a daemon
+     * thread. If the rebuild fails, nothing is checkpointed, so the partial figures in memory never
+     * overwrite the stored ones.
+     * @param store The checkpoint tables and the message databases.
+     * @param chunkSize The number of tail messages read per query.
+     * @param intervalSeconds The time between two checkpoints.
+     */
+    public synchronized void start(StatisticsStore store, int chunkSize, long intervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        try {
+            rebuild(store, chunkSize);
+        } catch (SQLException e) {
+            logger.error("Failed to rebuild the chat statistics, they count from now on and are not checkpointed", e);
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the checkpoints and writes a last one.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        run();
+    }
+
+    /**
+     * Reads the checkpoint and adds the messages saved after it. Called once, before any message is
+     * recorded.
+     * @param store The checkpoint tables and the message databases.
+     * @param chunkSize The number of tail messages read per query.
+     * @throws SQLException will be thrown if the store could not be read.
+     */
+    void rebuild(StatisticsStore store, int chunkSize) throws SQLException {
+        long start = System.nanoTime();
+        Position through = store.loadCheckpoint(row -> {
+            Aggregate aggregate = users.computeIfAbsent(row.userId(), Aggregate::new);
+            aggregate.add(row.messageCount(), row.firstAt(), row.lastAt());
+            aggregate.settle(row.messageCount(), row.firstAt(), row.lastAt());
+            aggregate.stored = true;
+            messages.add(row.messageCount());
+        });
+        position = Position.max(position, through);
+        long tail = store.readTail(through, chunkSize, this::record);
+        rebuildTail.add(tail);
+        this.store = store;
+        logger.info("Chat statistics rebuilt for {} users from the checkpoint and {} newer messages in {} ms",
+                users.size(), tail, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (tail > 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Counts a saved message.
+     * @param message The message, with its user and timestamp.
+     */
+    public void record(Message message) {
+        record(message.getUserId(), new Position(message.getTimestamp(), message.getId()));
+    }
+
+    private void record(int userId, Position message) {
+        cut.readLock().lock();
+        try {
+            Aggregate aggregate = users.computeIfAbsent(userId, Aggregate::new);
+            aggregate.add(1, message.timestamp(), message.timestamp());
+            messages.increment();
+            if (message.compareTo(position) <= 0) {
+                // Older than the checkpoint position, so a rebuild would not read it from the tail
+                aggregate.settle(1, message.timestamp(), message.timestamp());
+                dirty.add(userId);
+            } else {
+                unsettled.merge(new Pending(message, userId), 1, Integer::sum);
+            }
+        } finally {
+            cut.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            checkpoint();
+        } catch (SQLException | RuntimeException e) {
+            checkpointFailures.increment();
+            logger.warn("Failed to checkpoint the chat statistics, retrying at the next interval", e);
+        }
+    }
+
+    /**
+     * Moves the messages older than the settle time into the rows and writes the users that changed
+     * since the last checkpoint. On failure they stay changed and are written by the next checkpoint.
+     * Checkpoints run one at a time, so the position never goes back.
+     * @return the number of users written.
+     * @throws SQLException will be thrown if the rows could not be written.
+     */
+    synchronized int checkpoint() throws SQLException {
+        StatisticsStore target = store;
+        if (target == null) {
+            return 0;
+        }
+        List<UserStats> inserts = new ArrayList<>();
+        List<UserStats> updates = new ArrayList<>();
+        List<Aggregate> written = new ArrayList<>();
+        Position through = Position.max(position,
+                new Position(LocalDateTime.now().minus(settleTime), Long.MAX_VALUE));
+        cut.writeLock().lock();
+        try {
+            Map<Pending, Integer> settled = unsettled.headMap(new Pending(through, Integer.MAX_VALUE), true);
+            for (Map.Entry<Pending, Integer> entry : settled.entrySet()) {
+                LocalDateTime timestamp = entry.getKey().position().timestamp();
+                users.get(entry.getKey().userId()).settle(entry.getValue(), timestamp, timestamp);
+                dirty.add(entry.getKey().userId());
+            }
+            settled.clear();
+            position = through;
+            for (Integer userId : dirty) {
+                Aggregate aggregate = users.get(userId);
+                written.add(aggregate);
+                (aggregate.stored ? updates : inserts).add(aggregate.settledSnapshot());
+            }
+            dirty.clear();
+        } finally {
+            cut.writeLock().unlock();
+        }
+        if (written.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            target.writeCheckpoint(inserts, updates, through);
+        } catch (SQLException | RuntimeException e) {
+            written.forEach(aggregate -> dirty.add(aggregate.userId));
+            throw e;
+        } finally {
+            checkpointLatency.recordSince(start);
+        }
+        written.forEach(aggregate -> aggregate.stored = true);
+        checkpoints.increment();
+        return written.size();
+    }
+
+    /**
+     * @param userId A user.
+     * @return the statistics of the user, or null if the user has sent nothing.
+     */
+    public UserStats userStats(int userId) {
+        Aggregate aggregate = users.get(userId);
+        return aggregate == null ? null : aggregate.snapshot();
+    }
+
+    /**
+     * Finds the users with the most messages.
+     * @param limit The number of users to return.
+     * @return the users, most messages first.
+     */
+    public List<UserStats> top(int limit) {
+        Comparator<UserStats> byCount = Comparator.comparingLong(UserStats::messageCount)
+                .thenComparing(UserStats::userId, Comparator.reverseOrder());
+        PriorityQueue<UserStats> best = new PriorityQueue<>(byCount);
+        for (Aggregate aggregate : users.values()) {
+            best.add(aggregate.snapshot());
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<UserStats> top = new ArrayList<>(best);
+        top.sort(byCount.reversed());
+        return top;
+    }
+
+    /**
+     * @return the number of messages of all users.
+     */
+    public long messageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * @return the number of users that have sent a message.
+     */
+    public int userCount() {
+        return users.size();
+    }
+
+    /**
+     * Looks up the usernames of some users, for the top list.
+     * @param userIds The users.
+     * @return the usernames by user id, empty if they could not be read.
+     */
+    public Map<Integer, String> usernames(Collection<Integer> userIds) {
+        StatisticsStore target = store;
+        if (target == null) {
+            return Map.of();
+        }
+        try {
+            return target.usernames(userIds);
+        } catch (SQLException e) {
+            logger.warn("Failed to read the usernames of the top list", e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * A recorded message that is not yet in the rows.
+     * @param position The place of the message in the tail.
+     * @param userId The user who sent it.
+     */
+    private record Pending(Position position, int userId) implements Comparable<Pending> {
+        @Override
+        public int compareTo(Pending other) {
+            int byPosition = position.compareTo(other.position);
+            return byPosition != 0 ? byPosition : Integer.compare(userId, other.userId);
+        }
+    }
+
+    /**
+     * The running figures of one user, and the part of them the checkpoint writes.
+     */
+    private static final class Aggregate {
+        private final int userId;
+        private long count;
+        private LocalDateTime firstAt;
+        private LocalDateTime lastAt;
+        private long settledCount;
+        private LocalDateTime settledFirstAt;
+        private LocalDateTime settledLastAt;
+        // True once the user has a row in user_stats, so the checkpoint updates instead of inserting
+        private volatile boolean stored;
+
+        Aggregate(int userId) {
+            this.userId = userId;
+        }
+
+        synchronized void add(long messages, LocalDateTime first, LocalDateTime last) {
+            count += messages;
+            if (firstAt == null || first.isBefore(firstAt)) {
+                firstAt = first;
+            }
+            if (lastAt == null || last.isAfter(lastAt)) {
+                lastAt = last;
+            }
+        }
+
+        synchronized void settle(long messages, LocalDateTime first, LocalDateTime last) {
+            settledCount += messages;
+            if (settledFirstAt == null || first.isBefore(settledFirstAt)) {
+                settledFirstAt = first;
+            }
+            if (settledLastAt == null || last.isAfter(settledLastAt)) {
+                settledLastAt = last;
+            }
+        }
+
+        synchronized UserStats snapshot() {
+            return new UserStats(userId, count, firstAt, lastAt);
+        }
+
+        synchronized UserStats settledSnapshot() {
+            return new UserStats(userId, settledCount, settledFirstAt, settledLastAt);
+        }
+    }
+}
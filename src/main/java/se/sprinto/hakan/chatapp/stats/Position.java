@@ -0,0 +1,24 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import java.time.LocalDateTime;
+
+/**
+ * A place in the (timestamp, message_id) order of the messages table, the order the tail of a
+ * rebuild is read in.
+ * @param timestamp The timestamp of the message.
+ * @param messageId The id of the message.
+ */
+public record Position(LocalDateTime timestamp, long messageId) implements Comparable<Position> {
+    /** Before every message. */
+    public static final Position START = new Position(LocalDateTime.of(1970, 1, 1, 0, 0), Long.MIN_VALUE);
+
+    @Override
+    public int compareTo(Position other) {
+        int byTime = timestamp.compareTo(other.timestamp);
+        return byTime != 0 ? byTime : Long.compare(messageId, other.messageId);
+    }
+
+    static Position max(Position a, Position b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
@@ -0,0 +1,74 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * StatisticsMessageDAO counts a message in ChatStatistics when the DAO it wraps reports that it
+ * inserted a row for it. A save that throws is not counted; it is counted when it is saved again,
+ * for example from the spill. Duplicates, and spill retries of messages that were stored already,
+ * insert nothing and are not counted again.
+ */
+public class StatisticsMessageDAO implements MessageDAO {
+    private final MessageDAO delegate;
+    private final ChatStatistics statistics;
+
+    /**
+     * @param delegate The DAO that saves the messages.
+     * @param statistics The statistics to count them in.
+     */
+    public StatisticsMessageDAO(MessageDAO delegate, ChatStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void saveMessage(Message message) {
+        insertMessage(message);
+    }
+
+    @Override
+    public void saveMessages(List<Message> messages) {
+        insertMessages(messages);
+    }
+
+    @Override
+    public boolean insertMessage(Message message) {
+        boolean inserted = delegate.insertMessage(message);
+        if (inserted) {
+            statistics.record(message);
+        }
+        return inserted;
+    }
+
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        List<Message> inserted = delegate.insertMessages(messages);
+        inserted.forEach(statistics::record);
+        return inserted;
+    }
+
+    @Override
+    public List<Message> getMessagesByUserId(int userId) {
+        return delegate.getMessagesByUserId(userId);
+    }
+
+    @Override
+    public void forEachMessageByUserId(int userId, Consumer<Message> action) {
+        delegate.forEachMessageByUserId(userId, action);
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIdAfter(int userId, Message after, int limit) {
+        return delegate.getMessagesByUserIdAfter(userId, after, limit);
+    }
+
+    @Override
+    public List<Message> getMessagesBetween(LocalDateTime from, LocalDateTime until, int limit) {
+        return delegate.getMessagesBetween(from, until, limit);
+    }
+}
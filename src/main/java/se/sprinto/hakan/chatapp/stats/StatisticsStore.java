@@ -0,0 +1,206 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * StatisticsStore reads and writes the checkpoint of ChatStatistics in the user_stats and
+ * stats_checkpoint tables, and reads the messages saved after a checkpoint. It never aggregates
+ * over the messages table: the tail is read in (timestamp, message_id) order along
+ * idx_messages_timestamp, one chunk at a time.
+ */
+public class StatisticsStore {
+    static final String LOAD_SQL = "SELECT user_id, message_count, first_at, last_at FROM user_stats";
+    static final String LOAD_POSITION_SQL = """
+            SELECT through_timestamp, through_message_id FROM stats_checkpoint WHERE checkpoint_id = 1
+            """;
+    static final String INSERT_SQL = """
+            INSERT INTO user_stats (message_count, first_at, last_at, user_id) VALUES (?, ?, ?, ?)
+            """;
+    static final String UPDATE_SQL = """
+            UPDATE user_stats SET message_count = ?, first_at = ?, last_at = ? WHERE user_id = ?
+            """;
+    static final String INSERT_POSITION_SQL = """
+            INSERT INTO stats_checkpoint (through_timestamp, through_message_id, checkpointed_at, checkpoint_id)
+            VALUES (?, ?, ?, 1)
+            """;
+    static final String UPDATE_POSITION_SQL = """
+            UPDATE stats_checkpoint SET through_timestamp = ?, through_message_id = ?, checkpointed_at = ?
+            WHERE checkpoint_id = 1
+            """;
+    static final String TAIL_SQL = """
+            SELECT m.message_id, m.user_id, m.timestamp
+            FROM messages m
+            WHERE m.timestamp >= ? AND (m.timestamp > ? OR m.message_id > ?)
+            ORDER BY m.timestamp, m.message_id
+            LIMIT ?
+            """;
+    static final String USERNAMES_SQL = "SELECT user_id, username FROM users WHERE user_id IN ";
+
+    private final DataSource dataSource;
+    private final List<DataSource> messageSources;
+
+    /**
+     * @param dataSource The main database, with the users and the statistics tables.
+     * @param messageSources The databases with a messages table: the main database, or every shard.
+     */
+    public StatisticsStore(DataSource dataSource, List<DataSource> messageSources) {
+        this.dataSource = dataSource;
+        this.messageSources = List.copyOf(messageSources);
+    }
+
+    /**
+     * Reads the last checkpoint.
+     * @param action Called for the row of every user in the checkpoint.
+     * @return the last message the checkpoint covers, Position.START if there is no checkpoint.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    public Position loadCheckpoint(Consumer<UserStats> action) throws SQLException {
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            Position through = Position.START;
+            try (ResultSet rs = stmt.executeQuery(LOAD_POSITION_SQL)) {
+                if (rs.next()) {
+                    through = new Position(rs.getTimestamp(1).toLocalDateTime(), rs.getLong(2));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery(LOAD_SQL)) {
+                while (rs.next()) {
+                    action.accept(new UserStats(rs.getInt(1), rs.getLong(2),
+                            rs.getTimestamp(3).toLocalDateTime(), rs.getTimestamp(4).toLocalDateTime()));
+                }
+            }
+            return through;
+        }
+    }
+
+    /**
+     * Writes the rows of the users that changed and the position they are current to, in one
+     * transaction, so a checkpoint that fails half way leaves the previous one in place.
+     * @param inserts The users that have no row yet.
+     * @param updates The users that have a row.
+     * @param through The last message the rows cover.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    public void writeCheckpoint(List<UserStats> inserts, List<UserStats> updates, Position through) throws SQLException {
+        try (Connection con = dataSource.getConnection()) {
+            boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            try {
+                writeRows(con, INSERT_SQL, inserts);
+                writeRows(con, UPDATE_SQL, updates);
+                try (PreparedStatement ps = con.prepareStatement(UPDATE_POSITION_SQL)) {
+                    bindPosition(ps, through);
+                    if (ps.executeUpdate() == 0) {
+                        try (PreparedStatement insert = con.prepareStatement(INSERT_POSITION_SQL)) {
+                            bindPosition(insert, through);
+                            insert.executeUpdate();
+                        }
+                    }
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Reads the messages after a position from every message database, chunk by chunk.
+     * @param after The last message that is already counted.
+     * @param chunkSize The number of messages read per query.
+     * @param action Called for every message after the position, in order per database.
+     * @return the number of messages read.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    public long readTail(Position after, int chunkSize, TailAction action) throws SQLException {
+        long total = 0;
+        for (DataSource source : messageSources) {
+            Position from = after;
+            int rows;
+            do {
+                rows = 0;
+                try (Connection con = source.getConnection();
+                     PreparedStatement ps = con.prepareStatement(TAIL_SQL)) {
+                    Timestamp timestamp = Timestamp.valueOf(from.timestamp());
+                    ps.setTimestamp(1, timestamp);
+                    ps.setTimestamp(2, timestamp);
+                    ps.setLong(3, from.messageId());
+                    ps.setInt(4, chunkSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            from = new Position(rs.getTimestamp(3).toLocalDateTime(), rs.getLong(1));
+                            action.accept(rs.getInt(2), from);
+                            rows++;
+                        }
+                    }
+                }
+                total += rows;
+            } while (rows == chunkSize);
+        }
+        return total;
+    }
+
+    /**
+     * Looks up the usernames of some users.
+     * @param userIds The users.
+     * @return the usernames by user id, without the ids that have no user.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    public Map<Integer, String> usernames(Collection<Integer> userIds) throws SQLException {
+        Map<Integer, String> names = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return names;
+        }
+        String placeholders = String.join(", ", Collections.nCopies(userIds.size(), "?"));
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement(USERNAMES_SQL + "(" + placeholders + ")")) {
+            int index = 1;
+            for (int userId : userIds) {
+                ps.setInt(index++, userId);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    names.put(rs.getInt(1), rs.getString(2));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void writeRows(Connection con, String sql, List<UserStats> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = con.prepareStatement(sql)) {
+            for (UserStats row : rows) {
+                ps.setLong(1, row.messageCount());
+                ps.setTimestamp(2, Timestamp.valueOf(row.firstAt()));
+                ps.setTimestamp(3, Timestamp.valueOf(row.lastAt()));
+                ps.setInt(4, row.userId());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static void bindPosition(PreparedStatement ps, Position through) throws SQLException {
+        ps.setTimestamp(1, Timestamp.valueOf(through.timestamp()));
+        ps.setLong(2, through.messageId());
+        ps.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+    }
+
+    /**
+     * Receives the messages of the tail.
+     */
+    @FunctionalInterface
+    public interface TailAction {
+        void accept(int userId, Position message);
+    }
+}
@@ -0,0 +1,13 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import java.time.LocalDateTime;
+
+/**
+ * The statistics of one user at one moment.
+ * @param userId The user.
+ * @param messageCount The number of messages the user has sent.
+ * @param firstAt The timestamp of the user's first message.
+ * @param lastAt The timestamp of the user's latest message.
+ */
+public record UserStats(int userId, long messageCount, LocalDateTime firstAt, LocalDateTime lastAt) {
+}
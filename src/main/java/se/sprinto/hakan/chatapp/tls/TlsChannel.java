@@ -0,0 +1,330 @@
+package se.sprinto.hakan.chatapp.tls;
+
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.LatencyHistogram;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TlsChannel runs TLS over a SocketChannel with an SSLEngine, so the encryption is separate from how
+ * the socket is driven. The chat uses it with a blocking channel per connection and exposes it as
+ * streams for the line-based protocol, and the same engine code works for a non-blocking channel.
+ * <p>
+ * The handshake runs once, before the streams are used. After it, reads only unwrap and writes only
+ * wrap, which SSLEngine allows from one reader and one writer thread at the same time, so heartbeat
+ * writes from the timer never wait for a blocked read. Handshake messages that arrive later, such as
+ * TLS 1.3 session tickets and key updates, are handled inside read.
+ * <p>
+ * A server context keeps a session cache, and a client engine created with the server's host and
+ * port offers its cached session, so a reconnecting client resumes instead of doing a full handshake.
+ */
+public class TlsChannel {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    // netIn and netOut are kept ready for filling, appIn is kept ready for reading
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final Counter handshakes;
+    private final Counter resumed;
+    private final Counter failed;
+    private final LatencyHistogram handshakeLatency;
+    private boolean handshakeDone;
+    private volatile boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return TlsChannel.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return TlsChannel.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsChannel.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            TlsChannel.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            TlsChannel.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsChannel.this.close();
+        }
+    };
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine, MetricsRegistry metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        this.handshakes = metrics.counter("tls.handshakes");
+        this.resumed = metrics.counter("tls.handshakes.resumed");
+        this.failed = metrics.counter("tls.handshakes.failed");
+        this.handshakeLatency = metrics.histogram("tls.handshake");
+    }
+
+    /**
+     * Wraps an accepted connection on the server side.
+     * @param channel The accepted channel, in blocking mode.
+     * @param context The server context from TlsSupport.
+     * @param metrics The registry for the handshake metrics.
+     * @return the TLS channel, the handshake has not run yet.
+     */
+    public static TlsChannel server(SocketChannel channel, SSLContext context, MetricsRegistry metrics) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine, metrics);
+    }
+
+    /**
+     * Wraps a connection on the client side. The host and port select the cached session to resume.
+     * @param channel The connected channel, in blocking mode.
+     * @param context The client context, reused for every connection so its session cache is kept.
+     * @param host The server host, also checked against the server certificate.
+     * @param port The server port.
+     * @param metrics The registry for the handshake metrics.
+     * @return the TLS channel, the handshake has not run yet.
+     */
+    public static TlsChannel client(SocketChannel channel, SSLContext context, String host, int port,
+                                    MetricsRegistry metrics) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        var parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine, metrics);
+    }
+
+    /**
+     * Runs the handshake. Called once before the streams are used, later calls return at once.
+     * @throws IOException will be thrown if the handshake failed or the peer closed the connection.
+     */
+    public void handshake() throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                if (handshakeDone) {
+                    return;
+                }
+                long start = System.nanoTime();
+                long startMillis = System.currentTimeMillis();
+                try {
+                    runHandshake();
+                } catch (IOException e) {
+                    failed.increment();
+                    throw e;
+                }
+                handshakeDone = true;
+                handshakes.increment();
+                // A resumed session was created by an earlier handshake
+                if (engine.getSession().getCreationTime() < startMillis) {
+                    resumed.increment();
+                }
+                handshakeLatency.recordSince(start);
+            }
+        }
+    }
+
+    private void runHandshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP -> status = wrap(ByteBuffer.allocate(0));
+                case NEED_UNWRAP -> {
+                    status = unwrap();
+                    if (status == null) {
+                        throw new EOFException("The peer closed the connection during the TLS handshake");
+                    }
+                }
+                case NEED_TASK -> status = runTasks();
+                // A TLS 1.3 server still has session tickets to send after FINISHED
+                case FINISHED -> status = engine.getHandshakeStatus();
+                default -> throw new SSLException("Unexpected handshake status " + status);
+            }
+        }
+    }
+
+    /**
+     * @return the negotiated session, after the handshake.
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Reads decrypted bytes, reading and unwrapping records from the socket as needed.
+     * @return the number of bytes read, or -1 when the peer closed the connection.
+     */
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (readLock) {
+            while (!appIn.hasRemaining()) {
+                SSLEngineResult.HandshakeStatus status = unwrap();
+                if (status == null) {
+                    return -1;
+                }
+                handlePostHandshake(status);
+            }
+            int n = Math.min(len, appIn.remaining());
+            appIn.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * Encrypts and sends bytes. Large writes are split into records by the engine.
+     */
+    private void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+        synchronized (writeLock) {
+            while (source.hasRemaining()) {
+                wrap(source);
+            }
+        }
+    }
+
+    /**
+     * Sends close_notify when possible and closes the socket. Safe to call more than once.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            synchronized (writeLock) {
+                if (channel.isOpen()) {
+                    wrap(ByteBuffer.allocate(0));
+                }
+            }
+        } catch (IOException ignored) {
+            // The peer is gone, there is nobody to tell
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Handles a handshake message that arrived after the handshake, such as a key update.
+     */
+    private void handlePostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                status = runTasks();
+            } else {
+                synchronized (writeLock) {
+                    status = wrap(ByteBuffer.allocate(0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Unwraps one record into appIn, reading from the socket until a whole record is there.
+     * Callers hold readLock.
+     * @return the handshake status, or null at the end of the stream.
+     */
+    private SSLEngineResult.HandshakeStatus unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK -> {
+                    return result.getHandshakeStatus();
+                }
+                case CLOSED -> {
+                    return null;
+                }
+                case BUFFER_OVERFLOW -> appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                case BUFFER_UNDERFLOW -> {
+                    if (!netIn.hasRemaining()) {
+                        throw new SSLException("TLS record larger than the packet buffer");
+                    }
+                    if (channel.read(netIn) < 0) {
+                        engine.closeInbound();
+                        return null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps bytes into netOut and writes them all to the socket. Callers hold writeLock.
+     * @return the handshake status after the wrap.
+     */
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer source) throws IOException {
+        SSLEngineResult result = engine.wrap(source, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record larger than the packet buffer");
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        netOut.clear();
+        return result.getHandshakeStatus();
+    }
+
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer readable, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, readable.capacity() * 2));
+        larger.put(readable).flip();
+        return larger;
+    }
+}
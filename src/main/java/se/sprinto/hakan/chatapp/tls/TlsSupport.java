@@ -0,0 +1,87 @@
+package se.sprinto.hakan.chatapp.tls;
+
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Creates the SSLContexts of the chat. A context is created once and shared by every connection,
+ * because the session cache that makes resumption possible lives in the context.
+ */
+public final class TlsSupport {
+    private static final String PROTOCOL = "TLS";
+
+    private TlsSupport() {
+    }
+
+    /**
+     * Creates the server context from the tls.* settings.
+     * @param config The server settings.
+     * @return the context, or null when tls.enabled is off.
+     * @throws IOException will be thrown if the keystore could not be read.
+     * @throws GeneralSecurityException will be thrown if the keystore or its key is invalid.
+     */
+    public static SSLContext serverContext(ServerConfig config) throws IOException, GeneralSecurityException {
+        if (!config.getBoolean("tls.enabled", false)) {
+            return null;
+        }
+        return serverContext(Path.of(config.getString("tls.keystore", "chat-server.p12")),
+                config.getString("tls.keystore-password", "").toCharArray(),
+                config.getInt("tls.session-cache-size", 20_000),
+                config.getInt("tls.session-timeout-seconds", 86_400));
+    }
+
+    /**
+     * Creates a server context from a PKCS12 keystore with the server's key and certificate.
+     * @param keystore The keystore file.
+     * @param password The password of the keystore and the key.
+     * @param sessionCacheSize The most sessions kept for resumption.
+     * @param sessionTimeoutSeconds How long a session can be resumed.
+     * @return the context.
+     * @throws IOException will be thrown if the keystore could not be read.
+     * @throws GeneralSecurityException will be thrown if the keystore or its key is invalid.
+     */
+    public static SSLContext serverContext(Path keystore, char[] password, int sessionCacheSize,
+                                           int sessionTimeoutSeconds) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(load(keystore, password), password);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keyManagers.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+        context.getServerSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+        return context;
+    }
+
+    /**
+     * Creates a client context that trusts the certificates in a keystore, for a self-signed server.
+     * Clients of a server with a CA-signed certificate can use SSLContext.getDefault() instead.
+     * @param truststore The keystore with the trusted certificates.
+     * @param password The password of the keystore.
+     * @return the context.
+     * @throws IOException will be thrown if the keystore could not be read.
+     * @throws GeneralSecurityException will be thrown if the keystore is invalid.
+     */
+    public static SSLContext clientContext(Path truststore, char[] password) throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(load(truststore, password));
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream input = Files.newInputStream(file)) {
+            keyStore.load(input, password);
+        }
+        return keyStore;
+    }
+}
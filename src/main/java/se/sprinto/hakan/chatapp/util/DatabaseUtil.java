@@ -5,11 +5,14 @@ import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.function.ToIntFunction;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
 
 import javax.sql.DataSource;
 
@@ -30,19 +33,50 @@ public class DatabaseUtil {
      * @param environment It is a parameter for test mode and product mode
      */
     private DatabaseUtil(String environment) {
-        properties = new Properties();
-        String propertiesFilename = environment.equalsIgnoreCase("test") ? "application-test.properties" : "application.properties";
-        try (InputStream input = ClassLoader.getSystemResourceAsStream(propertiesFilename)) {
-            properties.load(input);
-            logger.info("Successfully loaded application.properties.");
+        this(loadProperties(environment.equalsIgnoreCase("test") ? "application-test.properties" : "application.properties"));
+    }
+
+    /**
+     * Constructor for testing.
+     * @param properties The database settings, or null if they could not be loaded.
+     * @throws IllegalStateException will be thrown if the schema could not be migrated.
+     */
+    DatabaseUtil(Properties properties) {
+        this.properties = properties;
+        if (properties == null) {
+            return;
+        }
+        HikariDataSource hikariDataSource;
+        try {
             // Set a DataSource object
-            dataSource = createDataSource();
-        } catch (IOException e) {
-            logger.error("Failed to load application.properties.");
+            hikariDataSource = createDataSource();
+            registerPoolGauges(hikariDataSource);
         } catch (RuntimeException e) {
             logger.error("Failed to initialize DatabaseUtil", e);
+            return;
         }
+        if (getBoolean("db.migrate-on-startup")) {
+            try {
+                new SchemaMigrator(hikariDataSource).migrate();
+            } catch (SQLException | RuntimeException e) {
+                // On a half-migrated schema every save would fail later, so nothing may use the pool
+                hikariDataSource.close();
+                throw new IllegalStateException("Failed to migrate the database schema", e);
+            }
+        }
+        dataSource = hikariDataSource;
+    }
 
+    private static Properties loadProperties(String propertiesFilename) {
+        try (InputStream input = ClassLoader.getSystemResourceAsStream(propertiesFilename)) {
+            Properties properties = new Properties();
+            properties.load(input);
+            logger.info("Successfully loaded {}.", propertiesFilename);
+            return properties;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to load {}.", propertiesFilename);
+            return null;
+        }
     }
 
     /**
@@ -57,6 +91,7 @@ public class DatabaseUtil {
      * Returns the singleton using either "product" or "test" mode.
      * @param environment The parameter for the configuration
      * @return An instance of this class with the configuration depending on the parameter
+     * @throws IllegalStateException will be thrown if db.migrate-on-startup is set and the migration failed.
      */
     public static DatabaseUtil getInstance(String environment) {
         if (instance == null) {
@@ -134,6 +169,22 @@ public class DatabaseUtil {
         return new HikariDataSource(config);
     }
 
+    /**
+     * Registers the pool's active, idle and waiting counts as gauges in the MetricsRegistry.
+     * @param hikariDataSource The pool to observe.
+     */
+    private void registerPoolGauges(HikariDataSource hikariDataSource) {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("db.pool.active", () -> poolValue(hikariDataSource, HikariPoolMXBean::getActiveConnections));
+        metrics.gauge("db.pool.idle", () -> poolValue(hikariDataSource, HikariPoolMXBean::getIdleConnections));
+        metrics.gauge("db.pool.waiting", () -> poolValue(hikariDataSource, HikariPoolMXBean::getThreadsAwaitingConnection));
+    }
+
+    private static long poolValue(HikariDataSource hikariDataSource, ToIntFunction<HikariPoolMXBean> value) {
+        HikariPoolMXBean pool = hikariDataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : value.applyAsInt(pool);
+    }
+
     /**
      * Returns the active DataSource instance
      * @return the active DataSource instance
@@ -0,0 +1,164 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed wheel timer runs many coarse timeouts on one thread. Timeouts are hashed into the
+ * slots of a wheel by their deadline, and the thread visits one slot per tick, so scheduling and
+ * cancelling cost O(1) no matter how many timeouts are pending. Tasks run on the timer thread and
+ * must be short; anything that may block belongs on another thread.
+ */
+public class HashedWheelTimer {
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean started;
+    private volatile boolean stopped;
+    private long tick;
+
+    /**
+     * @param tickDuration The length of one tick, which is the precision of the timer.
+     * @param unit The unit of tickDuration.
+     * @param wheelSize The number of slots. Timeouts further away than one turn wait extra rounds.
+     * @param threadName The name of the timer thread.
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, String threadName) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive.");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = newWheel(wheelSize);
+        this.worker = new Thread(this::run, threadName);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Schedules a task. The timer thread is started by the first call.
+     * @param task The task to run on the timer thread.
+     * @param delay The delay before the task runs.
+     * @param unit The unit of delay.
+     * @return a handle that can cancel the task.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("The timer is stopped.");
+        }
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts never run.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private synchronized void start() {
+        if (!started) {
+            started = true;
+            worker.start();
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferPending();
+            expire(wheel[(int) (tick % wheel.length)], deadline);
+            tick++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Timeout>[] newWheel(int size) {
+        // Java has no generic array creation, and every slot is filled with a List<Timeout> right away
+        List<Timeout>[] wheel = (List<Timeout>[]) new List<?>[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        return wheel;
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // A deadline that has already passed goes into the current slot
+            long deadlineTick = Math.max(tick, timeout.deadlineNanos / tickNanos);
+            timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+            wheel[(int) (deadlineTick % wheel.length)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> slot, long tickDeadline) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Timeout timeout = slot.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.remainingRounds <= 0 && timeout.deadlineNanos <= tickDeadline) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timer task failed.", e);
+                }
+            } else {
+                timeout.remainingRounds--;
+                slot.set(kept++, timeout);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * A scheduled task. Cancelling only marks it; the timer thread drops it when it reaches its slot.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
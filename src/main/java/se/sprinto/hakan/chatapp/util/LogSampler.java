@@ -0,0 +1,54 @@
+package se.sprinto.hakan.chatapp.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogSampler decides whether a per-message log line should be written. Every second the first
+ * events up to a budget pass, after that only every n:th event passes. It is lock-free and keeps
+ * count of what it suppressed, so a sampled log line can say how much was left out.
+ */
+public class LogSampler {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxPerSecond;
+    private final int sampleRate;
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong eventsInWindow = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * @param maxPerSecond The number of events per second that always pass.
+     * @param sampleRate Pass one of this many events when the budget is used up. Zero or less drops them all.
+     */
+    public LogSampler(int maxPerSecond, int sampleRate) {
+        this.maxPerSecond = maxPerSecond;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Counts an event and checks whether it should be logged.
+     * @return true if the event should be logged.
+     */
+    public boolean shouldLog() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            eventsInWindow.set(0);
+        }
+        long event = eventsInWindow.incrementAndGet();
+        if (event <= maxPerSecond || (sampleRate > 0 && (event - maxPerSecond) % sampleRate == 0)) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of suppressed events since the last call and resets it.
+     * @return the number of events that were not logged.
+     */
+    public long drainSuppressed() {
+        return suppressed.getAndSet(0);
+    }
+}
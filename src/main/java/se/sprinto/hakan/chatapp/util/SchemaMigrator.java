@@ -0,0 +1,173 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SchemaMigrator owns the DDL of the database. It applies the versioned scripts in
+ * src/main/resources/db/migration that are newer than the version stored in the schema_version
+ * table, in order, and records each one when it is done.
+ * <p>
+ * Scripts are plain SQL that both MySQL and H2 accept. When the dialects differ, a script with the
+ * same name in db/migration/mysql or db/migration/h2 is used instead of the common one.
+ */
+public class SchemaMigrator {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+    private static final String MIGRATION_DIRECTORY = "db/migration";
+    static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "create_tables"),
+            new Migration(2, "widen_message_id"),
+            new Migration(3, "client_msg_id"),
+            new Migration(4, "hot_path_indexes"),
+            new Migration(5, "user_stats"));
+
+    private final DataSource dataSource;
+
+    /**
+     * @param dataSource The database to migrate.
+     */
+    public SchemaMigrator(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Applies every migration that has not been applied yet.
+     * @return the number of migrations applied.
+     * @throws SQLException will be thrown if a migration failed. Migrations before it stay applied.
+     */
+    public int migrate() throws SQLException {
+        try (Connection con = dataSource.getConnection()) {
+            createVersionTable(con);
+            int current = currentVersion(con);
+            String dialect = con.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version() <= current) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                // MySQL commits DDL implicitly, so each statement is applied on its own
+                try (Statement stmt = con.createStatement()) {
+                    for (String sql : splitStatements(loadScript(migration, dialect))) {
+                        stmt.execute(sql);
+                    }
+                }
+                recordVersion(con, migration);
+                applied++;
+                logger.info("Applied schema migration V{} {} in {} ms", migration.version(), migration.description(),
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+            if (applied == 0) {
+                logger.info("Database schema is up to date at version {}", current);
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Returns the latest migration applied to the database.
+     * @param con A connection to the database.
+     * @return the version, or 0 for an empty database.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    static int currentVersion(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void createVersionTable(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS schema_version (
+                    version INT PRIMARY KEY,
+                    description VARCHAR(100) NOT NULL,
+                    applied_at TIMESTAMP NOT NULL
+                    )
+                    """);
+        }
+    }
+
+    private static void recordVersion(Connection con, Migration migration) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(
+                "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)")) {
+            ps.setInt(1, migration.version());
+            ps.setString(2, migration.description());
+            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Reads a migration script, preferring the version for the dialect of the database.
+     * @param migration The migration to read.
+     * @param dialect The lower-case database product name, "mysql" or "h2".
+     * @return the script.
+     */
+    private static String loadScript(Migration migration, String dialect) {
+        ClassLoader classLoader = SchemaMigrator.class.getClassLoader();
+        String dialectResource = MIGRATION_DIRECTORY + "/" + dialect + "/" + migration.fileName();
+        String commonResource = MIGRATION_DIRECTORY + "/" + migration.fileName();
+        InputStream input = classLoader.getResourceAsStream(dialectResource);
+        if (input == null) {
+            input = classLoader.getResourceAsStream(commonResource);
+        }
+        if (input == null) {
+            throw new IllegalStateException("Missing migration script " + commonResource + " for " + dialect);
+        }
+        try (InputStream script = input) {
+            return new String(script.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read migration script " + migration.fileName(), e);
+        }
+    }
+
+    /**
+     * Splits a script into statements. Statements end with a semicolon at the end of a line, and
+     * lines starting with "--" are comments.
+     * @param script The script to split.
+     * @return the statements without their semicolons.
+     */
+    static List<String> splitStatements(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : script.split("\\R")) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                continue;
+            }
+            if (trimmed.endsWith(";")) {
+                current.append(trimmed, 0, trimmed.length() - 1);
+                statements.add(current.toString().strip());
+                current.setLength(0);
+            } else {
+                current.append(trimmed).append('\n');
+            }
+        }
+        if (!current.isEmpty()) {
+            statements.add(current.toString().strip());
+        }
+        return statements;
+    }
+
+    /**
+     * One versioned script, db/migration/V{version}__{description}.sql.
+     * @param version The version the database has after the script.
+     * @param description The name of the script.
+     */
+    record Migration(int version, String description) {
+        String fileName() {
+            return "V" + version + "__" + description + ".sql";
+        }
+    }
+}
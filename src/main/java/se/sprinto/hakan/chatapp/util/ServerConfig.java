@@ -0,0 +1,104 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * ServerConfig is a singleton that gives the chat server access to its settings in
+ * application.properties. Every getter takes a default value, so a missing key never stops the server.
+ */
+public class ServerConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
+    private static final String PROPERTIES_FILENAME = "application.properties";
+    private static ServerConfig instance;
+    private final Properties properties;
+
+    /**
+     * Constructor for testing.
+     * @param properties The settings to use.
+     */
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the singleton loaded from application.properties.
+     * @return An instance of this class.
+     */
+    public static synchronized ServerConfig getInstance() {
+        if (instance == null) {
+            Properties properties = new Properties();
+            try (InputStream input = ClassLoader.getSystemResourceAsStream(PROPERTIES_FILENAME)) {
+                if (input != null) {
+                    properties.load(input);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to load {}.", PROPERTIES_FILENAME, e);
+            }
+            instance = new ServerConfig(properties);
+        }
+        return instance;
+    }
+
+    /**
+     * Property access helper for String values.
+     * @param key The key for properties.
+     * @param defaultValue The value to use if the key is missing.
+     * @return a property value.
+     */
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue).trim();
+    }
+
+    /**
+     * Property access helper for int values.
+     * @param key The key for properties.
+     * @param defaultValue The value to use if the key is missing.
+     * @return a property value.
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Property access helper for long values.
+     * @param key The key for properties.
+     * @param defaultValue The value to use if the key is missing.
+     * @return a property value.
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Property access helper for boolean values.
+     * @param key The key for properties.
+     * @param defaultValue The value to use if the key is missing.
+     * @return a property value.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Property access helper for comma separated values.
+     * @param key The key for properties.
+     * @return the values, without blanks. Empty if the key is missing.
+     */
+    public Set<String> getSet(String key) {
+        return Arrays.stream(properties.getProperty(key, "").split(","))
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+}
@@ -0,0 +1,81 @@
+package se.sprinto.hakan.chatapp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Generates time-ordered 64-bit ids without a database round-trip. An id is made of 41 bits of
+ * milliseconds since {@link #EPOCH}, 10 bits of node id and a 12-bit sequence within the
+ * millisecond, so ids from different servers never collide and sort by creation time.
+ * <p>
+ * The last timestamp and sequence live in one AtomicLong that is advanced with compare-and-set.
+ * When more than 4096 ids are needed in one millisecond, or the clock moves backwards, the
+ * generator keeps counting on from the last id instead of waiting, so ids stay unique and
+ * increasing on every node.
+ */
+public class SnowflakeIdGenerator {
+    public static final long EPOCH = 1735689600000L; // 2025-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private final long nodeBits;
+    private final LongSupplier clock;
+    // (milliseconds since EPOCH << SEQUENCE_BITS) | sequence of the last id
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * @param nodeId The id of this server, between 0 and 1023, unique within the cluster.
+     */
+    public SnowflakeIdGenerator(int nodeId) {
+        this(nodeId, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor for testing.
+     * @param nodeId The id of this server, between 0 and 1023.
+     * @param clock The source of time in epoch milliseconds.
+     */
+    public SnowflakeIdGenerator(int nodeId, LongSupplier clock) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+        }
+        this.nodeBits = (long) nodeId << SEQUENCE_BITS;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the next id.
+     * @return a positive id, larger than every id this generator returned before.
+     */
+    public long nextId() {
+        long now = Math.max(0, clock.getAsLong() - EPOCH) << SEQUENCE_BITS;
+        long previous;
+        long next;
+        do {
+            previous = state.get();
+            next = Math.max(now, previous + 1);
+        } while (!state.compareAndSet(previous, next));
+        long timestamp = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | nodeBits | sequence;
+    }
+
+    /**
+     * Reads the creation time back from an id.
+     * @param id An id from any generator with the same epoch.
+     * @return the epoch milliseconds when the id was generated.
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * Reads the node id back from an id.
+     * @param id An id from any generator.
+     * @return the node id of the generator that created it.
+     */
+    public static int nodeOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+    }
+}
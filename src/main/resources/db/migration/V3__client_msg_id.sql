@@ -0,0 +1,4 @@
+-- The id a client attaches to a message, so a retried message is only saved once
+ALTER TABLE messages ADD client_msg_id BIGINT;
+
+ALTER TABLE messages ADD CONSTRAINT uq_messages_client_msg_id UNIQUE (user_id, client_msg_id);
@@ -0,0 +1,8 @@
+-- login looks users up by username
+ALTER TABLE users ADD CONSTRAINT uq_users_username UNIQUE (username);
+
+-- getMessagesByUserId filters on user_id and sorts by timestamp
+CREATE INDEX idx_messages_user_timestamp ON messages (user_id, timestamp, message_id);
+
+-- getMessagesBetween reads a time range in order
+CREATE INDEX idx_messages_timestamp ON messages (timestamp, message_id);
@@ -0,0 +1,16 @@
+-- Per-user message statistics, checkpointed from ChatStatistics instead of counted over messages
+CREATE TABLE IF NOT EXISTS user_stats (
+    user_id INT PRIMARY KEY,
+    message_count BIGINT NOT NULL,
+    first_at TIMESTAMP NOT NULL,
+    last_at TIMESTAMP NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(user_id)
+);
+
+-- The last message the checkpoint covers, a rebuild counts the messages after it. There is one row
+CREATE TABLE IF NOT EXISTS stats_checkpoint (
+    checkpoint_id INT PRIMARY KEY,
+    through_timestamp TIMESTAMP NOT NULL,
+    through_message_id BIGINT NOT NULL,
+    checkpointed_at TIMESTAMP NOT NULL
+);
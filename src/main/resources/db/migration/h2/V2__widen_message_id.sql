@@ -0,0 +1,2 @@
+-- Message ids come from SnowflakeIdGenerator and need 64 bits
+ALTER TABLE messages ALTER COLUMN message_id SET DATA TYPE BIGINT;
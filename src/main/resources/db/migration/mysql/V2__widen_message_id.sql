@@ -0,0 +1,2 @@
+-- Message ids come from SnowflakeIdGenerator and need 64 bits
+ALTER TABLE messages MODIFY message_id BIGINT AUTO_INCREMENT;
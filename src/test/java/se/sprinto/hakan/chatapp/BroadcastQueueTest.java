@@ -0,0 +1,78 @@
+package se.sprinto.hakan.chatapp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BroadcastQueueTest {
+
+    @Test
+    @DisplayName("Frames numbered and queued by many senders at once are written in number order")
+    void writesInSequenceOrder() throws Exception {
+        // Arrange
+        BroadcastQueue queue = new BroadcastQueue(100_000);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        Object fanOutLock = new Object();
+        int[] nextSeq = {0};
+        int senders = 8;
+        int perSender = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(senders);
+
+        // Act
+        List<Future<?>> done = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            done.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perSender; i++) {
+                    synchronized (fanOutLock) {
+                        assertTrue(queue.offer(Integer.toString(nextSeq[0]++)));
+                    }
+                    queue.drain(frame -> written.add(Integer.parseInt(frame)));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> sender : done) {
+            sender.get();
+        }
+        pool.shutdown();
+
+        // Assert
+        assertEquals(senders * perSender, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(i, written.get(i));
+        }
+    }
+
+    @Test
+    @DisplayName("A full queue refuses more frames until it is written")
+    void refusesWhenFull() {
+        // Arrange
+        BroadcastQueue queue = new BroadcastQueue(2);
+        List<String> written = new ArrayList<>();
+
+        // Act
+        boolean first = queue.offer("[#1] a: 1");
+        boolean second = queue.offer("[#2] a: 2");
+        boolean third = queue.offer("[#3] a: 3");
+        queue.drain(written::add);
+
+        // Assert
+        assertTrue(first);
+        assertTrue(second);
+        assertFalse(third);
+        assertEquals(List.of("[#1] a: 1", "[#2] a: 2"), written);
+        assertTrue(queue.offer("[#4] a: 4"));
+    }
+}
@@ -0,0 +1,34 @@
+package se.sprinto.hakan.chatapp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatClientTest {
+
+    @Test
+    @DisplayName("A download gets a free name in the downloads directory and never replaces a file")
+    void downloadsNeverReplaceFiles(@TempDir Path dir) throws IOException {
+        // Arrange
+        Path downloads = dir.resolve("downloads");
+        Files.createDirectories(downloads);
+        Files.writeString(downloads.resolve("chat-client.seq"), "42");
+
+        // Act
+        Path first = ChatClient.newDownloadFile(downloads, "../chat-client.seq");
+        Path second = ChatClient.newDownloadFile(downloads, "chat-client.seq");
+        Path dots = ChatClient.newDownloadFile(downloads, "..");
+
+        // Assert
+        assertEquals("42", Files.readString(downloads.resolve("chat-client.seq")));
+        assertEquals(downloads.resolve("chat-client-1.seq"), first);
+        assertEquals(downloads.resolve("chat-client-2.seq"), second);
+        assertEquals(downloads.resolve("fil"), dots);
+    }
+}
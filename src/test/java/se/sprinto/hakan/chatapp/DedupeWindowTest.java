@@ -0,0 +1,70 @@
+package se.sprinto.hakan.chatapp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupeWindowTest {
+
+    @Test
+    @DisplayName("An id is only accepted once within the window")
+    void rejectsDuplicates() {
+        // Arrange
+        DedupeWindow window = new DedupeWindow(16, 1000);
+
+        // Act & Assert
+        assertTrue(window.firstSeen(7, 0));
+        assertTrue(window.firstSeen(8, 10));
+        assertFalse(window.firstSeen(7, 20));
+        assertFalse(window.firstSeen(8, 999));
+    }
+
+    @Test
+    @DisplayName("An id is accepted again after it has expired")
+    void forgetsExpiredIds() {
+        // Arrange
+        DedupeWindow window = new DedupeWindow(16, 1000);
+        window.firstSeen(7, 0);
+
+        // Act
+        boolean accepted = window.firstSeen(7, 1000);
+
+        // Assert
+        assertTrue(accepted);
+        assertEquals(1, window.size());
+    }
+
+    @Test
+    @DisplayName("A full window drops its oldest ids and still finds the remaining ones")
+    void dropsOldestWhenFull() {
+        // Arrange
+        DedupeWindow window = new DedupeWindow(100, Long.MAX_VALUE);
+
+        // Act
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(window.firstSeen(id * 1024, id));
+        }
+
+        // Assert
+        assertEquals(100, window.size());
+        for (long id = 901; id <= 1000; id++) {
+            assertFalse(window.firstSeen(id * 1024, 1001), "id " + id + " should still be remembered");
+        }
+        assertTrue(window.firstSeen(900 * 1024, 1001));
+    }
+
+    @Test
+    @DisplayName("expire reports an empty window once every id has expired")
+    void expiresToEmpty() {
+        // Arrange
+        DedupeWindow window = new DedupeWindow(16, 1000);
+        window.firstSeen(7, 0);
+        window.firstSeen(8, 500);
+
+        // Act & Assert
+        assertFalse(window.expire(1000));
+        assertEquals(1, window.size());
+        assertTrue(window.expire(1500));
+    }
+}
@@ -0,0 +1,106 @@
+package se.sprinto.hakan.chatapp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayWindowTest {
+
+    private static long seqOf(String frame) {
+        return Long.parseLong(frame.substring(2, frame.indexOf(']')));
+    }
+
+    @Test
+    @DisplayName("Sequence numbers grow, also within the same millisecond")
+    void monotonicSequence() {
+        // Arrange
+        ReplayWindow window = new ReplayWindow(10);
+        long now = System.currentTimeMillis();
+
+        // Act
+        long first = seqOf(window.append(now, "a: 1"));
+        long second = seqOf(window.append(now, "a: 2"));
+        long third = seqOf(window.append(now - 1000, "a: 3"));
+
+        // Assert
+        assertTrue(first < second);
+        assertTrue(second < third);
+    }
+
+    @Test
+    @DisplayName("A gap inside the window is replayed without the database")
+    void gapInsideWindow() {
+        // Arrange
+        ReplayWindow window = new ReplayWindow(10);
+        long now = System.currentTimeMillis();
+        long seen = seqOf(window.append(now, "a: 1"));
+        window.append(now, "b: 2");
+        window.append(now, "a: 3");
+
+        // Act
+        ReplayWindow.Replay replay = window.since(seen);
+
+        // Assert
+        assertTrue(replay.complete());
+        assertEquals(2, replay.frames().size());
+        assertTrue(replay.frames().get(0).endsWith("b: 2"));
+        assertTrue(replay.frames().get(1).endsWith("a: 3"));
+    }
+
+    @Test
+    @DisplayName("A gap older than the window needs the database")
+    void gapOutsideWindow() {
+        // Arrange
+        ReplayWindow window = new ReplayWindow(2);
+        long now = System.currentTimeMillis();
+        long seen = seqOf(window.append(now, "a: 1"));
+        window.append(now, "a: 2");
+        window.append(now, "a: 3");
+        window.append(now, "a: 4");
+
+        // Act
+        ReplayWindow.Replay replay = window.since(seen);
+
+        // Assert
+        assertFalse(replay.complete());
+        assertEquals(List.of("a: 3", "a: 4"), replay.frames().stream().map(f -> f.substring(f.indexOf(' ') + 1)).toList());
+        assertFalse(replay.databaseFrom().isAfter(replay.databaseUntil()));
+    }
+
+    @Test
+    @DisplayName("A client that has no sequence number yet gets nothing replayed")
+    void nothingForNewClient() {
+        // Arrange
+        ReplayWindow window = new ReplayWindow(2);
+        long now = System.currentTimeMillis();
+        window.append(now, "a: 1");
+        window.append(now, "a: 2");
+        window.append(now, "a: 3");
+
+        // Act
+        ReplayWindow.Replay replay = window.since(0);
+
+        // Assert
+        assertTrue(replay.complete());
+        assertTrue(replay.frames().isEmpty());
+        assertNull(replay.databaseFrom());
+    }
+
+    @Test
+    @DisplayName("Nothing is replayed for the latest sequence number")
+    void nothingMissed() {
+        // Arrange
+        ReplayWindow window = new ReplayWindow(2);
+        long seen = seqOf(window.append(System.currentTimeMillis(), "a: 1"));
+
+        // Act
+        ReplayWindow.Replay replay = window.since(seen);
+
+        // Assert
+        assertTrue(replay.complete());
+        assertTrue(replay.frames().isEmpty());
+    }
+}
@@ -0,0 +1,52 @@
+package se.sprinto.hakan.chatapp;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerBootstrapTest {
+
+    @Test
+    @DisplayName("Warming a pool opens its min-idle connections before any client asks for one")
+    void warmsPoolToMinIdle() throws SQLException {
+        // Arrange
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:bootstrap;DB_CLOSE_DELAY=-1");
+        config.setUsername("sa");
+        config.setMinimumIdle(3);
+        config.setMaximumPoolSize(5);
+        try (HikariDataSource pool = new HikariDataSource(config)) {
+            new SchemaMigrator(pool).migrate();
+
+            // Act
+            int warmed = ServerBootstrap.warmPool(pool);
+
+            // Assert
+            assertEquals(3, warmed);
+            assertTrue(pool.getHikariPoolMXBean().getTotalConnections() >= 3);
+            assertEquals(0, pool.getHikariPoolMXBean().getActiveConnections());
+        }
+    }
+
+    @Test
+    @DisplayName("A database without the schema fails the warm-up without stopping the start")
+    void survivesFailedWarmup() {
+        // Arrange
+        JdbcDataSource empty = new JdbcDataSource();
+        empty.setURL("jdbc:h2:mem:bootstrap_empty");
+        empty.setUser("sa");
+
+        // Act
+        int warmed = ServerBootstrap.warmPool(empty);
+
+        // Assert
+        assertEquals(0, warmed);
+    }
+}
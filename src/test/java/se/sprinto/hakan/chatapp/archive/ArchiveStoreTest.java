@@ -0,0 +1,83 @@
+package se.sprinto.hakan.chatapp.archive;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveStoreTest {
+    private static final LocalDateTime JANUARY = LocalDateTime.of(2025, 1, 10, 12, 0, 0, 123_000_000);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisplayName("Archived messages are read back per user in order, also after reopening the archive")
+    void appendAndReadBack() throws IOException {
+        // Arrange
+        ArchiveStore store = new ArchiveStore(directory);
+        store.append(List.of(
+                new Message(3, 1, "tredje", JANUARY.plusMonths(1)),
+                new Message(1, 1, "första", JANUARY),
+                new Message(2, 2, "annan användare", JANUARY.plusMinutes(1))));
+        store.append(List.of(new Message(4, 1, "fjärde", JANUARY.plusMonths(1).plusDays(1))));
+
+        // Act
+        List<Message> messages = new ArrayList<>();
+        new ArchiveStore(directory).forEachMessageByUserId(1, messages::add);
+
+        // Assert
+        assertEquals(List.of("första", "tredje", "fjärde"), messages.stream().map(Message::getText).toList());
+        assertEquals(JANUARY, messages.get(0).getTimestamp());
+        assertEquals(1, messages.get(0).getId());
+        assertTrue(Files.exists(directory.resolve("messages-2025-01.data")));
+        assertTrue(Files.exists(directory.resolve("messages-2025-02.index")));
+        assertEquals(4, store.blockCount());
+    }
+
+    @Test
+    @DisplayName("A time range returns the newest messages of all users up to the limit, oldest first")
+    void getMessagesBetween() throws IOException {
+        // Arrange
+        ArchiveStore store = new ArchiveStore(directory);
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(new Message(i + 1, i % 3, "meddelande " + i, JANUARY.plusHours(i)));
+        }
+        store.append(batch);
+
+        // Act
+        List<Message> messages = store.getMessagesBetween(JANUARY.plusHours(5), JANUARY.plusHours(15), 4);
+
+        // Assert
+        assertEquals(List.of("meddelande 11", "meddelande 12", "meddelande 13", "meddelande 14"),
+                messages.stream().map(Message::getText).toList());
+    }
+
+    @Test
+    @DisplayName("A torn index entry after a crash is ignored and overwritten by the next append")
+    void ignoresTornIndexEntry() throws IOException {
+        // Arrange
+        new ArchiveStore(directory).append(List.of(new Message(1, 1, "före kraschen", JANUARY)));
+        Files.write(directory.resolve("messages-2025-01.index"), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        // Act
+        ArchiveStore reopened = new ArchiveStore(directory);
+        reopened.append(List.of(new Message(2, 1, "efter kraschen", JANUARY.plusDays(1))));
+        List<Message> messages = new ArrayList<>();
+        new ArchiveStore(directory).forEachMessageByUserId(1, messages::add);
+
+        // Assert
+        assertEquals(List.of("före kraschen", "efter kraschen"), messages.stream().map(Message::getText).toList());
+    }
+}
@@ -0,0 +1,98 @@
+package se.sprinto.hakan.chatapp.archive;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.sprinto.hakan.chatapp.dao.MessageListDAO;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredMessageDAOTest {
+    @TempDir
+    Path directory;
+
+    private MessageListDAO hot;
+    private ArchiveStore archive;
+    private TieredMessageDAO tiered;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        hot = new MessageListDAO();
+        archive = new ArchiveStore(directory);
+        tiered = new TieredMessageDAO(hot, archive);
+        LocalDateTime now = LocalDateTime.now();
+        for (int days = 9; days >= 0; days--) {
+            tiered.saveMessage(new Message(100 - days, 1, "för " + days + " dagar sedan", now.minusDays(days * 30L)));
+        }
+    }
+
+    @Test
+    @DisplayName("The archive job moves old messages and reads still return the whole history in order")
+    void readsBothTiers() throws IOException {
+        // Arrange
+        MetricsRegistry metrics = new MetricsRegistry();
+        ArchiveJob job = new ArchiveJob(hot, archive, Duration.ofDays(100), 3, 0, metrics);
+
+        // Act
+        int moved = job.runOnce();
+        List<Message> history = tiered.getMessagesByUserId(1);
+
+        // Assert
+        assertEquals(6, moved);
+        assertEquals(4, hot.getMessagesByUserId(1).size());
+        assertEquals(6, metrics.counter("archive.messages").get());
+        assertEquals(10, history.size());
+        assertEquals("för 9 dagar sedan", history.get(0).getText());
+        assertEquals("för 0 dagar sedan", history.get(9).getText());
+    }
+
+    @Test
+    @DisplayName("A message that was archived but not deleted from the hot table is only read once")
+    void skipsCopiesInHotTable() throws IOException {
+        // Arrange
+        archive.append(hot.findOlderThan(LocalDateTime.now().minusDays(100), 100));
+
+        // Act
+        List<Message> history = tiered.getMessagesByUserId(1);
+        List<Message> between = tiered.getMessagesBetween(LocalDateTime.now().minusYears(1), LocalDateTime.now().plusDays(1), 100);
+
+        // Assert
+        assertEquals(10, history.size());
+        assertEquals(10, between.size());
+    }
+
+    @Test
+    @DisplayName("Paging through the history reads both tiers in order, once each, a page at a time")
+    void pagesThroughBothTiers() throws IOException {
+        // Arrange
+        // Archived twice and not deleted from the hot table, as after two crashes
+        List<Message> old = hot.findOlderThan(LocalDateTime.now().minusDays(100), 100);
+        archive.append(old);
+        archive.append(old);
+        List<Message> history = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+
+        // Act
+        List<Message> page = tiered.getMessagesByUserIdAfter(1, null, 4);
+        while (!page.isEmpty()) {
+            pageSizes.add(page.size());
+            history.addAll(page);
+            page = tiered.getMessagesByUserIdAfter(1, page.get(page.size() - 1), 4);
+        }
+
+        // Assert
+        assertEquals(List.of(4, 4, 2), pageSizes);
+        assertEquals(tiered.getMessagesByUserId(1).stream().map(Message::getId).toList(),
+                history.stream().map(Message::getId).toList());
+    }
+}
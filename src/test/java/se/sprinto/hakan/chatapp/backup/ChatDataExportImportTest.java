@@ -0,0 +1,255 @@
+package se.sprinto.hakan.chatapp.backup;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.sprinto.hakan.chatapp.archive.ArchiveStore;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.shard.ConsistentHashRing;
+import se.sprinto.hakan.chatapp.shard.Shard;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatDataExportImportTest {
+    private JdbcDataSource source;
+    private JdbcDataSource target;
+    private final List<JdbcDataSource> shardDataSources = new ArrayList<>();
+
+    @TempDir
+    Path archiveDirectory;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        source = dataSource("export_source");
+        target = dataSource("export_target");
+        new SchemaMigrator(source).migrate();
+        new SchemaMigrator(target).migrate();
+        try (Connection con = source.getConnection();
+             PreparedStatement users = con.prepareStatement("INSERT INTO users (user_id, username, password) VALUES (?, ?, ?)");
+             PreparedStatement messages = con.prepareStatement(
+                     "INSERT INTO messages (message_id, text, timestamp, user_id, client_msg_id) VALUES (?, ?, ?, ?, ?)")) {
+            for (int userId = 1; userId <= 3; userId++) {
+                users.setInt(1, userId);
+                users.setString(2, "user" + userId);
+                users.setString(3, "hash" + userId);
+                users.executeUpdate();
+            }
+            LocalDateTime start = LocalDateTime.of(2025, 3, 1, 12, 0, 0, 123_000_000);
+            for (int i = 1; i <= 250; i++) {
+                messages.setLong(1, 1_000_000_000_000L + i);
+                messages.setString(2, "Meddelande " + i + " åäö");
+                messages.setTimestamp(3, Timestamp.valueOf(start.plusSeconds(i)));
+                messages.setInt(4, i % 3 + 1);
+                if (i % 2 == 0) {
+                    messages.setLong(5, i);
+                } else {
+                    messages.setNull(5, Types.BIGINT);
+                }
+                messages.executeUpdate();
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        List<JdbcDataSource> dataSources = new ArrayList<>(List.of(source, target));
+        dataSources.addAll(shardDataSources);
+        for (JdbcDataSource dataSource : dataSources) {
+            try (Connection con = dataSource.getConnection();
+                 Statement stmt = con.createStatement()) {
+                stmt.execute("DROP ALL OBJECTS");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("An export imported into an empty database gives the same rows")
+    void roundTripsAllRows() throws Exception {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        TransferProgress exported = new TransferProgress("Export", 0);
+        TransferProgress imported = new TransferProgress("Import", 0);
+
+        // Act
+        new ChatDataExporter(source, 50).exportAll(file, exported);
+        new ChatDataImporter(target, 64).importAll(new ByteArrayInputStream(file.toByteArray()), imported);
+
+        // Assert
+        assertEquals(3, exported.getUsers());
+        assertEquals(250, exported.getMessages());
+        assertEquals(exported.getRows(), imported.getRows());
+        assertEquals(rows(source, "SELECT user_id, username, password FROM users ORDER BY user_id"),
+                rows(target, "SELECT user_id, username, password FROM users ORDER BY user_id"));
+        String messages = "SELECT message_id, text, timestamp, user_id, client_msg_id FROM messages ORDER BY message_id";
+        assertEquals(rows(source, messages), rows(target, messages));
+    }
+
+    @Test
+    @DisplayName("A user export only contains that user and the user's messages")
+    void exportsOneUser() throws Exception {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        TransferProgress exported = new TransferProgress("Export", 0);
+
+        // Act
+        new ChatDataExporter(source, 50).exportUser(file, 2, exported);
+        new ChatDataImporter(target, 64).importAll(new ByteArrayInputStream(file.toByteArray()), new TransferProgress("Import", 0));
+
+        // Assert
+        assertEquals(1, exported.getUsers());
+        assertEquals(84, exported.getMessages());
+        assertEquals(List.of(List.of("2", "user2")), rows(target, "SELECT user_id, username FROM users"));
+        assertEquals(List.of(List.of("84")), rows(target, "SELECT COUNT(*) FROM messages WHERE user_id = 2"));
+        assertEquals(List.of(List.of("84")), rows(target, "SELECT COUNT(*) FROM messages"));
+    }
+
+    @Test
+    @DisplayName("A truncated export file is rejected and the open batch is rolled back")
+    void rejectsTruncatedFile() throws Exception {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        new ChatDataExporter(source, 50).exportAll(file, new TransferProgress("Export", 0));
+        byte[] bytes = file.toByteArray();
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> new ChatDataImporter(target, 1000)
+                .importAll(new ByteArrayInputStream(truncated), new TransferProgress("Import", 0)));
+        assertEquals(List.of(List.of("0")), rows(target, "SELECT COUNT(*) FROM messages"));
+    }
+
+    @Test
+    @DisplayName("A sharded export reads the messages of every shard and the import routes them by user")
+    void roundTripsShardedMessages() throws Exception {
+        // Arrange
+        List<String> names = List.of("x", "y");
+        ConsistentHashRing ring = new ConsistentHashRing(names, 64);
+        List<Shard> sourceShards = shards("export_source_", names);
+        List<Shard> targetShards = shards("export_target_", names);
+        // Move the messages to the shards the server would have written them to
+        for (Shard shard : sourceShards) {
+            try (Connection con = shard.dataSource().getConnection();
+                 PreparedStatement users = con.prepareStatement("INSERT INTO users (user_id, username, password) VALUES (?, ?, '')");
+                 PreparedStatement messages = con.prepareStatement(
+                         "INSERT INTO messages (message_id, text, timestamp, user_id, client_msg_id) VALUES (?, ?, ?, ?, ?)")) {
+                for (List<String> user : rows(source, "SELECT user_id, username FROM users")) {
+                    users.setInt(1, Integer.parseInt(user.get(0)));
+                    users.setString(2, user.get(1));
+                    users.executeUpdate();
+                }
+                for (List<String> message : rows(source, "SELECT message_id, text, timestamp, user_id, client_msg_id FROM messages")) {
+                    if (ring.shardFor(Integer.parseInt(message.get(3))).equals(shard.name())) {
+                        messages.setLong(1, Long.parseLong(message.get(0)));
+                        messages.setString(2, message.get(1));
+                        messages.setTimestamp(3, Timestamp.valueOf(message.get(2)));
+                        messages.setInt(4, Integer.parseInt(message.get(3)));
+                        messages.setObject(5, message.get(4) == null ? null : Long.parseLong(message.get(4)), Types.BIGINT);
+                        messages.executeUpdate();
+                    }
+                }
+            }
+        }
+        try (Connection con = source.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DELETE FROM messages");
+        }
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        TransferProgress exported = new TransferProgress("Export", 0);
+
+        // Act
+        new ChatDataExporter(source, sourceShards.stream().map(Shard::dataSource).toList(), null, 50).exportAll(file, exported);
+        new ChatDataImporter(target, targetShards, ring, 64)
+                .importAll(new ByteArrayInputStream(file.toByteArray()), new TransferProgress("Import", 0));
+
+        // Assert
+        assertEquals(250, exported.getMessages());
+        assertEquals(List.of(List.of("3")), rows(target, "SELECT COUNT(*) FROM users"));
+        assertEquals(List.of(List.of("0")), rows(target, "SELECT COUNT(*) FROM messages"));
+        String messages = "SELECT message_id, text, timestamp, user_id, client_msg_id FROM messages ORDER BY message_id";
+        for (int i = 0; i < names.size(); i++) {
+            assertNotEquals(List.of(List.of("0")), rows(targetShards.get(i).dataSource(), "SELECT COUNT(*) FROM messages"));
+            assertEquals(rows(sourceShards.get(i).dataSource(), messages), rows(targetShards.get(i).dataSource(), messages));
+        }
+    }
+
+    @Test
+    @DisplayName("An export with an archive holds the archived messages once, next to the ones in the table")
+    void exportsArchivedMessages() throws Exception {
+        // Arrange
+        String columns = "SELECT message_id, text, timestamp, user_id FROM messages ORDER BY message_id";
+        List<List<String>> original = rows(source, columns);
+        List<Message> archived = new ArrayList<>();
+        for (List<String> row : original.subList(0, 100)) {
+            archived.add(new Message(Long.parseLong(row.get(0)), Integer.parseInt(row.get(3)), row.get(1),
+                    Timestamp.valueOf(row.get(2)).toLocalDateTime()));
+        }
+        ArchiveStore archive = new ArchiveStore(archiveDirectory);
+        archive.append(archived);
+        // The last ten were archived but a crash hit before they were deleted from the table
+        try (Connection con = source.getConnection();
+             PreparedStatement ps = con.prepareStatement("DELETE FROM messages WHERE message_id <= ?")) {
+            ps.setLong(1, archived.get(89).getId());
+            assertEquals(90, ps.executeUpdate());
+        }
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        TransferProgress exported = new TransferProgress("Export", 0);
+
+        // Act
+        new ChatDataExporter(source, List.of(source), archive, 50).exportAll(file, exported);
+        new ChatDataImporter(target, 64).importAll(new ByteArrayInputStream(file.toByteArray()), new TransferProgress("Import", 0));
+
+        // Assert
+        assertEquals(250, exported.getMessages());
+        assertEquals(original, rows(target, columns));
+    }
+
+    private List<Shard> shards(String prefix, List<String> names) throws SQLException {
+        List<Shard> shards = new ArrayList<>();
+        for (String name : names) {
+            JdbcDataSource dataSource = dataSource(prefix + name);
+            new SchemaMigrator(dataSource).migrate();
+            shardDataSources.add(dataSource);
+            shards.add(new Shard(name, dataSource));
+        }
+        return shards;
+    }
+
+    private static JdbcDataSource dataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        return dataSource;
+    }
+
+    private static List<List<String>> rows(DataSource dataSource, String sql) throws SQLException {
+        List<List<String>> rows = new ArrayList<>();
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 1; i <= columns; i++) {
+                    row.add(rs.getString(i));
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
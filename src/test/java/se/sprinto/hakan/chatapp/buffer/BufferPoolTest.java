@@ -0,0 +1,128 @@
+package se.sprinto.hakan.chatapp.buffer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    private MetricsRegistry metrics;
+    private BufferPool pool;
+
+    @BeforeEach
+    void setUp() {
+        metrics = new MetricsRegistry();
+        pool = new BufferPool("test", new int[]{16, 64}, 2, false, true, metrics);
+    }
+
+    @Test
+    @DisplayName("Released buffers are reused up to the bound and oversized requests are not pooled")
+    void reusesBuffers() {
+        // Arrange
+        PooledBuffer first = pool.acquire(10);
+        PooledBuffer second = pool.acquire(10);
+        PooledBuffer third = pool.acquire(10);
+        PooledBuffer oversized = pool.acquire(100);
+
+        // Act
+        first.release();
+        second.release();
+        third.release();
+        oversized.release();
+        PooledBuffer reused = pool.acquire(16);
+        long utilization = metrics.readGauge("buffers.test.utilization-percent");
+
+        // Assert
+        assertEquals(16, reused.buffer().capacity());
+        assertEquals(100, oversized.buffer().capacity());
+        assertEquals(4, metrics.snapshot().get("buffers.test.allocated"));
+        assertEquals(5, metrics.snapshot().get("buffers.test.acquired"));
+        assertEquals(1, pool.inUse());
+        assertEquals(16, metrics.readGauge("buffers.test.pooled-bytes"));
+        assertEquals(50, utilization);
+        assertThrows(IllegalStateException.class, first::release);
+        reused.release();
+    }
+
+    @Test
+    @DisplayName("A buffer that is dropped without release is reported as a leak")
+    void detectsLeaks() throws InterruptedException {
+        // Arrange
+        pool.acquire(10);
+
+        // Act
+        for (int i = 0; i < 50 && pool.leakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        // Assert
+        assertEquals(1, pool.leakCount());
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    @DisplayName("Lines are read across reads and buffer sizes, and the buffer is returned between lines")
+    void readsLines() throws IOException {
+        // Arrange
+        String text = "hej\r\nåäö " + "x".repeat(100) + "\nsista rad utan radbrytning";
+        LineReader reader = new LineReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), pool, 1024);
+
+        // Act
+        String first = reader.readLine();
+        int inUseAfterPipelinedLine = pool.inUse();
+        String second = reader.readLine();
+        String third = reader.readLine();
+        String end = reader.readLine();
+
+        // Assert
+        assertEquals("hej", first);
+        assertEquals(1, inUseAfterPipelinedLine);
+        assertEquals("åäö " + "x".repeat(100), second);
+        assertEquals("sista rad utan radbrytning", third);
+        assertNull(end);
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    @DisplayName("A line longer than the limit fails the read and returns the buffer")
+    void rejectsLongLines() {
+        // Arrange
+        byte[] line = ("y".repeat(200) + "\n").getBytes(StandardCharsets.UTF_8);
+        LineReader reader = new LineReader(new ByteArrayInputStream(line), pool, 64);
+
+        // Act
+        IOException error = assertThrows(IOException.class, reader::readLine);
+
+        // Assert
+        assertTrue(error.getMessage().contains("64"));
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test
+    @DisplayName("Printed lines are encoded as UTF-8, written whole and leave no buffer borrowed")
+    void writesLines() {
+        // Arrange
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PooledLineWriter lineWriter = new PooledLineWriter(out, pool, 16);
+        PrintWriter writer = new PrintWriter(lineWriter, true);
+        char[] emoji = "😀".toCharArray();
+
+        // Act
+        writer.println("Välkommen! Har du redan ett konto? (ja/nej)");
+        writer.write(emoji, 0, 1);
+        writer.write(emoji, 1, 1);
+        writer.println();
+
+        // Assert
+        assertFalse(writer.checkError());
+        assertEquals("Välkommen! Har du redan ett konto? (ja/nej)" + System.lineSeparator() + "😀" + System.lineSeparator(),
+                out.toString(StandardCharsets.UTF_8));
+        assertEquals(0, pool.inUse());
+    }
+}
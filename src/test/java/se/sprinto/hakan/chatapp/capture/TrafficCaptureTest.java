@@ -0,0 +1,160 @@
+package se.sprinto.hakan.chatapp.capture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficCaptureTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<Integer, List<String>> received = Collections.synchronizedMap(new TreeMap<>());
+    private ServerSocket server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Answers every line with "ok" and keeps the lines of each connection in accept order
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            int connection = 0;
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    List<String> lines = Collections.synchronizedList(new ArrayList<>());
+                    received.put(++connection, lines);
+                    new Thread(() -> echo(socket, lines)).start();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Recorded records are read back with their connection, time and text")
+    void readsBackRecords() throws IOException {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        // Act
+        try (TrafficRecorder recorder = new TrafficRecorder(file, 1000, clock::get, metrics)) {
+            int first = recorder.open();
+            clock.addAndGet(1_500_000);
+            int second = recorder.open();
+            recorder.line(first, "ja");
+            clock.addAndGet(250_000_000);
+            recorder.line(second, "hej på er åäö");
+            recorder.close(first);
+        }
+        List<CaptureReader.Frame> frames = readAll(file.toByteArray());
+        // A server killed while capturing leaves a record cut off at the end
+        byte[] torn = Arrays.copyOf(file.toByteArray(), file.size() - 5);
+        List<CaptureReader.Frame> tornFrames = readAll(torn);
+
+        // Assert
+        assertEquals(List.of(
+                new CaptureReader.Frame(CaptureReader.Frame.Type.OPEN, 1, 0, null),
+                new CaptureReader.Frame(CaptureReader.Frame.Type.OPEN, 2, 1500, null),
+                new CaptureReader.Frame(CaptureReader.Frame.Type.LINE, 1, 1500, "ja"),
+                new CaptureReader.Frame(CaptureReader.Frame.Type.LINE, 2, 251_500, "hej på er åäö"),
+                new CaptureReader.Frame(CaptureReader.Frame.Type.CLOSE, 1, 251_500, null)), frames);
+        assertEquals(frames.subList(0, 3), tornFrames);
+        assertEquals(2, metrics.snapshot().get("capture.frames"));
+    }
+
+    @Test
+    @DisplayName("A replay at full speed sends each connection its lines in captured order")
+    void replaysConnectionsInOrder() throws Exception {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (TrafficRecorder recorder = new TrafficRecorder(file, 1000, clock::get, new MetricsRegistry())) {
+            int first = recorder.open();
+            int second = recorder.open();
+            for (int i = 0; i < 50; i++) {
+                clock.addAndGet(1_000_000_000);
+                recorder.line(i % 2 == 0 ? first : second, "rad " + i);
+            }
+            recorder.close(first);
+            recorder.close(second);
+        }
+        TrafficReplayer replayer = new TrafficReplayer(new InetSocketAddress("localhost", server.getLocalPort()), 0);
+
+        // Act
+        TrafficReplayer.ReplayResult result = replayer.replay(new ByteArrayInputStream(file.toByteArray()));
+
+        // Assert
+        assertEquals(2, result.connections());
+        assertEquals(50, result.linesSent());
+        assertEquals(50, result.linesReceived());
+        // 50 captured seconds at full speed
+        assertTrue(result.elapsedMillis() < 10_000);
+        assertEquals(2, received.size());
+        assertEquals("rad 0", received.get(1).get(0));
+        assertEquals("rad 48", received.get(1).get(24));
+        assertEquals("rad 49", received.get(2).get(24));
+    }
+
+    @Test
+    @DisplayName("A replay at 2x keeps the captured gaps at half their length")
+    void replaysAtSpeed() throws Exception {
+        // Arrange
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (TrafficRecorder recorder = new TrafficRecorder(file, 1000, clock::get, new MetricsRegistry())) {
+            int connection = recorder.open();
+            recorder.line(connection, "först");
+            clock.addAndGet(400_000_000);
+            recorder.line(connection, "sist");
+            recorder.close(connection);
+        }
+        TrafficReplayer replayer = new TrafficReplayer(new InetSocketAddress("localhost", server.getLocalPort()), 2);
+
+        // Act
+        TrafficReplayer.ReplayResult result = replayer.replay(new ByteArrayInputStream(file.toByteArray()));
+
+        // Assert
+        assertEquals(2, result.linesSent());
+        assertTrue(result.elapsedMillis() >= 200, "elapsed " + result.elapsedMillis());
+        assertTrue(result.elapsedMillis() < 400, "elapsed " + result.elapsedMillis());
+        assertEquals(List.of("först", "sist"), received.get(1));
+    }
+
+    private static List<CaptureReader.Frame> readAll(byte[] file) throws IOException {
+        CaptureReader reader = new CaptureReader(new ByteArrayInputStream(file));
+        List<CaptureReader.Frame> frames = new ArrayList<>();
+        CaptureReader.Frame frame;
+        while ((frame = reader.next()) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static void echo(Socket socket, List<String> lines) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+                out.println("ok");
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package se.sprinto.hakan.chatapp.compress;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeflateFramingTest {
+
+    @Test
+    @DisplayName("Lines written before and after start are read back in order, raw and deflated")
+    void roundTrips() throws IOException {
+        // Arrange
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflateOutputStream out = new DeflateOutputStream(wire, new MetricsRegistry());
+        List<String> lines = new ArrayList<>(List.of("Välkommen! Har du redan ett konto? (ja/nej)", "/compress ok deflate"));
+        write(out, lines.get(0));
+        write(out, lines.get(1));
+        out.start(6, 16);
+        for (int i = 0; i < 50; i++) {
+            lines.add("[#" + i + "] anna: Hej på er allihop, det här är meddelande nummer " + i + " 😀");
+            lines.add("kort " + i);
+        }
+        lines.add("x".repeat(5000));
+
+        // Act
+        for (String line : lines.subList(2, lines.size())) {
+            write(out, line);
+        }
+        InflatingLineReader reader = new InflatingLineReader(new ByteArrayInputStream(wire.toByteArray()));
+        List<String> read = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            read.add(line);
+            if (line.startsWith("/compress ok")) {
+                reader.startInflating();
+            }
+        }
+
+        // Assert
+        assertEquals(lines, read);
+    }
+
+    @Test
+    @DisplayName("Repetitive chat text shrinks and the report counts the bytes and the deflate time")
+    void reportsRatio() throws IOException {
+        // Arrange
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        MetricsRegistry metrics = new MetricsRegistry();
+        DeflateOutputStream out = new DeflateOutputStream(wire, metrics);
+        out.start(6, 16);
+
+        // Act
+        for (int i = 0; i < 200; i++) {
+            write(out, "[2025-05-01T09:" + (i % 60) + "] Mitt meddelande om lunchen på fredag, nummer " + i);
+        }
+        DeflateOutputStream.Report report = out.report();
+
+        // Assert
+        assertEquals(wire.size(), report.wireBytes());
+        assertTrue(report.ratioPercent() < 40, "ratio " + report.ratioPercent());
+        assertTrue(report.deflateNanos() > 0);
+        assertEquals(report.rawBytes(), metrics.snapshot().get("compress.raw-bytes"));
+        assertEquals(1, metrics.snapshot().get("compress.connections"));
+    }
+
+    @Test
+    @DisplayName("Writes below the threshold are sent raw with a two byte header")
+    void sendsShortWritesRaw() throws IOException {
+        // Arrange
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflateOutputStream out = new DeflateOutputStream(wire, new MetricsRegistry());
+        out.start(6, 64);
+
+        // Act
+        write(out, "/ping");
+
+        // Assert
+        byte[] frame = wire.toByteArray();
+        assertEquals(DeflateFraming.RAW, frame[0]);
+        assertEquals(6, frame[1]);
+        assertEquals("/ping\n", new String(frame, 2, 6, StandardCharsets.UTF_8));
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        // PooledLineWriter writes a whole line with one call and then flushes
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
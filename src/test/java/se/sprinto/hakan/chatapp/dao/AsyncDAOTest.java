@@ -0,0 +1,105 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.model.User;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncDAOTest {
+
+    @Test
+    @DisplayName("Saves run on the JDBC threads and a read chained after them sees every message")
+    void savesThenReads() throws Exception {
+        // Arrange
+        ExecutorService executor = JdbcExecutor.create(2, 100, new MetricsRegistry());
+        MessageListDAO list = new MessageListDAO();
+        AsyncMessageDAO messages = new ExecutorMessageDAO(list, executor);
+        CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+        // Act
+        for (int i = 0; i < 20; i++) {
+            Message message = new Message(i, 1, "Hej " + i, LocalDateTime.now());
+            pending = pending.thenCompose(ignored -> messages.saveMessage(message));
+        }
+        List<Message> read = pending.thenCompose(ignored -> messages.getMessagesByUserId(1)).get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(20, read.size());
+        assertEquals("Hej 19", read.get(19).getText());
+        executor.shutdown();
+    }
+
+    @Test
+    @DisplayName("The blocking adapters return the in-memory results and rethrow the exception a future failed with")
+    void blockingAdapters() {
+        // Arrange
+        UserDAO users = new BlockingUserDAO(new AsyncUserListDAO());
+        MessageDAO failing = new BlockingMessageDAO(new ExecutorMessageDAO(new MessageListDAO() {
+            @Override
+            public void saveMessage(Message message) {
+                throw new DatabaseUnavailableException("Databasen svarar inte");
+            }
+        }, Runnable::run));
+
+        // Act
+        User registered = users.register(new User("anna", "hemligt"));
+
+        // Assert
+        assertEquals(registered.getId(), users.login("anna", "hemligt").getId());
+        assertEquals("anna", users.findUsername(registered.getId()));
+        assertThrows(DatabaseUnavailableException.class,
+                () -> failing.saveMessage(new Message(1, "Hej", LocalDateTime.now())));
+    }
+
+    @Test
+    @DisplayName("A call that finds the queue full runs on the calling thread")
+    void callerRunsWhenFull() throws Exception {
+        // Arrange
+        MetricsRegistry metrics = new MetricsRegistry();
+        ExecutorService executor = JdbcExecutor.create(1, 1, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(() -> { });
+        String[] ranOn = new String[1];
+
+        // Act
+        executor.execute(() -> ranOn[0] = Thread.currentThread().getName());
+        release.countDown();
+
+        // Assert
+        assertEquals(Thread.currentThread().getName(), ranOn[0]);
+        assertEquals(1, metrics.snapshot().get("jdbc.executor.caller-runs"));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("A call after shutdown fails instead of waiting forever")
+    void rejectsAfterShutdown() {
+        // Arrange
+        ExecutorService executor = JdbcExecutor.create(1, 1, new MetricsRegistry());
+        executor.shutdown();
+        MessageDAO messages = new BlockingMessageDAO(new ExecutorMessageDAO(new MessageListDAO(), executor));
+
+        // Act & Assert
+        assertThrows(RejectedExecutionException.class,
+                () -> messages.saveMessage(new Message(1, "Hej", LocalDateTime.now())));
+    }
+}
@@ -3,6 +3,8 @@ package se.sprinto.hakan.chatapp.dao;
 import com.zaxxer.hikari.HikariDataSource;
 import org.junit.jupiter.api.*;
 import org.mindrot.jbcrypt.BCrypt;
+import se.sprinto.hakan.chatapp.metrics.Counter;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
 import se.sprinto.hakan.chatapp.model.Message;
 import se.sprinto.hakan.chatapp.util.DatabaseUtil;
 
@@ -10,6 +12,7 @@ import javax.sql.DataSource;
 
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -21,27 +24,7 @@ class MessageDatabaseDAOTest {
     @BeforeAll
     static void setUpDataSource() throws SQLException{
         testDataSource = DatabaseUtil.getInstance("test").getDataSource();
-
-        try (Connection con = testDataSource.getConnection();
-             Statement stmt = con.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE users (
-                user_id INT AUTO_INCREMENT PRIMARY KEY,
-                username VARCHAR(50) NOT NULL,
-                password VARCHAR(255) NOT NULL
-                )
-            """);
-
-            stmt.execute("""
-                CREATE TABLE messages (
-                message_id INT AUTO_INCREMENT PRIMARY KEY,
-                text VARCHAR(1000) NOT NULL,
-                timestamp TIMESTAMP NOT NULL,
-                user_id INT NOT NULL,
-                FOREIGN KEY (user_id) REFERENCES users(user_id)
-                )
-            """);
-        }
+        // The tables are created by SchemaMigrator when DatabaseUtil starts
     }
 
     @BeforeEach
@@ -70,8 +53,7 @@ class MessageDatabaseDAOTest {
     static void tearDown() throws SQLException {
         try (Connection con = testDataSource.getConnection();
              Statement stmt = con.createStatement()) {
-            stmt.execute("DROP TABLE messages");
-            stmt.execute("DROP TABLE users");
+            stmt.execute("DROP ALL OBJECTS");
         }
         ((HikariDataSource)testDataSource).close();
     }
@@ -199,4 +181,163 @@ class MessageDatabaseDAOTest {
         // Assert
         assertEquals(0, messages.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Get the newest messages in a time range from all users")
+    void getMessagesBetween() throws SQLException {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        String sql = "INSERT INTO messages (text, timestamp, user_id) Values (?, ?, ?)";
+        try (Connection con = testDataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement(sql)) {
+            for (int minutes = 3; minutes >= 1; minutes--) {
+                ps.setString(1, "för " + minutes + " minuter sedan");
+                ps.setTimestamp(2, Timestamp.valueOf(now.minusMinutes(minutes)));
+                ps.setInt(3, 1);
+                ps.execute();
+            }
+        }
+
+        // Act
+        List<Message> messages = messageDatabaseDAO.getMessagesBetween(now.minusMinutes(2), now.minusMinutes(1), 10);
+        List<Message> newest = messageDatabaseDAO.getMessagesBetween(now.minusMinutes(3), now, 2);
+
+        // Assert
+        assertEquals(1, messages.size());
+        assertEquals("för 2 minuter sedan", messages.get(0).getText());
+        assertEquals(List.of("för 2 minuter sedan", "för 1 minuter sedan"), newest.stream().map(Message::getText).toList());
+    }
+
+    @Test
+    @DisplayName("Save messages with generated ids in one batch and read the ids back")
+    void saveMessagesWithIds() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        List<Message> batch = List.of(
+                new Message(1_000_001L, 1, "första", now),
+                new Message(1_000_002L, 1, "andra", now.plusSeconds(1)));
+
+        // Act
+        messageDatabaseDAO.saveMessages(batch);
+        List<Message> messages = messageDatabaseDAO.getMessagesByUserId(1);
+
+        // Assert
+        assertEquals(2, messages.size());
+        assertEquals(1_000_001L, messages.get(0).getId());
+        assertEquals(1_000_002L, messages.get(1).getId());
+    }
+
+    @Test
+    @DisplayName("forEachMessageByUserId streams a user's messages oldest first")
+    void forEachMessageStreamsInOrder() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (int i = 0; i < MessageDatabaseDAO.STREAM_FETCH_SIZE + 10; i++) {
+            messageDatabaseDAO.saveMessage(new Message(1, "nummer " + i, now.plusSeconds(i)));
+        }
+        List<String> texts = new ArrayList<>();
+
+        // Act
+        messageDatabaseDAO.forEachMessageByUserId(1, m -> texts.add(m.getText()));
+
+        // Assert
+        assertEquals(MessageDatabaseDAO.STREAM_FETCH_SIZE + 10, texts.size());
+        assertEquals("nummer 0", texts.get(0));
+        assertEquals("nummer " + (MessageDatabaseDAO.STREAM_FETCH_SIZE + 9), texts.get(texts.size() - 1));
+    }
+
+    @Test
+    @DisplayName("getMessagesByUserIdAfter pages through a user's messages, also within one timestamp")
+    void pagesThroughMessages() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (int i = 0; i < 7; i++) {
+            // Two messages per second, so a page can end between messages with the same timestamp
+            messageDatabaseDAO.saveMessage(new Message(100 + i, 1, "nummer " + i, now.plusSeconds(i / 2)));
+        }
+        List<String> texts = new ArrayList<>();
+
+        // Act
+        List<Message> first = messageDatabaseDAO.getMessagesByUserIdAfter(1, null, 3);
+        List<Message> page = first;
+        while (!page.isEmpty()) {
+            page.forEach(m -> texts.add(m.getText()));
+            page = messageDatabaseDAO.getMessagesByUserIdAfter(1, page.get(page.size() - 1), 3);
+        }
+
+        // Assert
+        assertEquals(3, first.size());
+        assertEquals(List.of("nummer 0", "nummer 1", "nummer 2", "nummer 3", "nummer 4", "nummer 5", "nummer 6"), texts);
+    }
+
+    @Test
+    @DisplayName("A retried message with the same client message id is saved only once")
+    void saveMessageIgnoresDuplicateClientMsgId() {
+        // Arrange
+        Message first = new Message(2_000_001L, 1, "hej", LocalDateTime.now());
+        first.setClientMsgId(42);
+        Message retry = new Message(2_000_002L, 1, "hej", LocalDateTime.now());
+        retry.setClientMsgId(42);
+        Message withoutClientId = new Message(2_000_003L, 1, "utan id", LocalDateTime.now());
+
+        // Act
+        messageDatabaseDAO.saveMessage(first);
+        messageDatabaseDAO.saveMessage(retry);
+        messageDatabaseDAO.saveMessage(withoutClientId);
+
+        // Assert
+        List<Message> messages = messageDatabaseDAO.getMessagesByUserId(1);
+        assertEquals(2, messages.size());
+        assertEquals(2_000_001L, messages.get(0).getId());
+    }
+
+    @Test
+    @DisplayName("A saved message saved again is skipped, another message under a taken id is counted as a collision")
+    void saveMessageSeparatesRetriesFromIdCollisions() {
+        // Arrange
+        Counter duplicates = MetricsRegistry.getInstance().counter("dao.message.duplicates");
+        Counter collisions = MetricsRegistry.getInstance().counter("dao.message.id-collisions");
+        long duplicatesBefore = duplicates.get();
+        long collisionsBefore = collisions.get();
+        LocalDateTime now = LocalDateTime.now();
+        Message first = new Message(3_000_001L, 1, "hej", now);
+
+        // Act
+        messageDatabaseDAO.saveMessage(first);
+        messageDatabaseDAO.saveMessage(new Message(3_000_001L, 1, "hej", now));
+        messageDatabaseDAO.saveMessage(new Message(3_000_001L, 1, "ett annat meddelande", now));
+
+        // Assert
+        assertEquals(1, messageDatabaseDAO.getMessagesByUserId(1).size());
+        assertEquals(1, duplicates.get() - duplicatesBefore);
+        assertEquals(1, collisions.get() - collisionsBefore);
+    }
+
+    @Test
+    @DisplayName("Retention deletes old messages and the oldest messages over a user's limit in chunks")
+    void deleteInChunks() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (int days = 0; days < 6; days++) {
+            messageDatabaseDAO.saveMessage(new Message(1, "för " + days + " dagar sedan", now.minusDays(days)));
+        }
+
+        // Act
+        int firstChunk = messageDatabaseDAO.deleteOlderThan(now.minusDays(3), 1);
+        int secondChunk = messageDatabaseDAO.deleteOlderThan(now.minusDays(3), 10);
+        List<Integer> recent = messageDatabaseDAO.findUsersWithMessagesSince(now.minusDays(1));
+        Message oldestKept = messageDatabaseDAO.findOldestKept(1, 2);
+        int userChunk = messageDatabaseDAO.deleteOfUserBefore(1, oldestKept, 10);
+
+        // Assert
+        assertEquals(1, firstChunk);
+        assertEquals(1, secondChunk);
+        assertEquals(List.of(1), recent);
+        assertEquals("för 1 dagar sedan", oldestKept.getText());
+        assertEquals(2, userChunk);
+        assertNull(messageDatabaseDAO.findOldestKept(1, 2));
+        List<Message> left = messageDatabaseDAO.getMessagesByUserId(1);
+        assertEquals(2, left.size());
+        assertEquals("för 1 dagar sedan", left.get(0).getText());
+    }
+}
@@ -0,0 +1,101 @@
+package se.sprinto.hakan.chatapp.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.util.DatabaseUtil;
+
+import javax.sql.DataSource;
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs EXPLAIN on the DAO queries against the schema from SchemaMigrator, so a query that stops
+ * matching an index fails the build instead of slowing down production.
+ */
+class QueryPlanTest {
+    private static DataSource testDataSource;
+
+    @BeforeAll
+    static void setUpDataSource() throws SQLException {
+        testDataSource = DatabaseUtil.getInstance("test").getDataSource();
+        try (Connection con = testDataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            // A few rows, so the planner has statistics to choose from
+            stmt.execute("INSERT INTO users (user_id, username, password) VALUES (1, 'Yuki', 'x'), (2, 'Emil', 'x')");
+            stmt.execute("""
+                INSERT INTO messages (text, timestamp, user_id)
+                SELECT 'text ' || x, DATEADD('MINUTE', x, TIMESTAMP '2025-01-01 00:00:00'), MOD(x, 2) + 1
+                FROM SYSTEM_RANGE(1, 200)
+            """);
+            stmt.execute("ANALYZE");
+        }
+    }
+
+    @AfterAll
+    static void tearDown() throws SQLException {
+        try (Connection con = testDataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        ((HikariDataSource) testDataSource).close();
+    }
+
+    @Test
+    @DisplayName("Finding messages by user uses an index")
+    void findByUserUsesIndex() throws SQLException {
+        assertNoTableScan(MessageDatabaseDAO.FIND_BY_USER_SQL);
+        assertNoTableScan(MessageDatabaseDAO.FIND_BY_USER_AFTER_SQL);
+    }
+
+    @Test
+    @DisplayName("Finding messages in a time range uses an index")
+    void findBetweenUsesIndex() throws SQLException {
+        assertNoTableScan(MessageDatabaseDAO.FIND_BETWEEN_SQL);
+    }
+
+    @Test
+    @DisplayName("Login uses an index on both users and messages")
+    void loginUsesIndex() throws SQLException {
+        assertNoTableScan(UserDatabaseDAO.LOGIN_SQL);
+    }
+
+    @Test
+    @DisplayName("Finding a username uses the primary key")
+    void findUsernameUsesIndex() throws SQLException {
+        assertNoTableScan(UserDatabaseDAO.FIND_USERNAME_SQL);
+    }
+
+    @Test
+    @DisplayName("Retention finds expired and surplus messages with an index")
+    void retentionQueriesUseIndex() throws SQLException {
+        assertNoTableScan(MessageDatabaseDAO.FIND_EXPIRED_IDS_SQL);
+        assertNoTableScan(MessageDatabaseDAO.FIND_USERS_SINCE_SQL);
+        assertNoTableScan(MessageDatabaseDAO.FIND_OLDEST_KEPT_SQL);
+        assertNoTableScan(MessageDatabaseDAO.FIND_IDS_OF_USER_BEFORE_SQL);
+    }
+
+    /**
+     * Runs EXPLAIN on a query with every parameter set to null and checks the plan.
+     * @param sql The query to check.
+     * @throws SQLException will be thrown if something went wrong with JDBC functions.
+     */
+    private static void assertNoTableScan(String sql) throws SQLException {
+        String plan;
+        try (Connection con = testDataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement("EXPLAIN " + sql)) {
+            int parameters = ps.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameters; i++) {
+                ps.setNull(i, Types.NULL);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                plan = rs.getString(1);
+            }
+        }
+        assertFalse(plan.contains("tableScan"), "Full table scan in plan:\n" + plan);
+    }
+}
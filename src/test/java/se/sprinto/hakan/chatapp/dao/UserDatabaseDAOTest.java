@@ -21,26 +21,7 @@ class UserDatabaseDAOTest {
     @BeforeAll
     static void setUserDatabaseDAO() throws SQLException {
         testDataSource = DatabaseUtil.getInstance("test").getDataSource();
-
-        try (Connection con = testDataSource.getConnection();
-             Statement stmt = con.createStatement()) {
-            stmt.execute("""
-            CREATE TABLE users (
-                user_id INT AUTO_INCREMENT PRIMARY KEY,
-                username VARCHAR(50) NOT NULL,
-                password VARCHAR(255) NOT NULL)
-            """);
-
-            stmt.execute("""
-            CREATE TABLE messages (
-                message_id INT AUTO_INCREMENT PRIMARY KEY,
-                text VARCHAR(1000) NOT NULL,
-                timestamp TIMESTAMP NOT NULL,
-                user_id INT NOT NULL,
-                FOREIGN KEY (user_id) REFERENCES users(user_id))
-            """);
-
-        }
+        // The tables are created by SchemaMigrator when DatabaseUtil starts
     }
     @BeforeEach
     void setUp() throws SQLException{
@@ -69,8 +50,7 @@ class UserDatabaseDAOTest {
     static void closeDataSource() throws SQLException{
         try (Connection con = testDataSource.getConnection();
              Statement stmt = con.createStatement()) {
-            stmt.execute("DROP TABLE messages");
-            stmt.execute("DROP TABLE users");
+            stmt.execute("DROP ALL OBJECTS");
         }
         ((HikariDataSource)testDataSource).close();
     }
@@ -142,4 +122,12 @@ class UserDatabaseDAOTest {
         // Act & Assert
         assertThrows(IllegalArgumentException.class, () -> userDatabaseDAO.register(targetUser));
     }
+
+    @Test
+    @DisplayName("Find the username of an existing and a missing user")
+    void findUsername() {
+        // Act & Assert
+        assertEquals("Yuki", userDatabaseDAO.findUsername(1));
+        assertNull(userDatabaseDAO.findUsername(99));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,182 @@
+package se.sprinto.hakan.chatapp.download;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadServerTest {
+    private HashedWheelTimer timer;
+    private MetricsRegistry metrics;
+    private DownloadServer downloads;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8, "test-timer");
+        metrics = new MetricsRegistry();
+        Properties properties = new Properties();
+        properties.setProperty("download.port", "0");
+        properties.setProperty("download.max-concurrent", "2");
+        properties.setProperty("download.token-ttl-seconds", "1");
+        properties.setProperty("download.idle-timeout-seconds", "1");
+        properties.setProperty("relay.max-transfers", "1");
+        properties.setProperty("relay.chunk-bytes", "4096");
+        downloads = new DownloadServer(new ServerConfig(properties), timer, metrics);
+        downloads.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        downloads.stop();
+        timer.stop();
+    }
+
+    @Test
+    @DisplayName("A prepared file is sent once to the client with its token")
+    void sendsFileOnce() throws Exception {
+        // Arrange
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            content.append("[2025-03-01T12:00] Meddelande ").append(i).append(" åäö\n");
+        }
+        byte[] expected = content.toString().getBytes(StandardCharsets.UTF_8);
+
+        // Act
+        DownloadServer.Ticket ticket = downloads.prepare(out -> out.write(content.toString())).get(5, TimeUnit.SECONDS);
+        byte[] first = fetch(ticket.token());
+        byte[] second = fetch(ticket.token());
+
+        // Assert
+        assertEquals(expected.length, ticket.size());
+        assertArrayEquals(expected, first);
+        assertEquals(0, second.length);
+        assertEquals(expected.length, metrics.snapshot().get("downloads.bytes"));
+        assertEquals(0, metrics.readGauge("downloads.pending"));
+    }
+
+    @Test
+    @DisplayName("An unknown token gets nothing and a file nobody fetches expires")
+    void expiresUnusedTokens() throws Exception {
+        // Arrange
+        DownloadServer.Ticket ticket = downloads.prepare(out -> out.write("hej")).get(5, TimeUnit.SECONDS);
+
+        // Act
+        byte[] unknown = fetch("0".repeat(32));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metrics.readGauge("downloads.pending") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // Assert
+        assertEquals(0, unknown.length);
+        assertEquals(1, metrics.snapshot().get("downloads.expired"));
+        assertEquals(0, fetch(ticket.token()).length);
+    }
+
+    @Test
+    @DisplayName("A client that sends its token and then stops reading is closed after the idle timeout")
+    void closesStalledDownload() throws Exception {
+        // Arrange
+        // Far more than the socket buffers hold, so transferTo blocks once the client stops reading
+        DownloadServer.Ticket ticket = downloads.prepare(out -> {
+            String line = "x".repeat(1023) + "\n";
+            for (int i = 0; i < 32 * 1024; i++) {
+                out.write(line);
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        // Act
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", downloads.getPort()));
+            socket.getOutputStream().write((ticket.token() + "\n").getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (metrics.snapshot().get("downloads.stalled") == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+        }
+
+        // Assert
+        assertEquals(1, metrics.snapshot().get("downloads.stalled"));
+        assertEquals(0, metrics.snapshot().get("downloads.completed"));
+    }
+
+    @Test
+    @DisplayName("A relay copies the sender's bytes to the receiver and frees its budget when done")
+    void relaysBetweenClients() throws Exception {
+        // Arrange
+        byte[] file = new byte[300_000];
+        new Random(42).nextBytes(file);
+        RelayTransfer transfer = downloads.relay(file.length);
+
+        // Act
+        RelayTransfer overBudget = downloads.relay(10);
+        CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetch(transfer.getDownloadToken());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try (Socket socket = new Socket("localhost", downloads.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write((transfer.getUploadToken() + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(file);
+            out.flush();
+            assertEquals(file.length, transfer.done().get(5, TimeUnit.SECONDS));
+        }
+
+        // Assert
+        assertNull(overBudget);
+        assertArrayEquals(file, received.get(5, TimeUnit.SECONDS));
+        assertEquals(file.length, metrics.snapshot().get("relay.bytes"));
+        assertEquals(0, metrics.readGauge("relay.active"));
+        assertNotNull(downloads.relay(10));
+    }
+
+    @Test
+    @DisplayName("A relay fails when the sender never connects")
+    void relayExpiresWithoutSender() throws Exception {
+        // Arrange
+        RelayTransfer transfer = downloads.relay(100);
+
+        // Act
+        byte[] received = fetch(transfer.getDownloadToken());
+
+        // Assert
+        assertEquals(0, received.length);
+        assertThrows(ExecutionException.class, () -> transfer.done().get(5, TimeUnit.SECONDS));
+        assertEquals(0, metrics.readGauge("relay.active"));
+    }
+
+    private byte[] fetch(String token) throws IOException {
+        try (Socket socket = new Socket("localhost", downloads.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write((token + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            in.transferTo(bytes);
+            return bytes.toByteArray();
+        }
+    }
+}
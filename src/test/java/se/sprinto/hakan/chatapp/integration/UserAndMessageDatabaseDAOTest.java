@@ -26,27 +26,7 @@ public class UserAndMessageDatabaseDAOTest {
     @BeforeAll
     static void setUpDatabase() throws SQLException {
         testDataSource = DatabaseUtil.getInstance("test").getDataSource();
-
-        try (Connection con = testDataSource.getConnection();
-             Statement stmt = con.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE users(
-                    user_id INT AUTO_INCREMENT PRIMARY KEY,
-                    username VARCHAR(50) NOT NULL,
-                    password VARCHAR(255) NOT NULL
-                )
-            """);
-
-            stmt.execute("""
-                CREATE TABLE messages(
-                    message_id INT AUTO_INCREMENT PRIMARY KEY,
-                    text VARCHAR(1000) NOT NULL,
-                    timestamp TIMESTAMP NOT NULL,
-                    user_id INT NOT NULL,
-                    FOREIGN KEY (user_id) REFERENCES users(user_id)
-                )
-            """);
-        }
+        // The tables are created by SchemaMigrator when DatabaseUtil starts
     }
 
     @BeforeEach
@@ -71,8 +51,7 @@ public class UserAndMessageDatabaseDAOTest {
     static void closeDataSource() throws SQLException{
         try (Connection con = testDataSource.getConnection();
              Statement stmt = con.createStatement()) {
-            stmt.execute("DROP TABLE messages");
-            stmt.execute("DROP TABLE users");
+            stmt.execute("DROP ALL OBJECTS");
         }
         ((HikariDataSource)testDataSource).close();
     }
@@ -0,0 +1,108 @@
+package se.sprinto.hakan.chatapp.limit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.ServerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static RateLimiter createLimiter(MetricsRegistry metrics, String... settings) {
+        Properties properties = new Properties();
+        for (int i = 0; i < settings.length; i += 2) {
+            properties.setProperty(settings[i], settings[i + 1]);
+        }
+        return new RateLimiter(new ServerConfig(properties), metrics);
+    }
+
+    @Test
+    @DisplayName("The connection limit rejects a flood from one connection")
+    void connectionLimit() {
+        // Arrange
+        MetricsRegistry metrics = new MetricsRegistry();
+        RateLimiter limiter = createLimiter(metrics,
+                "ratelimit.connection.messages-per-second", "1",
+                "ratelimit.connection.messages-burst", "2");
+        RateLimiter.Limit connection = limiter.newConnectionLimit();
+
+        // Act & Assert
+        assertEquals(0, limiter.tryAcquire(connection, 1, 10));
+        assertEquals(0, limiter.tryAcquire(connection, 1, 10));
+        assertTrue(limiter.tryAcquire(connection, 1, 10) > 0);
+        assertEquals(0, limiter.tryAcquire(limiter.newConnectionLimit(), 1, 10));
+        assertEquals(1, metrics.counter("ratelimit.rejected.connection").get());
+    }
+
+    @Test
+    @DisplayName("The user limit is shared by all connections of the user")
+    void userLimitSharedByConnections() {
+        // Arrange
+        MetricsRegistry metrics = new MetricsRegistry();
+        RateLimiter limiter = createLimiter(metrics,
+                "ratelimit.user.bytes-per-second", "100",
+                "ratelimit.user.bytes-burst", "100");
+
+        // Act & Assert
+        assertEquals(0, limiter.tryAcquire(limiter.newConnectionLimit(), 1, 60));
+        assertTrue(limiter.tryAcquire(limiter.newConnectionLimit(), 1, 60) > 0);
+        assertEquals(0, limiter.tryAcquire(limiter.newConnectionLimit(), 2, 60));
+        assertEquals(1, metrics.counter("ratelimit.rejected.user").get());
+    }
+
+    @Test
+    @DisplayName("The sweep drops user limits once their buckets have refilled")
+    void sweepDropsRefilledUserLimits() {
+        // Arrange
+        Properties properties = new Properties();
+        properties.setProperty("ratelimit.user.messages-per-second", "1");
+        properties.setProperty("ratelimit.user.messages-burst", "2");
+        AtomicLong now = new AtomicLong();
+        RateLimiter limiter = new RateLimiter(new ServerConfig(properties), new MetricsRegistry(), now::get);
+        limiter.tryAcquire(limiter.newConnectionLimit(), 1, 10);
+        limiter.tryAcquire(limiter.newConnectionLimit(), 1, 10);
+        limiter.tryAcquire(limiter.newConnectionLimit(), 2, 10);
+
+        // Act
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        int droppedEarly = limiter.sweep();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        int droppedLater = limiter.sweep();
+
+        // Assert
+        assertEquals(1, droppedEarly);
+        assertEquals(1, droppedLater);
+        assertEquals(0, limiter.userCount());
+        assertEquals(0, limiter.tryAcquire(limiter.newConnectionLimit(), 1, 10));
+        assertEquals(1, limiter.userCount());
+    }
+
+    @Test
+    @DisplayName("Nothing is limited when rate limiting is disabled")
+    void disabled() {
+        // Arrange
+        RateLimiter limiter = createLimiter(new MetricsRegistry(),
+                "ratelimit.enabled", "false",
+                "ratelimit.global.messages-per-second", "1");
+        RateLimiter.Limit connection = limiter.newConnectionLimit();
+
+        // Act & Assert
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(connection, 1, 10));
+        }
+    }
+
+    @Test
+    @DisplayName("UTF-8 length counts multi-byte characters")
+    void utf8Length() {
+        assertEquals("Hur mår du?".getBytes(StandardCharsets.UTF_8).length,
+                RateLimiter.utf8Length("Hur mår du?"));
+        assertEquals(4, RateLimiter.utf8Length("😀"));
+    }
+}
@@ -0,0 +1,56 @@
+package se.sprinto.hakan.chatapp.limit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    @DisplayName("A full bucket allows a burst up to its capacity")
+    void burstUpToCapacity() {
+        // Arrange
+        TokenBucket bucket = new TokenBucket(1, 3, clock::get);
+
+        // Act & Assert
+        assertEquals(0, bucket.tryAcquire(1));
+        assertEquals(0, bucket.tryAcquire(1));
+        assertEquals(0, bucket.tryAcquire(1));
+        assertTrue(bucket.tryAcquire(1) > 0);
+    }
+
+    @Test
+    @DisplayName("An empty bucket reports the wait and refills over time")
+    void refillsOverTime() {
+        // Arrange
+        TokenBucket bucket = new TokenBucket(2, 2, clock::get);
+        bucket.tryAcquire(2);
+
+        // Act
+        long wait = bucket.tryAcquire(1);
+        clock.addAndGet(wait);
+
+        // Assert
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), wait);
+        assertEquals(0, bucket.tryAcquire(1));
+    }
+
+    @Test
+    @DisplayName("Refunded tokens can be taken again")
+    void refund() {
+        // Arrange
+        TokenBucket bucket = new TokenBucket(1, 1, clock::get);
+        bucket.tryAcquire(1);
+
+        // Act
+        bucket.refund(1);
+
+        // Assert
+        assertEquals(0, bucket.tryAcquire(1));
+    }
+}
@@ -0,0 +1,60 @@
+package se.sprinto.hakan.chatapp.metrics;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+
+    @Test
+    @DisplayName("Counters and gauges show up in the snapshot")
+    void snapshotContainsCountersAndGauges() {
+        // Arrange
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("messages").add(3);
+        registry.counter("messages").increment();
+        registry.gauge("clients", () -> 7);
+
+        // Act
+        Map<String, Long> snapshot = registry.snapshot();
+
+        // Assert
+        assertEquals(4, snapshot.get("messages"));
+        assertEquals(7, snapshot.get("clients"));
+    }
+
+    @Test
+    @DisplayName("Histogram percentiles stay within one bucket of the recorded values")
+    void histogramPercentiles() {
+        // Arrange
+        LatencyHistogram histogram = new MetricsRegistry().histogram("latency");
+
+        // Act
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000L);
+        }
+
+        // Assert
+        assertEquals(100, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_500, histogram.getMean());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50_000 && p50 <= 50_000 * 1.25, "p50 was " + p50);
+        assertEquals(100_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    @DisplayName("Every bucket's upper bound maps back to the same bucket")
+    void bucketBoundaries() {
+        for (int bucket = 0; bucket < 248; bucket++) {
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            if (bucket < 247) {
+                assertEquals(bucket + 1, LatencyHistogram.bucketOf(upper + 1));
+            }
+        }
+    }
+}
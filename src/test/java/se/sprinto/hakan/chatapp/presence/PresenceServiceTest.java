@@ -0,0 +1,98 @@
+package se.sprinto.hakan.chatapp.presence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.util.HashedWheelTimer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceServiceTest {
+    private HashedWheelTimer timer;
+    private List<String> notices;
+    private PresenceService presence;
+
+    @BeforeEach
+    void setUp() {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8, "test-timer");
+        notices = new CopyOnWriteArrayList<>();
+        presence = new PresenceService(timer, 60_000, 2, notices::add, new MetricsRegistry());
+    }
+
+    @AfterEach
+    void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    @DisplayName("Changes within one flush become one notice, and a quick reconnect is not mentioned")
+    void coalescesChanges() {
+        // Arrange
+        presence.join("cecilia");
+        presence.flush();
+        notices.clear();
+
+        // Act
+        presence.join("anna");
+        presence.join("bertil");
+        presence.leave("cecilia");
+        presence.leave("bertil");
+        presence.join("bertil");
+        presence.flush();
+
+        // Assert
+        assertEquals(List.of("Anslöt: anna, bertil. Lämnade: cecilia."), notices);
+        assertEquals(Set.of("anna", "bertil"), presence.snapshot().usernames());
+    }
+
+    @Test
+    @DisplayName("A user is online until the last connection closes")
+    void countsConnections() {
+        // Arrange
+        presence.join("anna");
+        presence.join("anna");
+        presence.flush();
+        notices.clear();
+
+        // Act
+        presence.leave("anna");
+        presence.flush();
+        boolean onlineAfterFirst = presence.snapshot().isOnline("anna");
+        presence.leave("anna");
+        presence.leave("anna");
+        presence.flush();
+
+        // Assert
+        assertTrue(onlineAfterFirst);
+        assertFalse(presence.snapshot().isOnline("anna"));
+        assertEquals(List.of("Lämnade: anna."), notices);
+    }
+
+    @Test
+    @DisplayName("Long notices list a few names and count the rest, and the timer sends them")
+    void capsNamesAndFlushesOnTimer() throws InterruptedException {
+        // Arrange
+        presence = new PresenceService(timer, 50, 2, notices::add, new MetricsRegistry());
+        PresenceService.Snapshot before = presence.snapshot();
+
+        // Act
+        for (String name : List.of("a", "b", "c", "d")) {
+            presence.join(name);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (notices.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertEquals(List.of("Anslöt: a, b och 2 till."), notices);
+        assertEquals(0, before.size());
+    }
+}
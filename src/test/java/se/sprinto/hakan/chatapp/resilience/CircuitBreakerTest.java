@@ -0,0 +1,85 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+    private static final long OPEN = TimeUnit.SECONDS.toNanos(10);
+
+    private long now;
+    private CircuitBreaker breaker;
+
+    @BeforeEach
+    void setUp() {
+        now = 0;
+        breaker = new CircuitBreaker(10, 4, 50, 80, SLOW, OPEN, 2, () -> now, new MetricsRegistry());
+    }
+
+    @Test
+    @DisplayName("The breaker opens at the failure rate and then rejects calls without running them")
+    void opensOnFailures() {
+        // Arrange
+        int[] calls = {0};
+        breaker.execute(() -> calls[0]++);
+        breaker.execute(() -> calls[0]++);
+
+        // Act
+        for (int i = 0; i < 2; i++) {
+            assertThrows(DatabaseUnavailableException.class, () -> breaker.execute(() -> {
+                calls[0]++;
+                throw new DatabaseUnavailableException("down");
+            }));
+        }
+        assertThrows(DatabaseUnavailableException.class, () -> breaker.execute(() -> calls[0]++));
+
+        // Assert
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(4, calls[0]);
+    }
+
+    @Test
+    @DisplayName("Slow calls open the breaker even when they succeed")
+    void opensOnSlowCalls() {
+        // Act
+        for (int i = 0; i < 4; i++) {
+            breaker.execute(() -> now += SLOW);
+        }
+
+        // Assert
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    @DisplayName("After the open time, successful probes close the breaker and a failed probe opens it again")
+    void probesWhenHalfOpen() {
+        // Arrange
+        for (int i = 0; i < 4; i++) {
+            breaker.onComplete(0, true);
+        }
+        breaker.tryAcquire();
+
+        // Act & Assert
+        now += OPEN;
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onComplete(0, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        now += OPEN;
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.onComplete(0, false);
+        breaker.onComplete(0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,84 @@
+package se.sprinto.hakan.chatapp.resilience;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.dao.DatabaseUnavailableException;
+import se.sprinto.hakan.chatapp.dao.MessageListDAO;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GuardedMessageDAOTest {
+    private long now;
+    private boolean databaseDown;
+    private MessageListDAO database;
+    private CircuitBreaker breaker;
+    private MessageSpill spill;
+    private MetricsRegistry metrics;
+    private GuardedMessageDAO dao;
+
+    @BeforeEach
+    void setUp() {
+        now = 0;
+        databaseDown = false;
+        database = new MessageListDAO() {
+            @Override
+            public synchronized void saveMessage(Message message) {
+                if (databaseDown) {
+                    throw new DatabaseUnavailableException("down");
+                }
+                super.saveMessage(message);
+            }
+        };
+        metrics = new MetricsRegistry();
+        breaker = new CircuitBreaker(10, 2, 50, 80, TimeUnit.SECONDS.toNanos(2), TimeUnit.SECONDS.toNanos(10), 1,
+                () -> now, metrics);
+        spill = new MessageSpill(3, metrics);
+        dao = new GuardedMessageDAO(database, breaker, spill);
+    }
+
+    @Test
+    @DisplayName("Messages are spilled while the database is down and saved in order when it is back")
+    void spillsAndDrains() {
+        // Arrange
+        databaseDown = true;
+
+        // Act
+        for (int i = 1; i <= 4; i++) {
+            dao.saveMessage(new Message(i, 7, "hej " + i, LocalDateTime.of(2025, 1, 1, 12, 0, i)));
+        }
+        int drainedWhileOpen = spill.drain(database, breaker, 2);
+        databaseDown = false;
+        now += TimeUnit.SECONDS.toNanos(10);
+        int drained = spill.drain(database, breaker, 2);
+
+        // Assert
+        assertEquals(0, drainedWhileOpen);
+        assertEquals(3, drained);
+        assertEquals(0, spill.size());
+        assertEquals(1, metrics.snapshot().get("db.spill.dropped"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(3, database.getMessagesByUserId(7).size());
+        assertEquals("hej 1", database.getMessagesByUserId(7).get(0).getText());
+    }
+
+    @Test
+    @DisplayName("Reads fail fast while the breaker is open")
+    void readsFailFast() {
+        // Arrange
+        databaseDown = true;
+        dao.saveMessage(new Message(1, 7, "a", LocalDateTime.now()));
+        dao.saveMessage(new Message(2, 7, "b", LocalDateTime.now()));
+
+        // Act & Assert
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(DatabaseUnavailableException.class, () -> dao.getMessagesByUserId(7));
+        assertEquals(1, metrics.readGauge("db.degraded"));
+        assertEquals(2, metrics.readGauge("db.spill.depth"));
+    }
+}
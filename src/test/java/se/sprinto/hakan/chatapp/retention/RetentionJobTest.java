@@ -0,0 +1,104 @@
+package se.sprinto.hakan.chatapp.retention;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.dao.MessageListDAO;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetentionJobTest {
+
+    private static MessageListDAO createMessages(int userId, int count, LocalDateTime newest) {
+        MessageListDAO dao = new MessageListDAO();
+        for (int i = 0; i < count; i++) {
+            dao.saveMessage(new Message(userId, "meddelande " + i, newest.minusDays(i)));
+        }
+        return dao;
+    }
+
+    @Test
+    @DisplayName("Messages older than the max age are deleted in chunks")
+    void deletesByAgeInChunks() {
+        // Arrange
+        MessageListDAO dao = createMessages(1, 25, LocalDateTime.now());
+        MetricsRegistry metrics = new MetricsRegistry();
+        RetentionPolicy policy = new RetentionPolicy(Duration.ofDays(10).minusHours(1), 0, 4, 0, 0, 0);
+        RetentionJob job = new RetentionJob(dao, policy, metrics, () -> 0);
+
+        // Act
+        int deleted = job.runOnce();
+
+        // Assert
+        assertEquals(15, deleted);
+        assertEquals(10, dao.getMessagesByUserId(1).size());
+        assertEquals(15, metrics.counter("retention.deleted.age").get());
+        // 15 messages in chunks of 4 is 4 chunks
+        assertEquals(4, metrics.histogram("retention.chunk").getCount());
+    }
+
+    @Test
+    @DisplayName("Only the newest messages of a user over the limit are kept")
+    void keepsNewestPerUser() {
+        // Arrange
+        MessageListDAO dao = createMessages(1, 12, LocalDateTime.now());
+        dao.saveMessage(new Message(2, "hej", LocalDateTime.now()));
+        RetentionPolicy policy = new RetentionPolicy(null, 5, 3, 0, 0, 0);
+        RetentionJob job = new RetentionJob(dao, policy, new MetricsRegistry(), () -> 0);
+
+        // Act
+        int deleted = job.runOnce();
+
+        // Assert
+        assertEquals(7, deleted);
+        assertEquals(5, dao.getMessagesByUserId(1).size());
+        assertTrue(dao.getMessagesByUserId(1).stream().allMatch(m -> !m.getTimestamp().isBefore(LocalDateTime.now().minusDays(5))));
+        assertEquals(1, dao.getMessagesByUserId(2).size());
+    }
+
+    @Test
+    @DisplayName("After the first run only users who saved a message since the previous run are checked")
+    void checksOnlyRecentPostersAfterFirstRun() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now();
+        MessageListDAO dao = createMessages(1, 8, now);
+        RetentionPolicy policy = new RetentionPolicy(null, 5, 3, 0, 0, 0);
+        RetentionJob job = new RetentionJob(dao, policy, new MetricsRegistry(), () -> 0);
+        job.runOnce();
+        for (int i = 0; i < 8; i++) {
+            dao.saveMessage(new Message(2, "gammalt " + i, now.minusDays(10 + i)));
+        }
+        dao.saveMessage(new Message(1, "nytt", now.plusSeconds(1)));
+
+        // Act
+        int deleted = job.runOnce();
+
+        // Assert
+        assertEquals(1, deleted);
+        assertEquals(5, dao.getMessagesByUserId(1).size());
+        assertEquals(8, dao.getMessagesByUserId(2).size());
+    }
+
+    @Test
+    @DisplayName("The job pauses while threads are waiting for a pooled connection")
+    void pausesUnderPoolPressure() {
+        // Arrange
+        MessageListDAO dao = createMessages(1, 5, LocalDateTime.now().minusDays(100));
+        MetricsRegistry metrics = new MetricsRegistry();
+        AtomicInteger checks = new AtomicInteger();
+        RetentionPolicy policy = new RetentionPolicy(Duration.ofDays(1), 0, 10, 0, 0, 1);
+        RetentionJob job = new RetentionJob(dao, policy, metrics, () -> checks.incrementAndGet() <= 3 ? 2 : 0);
+
+        // Act
+        int deleted = job.runOnce();
+
+        // Assert
+        assertEquals(5, deleted);
+        assertEquals(3, metrics.counter("retention.pressure-pauses").get());
+    }
+}
@@ -0,0 +1,198 @@
+package se.sprinto.hakan.chatapp.shard;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedMessageDAOTest {
+    private static final int USERS = 20;
+    private static final LocalDateTime START = LocalDateTime.of(2025, 3, 1, 12, 0);
+
+    private JdbcDataSource users;
+    private List<Shard> shards;
+    private final List<Message> all = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        users = dataSource("shard_users");
+        new SchemaMigrator(users).migrate();
+        try (Connection con = users.getConnection();
+             PreparedStatement ps = con.prepareStatement("INSERT INTO users (user_id, username, password) VALUES (?, ?, ?)")) {
+            for (int userId = 1; userId <= USERS; userId++) {
+                ps.setInt(1, userId);
+                ps.setString(2, "user" + userId);
+                ps.setString(3, "hash" + userId);
+                ps.executeUpdate();
+            }
+        }
+        shards = new ArrayList<>();
+        for (String name : List.of("a", "b", "c")) {
+            JdbcDataSource dataSource = dataSource("shard_" + name);
+            new SchemaMigrator(dataSource).migrate();
+            shards.add(new Shard(name, dataSource));
+        }
+        // Timestamps go back and forth between users, so a merge has to interleave the shards
+        for (int i = 0; i < 200; i++) {
+            all.add(new Message(1000 + i, i % USERS + 1, "Meddelande " + i, START.plusSeconds((i * 37) % 200)));
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        List<JdbcDataSource> dataSources = new ArrayList<>(List.of(users));
+        shards.forEach(shard -> dataSources.add((JdbcDataSource) shard.dataSource()));
+        for (JdbcDataSource dataSource : dataSources) {
+            try (Connection con = dataSource.getConnection();
+                 Statement stmt = con.createStatement()) {
+                stmt.execute("DROP ALL OBJECTS");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Each user's messages are written to and read from the shard the ring assigns")
+    void routesByUser() throws SQLException {
+        // Arrange
+        ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 64);
+
+        // Act
+        try (ShardedMessageDAO dao = new ShardedMessageDAO(shards, ring, users, new MetricsRegistry())) {
+            dao.saveMessages(all.subList(0, 100));
+            all.subList(100, 200).forEach(dao::saveMessage);
+
+            // Assert
+            for (Shard shard : shards) {
+                Set<Integer> owners = owners(shard);
+                assertFalse(owners.isEmpty(), "shard " + shard.name() + " got no users");
+                owners.forEach(userId -> assertEquals(shard.name(), ring.shardFor(userId)));
+            }
+            List<Message> history = dao.getMessagesByUserId(7);
+            assertEquals(10, history.size());
+            for (int i = 1; i < history.size(); i++) {
+                assertFalse(history.get(i).getTimestamp().isBefore(history.get(i - 1).getTimestamp()));
+            }
+            assertEquals("", password(dao.shardOf(7), 7));
+        }
+    }
+
+    @Test
+    @DisplayName("A time range over all users is merged from every shard in order, keeping the newest")
+    void mergesAcrossShards() {
+        // Arrange
+        ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 64);
+        List<Long> inRange = all.stream()
+                .filter(message -> !message.getTimestamp().isBefore(START.plusSeconds(50)))
+                .sorted(Comparator.comparing(Message::getTimestamp).thenComparingLong(Message::getId))
+                .map(Message::getId)
+                .toList();
+        List<Long> expected = inRange.subList(inRange.size() - 15, inRange.size());
+
+        try (ShardedMessageDAO dao = new ShardedMessageDAO(shards, ring, users, new MetricsRegistry())) {
+            dao.saveMessages(all);
+
+            // Act
+            List<Message> between = dao.getMessagesBetween(START.plusSeconds(50), START.plusSeconds(1000), 15);
+
+            // Assert
+            assertEquals(expected, between.stream().map(Message::getId).toList());
+        }
+    }
+
+    @Test
+    @DisplayName("Adding a shard and rebalancing moves only the users whose owner changed")
+    void rebalancesToNewShard() throws SQLException {
+        // Arrange
+        ConsistentHashRing twoShards = new ConsistentHashRing(List.of("a", "b"), 64);
+        ConsistentHashRing threeShards = new ConsistentHashRing(List.of("a", "b", "c"), 64);
+        try (ShardedMessageDAO dao = new ShardedMessageDAO(shards.subList(0, 2), twoShards, users, new MetricsRegistry())) {
+            dao.saveMessages(all);
+        }
+        long expectedMoves = all.stream()
+                .filter(message -> !twoShards.shardFor(message.getUserId()).equals(threeShards.shardFor(message.getUserId())))
+                .count();
+        ShardRebalancer rebalancer = new ShardRebalancer(shards, threeShards, users, 16);
+
+        // Act
+        long moved = rebalancer.rebalance();
+        long movedAgain = rebalancer.rebalance();
+
+        // Assert
+        assertTrue(expectedMoves > 0);
+        assertEquals(expectedMoves, moved);
+        assertEquals(0, movedAgain);
+        for (Shard shard : shards) {
+            owners(shard).forEach(userId -> assertEquals(shard.name(), threeShards.shardFor(userId)));
+        }
+        try (ShardedMessageDAO dao = new ShardedMessageDAO(shards, threeShards, users, new MetricsRegistry())) {
+            for (int userId = 1; userId <= USERS; userId++) {
+                assertEquals(10, dao.getMessagesByUserId(userId).size(), "user " + userId);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("A new shard takes users only from the others and about its share of them")
+    void ringMovesOnlyToNewShard() {
+        // Arrange
+        ConsistentHashRing three = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+        ConsistentHashRing four = new ConsistentHashRing(List.of("a", "b", "c", "d"), 128);
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+
+        // Act
+        for (int userId = 1; userId <= 10_000; userId++) {
+            String before = three.shardFor(userId);
+            String after = four.shardFor(userId);
+            counts.merge(after, 1, Integer::sum);
+            if (!before.equals(after)) {
+                moved++;
+                assertEquals("d", after);
+            }
+        }
+
+        // Assert
+        assertTrue(moved > 1_500 && moved < 3_500, "moved " + moved);
+        counts.values().forEach(count -> assertTrue(count > 1_500 && count < 3_500, "counts " + counts));
+    }
+
+    private static Set<Integer> owners(Shard shard) throws SQLException {
+        Set<Integer> owners = new HashSet<>();
+        try (Connection con = shard.dataSource().getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT DISTINCT user_id FROM messages")) {
+            while (rs.next()) {
+                owners.add(rs.getInt(1));
+            }
+        }
+        return owners;
+    }
+
+    private static String password(Shard shard, int userId) throws SQLException {
+        try (Connection con = shard.dataSource().getConnection();
+             PreparedStatement ps = con.prepareStatement("SELECT password FROM users WHERE user_id = ?")) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+
+    private static JdbcDataSource dataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        return dataSource;
+    }
+}
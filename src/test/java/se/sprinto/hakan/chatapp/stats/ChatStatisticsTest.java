@@ -0,0 +1,190 @@
+package se.sprinto.hakan.chatapp.stats;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import se.sprinto.hakan.chatapp.dao.MessageDAO;
+import se.sprinto.hakan.chatapp.dao.MessageDatabaseDAO;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+import se.sprinto.hakan.chatapp.model.Message;
+import se.sprinto.hakan.chatapp.util.SchemaMigrator;
+
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatStatisticsTest {
+    private static final LocalDateTime START = LocalDateTime.of(2025, 5, 1, 9, 0);
+
+    private JdbcDataSource dataSource;
+    private StatisticsStore store;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:stats;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        new SchemaMigrator(dataSource).migrate();
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement ps = con.prepareStatement("INSERT INTO users (user_id, username, password) VALUES (?, ?, ?)")) {
+            for (int userId = 1; userId <= 3; userId++) {
+                ps.setInt(1, userId);
+                ps.setString(2, "user" + userId);
+                ps.setString(3, "hash" + userId);
+                ps.executeUpdate();
+            }
+        }
+        store = new StatisticsStore(dataSource, List.of(dataSource));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    @DisplayName("Saved messages update the user's count and first and latest activity, and the top list")
+    void countsSavedMessages() throws SQLException {
+        // Arrange
+        ChatStatistics statistics = new ChatStatistics(new MetricsRegistry());
+        statistics.rebuild(store, 100);
+        MessageDAO dao = new StatisticsMessageDAO(new MessageDatabaseDAO(dataSource), statistics);
+
+        // Act
+        dao.saveMessage(new Message(100, 2, "hej", START.plusMinutes(5)));
+        dao.saveMessages(List.of(
+                new Message(101, 2, "igen", START.plusMinutes(1)),
+                new Message(102, 1, "hallå", START.plusMinutes(2)),
+                new Message(103, 2, "sista", START.plusMinutes(9))));
+        UserStats second = statistics.userStats(2);
+        List<UserStats> top = statistics.top(1);
+
+        // Assert
+        assertEquals(new UserStats(2, 3, START.plusMinutes(1), START.plusMinutes(9)), second);
+        assertNull(statistics.userStats(3));
+        assertEquals(List.of(second), top);
+        assertEquals(4, statistics.messageCount());
+        assertEquals(2, statistics.userCount());
+        assertEquals("user2", statistics.usernames(List.of(2)).get(2));
+    }
+
+    @Test
+    @DisplayName("Messages that insert no row, duplicates and retried batches, are not counted again")
+    void skipsMessagesNotInserted() {
+        // Arrange
+        ChatStatistics statistics = new ChatStatistics(new MetricsRegistry());
+        MessageDAO dao = new StatisticsMessageDAO(new MessageDatabaseDAO(dataSource), statistics);
+        Message first = new Message(200, 1, "hej", START);
+        first.setClientMsgId(7);
+        Message retry = new Message(201, 1, "hej", START);
+        retry.setClientMsgId(7);
+        List<Message> batch = List.of(new Message(202, 1, "ett", START.plusMinutes(1)),
+                new Message(203, 1, "två", START.plusMinutes(2)));
+
+        // Act
+        dao.saveMessage(first);
+        dao.saveMessage(retry);
+        dao.saveMessages(batch);
+        dao.saveMessages(batch);
+
+        // Assert
+        assertEquals(3, statistics.userStats(1).messageCount());
+        assertEquals(3, statistics.messageCount());
+    }
+
+    @Test
+    @DisplayName("A rebuild reads the checkpoint and adds only the messages saved after it")
+    void rebuildsFromCheckpointAndTail() throws SQLException {
+        // Arrange
+        LocalDateTime recent = LocalDateTime.now().withNano(0).minusSeconds(30);
+        ChatStatistics before = new ChatStatistics(new MetricsRegistry());
+        before.rebuild(store, 2);
+        MessageDAO dao = new StatisticsMessageDAO(new MessageDatabaseDAO(dataSource), before);
+        for (int i = 0; i < 5; i++) {
+            dao.saveMessage(new Message(200 + i, i % 2 + 1, "före " + i, START.plusSeconds(i)));
+        }
+        int written = before.checkpoint();
+        // Saved within the settle time by a server that stopped before the next checkpoint
+        MessageDAO uncounted = new MessageDatabaseDAO(dataSource);
+        uncounted.saveMessage(new Message(205, 1, "efter", recent));
+        for (int i = 0; i < 4; i++) {
+            uncounted.saveMessage(new Message(300 + i, 3, "efter " + i, recent.plusSeconds(1 + i)));
+        }
+        MetricsRegistry metrics = new MetricsRegistry();
+        ChatStatistics after = new ChatStatistics(metrics);
+
+        // Act
+        after.rebuild(store, 2);
+        ChatStatistics again = new ChatStatistics(new MetricsRegistry());
+        again.rebuild(store, 2);
+
+        // Assert
+        assertEquals(2, written);
+        assertEquals(5, metrics.snapshot().get("stats.rebuild.tail-messages"));
+        assertEquals(new UserStats(1, 4, START, recent), after.userStats(1));
+        assertEquals(new UserStats(2, 2, START.plusSeconds(1), START.plusSeconds(3)), after.userStats(2));
+        assertEquals(new UserStats(3, 4, recent.plusSeconds(1), recent.plusSeconds(4)), after.userStats(3));
+        assertEquals(10, after.messageCount());
+        assertEquals(after.userStats(3), again.userStats(3));
+        assertEquals(10, again.messageCount());
+    }
+
+    @Test
+    @DisplayName("A message saved after a checkpoint with an older timestamp than a newer one is counted by a rebuild")
+    void rebuildCountsSavesFinishedOutOfOrder() throws SQLException {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        ChatStatistics before = new ChatStatistics(new MetricsRegistry(), Duration.ofMinutes(1));
+        before.rebuild(store, 100);
+        MessageDAO dao = new StatisticsMessageDAO(new MessageDatabaseDAO(dataSource), before);
+        dao.saveMessage(new Message(500, 1, "gammal", START));
+        dao.saveMessage(new Message(502, 1, "ny", now));
+        int written = before.checkpoint();
+        // Sent before the newer message but saved after the checkpoint, then the server crashes
+        dao.saveMessage(new Message(501, 2, "sen", now.minusSeconds(5)));
+        ChatStatistics after = new ChatStatistics(new MetricsRegistry(), Duration.ofMinutes(1));
+
+        // Act
+        after.rebuild(store, 100);
+
+        // Assert
+        assertEquals(1, written);
+        assertEquals(3, before.messageCount());
+        assertEquals(new UserStats(1, 2, START, now), after.userStats(1));
+        assertEquals(new UserStats(2, 1, now.minusSeconds(5), now.minusSeconds(5)), after.userStats(2));
+        assertEquals(3, after.messageCount());
+    }
+
+    @Test
+    @DisplayName("A failed checkpoint keeps the users changed, so the next checkpoint writes them")
+    void retriesFailedCheckpoint() throws SQLException {
+        // Arrange
+        ChatStatistics statistics = new ChatStatistics(new MetricsRegistry());
+        statistics.rebuild(store, 100);
+        statistics.record(new Message(400, 1, "hej", START));
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("ALTER TABLE user_stats RENAME TO user_stats_moved");
+        }
+
+        // Act
+        assertThrows(SQLException.class, statistics::checkpoint);
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("ALTER TABLE user_stats_moved RENAME TO user_stats");
+        }
+        int written = statistics.checkpoint();
+
+        // Assert
+        assertEquals(1, written);
+        assertEquals(0, statistics.checkpoint());
+    }
+}
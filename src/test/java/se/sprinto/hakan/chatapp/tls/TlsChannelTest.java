@@ -0,0 +1,128 @@
+package se.sprinto.hakan.chatapp.tls;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.sprinto.hakan.chatapp.metrics.MetricsRegistry;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TlsChannelTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @TempDir
+    static Path directory;
+    private static Path keystore;
+    private MetricsRegistry serverMetrics;
+    private MetricsRegistry clientMetrics;
+    private ServerSocketChannel serverChannel;
+    private Thread serverThread;
+
+    @BeforeAll
+    static void createKeystore() throws Exception {
+        keystore = directory.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true).start();
+        keytool.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertTrue(keytool.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, keytool.exitValue());
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        serverMetrics = new MetricsRegistry();
+        clientMetrics = new MetricsRegistry();
+        SSLContext serverContext = TlsSupport.serverContext(keystore, PASSWORD, 100, 3600);
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        serverThread = new Thread(() -> {
+            while (serverChannel.isOpen()) {
+                try (SocketChannel accepted = serverChannel.accept()) {
+                    TlsChannel tls = TlsChannel.server(accepted, serverContext, serverMetrics);
+                    tls.handshake();
+                    PrintWriter out = new PrintWriter(tls.getOutputStream(), true, StandardCharsets.UTF_8);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(tls.getInputStream(), StandardCharsets.UTF_8));
+                    out.println("Välkommen!");
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        out.println("eko: " + line);
+                    }
+                    tls.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        serverThread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        serverChannel.close();
+        serverThread.join(5000);
+    }
+
+    @Test
+    @DisplayName("Lines go both ways encrypted, and a reconnect with the same context resumes the session")
+    void exchangesLinesAndResumes() throws Exception {
+        // Arrange
+        SSLContext clientContext = TlsSupport.clientContext(keystore, PASSWORD);
+        int port = serverChannel.socket().getLocalPort();
+
+        // Act
+        String first = exchange(clientContext, port, "hej åäö");
+        String second = exchange(clientContext, port, "igen");
+
+        // Assert
+        assertEquals("eko: hej åäö", first);
+        assertEquals("eko: igen", second);
+        assertEquals(2, clientMetrics.snapshot().get("tls.handshakes"));
+        assertEquals(1, clientMetrics.snapshot().get("tls.handshakes.resumed"));
+        assertEquals(1, serverMetrics.snapshot().get("tls.handshakes.resumed"));
+    }
+
+    @Test
+    @DisplayName("A client that does not trust the server certificate fails the handshake")
+    void rejectsUntrustedServer() throws Exception {
+        // Arrange
+        SSLContext untrusting = SSLContext.getInstance("TLS");
+        untrusting.init(null, null, null);
+        int port = serverChannel.socket().getLocalPort();
+
+        // Act & Assert
+        assertThrows(SSLException.class, () -> exchange(untrusting, port, "hej"));
+    }
+
+    private String exchange(SSLContext context, int port, String line) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            TlsChannel tls = TlsChannel.client(channel, context, "localhost", port, clientMetrics);
+            tls.handshake();
+            BufferedReader in = new BufferedReader(new InputStreamReader(tls.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(tls.getOutputStream(), true, StandardCharsets.UTF_8);
+            assertEquals("Välkommen!", in.readLine());
+            out.println(line);
+            String answer = in.readLine();
+            tls.close();
+            return answer;
+        }
+    }
+}
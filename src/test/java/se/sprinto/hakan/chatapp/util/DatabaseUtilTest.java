@@ -0,0 +1,77 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseUtilTest {
+    private static final String URL = "jdbc:h2:mem:database_util;DB_CLOSE_DELAY=-1";
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection con = h2().getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    @DisplayName("A failed migration stops the start instead of leaving a pool on a half-migrated schema")
+    void failsOnFailedMigration() throws Exception {
+        // Arrange
+        try (Connection con = h2().getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("CREATE TABLE users (user_id INT AUTO_INCREMENT PRIMARY KEY, username VARCHAR(50) NOT NULL, password VARCHAR(255) NOT NULL)");
+            // V3 adds this column, so its script fails
+            stmt.execute("CREATE TABLE messages (message_id INT AUTO_INCREMENT PRIMARY KEY, text VARCHAR(1000) NOT NULL, timestamp TIMESTAMP NOT NULL, user_id INT NOT NULL, client_msg_id BIGINT)");
+        }
+
+        // Act
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> new DatabaseUtil(properties()));
+
+        // Assert
+        assertInstanceOf(SQLException.class, e.getCause());
+        try (Connection con = h2().getConnection()) {
+            assertEquals(2, SchemaMigrator.currentVersion(con));
+        }
+    }
+
+    @Test
+    @DisplayName("A successful migration leaves the pool usable")
+    void migratesOnStart() throws Exception {
+        // Act
+        DatabaseUtil util = new DatabaseUtil(properties());
+
+        // Assert
+        try (Connection con = util.getConnection()) {
+            assertEquals(SchemaMigrator.MIGRATIONS.size(), SchemaMigrator.currentVersion(con));
+        }
+    }
+
+    private static Properties properties() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = ClassLoader.getSystemResourceAsStream("application-test.properties")) {
+            properties.load(input);
+        }
+        properties.setProperty("db.url", URL);
+        properties.setProperty("hikaricp.pool-name", "DatabaseUtilTest");
+        return properties;
+    }
+
+    private static JdbcDataSource h2() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL(URL);
+        dataSource.setUser("sa");
+        return dataSource;
+    }
+}
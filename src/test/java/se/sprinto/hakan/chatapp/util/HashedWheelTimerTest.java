@@ -0,0 +1,77 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedWheelTimerTest {
+    private HashedWheelTimer timer;
+
+    @BeforeEach
+    void setUp() {
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8, "test-timer");
+    }
+
+    @AfterEach
+    void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    @DisplayName("Timeouts run in deadline order, also when they are more than one turn away")
+    void runsInDeadlineOrder() throws InterruptedException {
+        // Arrange
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+
+        // Act
+        timer.newTimeout(() -> { order.add(3); done.countDown(); }, 250, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> { order.add(1); done.countDown(); }, 20, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> { order.add(2); done.countDown(); }, 100, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+    }
+
+    @Test
+    @DisplayName("A timeout never runs before its delay")
+    void notBeforeDelay() throws InterruptedException {
+        // Arrange
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] elapsed = new long[1];
+
+        // Act
+        timer.newTimeout(() -> { elapsed[0] = System.nanoTime() - start; done.countDown(); }, 120, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(120), "ran after " + elapsed[0] + " ns");
+    }
+
+    @Test
+    @DisplayName("A cancelled timeout does not run")
+    void cancelled() throws InterruptedException {
+        // Arrange
+        CountDownLatch cancelledRan = new CountDownLatch(1);
+        CountDownLatch laterRan = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(cancelledRan::countDown, 30, TimeUnit.MILLISECONDS);
+
+        // Act
+        timeout.cancel();
+        timer.newTimeout(laterRan::countDown, 60, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(laterRan.await(2, TimeUnit.SECONDS));
+        assertEquals(1, cancelledRan.getCount());
+    }
+}
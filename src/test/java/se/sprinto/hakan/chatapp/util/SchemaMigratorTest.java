@@ -0,0 +1,100 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaMigratorTest {
+    private JdbcDataSource dataSource;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:migrator;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    @DisplayName("An empty database gets every migration once")
+    void migratesEmptyDatabaseOnce() throws SQLException {
+        // Arrange
+        SchemaMigrator migrator = new SchemaMigrator(dataSource);
+
+        // Act
+        int first = migrator.migrate();
+        int second = migrator.migrate();
+
+        // Assert
+        assertEquals(SchemaMigrator.MIGRATIONS.size(), first);
+        assertEquals(0, second);
+        try (Connection con = dataSource.getConnection()) {
+            assertEquals(SchemaMigrator.MIGRATIONS.size(), SchemaMigrator.currentVersion(con));
+        }
+    }
+
+    @Test
+    @DisplayName("A database created with the old hand-written DDL is upgraded and keeps its rows")
+    void upgradesLegacyDatabase() throws SQLException {
+        // Arrange
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            stmt.execute("CREATE TABLE users (user_id INT AUTO_INCREMENT PRIMARY KEY, username VARCHAR(50) NOT NULL, password VARCHAR(255) NOT NULL)");
+            stmt.execute("CREATE TABLE messages (message_id INT AUTO_INCREMENT PRIMARY KEY, text VARCHAR(1000) NOT NULL, timestamp TIMESTAMP NOT NULL, user_id INT NOT NULL, FOREIGN KEY (user_id) REFERENCES users(user_id))");
+            stmt.execute("INSERT INTO users (username, password) VALUES ('Yuki', 'x')");
+            stmt.execute("INSERT INTO messages (text, timestamp, user_id) VALUES ('hej', CURRENT_TIMESTAMP, 1)");
+        }
+
+        // Act
+        new SchemaMigrator(dataSource).migrate();
+
+        // Assert
+        try (Connection con = dataSource.getConnection();
+             Statement stmt = con.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'MESSAGES' AND COLUMN_NAME = 'MESSAGE_ID'");
+            assertTrue(rs.next());
+            assertEquals("BIGINT", rs.getString(1));
+            rs = stmt.executeQuery("SELECT text, client_msg_id FROM messages");
+            assertTrue(rs.next());
+            assertEquals("hej", rs.getString(1));
+            assertThrows(SQLException.class, () -> stmt.execute("INSERT INTO users (username, password) VALUES ('Yuki', 'y')"));
+        }
+    }
+
+    @Test
+    @DisplayName("Scripts are split on semicolons at line ends and comments are skipped")
+    void splitsStatements() {
+        // Arrange
+        String script = """
+                -- a comment
+                CREATE TABLE a (
+                    id INT
+                );
+
+                CREATE INDEX idx_a ON a (id);
+                """;
+
+        // Act
+        List<String> statements = SchemaMigrator.splitStatements(script);
+
+        // Assert
+        assertEquals(List.of("CREATE TABLE a (\nid INT\n)", "CREATE INDEX idx_a ON a (id)"), statements);
+    }
+}
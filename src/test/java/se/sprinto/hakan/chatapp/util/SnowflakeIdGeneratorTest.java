@@ -0,0 +1,81 @@
+package se.sprinto.hakan.chatapp.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnowflakeIdGeneratorTest {
+
+    @Test
+    @DisplayName("Ids carry the time and node id they were generated with")
+    void encodesTimeAndNode() {
+        // Arrange
+        long now = SnowflakeIdGenerator.EPOCH + 123_456;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(42, () -> now);
+
+        // Act
+        long id = generator.nextId();
+
+        // Assert
+        assertEquals(now, SnowflakeIdGenerator.timestampOf(id));
+        assertEquals(42, SnowflakeIdGenerator.nodeOf(id));
+    }
+
+    @Test
+    @DisplayName("Ids keep increasing when the sequence overflows or the clock moves backwards")
+    void increasesWithStoppedOrBackwardsClock() {
+        // Arrange
+        long[] now = {SnowflakeIdGenerator.EPOCH + 1000};
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, () -> now[0]);
+
+        // Act & Assert
+        long previous = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (i == 5000) {
+                now[0] -= 500;
+            }
+            long id = generator.nextId();
+            assertTrue(id > previous);
+            assertEquals(1, SnowflakeIdGenerator.nodeOf(id));
+            previous = id;
+        }
+    }
+
+    @Test
+    @DisplayName("Ids are unique across threads")
+    void uniqueAcrossThreads() throws InterruptedException {
+        // Arrange
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // Act
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 25_000; i++) {
+                    ids.add(generator.nextId());
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Assert
+        assertEquals(100_000, ids.size());
+    }
+
+    @Test
+    @DisplayName("A node id outside 0-1023 is rejected")
+    void rejectsInvalidNode() {
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE_ID + 1));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(-1));
+    }
+}